@@ -0,0 +1,23 @@
+package com.catapult.lds.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * {@code BenchmarkRunner} runs the JMH benchmarks of this project with the {@linkplain GCProfiler gc profiler}, so that
+ * the allocation rate of each benchmark is reported alongside its throughput.  It accepts the same arguments as the
+ * JMH command line, e.g. the name of the benchmarks to run and {@code -p fanOut=1000}.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,94 @@
+package com.catapult.lds.benchmark;
+
+import com.catapult.lds.service.DenormalizedCacheValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code DenormalizedCacheValueBenchmark} measures the deserialization, serialization and modification of a {@link
+ * DenormalizedCacheValue} whose resource has the given number of subscribed connections (its fan-out).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DenormalizedCacheValueBenchmark {
+
+    /**
+     * The number of connections subscribed to the resource
+     */
+    @Param({"1", "10", "100", "1000", "10000", "50000"})
+    int fanOut;
+
+    /**
+     * The stored json value of the resource
+     */
+    private String connectionListJson;
+
+    /**
+     * A deserialized value of the resource, modified by the benchmarks
+     */
+    private DenormalizedCacheValue value;
+
+    /**
+     * The id of an existing connection of {@link #value}
+     */
+    private String existingConnectionId;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        DenormalizedCacheValue template = DenormalizedCacheValue.fromSetMembers("ts:athlete:benchmark",
+                Collections.emptyList());
+        for (int i = 0; i < this.fanOut; i++) {
+            template.addSubscription(UUID.randomUUID().toString(), UUID.randomUUID().toString());
+        }
+        this.connectionListJson = template.getSerializedConnectionList();
+        this.value = DenormalizedCacheValue.deserializeFromJson("ts:athlete:benchmark", this.connectionListJson);
+        this.existingConnectionId = this.value.getConnectionIds().iterator().next();
+    }
+
+    @Benchmark
+    public DenormalizedCacheValue deserializeFromJson() {
+        return DenormalizedCacheValue.deserializeFromJson("ts:athlete:benchmark", this.connectionListJson);
+    }
+
+    /**
+     * Serializes the value after a modification, since an unmodified value returns its previously serialized form.
+     */
+    @Benchmark
+    public String getSerializedConnectionList() {
+        this.value.addSubscription(this.existingConnectionId, "benchmark-subscription-id");
+        this.value.removeSubscription(this.existingConnectionId, "benchmark-subscription-id");
+        return this.value.getSerializedConnectionList();
+    }
+
+    @Benchmark
+    public DenormalizedCacheValue addAndRemoveConnection() {
+        this.value.addSubscription("benchmark-connection-id", "benchmark-subscription-id");
+        this.value.removeSubscription("benchmark-connection-id", "benchmark-subscription-id");
+        return this.value;
+    }
+
+    @Benchmark
+    public DenormalizedCacheValue addAndRemoveSubscriptionOfExistingConnection() {
+        this.value.addSubscription(this.existingConnectionId, "benchmark-subscription-id");
+        this.value.removeSubscription(this.existingConnectionId, "benchmark-subscription-id");
+        return this.value;
+    }
+}
@@ -0,0 +1,396 @@
+package com.catapult.lds.benchmark;
+
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayV2WebSocketEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayV2WebSocketResponse;
+import com.catapult.lds.ConnectHandler;
+import com.catapult.lds.DisconnectHandler;
+import com.catapult.lds.HeartbeatRequestHandler;
+import com.catapult.lds.ModifySubscriptionRequestHandler;
+import com.catapult.lds.SubscribeBatchRequestHandler;
+import com.catapult.lds.SubscribeRequestHandler;
+import com.catapult.lds.UnsubscribeRequestHandler;
+import com.catapult.lds.json.JsonCodec;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.node.MissingNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.HdrHistogram.Histogram;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@code HandlerReplay} replays recorded API Gateway WebSocket events through the handlers of this project, in-process,
+ * and reports the latency and the status codes of each route.
+ * <p/>
+ * The events are read from a file with one {@link APIGatewayV2WebSocketEvent} in json per line, as they are logged by
+ * API Gateway, and are dispatched on the route key of their request context.  Events are replayed at the pace they were
+ * recorded at, according to their {@code requestTimeEpoch}, divided by the speed-up.  A speed-up of 0 replays events as
+ * fast as possible.  The events of a connection are always replayed in order by the same worker thread.
+ * <p/>
+ * Subscription ids are created anew when a subscription is replayed, so the recorded unsubscribe requests refer to ids
+ * that do not exist.  Unless disabled, the first unsubscribe request of each recorded subscription id is rewritten to
+ * cancel the oldest replayed subscription of its connection that has not been matched yet, and later requests for the
+ * same recorded id cancel the same replayed subscription.
+ * <p/>
+ * Options are given as {@code --name=value} arguments; see {@link #DEFAULT_OPTIONS} for their names and defaults.  The
+ * cache service used by the handlers is selected and configured with the same environment variables as in production.
+ */
+public class HandlerReplay {
+
+    /**
+     * The options of the replay and their default values
+     */
+    private static final Map<String, String> DEFAULT_OPTIONS = Map.ofEntries(
+            Map.entry("events", ""),
+            Map.entry("speed-up", "1.0"),
+            Map.entry("threads", "8"),
+            Map.entry("remap-subscription-ids", "true"));
+
+    /**
+     * The highest latency that is recorded, in nanoseconds
+     */
+    private static final long MAX_LATENCY_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    /**
+     * The name under which events with an unknown route are reported
+     */
+    private static final String UNKNOWN_ROUTE = "(unknown route)";
+
+    /**
+     * The reader of recorded events, which ignores the fields that the event class does not declare
+     */
+    private static final ObjectReader eventReader = JsonCodec.readerFor(APIGatewayV2WebSocketEvent.class)
+            .without(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+    /**
+     * The reader of request and response bodies
+     */
+    private static final ObjectReader treeReader = JsonCodec.readerFor(JsonNode.class);
+
+    /**
+     * The handler of each route key, as configured in {@code sam.yml}
+     */
+    private final Map<String, RequestHandler<APIGatewayV2WebSocketEvent, APIGatewayV2WebSocketResponse>> handlers =
+            Map.of("$connect", new ConnectHandler(),
+                    "subscribe", new SubscribeRequestHandler(),
+                    "subscribeBatch", new SubscribeBatchRequestHandler(),
+                    "modifySubscription", new ModifySubscriptionRequestHandler(),
+                    "unsubscribe", new UnsubscribeRequestHandler(),
+                    "heartbeat", new HeartbeatRequestHandler(),
+                    "$disconnect", new DisconnectHandler());
+
+    /**
+     * The options of this run
+     */
+    private final Map<String, String> options;
+
+    /**
+     * Whether the subscription ids of unsubscribe requests are remapped to replayed subscriptions
+     */
+    private final boolean remapSubscriptionIds;
+
+    HandlerReplay(Map<String, String> options) {
+        this.options = options;
+        this.remapSubscriptionIds = Boolean.parseBoolean(options.get("remap-subscription-ids"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("log4j2.configurationFile", LoadBenchmark.LOGGING_CONFIGURATION);
+
+        Map<String, String> options = LoadBenchmark.parseOptions(args, DEFAULT_OPTIONS);
+        if (options.get("events").isEmpty()) {
+            System.err.println("Missing option --events=<file of recorded events>");
+            System.exit(1);
+        }
+
+        new HandlerReplay(options).run();
+        System.exit(0);
+    }
+
+    /**
+     * Replays the recorded events and prints the results.
+     */
+    void run() throws Exception {
+        System.out.println("options: " + new TreeMap<>(this.options));
+
+        List<APIGatewayV2WebSocketEvent> events = readEvents(this.options.get("events"));
+        if (events.isEmpty()) {
+            System.out.println("no events to replay");
+            return;
+        }
+        double speedUp = Double.parseDouble(this.options.get("speed-up"));
+        long firstEventMillis = events.get(0).getRequestContext().getRequestTimeEpoch();
+
+        int threads = Integer.parseInt(this.options.get("threads"));
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            workers.add(new Worker());
+        }
+        for (APIGatewayV2WebSocketEvent event : events) {
+            String connectionId = event.getRequestContext().getConnectionId();
+            int worker = connectionId == null ? 0 : Math.floorMod(connectionId.hashCode(), threads);
+            long offsetNanos = speedUp <= 0 ? 0 :
+                    (long) (TimeUnit.MILLISECONDS.toNanos(event.getRequestContext().getRequestTimeEpoch() -
+                            firstEventMillis) / speedUp);
+            workers.get(worker).schedule(offsetNanos, event);
+        }
+
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        List<Future<?>> futures = new ArrayList<>();
+        for (Worker worker : workers) {
+            futures.add(executorService.submit(() -> worker.replay(start)));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        executorService.shutdown();
+
+        this.report(workers, events.size(), elapsedNanos);
+    }
+
+    /**
+     * Returns the events of the given file, in the order in which they were received.
+     */
+    private static List<APIGatewayV2WebSocketEvent> readEvents(String file) throws IOException {
+        List<APIGatewayV2WebSocketEvent> events = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(file))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank()) {
+                    continue;
+                }
+                APIGatewayV2WebSocketEvent event = eventReader.readValue(line);
+                if (event.getRequestContext() == null) {
+                    System.err.println("Skipping event without a request context on line " + lineNumber);
+                    continue;
+                }
+                events.add(event);
+            }
+        }
+        // the sort is stable, so events recorded in the same millisecond keep the order of the file
+        events.sort(Comparator.comparingLong(e -> e.getRequestContext().getRequestTimeEpoch()));
+        return events;
+    }
+
+    /**
+     * Prints the latency and status codes of each route, and how far the replay fell behind the recorded pace.
+     */
+    private void report(List<Worker> workers, int eventCount, long elapsedNanos) {
+        Map<String, Histogram> latencies = new TreeMap<>();
+        Map<String, Map<String, Long>> outcomes = new TreeMap<>();
+        Histogram lag = new Histogram(MAX_LATENCY_NANOS, 3);
+        for (Worker worker : workers) {
+            worker.latencies.forEach((route, histogram) ->
+                    latencies.computeIfAbsent(route, r -> new Histogram(MAX_LATENCY_NANOS, 3)).add(histogram));
+            worker.outcomes.forEach((route, counts) -> counts.forEach((outcome, count) ->
+                    outcomes.computeIfAbsent(route, r -> new TreeMap<>()).merge(outcome, count, Long::sum)));
+            lag.add(worker.lag);
+        }
+
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("%nreplayed %d events in %.1f s (%.1f events/sec)%n", eventCount, seconds,
+                eventCount / seconds);
+
+        System.out.printf("%n%-20s %10s %10s %10s %10s %10s%n", "route", "events", "p50 (us)", "p99 (us)",
+                "p999 (us)", "max (us)");
+        for (Map.Entry<String, Histogram> e : latencies.entrySet()) {
+            Histogram histogram = e.getValue();
+            System.out.printf("%-20s %10d %10.1f %10.1f %10.1f %10.1f%n",
+                    e.getKey(),
+                    histogram.getTotalCount(),
+                    histogram.getValueAtPercentile(50) / 1e3,
+                    histogram.getValueAtPercentile(99) / 1e3,
+                    histogram.getValueAtPercentile(99.9) / 1e3,
+                    histogram.getMaxValue() / 1e3);
+        }
+
+        System.out.printf("%n%-20s %-40s %10s%n", "route", "outcome", "events");
+        outcomes.forEach((route, counts) -> counts.forEach((outcome, count) ->
+                System.out.printf("%-20s %-40s %10d%n", route, outcome, count)));
+
+        System.out.printf("%nschedule lag (ms): p50 %.1f, p99 %.1f, max %.1f%n",
+                lag.getValueAtPercentile(50) / 1e6,
+                lag.getValueAtPercentile(99) / 1e6,
+                lag.getMaxValue() / 1e6);
+    }
+
+    /**
+     * {@code Worker} replays its share of the events in order, each no earlier than its scheduled time, and records
+     * their latency and outcome.
+     */
+    private class Worker {
+
+        /**
+         * The offsets from the start of the replay at which {@link #events} are due, in nanoseconds
+         */
+        private final List<Long> offsets = new ArrayList<>();
+
+        /**
+         * The events replayed by this worker, in order
+         */
+        private final List<APIGatewayV2WebSocketEvent> events = new ArrayList<>();
+
+        /**
+         * The latencies of each route
+         */
+        private final Map<String, Histogram> latencies = new TreeMap<>();
+
+        /**
+         * The number of events of each route that had each outcome: a status code or an exception
+         */
+        private final Map<String, Map<String, Long>> outcomes = new TreeMap<>();
+
+        /**
+         * The delays between the scheduled and the actual start of each event
+         */
+        private final Histogram lag = new Histogram(MAX_LATENCY_NANOS, 3);
+
+        /**
+         * The replayed subscription ids of each connection that no recorded subscription id is mapped to yet, oldest
+         * first
+         */
+        private final Map<String, Deque<String>> unmappedSubscriptionIds = new HashMap<>();
+
+        /**
+         * The replayed subscription id of each recorded subscription id
+         */
+        private final Map<String, String> replayedSubscriptionIds = new HashMap<>();
+
+        /**
+         * Schedules the given event at the given offset from the start of the replay.
+         */
+        void schedule(long offsetNanos, APIGatewayV2WebSocketEvent event) {
+            this.offsets.add(offsetNanos);
+            this.events.add(event);
+        }
+
+        /**
+         * Replays the events of this worker, relative to the given start of the replay.
+         */
+        void replay(long startNanos) {
+            for (int i = 0; i < this.events.size(); i++) {
+                long due = startNanos + this.offsets.get(i);
+                long now;
+                while ((now = System.nanoTime()) < due) {
+                    LockSupport.parkNanos(due - now);
+                }
+                this.lag.recordValue(Math.min(now - due, MAX_LATENCY_NANOS));
+                this.replay(this.events.get(i));
+            }
+        }
+
+        /**
+         * Replays the given event through the handler of its route.
+         */
+        private void replay(APIGatewayV2WebSocketEvent event) {
+            String route = event.getRequestContext().getRouteKey();
+            RequestHandler<APIGatewayV2WebSocketEvent, APIGatewayV2WebSocketResponse> handler =
+                    route == null ? null : HandlerReplay.this.handlers.get(route);
+            if (handler == null) {
+                this.outcomes.computeIfAbsent(UNKNOWN_ROUTE, r -> new TreeMap<>()).merge(String.valueOf(route), 1L,
+                        Long::sum);
+                return;
+            }
+
+            if (HandlerReplay.this.remapSubscriptionIds && route.equals("unsubscribe")) {
+                this.remapSubscriptionId(event);
+            }
+
+            String outcome;
+            APIGatewayV2WebSocketResponse response = null;
+            long start = System.nanoTime();
+            try {
+                response = handler.handleRequest(event, null);
+                outcome = String.valueOf(response.getStatusCode());
+            } catch (RuntimeException e) {
+                outcome = e.getClass().getSimpleName();
+            }
+            long latency = System.nanoTime() - start;
+
+            if (HandlerReplay.this.remapSubscriptionIds && response != null) {
+                this.recordSubscriptionIds(route, event.getRequestContext().getConnectionId(), response);
+            }
+
+            this.latencies.computeIfAbsent(route, r -> new Histogram(MAX_LATENCY_NANOS, 3))
+                    .recordValue(Math.min(latency, MAX_LATENCY_NANOS));
+            this.outcomes.computeIfAbsent(route, r -> new TreeMap<>()).merge(outcome, 1L, Long::sum);
+        }
+    
+        /**
+         * Records the replayed subscription created by the given response of the given route and connection, or
+         * forgets the replayed subscriptions of a disconnected connection.
+         */
+        private void recordSubscriptionIds(String route, String connectionId, APIGatewayV2WebSocketResponse response) {
+            if (route.equals("$disconnect")) {
+                this.unmappedSubscriptionIds.remove(connectionId);
+            } else if (route.equals("subscribe") && response.getStatusCode() == HttpURLConnection.HTTP_CREATED) {
+                JsonNode subscriptionId = readTree(response.getBody()).path("subscriptionId");
+                if (subscriptionId.isTextual()) {
+                    this.unmappedSubscriptionIds.computeIfAbsent(connectionId, c -> new ArrayDeque<>())
+                            .add(subscriptionId.asText());
+                }
+            }
+        }
+
+        /**
+         * Rewrites the subscription id of the given unsubscribe event to the replayed subscription that its recorded
+         * subscription id is mapped to, mapping it to the oldest unmapped replayed subscription of its connection on
+         * first use.  Events whose body cannot be read, or that have no replayed subscription, are left unchanged.
+         */
+        private void remapSubscriptionId(APIGatewayV2WebSocketEvent event) {
+            JsonNode body = readTree(event.getBody());
+            JsonNode recordedId = body.path("subscriptionId");
+            if (!body.isObject() || !recordedId.isTextual()) {
+                return;
+            }
+
+            String replayedId = this.replayedSubscriptionIds.get(recordedId.asText());
+            if (replayedId == null) {
+                Deque<String> unmapped =
+                        this.unmappedSubscriptionIds.get(event.getRequestContext().getConnectionId());
+                if (unmapped == null || unmapped.isEmpty()) {
+                    return;
+                }
+                replayedId = unmapped.poll();
+                this.replayedSubscriptionIds.put(recordedId.asText(), replayedId);
+            }
+            ((ObjectNode) body).put("subscriptionId", replayedId);
+            event.setBody(body.toString());
+        }
+    }
+
+    /**
+     * Returns the json tree of the given text, or a missing node if it is not json.
+     */
+    private static JsonNode readTree(String text) {
+        try {
+            return text == null ? MissingNode.getInstance() : treeReader.readTree(text);
+        } catch (JsonProcessingException e) {
+            return MissingNode.getInstance();
+        }
+    }
+}
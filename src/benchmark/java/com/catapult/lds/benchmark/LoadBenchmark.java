@@ -0,0 +1,516 @@
+package com.catapult.lds.benchmark;
+
+import com.catapult.lds.Util;
+import com.catapult.lds.service.InMemorySubscriptionCacheService;
+import com.catapult.lds.service.RedisCacheConfiguration;
+import com.catapult.lds.service.RedisSubscriptionCacheService;
+import com.catapult.lds.service.Subscription;
+import com.catapult.lds.service.SubscriptionCacheService;
+import com.catapult.lds.service.SubscriptionException;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.metrics.CommandLatencyRecorder;
+import io.lettuce.core.protocol.ProtocolKeyword;
+import io.lettuce.core.resource.ClientResources;
+import org.HdrHistogram.Histogram;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@code LoadBenchmark} drives the operations of the configured cache service concurrently, with a workload modelled on
+ * production traffic, and reports the throughput, the latency percentiles and the number of redis round trips and
+ * commands of each operation.
+ * <p/>
+ * Each worker thread owns a disjoint set of connections, so that operations never fail because of each other.  The
+ * popularity of resources follows a Zipf distribution.  Every operation of a worker is either a lookup of a batch of
+ * resources, a subscription churn (a subscription is cancelled and a new one is added) or a connection churn (a
+ * connection is closed and a new one is created with new subscriptions), chosen at random with the configured rates.
+ * <p/>
+ * Options are given as {@code --name=value} arguments; see {@link #DEFAULT_OPTIONS} for their names and defaults.  The
+ * cache service is selected and configured with the same environment variables as the handlers, e.g. {@code
+ * LDS_REDIS_HOST}, {@code LDS_REDIS_PORT} and {@code LDS_CACHE_SERVICE}.
+ */
+public class LoadBenchmark {
+
+    /**
+     * The options of the benchmark and their default values
+     */
+    private static final Map<String, String> DEFAULT_OPTIONS = Map.ofEntries(
+            Map.entry("threads", "8"),
+            Map.entry("warmup-seconds", "5"),
+            Map.entry("duration-seconds", "30"),
+            Map.entry("connections-per-thread", "100"),
+            Map.entry("subscriptions-per-connection", "3"),
+            Map.entry("resources-per-subscription", "2"),
+            Map.entry("resources", "10000"),
+            Map.entry("zipf-exponent", "1.0"),
+            Map.entry("lookup-batch-size", "10"),
+            Map.entry("subscription-churn-rate", "0.2"),
+            Map.entry("connection-churn-rate", "0.05"));
+
+    /**
+     * The highest latency that is recorded, in nanoseconds
+     */
+    private static final long MAX_LATENCY_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * The logging configuration of the benchmark, which only logs warnings so that logging does not dominate the
+     * measured latencies
+     */
+    static final String LOGGING_CONFIGURATION = "log4j2-benchmark.xml";
+
+    /**
+     * The operations of a {@code SubscriptionCacheService} whose latency is recorded
+     */
+    enum Operation {
+        CREATE_CONNECTION,
+        ADD_SUBSCRIPTION,
+        CANCEL_SUBSCRIPTION,
+        CLOSE_CONNECTION,
+        GET_DENORMALIZED_CONNECTIONS
+    }
+
+    /**
+     * The options of this run
+     */
+    private final Map<String, String> options;
+
+    /**
+     * The cumulative probabilities of each resource rank
+     */
+    private final double[] resourceDistribution;
+
+    /**
+     * The round trips issued by the cache service under load, which remains empty for a cache service that is not
+     * backed by redis
+     */
+    private final RoundTripRecorder roundTrips = new RoundTripRecorder();
+
+    /**
+     * The cache service under load
+     */
+    private final SubscriptionCacheService cacheService;
+
+    LoadBenchmark(Map<String, String> options) {
+        this.options = options;
+        this.resourceDistribution = zipfDistribution(this.intOption("resources"),
+                Double.parseDouble(options.get("zipf-exponent")));
+        this.cacheService = isInMemory() ?
+                InMemorySubscriptionCacheService.instance :
+                new RedisSubscriptionCacheService(RedisCacheConfiguration.fromEnvironment()
+                        .toBuilder()
+                        .clientResources(ClientResources.builder().commandLatencyRecorder(this.roundTrips).build())
+                        .build());
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("log4j2.configurationFile", LOGGING_CONFIGURATION);
+
+        new LoadBenchmark(parseOptions(args, DEFAULT_OPTIONS)).run();
+        System.exit(0);
+    }
+
+    /**
+     * Returns the given default options overridden by the given {@code --name=value} arguments, or exits if an argument
+     * is not one of the default options.
+     */
+    static Map<String, String> parseOptions(String[] args, Map<String, String> defaultOptions) {
+        Map<String, String> options = new HashMap<>(defaultOptions);
+        for (String arg : args) {
+            String[] nameAndValue = arg.replaceFirst("^--", "").split("=", 2);
+            if (nameAndValue.length != 2 || !defaultOptions.containsKey(nameAndValue[0])) {
+                System.err.println("Unknown option " + arg + ", expected one of " + new TreeMap<>(defaultOptions));
+                System.exit(1);
+            }
+            options.put(nameAndValue[0], nameAndValue[1]);
+        }
+        return options;
+    }
+
+    /**
+     * Runs the benchmark and prints its results.
+     */
+    void run() throws Exception {
+        System.out.println("options: " + new TreeMap<>(this.options));
+
+        int threads = this.intOption("threads");
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            workers.add(new Worker("load-" + i + "-"));
+        }
+
+        for (Worker worker : workers) {
+            worker.populate();
+        }
+
+        // warm up, then measure
+        this.runFor(executorService, workers, this.intOption("warmup-seconds"));
+        workers.forEach(Worker::reset);
+        this.roundTrips.reset();
+        Map<String, Long> commandsBefore = redisCommandCounts();
+        long elapsedNanos = this.runFor(executorService, workers, this.intOption("duration-seconds"));
+        Map<String, Long> commandsAfter = redisCommandCounts();
+        Map<String, Long> roundTrips = this.roundTrips.counts();
+
+        for (Worker worker : workers) {
+            worker.closeAll();
+        }
+        executorService.shutdown();
+
+        Map<Operation, Histogram> latencies = new EnumMap<>(Operation.class);
+        for (Operation operation : Operation.values()) {
+            Histogram merged = new Histogram(MAX_LATENCY_NANOS, 3);
+            workers.forEach(w -> merged.add(w.latencies.get(operation)));
+            latencies.put(operation, merged);
+        }
+        this.report(latencies, elapsedNanos, roundTrips, commandsBefore, commandsAfter);
+    }
+
+    /**
+     * Runs every worker for the given number of seconds, and returns the elapsed time in nanoseconds.
+     */
+    private long runFor(ExecutorService executorService, List<Worker> workers, int seconds) throws Exception {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+        List<Future<?>> futures = new ArrayList<>();
+        for (Worker worker : workers) {
+            futures.add(executorService.submit(() -> worker.runUntil(deadline)));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Prints the throughput and latency of each operation, and the redis round trips and commands per operation.
+     */
+    private void report(Map<Operation, Histogram> latencies,
+                        long elapsedNanos,
+                        Map<String, Long> roundTrips,
+                        Map<String, Long> commandsBefore,
+                        Map<String, Long> commandsAfter) {
+        double seconds = elapsedNanos / 1e9;
+        long totalOperations = 0;
+
+        System.out.printf("%n%-30s %12s %10s %10s %10s %10s%n", "operation", "ops/sec", "p50 (us)", "p99 (us)",
+                "p999 (us)", "max (us)");
+        for (Map.Entry<Operation, Histogram> e : latencies.entrySet()) {
+            Histogram histogram = e.getValue();
+            totalOperations += histogram.getTotalCount();
+            System.out.printf("%-30s %12.1f %10.1f %10.1f %10.1f %10.1f%n",
+                    e.getKey(),
+                    histogram.getTotalCount() / seconds,
+                    histogram.getValueAtPercentile(50) / 1e3,
+                    histogram.getValueAtPercentile(99) / 1e3,
+                    histogram.getValueAtPercentile(99.9) / 1e3,
+                    histogram.getMaxValue() / 1e3);
+        }
+        System.out.printf("%-30s %12.1f%n", "total", totalOperations / seconds);
+
+        if (!roundTrips.isEmpty()) {
+            System.out.printf("%n%-30s %12s %15s%n", "redis round trip", "calls", "calls/operation");
+            printCounts(roundTrips, totalOperations);
+        }
+
+        if (!commandsBefore.isEmpty()) {
+            // the server also counts the commands run by scripts, so a script counts as several commands here
+            Map<String, Long> commands = new TreeMap<>();
+            commandsAfter.forEach((command, calls) -> commands.put(command,
+                    calls - commandsBefore.getOrDefault(command, 0L)));
+            // the handshake and INFO of the statistics connection are only issued by this benchmark
+            commands.remove("hello");
+            commands.remove("info");
+            System.out.printf("%n%-30s %12s %15s%n", "redis command (incl. scripts)", "calls", "calls/operation");
+            printCounts(commands, totalOperations);
+        }
+    }
+
+    /**
+     * Prints the given number of calls of each command, and their number per operation.
+     */
+    private static void printCounts(Map<String, Long> calls, long totalOperations) {
+        long totalCommands = 0;
+        for (Map.Entry<String, Long> e : new TreeMap<>(calls).entrySet()) {
+            if (e.getValue() > 0) {
+                totalCommands += e.getValue();
+                System.out.printf("%-30s %12d %15.2f%n", e.getKey(), e.getValue(),
+                        (double) e.getValue() / totalOperations);
+            }
+        }
+        System.out.printf("%-30s %12d %15.2f%n", "total", totalCommands, (double) totalCommands / totalOperations);
+    }
+
+    /**
+     * Returns the number of calls of each command of the redis instance configured by the environment, or an empty map
+     * if no redis instance is configured.
+     */
+    private static Map<String, Long> redisCommandCounts() {
+        String host = System.getenv(RedisSubscriptionCacheService.LDS_REDIS_HOST_ENV);
+        String port = System.getenv(RedisSubscriptionCacheService.LDS_REDIS_PORT_ENV);
+        if (host == null || port == null || isInMemory()) {
+            return Map.of();
+        }
+
+        RedisClient client = RedisClient.create(RedisURI.create(host, Integer.parseInt(port)));
+        try (StatefulRedisConnection<String, String> connection = client.connect()) {
+            Map<String, Long> counts = new HashMap<>();
+            for (String line : connection.sync().info("commandstats").split("\r?\n")) {
+                // e.g. cmdstat_evalsha:calls=10,usec=...
+                if (line.startsWith("cmdstat_")) {
+                    String command = line.substring("cmdstat_".length(), line.indexOf(':'));
+                    String calls = line.substring(line.indexOf("calls=") + "calls=".length(), line.indexOf(','));
+                    counts.put(command, Long.parseLong(calls));
+                }
+            }
+            return counts;
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    /**
+     * Returns true if the environment selects the in-memory cache service, false otherwise.
+     */
+    private static boolean isInMemory() {
+        return Util.IN_MEMORY_CACHE_SERVICE.equals(System.getenv(Util.LDS_CACHE_SERVICE_ENV));
+    }
+
+    /**
+     * Returns the cumulative probabilities of the ranks of a Zipf distribution with the given number of elements and
+     * exponent.
+     */
+    private static double[] zipfDistribution(int elements, double exponent) {
+        double[] cumulative = new double[elements];
+        double sum = 0;
+        for (int rank = 0; rank < elements; rank++) {
+            sum += 1 / Math.pow(rank + 1, exponent);
+            cumulative[rank] = sum;
+        }
+        for (int rank = 0; rank < elements; rank++) {
+            cumulative[rank] /= sum;
+        }
+        return cumulative;
+    }
+
+    /**
+     * Returns a resource drawn from the Zipf distribution of resources.
+     */
+    private String nextResource() {
+        int rank = Arrays.binarySearch(this.resourceDistribution, ThreadLocalRandom.current().nextDouble());
+        return "ts:athlete:resource-" + (rank < 0 ? -rank - 1 : rank);
+    }
+
+    private int intOption(String name) {
+        return Integer.parseInt(this.options.get(name));
+    }
+
+    private double doubleOption(String name) {
+        return Double.parseDouble(this.options.get(name));
+    }
+
+    /**
+     * {@code Worker} issues operations for the connections that it owns.
+     */
+    private class Worker {
+
+        /**
+         * The prefix of the ids of the connections of this worker
+         */
+        private final String connectionPrefix;
+
+        /**
+         * The ids of the subscriptions of each connection of this worker
+         */
+        private final Map<String, List<String>> subscriptionIdsByConnectionId = new HashMap<>();
+
+        /**
+         * The ids of the connections of this worker, from which a connection is chosen at random
+         */
+        private final List<String> connectionIds = new ArrayList<>();
+
+        /**
+         * The latency of each operation, in nanoseconds
+         */
+        private final Map<Operation, Histogram> latencies = new EnumMap<>(Operation.class);
+
+        /**
+         * The number of connections created by this worker, used to create unique connection ids
+         */
+        private int connectionCount = 0;
+
+        Worker(String connectionPrefix) {
+            this.connectionPrefix = connectionPrefix;
+            this.reset();
+        }
+
+        void reset() {
+            for (Operation operation : Operation.values()) {
+                this.latencies.put(operation, new Histogram(MAX_LATENCY_NANOS, 3));
+            }
+        }
+
+        /**
+         * Creates the initial connections of this worker.
+         */
+        void populate() throws SubscriptionException {
+            for (int i = 0; i < LoadBenchmark.this.intOption("connections-per-thread"); i++) {
+                this.createConnection();
+            }
+        }
+
+        /**
+         * Closes every connection of this worker.
+         */
+        void closeAll() throws SubscriptionException {
+            for (String connectionId : this.connectionIds) {
+                LoadBenchmark.this.cacheService.closeConnection(connectionId);
+            }
+            this.subscriptionIdsByConnectionId.clear();
+            this.connectionIds.clear();
+        }
+
+        /**
+         * Issues random operations until the given {@link System#nanoTime} deadline.
+         */
+        Void runUntil(long deadline) throws SubscriptionException {
+            double subscriptionChurnRate = LoadBenchmark.this.doubleOption("subscription-churn-rate");
+            double connectionChurnRate = LoadBenchmark.this.doubleOption("connection-churn-rate");
+
+            while (System.nanoTime() < deadline) {
+                double p = ThreadLocalRandom.current().nextDouble();
+                if (p < connectionChurnRate) {
+                    this.churnConnection();
+                } else if (p < connectionChurnRate + subscriptionChurnRate) {
+                    this.churnSubscription();
+                } else {
+                    this.lookup();
+                }
+            }
+            return null;
+        }
+
+        private void lookup() {
+            Set<String> resources = new HashSet<>();
+            for (int i = 0; i < LoadBenchmark.this.intOption("lookup-batch-size"); i++) {
+                resources.add(LoadBenchmark.this.nextResource());
+            }
+            long start = System.nanoTime();
+            LoadBenchmark.this.cacheService.getDenormalizedConnectionsForResourceIds(resources);
+            this.record(Operation.GET_DENORMALIZED_CONNECTIONS, start);
+        }
+
+        private void churnSubscription() throws SubscriptionException {
+            String connectionId = this.connectionIds.get(ThreadLocalRandom.current().nextInt(this.connectionIds.size()));
+            List<String> subscriptionIds = this.subscriptionIdsByConnectionId.get(connectionId);
+
+            if (!subscriptionIds.isEmpty()) {
+                String subscriptionId = subscriptionIds.remove(ThreadLocalRandom.current().nextInt(subscriptionIds.size()));
+                long start = System.nanoTime();
+                LoadBenchmark.this.cacheService.cancelSubscription(connectionId, subscriptionId);
+                this.record(Operation.CANCEL_SUBSCRIPTION, start);
+            }
+
+            this.addSubscription(connectionId);
+        }
+
+        private void churnConnection() throws SubscriptionException {
+            int index = ThreadLocalRandom.current().nextInt(this.connectionIds.size());
+            String connectionId = this.connectionIds.get(index);
+            long start = System.nanoTime();
+            LoadBenchmark.this.cacheService.closeConnection(connectionId);
+            this.record(Operation.CLOSE_CONNECTION, start);
+            this.subscriptionIdsByConnectionId.remove(connectionId);
+
+            // replace the closed connection with the last one, rather than shifting the list
+            this.connectionIds.set(index, this.connectionIds.get(this.connectionIds.size() - 1));
+            this.connectionIds.remove(this.connectionIds.size() - 1);
+
+            this.createConnection();
+        }
+
+        private void createConnection() throws SubscriptionException {
+            String connectionId = this.connectionPrefix + this.connectionCount++;
+            long start = System.nanoTime();
+            LoadBenchmark.this.cacheService.createConnection(connectionId);
+            this.record(Operation.CREATE_CONNECTION, start);
+            this.subscriptionIdsByConnectionId.put(connectionId, new ArrayList<>());
+            this.connectionIds.add(connectionId);
+
+            for (int i = 0; i < LoadBenchmark.this.intOption("subscriptions-per-connection"); i++) {
+                this.addSubscription(connectionId);
+            }
+        }
+
+        private void addSubscription(String connectionId) throws SubscriptionException {
+            Set<String> resources = new HashSet<>();
+            for (int i = 0; i < LoadBenchmark.this.intOption("resources-per-subscription"); i++) {
+                resources.add(LoadBenchmark.this.nextResource());
+            }
+            Subscription subscription = new Subscription(connectionId, resources);
+            long start = System.nanoTime();
+            LoadBenchmark.this.cacheService.addSubscription(subscription);
+            this.record(Operation.ADD_SUBSCRIPTION, start);
+            this.subscriptionIdsByConnectionId.get(connectionId).add(subscription.getId());
+        }
+
+        private void record(Operation operation, long start) {
+            this.latencies.get(operation).recordValue(Math.min(System.nanoTime() - start, MAX_LATENCY_NANOS));
+        }
+    }
+
+    /**
+     * {@code RoundTripRecorder} counts the commands that the redis clients send, by command type.  Unlike the command
+     * statistics of the server, a script is counted once, however many commands it runs.
+     */
+    static class RoundTripRecorder implements CommandLatencyRecorder {
+
+        /**
+         * The number of completed commands of each type
+         */
+        private final Map<String, LongAdder> counts = new ConcurrentHashMap<>();
+
+        @Override
+        public void recordCommandLatency(SocketAddress local,
+                                         SocketAddress remote,
+                                         ProtocolKeyword commandType,
+                                         long firstResponseLatency,
+                                         long completionLatency) {
+            this.counts.computeIfAbsent(commandType.name().toLowerCase(), k -> new LongAdder()).increment();
+        }
+
+        /**
+         * Returns the number of commands of each type recorded since the last {@linkplain #reset reset}.
+         */
+        Map<String, Long> counts() {
+            Map<String, Long> counts = new TreeMap<>();
+            this.counts.forEach((command, count) -> counts.put(command, count.sum()));
+            return counts;
+        }
+
+        /**
+         * Discards the recorded commands.
+         */
+        void reset() {
+            this.counts.values().forEach(LongAdder::reset);
+        }
+    }
+}
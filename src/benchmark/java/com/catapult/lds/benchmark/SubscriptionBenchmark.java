@@ -0,0 +1,91 @@
+package com.catapult.lds.benchmark;
+
+import com.catapult.lds.SubscribeRequestHandler.SubscriptionRequest;
+import com.catapult.lds.SubscribeRequestHandler.SubscriptionRequest.SubscriptionRequestResources;
+import com.catapult.lds.service.Subscription;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * {@code SubscriptionBenchmark} measures the parsing of a {@link Subscription} read from the normalized cache, and the
+ * namespacing of the resources of a {@link SubscriptionRequest}, for subscriptions to the given number of resources.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SubscriptionBenchmark {
+
+    /**
+     * The number of resources of the subscription
+     */
+    @Param({"1", "10", "100", "1000"})
+    int resourceCount;
+
+    /**
+     * The stored json list of the resources of the subscription
+     */
+    private String resourceListJson;
+
+    /**
+     * A subscription request for the resources, split evenly across athletes, devices and users
+     */
+    private SubscriptionRequest subscriptionRequest;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Set<String> resources = IntStream.range(0, this.resourceCount)
+                .mapToObj(i -> "ts:athlete:" + UUID.randomUUID())
+                .collect(Collectors.toSet());
+        this.resourceListJson = new Subscription("benchmark-connection-id", resources).getResources()
+                .stream()
+                .map(r -> '"' + r + '"')
+                .collect(Collectors.joining(",", "[", "]"));
+
+        this.subscriptionRequest = SubscriptionRequest.builder()
+                .action("subscribe")
+                .dataClass("ts")
+                .requestId("benchmark-request-id")
+                .resources(SubscriptionRequestResources.builder()
+                        .athleteIds(ids(this.resourceCount / 3))
+                        .deviceIds(ids(this.resourceCount / 3))
+                        .userIds(ids(this.resourceCount - 2 * (this.resourceCount / 3)))
+                        .build())
+                .build();
+    }
+
+    @Benchmark
+    public Subscription parseSubscription() {
+        return new Subscription("benchmark-connection-id", "benchmark-subscription-id", this.resourceListJson);
+    }
+
+    @Benchmark
+    public Set<String> getNamespacedResources() {
+        return this.subscriptionRequest.getNamespacedResources();
+    }
+
+    /**
+     * Returns the given number of random ids.
+     */
+    private static Set<String> ids(int count) {
+        return IntStream.range(0, count).mapToObj(i -> UUID.randomUUID().toString()).collect(Collectors.toSet());
+    }
+}
@@ -6,8 +6,9 @@ import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.catapult.lds.authorization.PolicyDocument;
 import com.catapult.lds.authorization.Response;
 import com.catapult.lds.authorization.Statement;
+import com.catapult.lds.json.JsonCodec;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -46,6 +47,13 @@ public class ConnectAuthorizationHandler implements RequestHandler<APIGatewayPro
      */
     public static final String EXECUTE_ARN_ENV = "EXECUTE_ARN";
 
+    /**
+     * The writer of the logged policy documents
+     *
+     * @invariant policyDocumentWriter != null
+     */
+    private static final ObjectWriter policyDocumentWriter = JsonCodec.writerFor(PolicyDocument.class);
+
     /**
      * The logger used by this handler.
      *
@@ -112,10 +120,8 @@ public class ConnectAuthorizationHandler implements RequestHandler<APIGatewayPro
                 .statements(Collections.singletonList(statement))
                 .build();
 
-        ObjectMapper mapper = new ObjectMapper();
-
         try {
-            logger.info("Policy document: " + mapper.writeValueAsString(policyDocument));
+            logger.info("Policy document: " + policyDocumentWriter.writeValueAsString(policyDocument));
         } catch (JsonProcessingException e) {
             e.printStackTrace();
         }
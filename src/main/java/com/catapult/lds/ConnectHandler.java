@@ -4,7 +4,8 @@ import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayV2WebSocketEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayV2WebSocketResponse;
-import com.catapult.lds.service.SubscriptionCacheService;
+import com.catapult.lds.service.AsyncSubscriptionCacheService;
+import com.catapult.lds.service.CacheUnavailableException;
 import com.catapult.lds.service.SubscriptionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,11 +18,16 @@ import java.net.HttpURLConnection;
 public class ConnectHandler implements RequestHandler<APIGatewayV2WebSocketEvent, APIGatewayV2WebSocketResponse> {
 
     /**
-     * The singleton {@code SubscriptionCacheService}
+     * The singleton {@code AsyncSubscriptionCacheService}
      *
      * @invariant subscriptionCacheService != null
      */
-    private static final SubscriptionCacheService subscriptionCacheService = Util.cacheService;
+    private static final AsyncSubscriptionCacheService subscriptionCacheService = Util.asyncCacheService;
+
+    static {
+        // exercise the hot paths while the function initializes, so that they are part of a snapshot of the process
+        Priming.prime();
+    }
 
     /**
      * The logger used by this handler.
@@ -53,12 +59,19 @@ public class ConnectHandler implements RequestHandler<APIGatewayV2WebSocketEvent
                 return response;
             }
 
-            subscriptionCacheService.createConnection(connectionId);
+            AsyncSubscriptionCacheService.join(subscriptionCacheService.createConnection(connectionId),
+                    Util.cacheTimeout(context));
 
             APIGatewayV2WebSocketResponse response = new APIGatewayV2WebSocketResponse();
             response.setStatusCode(HttpURLConnection.HTTP_OK);
             response.setBody("ok");
             return response;
+        } catch (CacheUnavailableException e) {
+            logger.warn(e.getMessage());
+            APIGatewayV2WebSocketResponse response = new APIGatewayV2WebSocketResponse();
+            response.setStatusCode(HttpURLConnection.HTTP_UNAVAILABLE);
+            response.setBody(e.getMessage());
+            return response;
         } catch (SubscriptionException e) {
             APIGatewayV2WebSocketResponse response = new APIGatewayV2WebSocketResponse();
             response.setStatusCode(HttpURLConnection.HTTP_CONFLICT);
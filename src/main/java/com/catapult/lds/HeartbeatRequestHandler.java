@@ -0,0 +1,135 @@
+package com.catapult.lds;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayV2WebSocketEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayV2WebSocketResponse;
+import com.catapult.lds.json.JsonCodec;
+import com.catapult.lds.service.AsyncSubscriptionCacheService;
+import com.catapult.lds.service.CacheUnavailableException;
+import com.catapult.lds.service.SubscriptionException;
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.HttpURLConnection;
+
+/**
+ * {@code HeartbeatRequestHandler} is an implementation of {@link RequestHandler} that processes heartbeat requests,
+ * which a client sends periodically to show that it is still connected.  When connections expire, each heartbeat
+ * refreshes the time to live of the connection with a single round trip to the cache.
+ * <p/>
+ * A connection that has expired, or was closed, is reported with {@link HttpURLConnection#HTTP_GONE}, after which the
+ * client reconnects and subscribes again.
+ */
+public class HeartbeatRequestHandler implements RequestHandler<APIGatewayV2WebSocketEvent, APIGatewayV2WebSocketResponse> {
+
+    /**
+     * The singleton {@code AsyncSubscriptionCacheService}
+     *
+     * @invariant subscriptionCacheService != null
+     */
+    private static final AsyncSubscriptionCacheService subscriptionCacheService = Util.asyncCacheService;
+
+    /**
+     * The reader of the heartbeat requests handled by this handler.
+     *
+     * @invariant heartbeatRequestReader != null
+     */
+    private static final ObjectReader heartbeatRequestReader = JsonCodec.readerFor(HeartbeatRequest.class);
+
+    static {
+        // exercise the hot paths while the function initializes, so that they are part of a snapshot of the process
+        Priming.prime();
+    }
+
+    /**
+     * The logger used by this handler.
+     *
+     * @invariant logger != null
+     */
+    private final Logger logger = LoggerFactory.getLogger(HeartbeatRequestHandler.class);
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public APIGatewayV2WebSocketResponse handleRequest(APIGatewayV2WebSocketEvent event, Context context) {
+
+        if (event == null || event.getRequestContext() == null) {
+            APIGatewayV2WebSocketResponse response = new APIGatewayV2WebSocketResponse();
+            response.setStatusCode(HttpURLConnection.HTTP_INTERNAL_ERROR);
+            response.setBody("request context was not defined");
+            return response;
+        }
+
+        String connectionId = event.getRequestContext().getConnectionId();
+
+        if (connectionId == null) {
+            APIGatewayV2WebSocketResponse response = new APIGatewayV2WebSocketResponse();
+            response.setStatusCode(HttpURLConnection.HTTP_INTERNAL_ERROR);
+            response.setBody("connectionId was not defined");
+            return response;
+        }
+
+        logger.debug("Received heartbeat from connection: '{}'", connectionId);
+
+        // Deserialize the request, whose only field of interest is the optional request id
+        final HeartbeatRequest heartbeatRequest;
+        try {
+            heartbeatRequest = readHeartbeatRequest(event.getBody());
+        } catch (JsonProcessingException e) {
+            return Util.createSubscriptionErrorResponse(HttpURLConnection.HTTP_BAD_REQUEST, null, e.getMessage());
+        }
+
+        // process the request
+        try {
+            AsyncSubscriptionCacheService.join(subscriptionCacheService.heartbeat(connectionId),
+                    Util.cacheTimeout(context));
+
+            // return a successful response
+            return Util.createHeartbeatResponse(HttpURLConnection.HTTP_OK, heartbeatRequest.requestId);
+        } catch (CacheUnavailableException e) {
+            logger.warn(e.getMessage());
+            return Util.createSubscriptionErrorResponse(
+                    HttpURLConnection.HTTP_UNAVAILABLE,
+                    heartbeatRequest.requestId,
+                    e.getMessage());
+        } catch (SubscriptionException e) {
+            return Util.createSubscriptionErrorResponse(
+                    HttpURLConnection.HTTP_GONE,
+                    heartbeatRequest.requestId,
+                    e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the heartbeat request of the given request body, which may be empty.
+     *
+     * @throws JsonProcessingException if the body is not a valid heartbeat request.
+     * @post return != null
+     */
+    static HeartbeatRequest readHeartbeatRequest(String body) throws JsonProcessingException {
+        if (body == null || body.isBlank()) {
+            return new HeartbeatRequest();
+        }
+        return HeartbeatRequestHandler.heartbeatRequestReader.readValue(body);
+    }
+
+    @JsonAutoDetect(fieldVisibility = JsonAutoDetect.Visibility.ANY)
+    public static class HeartbeatRequest {
+        private String action;
+        private String requestId;
+
+        @Override
+        public String toString() {
+            return "HeartbeatRequest{" +
+                    "action='" + action + '\'' +
+                    ", requestId='" + requestId + '\'' +
+                    '}';
+        }
+    }
+
+}
@@ -0,0 +1,168 @@
+package com.catapult.lds;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayV2WebSocketEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayV2WebSocketResponse;
+import com.catapult.lds.SubscribeRequestHandler.SubscriptionRequest;
+import com.catapult.lds.SubscribeRequestHandler.SubscriptionRequest.SubscriptionRequestResources;
+import com.catapult.lds.json.JsonCodec;
+import com.catapult.lds.service.AsyncSubscriptionCacheService;
+import com.catapult.lds.service.CacheUnavailableException;
+import com.catapult.lds.service.SubscriptionException;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectReader;
+import lombok.Builder;
+import lombok.Data;
+import lombok.extern.jackson.Jacksonized;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.HttpURLConnection;
+
+/**
+ * {@code ModifySubscriptionRequestHandler} is an implementation of {@link RequestHandler} that processes modify
+ * subscription requests, which replace the resources of an existing subscription, e.g. when a dashboard widget switches
+ * to another set of athletes.
+ * <p/>
+ * The subscription keeps its id, and only the resources that are added or removed are updated in the cache, instead of
+ * the client cancelling the subscription and subscribing again.
+ */
+public class ModifySubscriptionRequestHandler implements RequestHandler<APIGatewayV2WebSocketEvent, APIGatewayV2WebSocketResponse> {
+
+    /**
+     * The singleton {@code AsyncSubscriptionCacheService}
+     *
+     * @invariant subscriptionCacheService != null
+     */
+    private static final AsyncSubscriptionCacheService subscriptionCacheService = Util.asyncCacheService;
+
+    /**
+     * The reader of the modify subscription requests handled by this handler.
+     *
+     * @invariant modifySubscriptionRequestReader != null
+     */
+    private static final ObjectReader modifySubscriptionRequestReader =
+            JsonCodec.readerFor(ModifySubscriptionRequest.class);
+
+    static {
+        // exercise the hot paths while the function initializes, so that they are part of a snapshot of the process
+        Priming.prime();
+    }
+
+    /**
+     * The logger used by this handler.
+     *
+     * @invariant logger != null
+     */
+    private final Logger logger = LoggerFactory.getLogger(ModifySubscriptionRequestHandler.class);
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public APIGatewayV2WebSocketResponse handleRequest(APIGatewayV2WebSocketEvent event, Context context) {
+
+        if (event == null || event.getRequestContext() == null) {
+            APIGatewayV2WebSocketResponse response = new APIGatewayV2WebSocketResponse();
+            response.setStatusCode(HttpURLConnection.HTTP_INTERNAL_ERROR);
+            response.setBody("request context was not defined");
+            return response;
+        }
+
+        String connectionId = event.getRequestContext().getConnectionId();
+
+        if (connectionId == null) {
+            APIGatewayV2WebSocketResponse response = new APIGatewayV2WebSocketResponse();
+            response.setStatusCode(HttpURLConnection.HTTP_INTERNAL_ERROR);
+            response.setBody("connectionId was not defined");
+            return response;
+        }
+
+        logger.debug("Received modify subscription request from connection: '{}'", connectionId);
+
+        // Deserialize and validate the request
+        final ModifySubscriptionRequest modifySubscriptionRequest;
+        final SubscriptionRequest subscriptionRequest;
+        try {
+            modifySubscriptionRequest = readModifySubscriptionRequest(event.getBody());
+        } catch (JsonProcessingException e) {
+            return Util.createSubscriptionErrorResponse(HttpURLConnection.HTTP_BAD_REQUEST, null, e.getMessage());
+        }
+
+        subscriptionRequest = modifySubscriptionRequest.toSubscriptionRequest();
+        String validationError = modifySubscriptionRequest.subscriptionId == null ?
+                "Modify subscription request missing required fields" :
+                SubscribeRequestHandler.validationError(subscriptionRequest);
+        if (validationError != null) {
+            return Util.createSubscriptionErrorResponse(HttpURLConnection.HTTP_BAD_REQUEST,
+                    modifySubscriptionRequest.requestId, validationError);
+        }
+
+        // process the request
+        String subscriptionId = modifySubscriptionRequest.subscriptionId;
+        logger.debug("Modifying subscription: '{}'", subscriptionId);
+        try {
+            // TODO: Authorize the subscription
+
+            AsyncSubscriptionCacheService.join(subscriptionCacheService.modifySubscription(connectionId,
+                    subscriptionId, subscriptionRequest.getNamespacedResources()), Util.cacheTimeout(context));
+
+            // return a successful response
+            return Util.createSubscriptionResponse(
+                    HttpURLConnection.HTTP_OK,
+                    modifySubscriptionRequest.requestId,
+                    subscriptionId);
+        } catch (CacheUnavailableException e) {
+            logger.warn(e.getMessage());
+            return Util.createSubscriptionErrorResponse(
+                    HttpURLConnection.HTTP_UNAVAILABLE,
+                    modifySubscriptionRequest.requestId,
+                    e.getMessage());
+        } catch (SubscriptionException e) {
+            return Util.createSubscriptionErrorResponse(
+                    HttpURLConnection.HTTP_GONE,
+                    modifySubscriptionRequest.requestId,
+                    e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the modify subscription request of the given request body.
+     *
+     * @throws JsonProcessingException if the body is not a valid modify subscription request.
+     * @post return != null
+     */
+    static ModifySubscriptionRequest readModifySubscriptionRequest(String body) throws JsonProcessingException {
+        return ModifySubscriptionRequestHandler.modifySubscriptionRequestReader.readValue(body);
+    }
+
+    /**
+     * {@code ModifySubscriptionRequest} contains the id of a subscription and the resources that replace its resources.
+     */
+    @Data
+    @Jacksonized
+    @Builder
+    public static class ModifySubscriptionRequest {
+
+        private String action;
+        private String dataClass;
+        private String requestId;
+        private String subscriptionId;
+        private SubscriptionRequestResources resources;
+
+        /**
+         * Returns the subscription request of the modified resources of this request.
+         *
+         * @post return != null
+         */
+        SubscriptionRequest toSubscriptionRequest() {
+            return SubscriptionRequest.builder()
+                    .action(this.action)
+                    .dataClass(this.dataClass)
+                    .requestId(this.requestId)
+                    .resources(this.resources)
+                    .build();
+        }
+    }
+}
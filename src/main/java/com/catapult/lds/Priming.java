@@ -0,0 +1,189 @@
+package com.catapult.lds;
+
+import com.catapult.lds.json.JsonCodec;
+import com.catapult.lds.service.AsyncSubscriptionCacheService;
+import com.catapult.lds.service.DenormalizedCacheValue;
+import com.catapult.lds.service.Subscription;
+import com.catapult.lds.service.SubscriptionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.HttpURLConnection;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {@code Priming} exercises the hot paths of the handlers while a function initializes, rather than during its first
+ * requests: the parsing of requests, the serialization of denormalized cache values, the building of responses, and a
+ * round trip to the cache service.  Classes are loaded, and their code run, before a snapshot of the process is taken
+ * (e.g. by Lambda SnapStart), so that restored processes do not pay for it either.
+ * <p/>
+ * Priming only reads from the cache service, and a failure to prime is logged and otherwise ignored.
+ */
+public final class Priming {
+
+    /**
+     * The name of the environment variable which, when {@code false}, disables priming.  Priming is enabled when not
+     * defined.
+     */
+    public static final String LDS_PRIMING_ENV = "LDS_PRIMING";
+
+    /**
+     * A subscribe request that references every kind of resource
+     */
+    static final String SAMPLE_SUBSCRIBE_REQUEST = "{\"action\":\"subscribe\",\"requestId\":\"priming-request-id\"," +
+            "\"dataClass\":\"ts\",\"resources\":{\"athleteId\":[\"priming-athlete-id\"]," +
+            "\"deviceId\":[\"priming-device-id\"],\"userId\":[\"priming-user-id\"]}}";
+
+    /**
+     * A subscribe batch request of a valid and an invalid subscribe request
+     */
+    static final String SAMPLE_SUBSCRIBE_BATCH_REQUEST = "{\"action\":\"subscribeBatch\"," +
+            "\"requestId\":\"priming-batch-request-id\",\"subscriptions\":[{\"requestId\":\"priming-request-id\"," +
+            "\"dataClass\":\"ts\",\"resources\":{\"athleteId\":[\"priming-athlete-id\"]}}," +
+            "{\"requestId\":\"priming-invalid-request-id\"}]}";
+
+    /**
+     * A modify subscription request
+     */
+    static final String SAMPLE_MODIFY_SUBSCRIPTION_REQUEST = "{\"action\":\"modifySubscription\"," +
+            "\"requestId\":\"priming-request-id\",\"subscriptionId\":\"priming-subscription-id\"," +
+            "\"dataClass\":\"ts\",\"resources\":{\"athleteId\":[\"priming-athlete-id\"]}}";
+
+    /**
+     * An unsubscribe request
+     */
+    static final String SAMPLE_UNSUBSCRIBE_REQUEST = "{\"action\":\"unsubscribe\",\"requestId\":\"priming-request-id\"," +
+            "\"subscriptionId\":\"priming-subscription-id\"}";
+
+    /**
+     * A heartbeat request
+     */
+    static final String SAMPLE_HEARTBEAT_REQUEST = "{\"action\":\"heartbeat\",\"requestId\":\"priming-request-id\"}";
+
+    /**
+     * The id of the connection that priming looks up, which is never created
+     */
+    static final String PRIMING_CONNECTION_ID = "priming-connection-id";
+
+    /**
+     * The time that priming waits for each round trip to the cache service, so that a cache service that cannot be
+     * reached delays the initialization of a function only briefly
+     */
+    static final Duration CACHE_SERVICE_TIMEOUT = Duration.ofSeconds(1);
+
+    /**
+     * Whether priming has started
+     */
+    private static final AtomicBoolean primed = new AtomicBoolean(false);
+
+    /**
+     * The logger used by priming.
+     *
+     * @invariant logger != null
+     */
+    private static final Logger logger = LoggerFactory.getLogger(Priming.class);
+
+    private Priming() {
+    }
+
+    /**
+     * Primes the hot paths of the handlers, unless disabled or already primed.
+     */
+    public static void prime() {
+        if (!Optional.ofNullable(System.getenv(LDS_PRIMING_ENV)).map(Boolean::parseBoolean).orElse(true) ||
+                !primed.compareAndSet(false, true)) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        try {
+            Set<String> resources = primeRequests();
+            primeDenormalizedCacheValues(resources);
+            primeResponses();
+            primeCacheService(resources);
+            logger.info("primed in {} ms", System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            logger.warn("priming failed after {} ms", System.currentTimeMillis() - start, e);
+        }
+    }
+
+    /**
+     * Parses the sample requests, and returns the namespaced resources of the sample subscribe request.
+     *
+     * @post return != null
+     */
+    private static Set<String> primeRequests() throws Exception {
+        UnsubscribeRequestHandler.readUnsubscribeRequest(SAMPLE_UNSUBSCRIBE_REQUEST);
+        HeartbeatRequestHandler.readHeartbeatRequest(SAMPLE_HEARTBEAT_REQUEST);
+        SubscribeBatchRequestHandler.readSubscribeBatchRequest(SAMPLE_SUBSCRIBE_BATCH_REQUEST)
+                .getSubscriptions()
+                .forEach(SubscribeRequestHandler::validationError);
+        SubscribeRequestHandler.validationError(ModifySubscriptionRequestHandler
+                .readModifySubscriptionRequest(SAMPLE_MODIFY_SUBSCRIPTION_REQUEST)
+                .toSubscriptionRequest());
+        return SubscribeRequestHandler.readSubscriptionRequest(SAMPLE_SUBSCRIBE_REQUEST).getNamespacedResources();
+    }
+
+    /**
+     * Creates and parses a subscription to the given resources, and round trips a denormalized cache value of each of
+     * them.
+     *
+     * @pre resources != null
+     */
+    private static void primeDenormalizedCacheValues(Set<String> resources) throws Exception {
+        assert resources != null;
+
+        Subscription subscription = new Subscription(PRIMING_CONNECTION_ID, resources);
+        new Subscription(PRIMING_CONNECTION_ID, subscription.getId(),
+                JsonCodec.STRING_SET_WRITER.writeValueAsString(resources));
+
+        for (String resource : resources) {
+            DenormalizedCacheValue value = DenormalizedCacheValue.fromSetMembers(resource, Collections.singleton(
+                    DenormalizedCacheValue.toSetMember(PRIMING_CONNECTION_ID, subscription.getId())));
+            value.addSubscription(PRIMING_CONNECTION_ID, "priming-subscription-id");
+            DenormalizedCacheValue.deserialize(resource, value.getSerializedConnectionList())
+                    .getSubscriptionIdsByConnectionId();
+        }
+    }
+
+    /**
+     * Builds each kind of response.
+     */
+    private static void primeResponses() {
+        Util.createSubscriptionResponse(HttpURLConnection.HTTP_CREATED, "priming-request-id",
+                "priming-subscription-id");
+        Util.createUnsubscribeResponse(HttpURLConnection.HTTP_OK, "priming-request-id");
+        Util.createHeartbeatResponse(HttpURLConnection.HTTP_OK, "priming-request-id");
+        Util.createSubscriptionErrorResponse(HttpURLConnection.HTTP_BAD_REQUEST, "priming-request-id",
+                "priming error message");
+        Util.createSubscribeBatchResponse(HttpURLConnection.HTTP_OK, "priming-batch-request-id", List.of(
+                SubscriptionResult.created("priming-request-id", "priming-subscription-id"),
+                SubscriptionResult.failed(HttpURLConnection.HTTP_BAD_REQUEST, "priming-invalid-request-id",
+                        "priming error message")));
+    }
+
+    /**
+     * Looks up a connection that does not exist and the denormalized cache values of the given resources, waiting at
+     * most the {@link #CACHE_SERVICE_TIMEOUT} for each.  A lookup that fails or times out is logged, and the cache
+     * service is left to connect on the first request instead.
+     *
+     * @pre resources != null
+     */
+    private static void primeCacheService(Set<String> resources) {
+        assert resources != null;
+
+        try {
+            AsyncSubscriptionCacheService.join(Util.asyncCacheService.connectionExists(PRIMING_CONNECTION_ID),
+                    CACHE_SERVICE_TIMEOUT);
+            AsyncSubscriptionCacheService.join(Util.asyncCacheService.getDenormalizedConnectionsForResourceIds(
+                    resources), CACHE_SERVICE_TIMEOUT);
+        } catch (SubscriptionException | RuntimeException e) {
+            logger.warn("priming the cache service failed", e);
+        }
+    }
+}
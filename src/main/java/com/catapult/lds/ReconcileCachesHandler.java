@@ -0,0 +1,64 @@
+package com.catapult.lds;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.catapult.lds.service.AsyncSubscriptionCacheService;
+import com.catapult.lds.service.RedisAsyncSubscriptionCacheService;
+import com.catapult.lds.service.ReconcileReport;
+import com.catapult.lds.service.SubscriptionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+
+/**
+ * {@code ReconcileCachesHandler} is an implementation of {@link RequestHandler} that {@linkplain
+ * RedisAsyncSubscriptionCacheService#reconcile reconciles} the normalized and denormalized caches of redis.  It is
+ * invoked on a schedule, or on demand, with an input whose {@value #REPAIR_FIELD} field is {@code true} to repair the
+ * drift it detects.  Any other input only reports the drift, as a dry run.
+ */
+public class ReconcileCachesHandler implements RequestHandler<Map<String, Object>, ReconcileReport> {
+
+    /**
+     * The field of the input that requests the drift to be repaired
+     */
+    static final String REPAIR_FIELD = "repair";
+
+    /**
+     * The singleton {@code AsyncSubscriptionCacheService}
+     *
+     * @invariant subscriptionCacheService != null
+     */
+    private static final AsyncSubscriptionCacheService subscriptionCacheService = Util.asyncCacheService;
+
+    /**
+     * The logger used by this handler.
+     *
+     * @invariant logger != null
+     */
+    private final Logger logger = LoggerFactory.getLogger(ReconcileCachesHandler.class);
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Returns the report of the reconciliation, or null if the cache service is not backed by redis, in which case
+     * there is nothing to reconcile.
+     */
+    @Override
+    public ReconcileReport handleRequest(Map<String, Object> input, Context context) {
+        if (!(subscriptionCacheService instanceof RedisAsyncSubscriptionCacheService)) {
+            logger.info("the cache service is not backed by redis, skipping the reconciliation");
+            return null;
+        }
+
+        boolean repair = input != null && Boolean.TRUE.equals(input.get(REPAIR_FIELD));
+        try {
+            return AsyncSubscriptionCacheService.join(
+                    ((RedisAsyncSubscriptionCacheService) subscriptionCacheService).reconcile(!repair),
+                    Util.cacheTimeout(context));
+        } catch (SubscriptionException e) {
+            // entries that fail to be repaired are counted by the report, so the reconciliation does not fail this way
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+}
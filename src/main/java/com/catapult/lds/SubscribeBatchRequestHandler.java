@@ -0,0 +1,185 @@
+package com.catapult.lds;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayV2WebSocketEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayV2WebSocketResponse;
+import com.catapult.lds.SubscribeRequestHandler.SubscriptionRequest;
+import com.catapult.lds.json.JsonCodec;
+import com.catapult.lds.service.AsyncSubscriptionCacheService;
+import com.catapult.lds.service.CacheUnavailableException;
+import com.catapult.lds.service.IncompleteWriteException;
+import com.catapult.lds.service.Subscription;
+import com.catapult.lds.service.SubscriptionException;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectReader;
+import lombok.Builder;
+import lombok.Data;
+import lombok.extern.jackson.Jacksonized;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@code SubscribeBatchRequestHandler} is an implementation of {@link RequestHandler} that processes subscribe batch
+ * requests, which carry several subscribe requests in a single message, e.g. those of a dashboard that opens many
+ * widgets at once.
+ * <p/>
+ * The valid subscriptions of a batch are added to the cache service together, which updates every referenced resource
+ * once, and the response holds the result of each subscribe request, identified by its request id.  Invalid subscribe
+ * requests do not prevent the valid ones from being added.
+ */
+public class SubscribeBatchRequestHandler implements RequestHandler<APIGatewayV2WebSocketEvent, APIGatewayV2WebSocketResponse> {
+
+    /**
+     * The maximum number of subscribe requests of a batch
+     */
+    public static final int MAX_BATCH_SIZE = 100;
+
+    /**
+     * The singleton {@code AsyncSubscriptionCacheService}
+     *
+     * @invariant subscriptionCacheService != null
+     */
+    private static final AsyncSubscriptionCacheService subscriptionCacheService = Util.asyncCacheService;
+
+    /**
+     * The reader of the subscribe batch requests handled by this handler.
+     *
+     * @invariant subscribeBatchRequestReader != null
+     */
+    private static final ObjectReader subscribeBatchRequestReader = JsonCodec.readerFor(SubscribeBatchRequest.class);
+
+    static {
+        // exercise the hot paths while the function initializes, so that they are part of a snapshot of the process
+        Priming.prime();
+    }
+
+    /**
+     * The logger used by this handler.
+     *
+     * @invariant logger != null
+     */
+    private final Logger logger = LoggerFactory.getLogger(SubscribeBatchRequestHandler.class);
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public APIGatewayV2WebSocketResponse handleRequest(APIGatewayV2WebSocketEvent event, Context context) {
+
+        if (event == null || event.getRequestContext() == null) {
+            APIGatewayV2WebSocketResponse response = new APIGatewayV2WebSocketResponse();
+            response.setStatusCode(HttpURLConnection.HTTP_INTERNAL_ERROR);
+            response.setBody("request context was not defined");
+            return response;
+        }
+
+        String connectionId = event.getRequestContext().getConnectionId();
+
+        if (connectionId == null) {
+            APIGatewayV2WebSocketResponse response = new APIGatewayV2WebSocketResponse();
+            response.setStatusCode(HttpURLConnection.HTTP_INTERNAL_ERROR);
+            response.setBody("connectionId was not defined");
+            return response;
+        }
+
+        logger.debug("Received subscribe batch request from connection: '{}'", connectionId);
+
+        // Deserialize and validate the batch
+        final SubscribeBatchRequest subscribeBatchRequest;
+        try {
+            subscribeBatchRequest = readSubscribeBatchRequest(event.getBody());
+        } catch (JsonProcessingException e) {
+            return Util.createSubscriptionErrorResponse(HttpURLConnection.HTTP_BAD_REQUEST, null, e.getMessage());
+        }
+
+        if (subscribeBatchRequest.requestId == null || subscribeBatchRequest.subscriptions == null) {
+            return Util.createSubscriptionErrorResponse(HttpURLConnection.HTTP_BAD_REQUEST,
+                    subscribeBatchRequest.requestId, "Subscribe batch request missing required fields");
+        }
+        if (subscribeBatchRequest.subscriptions.size() > MAX_BATCH_SIZE) {
+            return Util.createSubscriptionErrorResponse(HttpURLConnection.HTTP_BAD_REQUEST,
+                    subscribeBatchRequest.requestId, String.format("Subscribe batch request has more than %d " +
+                            "subscriptions", MAX_BATCH_SIZE));
+        }
+
+        // validate each subscribe request, and create the subscriptions of the valid ones
+        List<SubscriptionResult> results = new ArrayList<>();
+        List<Subscription> subscriptions = new ArrayList<>();
+        List<Integer> resultIndexes = new ArrayList<>();
+        for (SubscriptionRequest subscriptionRequest : subscribeBatchRequest.subscriptions) {
+            String validationError = subscriptionRequest == null ?
+                    "Subscription request missing required fields" :
+                    SubscribeRequestHandler.validationError(subscriptionRequest);
+            String requestId = subscriptionRequest == null ? null : subscriptionRequest.getRequestId();
+
+            if (validationError != null) {
+                results.add(SubscriptionResult.failed(HttpURLConnection.HTTP_BAD_REQUEST, requestId,
+                        validationError));
+                continue;
+            }
+
+            Subscription subscription = new Subscription(connectionId, subscriptionRequest.getNamespacedResources());
+            resultIndexes.add(results.size());
+            subscriptions.add(subscription);
+            results.add(SubscriptionResult.created(requestId, subscription.getId()));
+        }
+
+        // process the valid subscriptions together
+        try {
+            // TODO: Authorize the subscriptions
+
+            AsyncSubscriptionCacheService.join(subscriptionCacheService.addSubscriptions(subscriptions),
+                    Util.cacheTimeout(context));
+        } catch (CacheUnavailableException e) {
+            logger.warn(e.getMessage());
+            return Util.createSubscriptionErrorResponse(
+                    HttpURLConnection.HTTP_UNAVAILABLE,
+                    subscribeBatchRequest.requestId,
+                    e.getMessage());
+        } catch (IncompleteWriteException e) {
+            // the subscriptions may exist in part, notify the client of their ids so that it can cancel them
+            logger.error(e.getMessage());
+            for (int index : resultIndexes) {
+                SubscriptionResult result = results.get(index);
+                results.set(index, SubscriptionResult.incomplete(result.getRequestId(), result.getSubscriptionId(),
+                        e.getMessage()));
+            }
+        } catch (SubscriptionException e) {
+            // none of the subscriptions were added, notify the client of the error of each
+            for (int index : resultIndexes) {
+                results.set(index, SubscriptionResult.failed(HttpURLConnection.HTTP_INTERNAL_ERROR,
+                        results.get(index).getRequestId(), e.getMessage()));
+            }
+        }
+
+        return Util.createSubscribeBatchResponse(HttpURLConnection.HTTP_OK, subscribeBatchRequest.requestId, results);
+    }
+
+    /**
+     * Returns the subscribe batch request of the given request body.
+     *
+     * @throws JsonProcessingException if the body is not a valid subscribe batch request.
+     * @post return != null
+     */
+    static SubscribeBatchRequest readSubscribeBatchRequest(String body) throws JsonProcessingException {
+        return SubscribeBatchRequestHandler.subscribeBatchRequestReader.readValue(body);
+    }
+
+    /**
+     * {@code SubscribeBatchRequest} contains the subscribe requests of a batch.
+     */
+    @Data
+    @Jacksonized
+    @Builder
+    public static class SubscribeBatchRequest {
+
+        private String action;
+        private String requestId;
+        private List<SubscriptionRequest> subscriptions;
+    }
+}
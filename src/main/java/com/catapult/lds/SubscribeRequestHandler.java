@@ -4,13 +4,15 @@ import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayV2WebSocketEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayV2WebSocketResponse;
+import com.catapult.lds.json.JsonCodec;
+import com.catapult.lds.service.AsyncSubscriptionCacheService;
+import com.catapult.lds.service.CacheUnavailableException;
 import com.catapult.lds.service.ResourceNameSpace;
 import com.catapult.lds.service.Subscription;
-import com.catapult.lds.service.SubscriptionCacheService;
 import com.catapult.lds.service.SubscriptionException;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import lombok.Builder;
 import lombok.Data;
 import lombok.extern.jackson.Jacksonized;
@@ -40,18 +42,23 @@ public class SubscribeRequestHandler implements RequestHandler<APIGatewayV2WebSo
     public static final String NAMESPACED_RESOURCE_PATTERN = "%s:%s:%s";
 
     /**
-     * The singleton {@code SubscriptionCacheService}
+     * The singleton {@code AsyncSubscriptionCacheService}
      *
      * @invariant subscriptionCacheService != null
      */
-    private static final SubscriptionCacheService subscriptionCacheService = Util.cacheService;
+    private static final AsyncSubscriptionCacheService subscriptionCacheService = Util.asyncCacheService;
 
     /**
-     * The object mapper used by this handler.
+     * The reader of the subscribe requests handled by this handler.
      *
-     * @invariant objectMapper != null;
+     * @invariant subscriptionRequestReader != null
      */
-    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final ObjectReader subscriptionRequestReader = JsonCodec.readerFor(SubscriptionRequest.class);
+
+    static {
+        // exercise the hot paths while the function initializes, so that they are part of a snapshot of the process
+        Priming.prime();
+    }
 
     /**
      * The logger used by this handler.
@@ -89,19 +96,12 @@ public class SubscribeRequestHandler implements RequestHandler<APIGatewayV2WebSo
 
         // Deserialize and validate the request
         try {
-            subscriptionRequest = SubscribeRequestHandler.objectMapper.readValue(event.getBody(),
-                    SubscriptionRequest.class);
+            subscriptionRequest = readSubscriptionRequest(event.getBody());
 
-            if (subscriptionRequest.requestId == null ||
-                    subscriptionRequest.dataClass == null ||
-                    subscriptionRequest.resources == null ) {
-                return Util.createSubscriptionErrorResponse(HttpURLConnection.HTTP_BAD_REQUEST,
-                        subscriptionRequest.requestId, "Subscription request missing required fields");
-            }
-            if(subscriptionRequest.getNamespacedResources().isEmpty()){
+            String validationError = validationError(subscriptionRequest);
+            if (validationError != null) {
                 return Util.createSubscriptionErrorResponse(HttpURLConnection.HTTP_BAD_REQUEST,
-                        subscriptionRequest.requestId, "Subscription request missing resources");
-
+                        subscriptionRequest.requestId, validationError);
             }
         } catch (JsonProcessingException e) {
             return Util.createSubscriptionErrorResponse(HttpURLConnection.HTTP_BAD_REQUEST, null, e.getMessage());
@@ -116,13 +116,20 @@ public class SubscribeRequestHandler implements RequestHandler<APIGatewayV2WebSo
             // TODO: Authorize the subscription
 
             // Add the subscription
-            subscriptionCacheService.addSubscription(subscription);
+            AsyncSubscriptionCacheService.join(subscriptionCacheService.addSubscription(subscription),
+                    Util.cacheTimeout(context));
 
             // return a successful response
             return Util.createSubscriptionResponse(
                     HttpURLConnection.HTTP_CREATED,
                     subscriptionRequest.requestId,
                     subscription.getId());
+        } catch (CacheUnavailableException e) {
+            logger.warn(e.getMessage());
+            return Util.createSubscriptionErrorResponse(
+                    HttpURLConnection.HTTP_UNAVAILABLE,
+                    subscriptionRequest.requestId,
+                    e.getMessage());
         } catch (SubscriptionException e) {
             // notify the client of any error
             return Util.createSubscriptionErrorResponse(
@@ -132,6 +139,35 @@ public class SubscribeRequestHandler implements RequestHandler<APIGatewayV2WebSo
         }
     }
 
+    /**
+     * Returns the subscription request of the given request body.
+     *
+     * @throws JsonProcessingException if the body is not a valid subscription request.
+     * @post return != null
+     */
+    static SubscriptionRequest readSubscriptionRequest(String body) throws JsonProcessingException {
+        return SubscribeRequestHandler.subscriptionRequestReader.readValue(body);
+    }
+
+    /**
+     * Returns the reason that the given subscription request is invalid, or null if it is valid.
+     *
+     * @pre subscriptionRequest != null
+     */
+    static String validationError(SubscriptionRequest subscriptionRequest) {
+        assert subscriptionRequest != null;
+
+        if (subscriptionRequest.requestId == null ||
+                subscriptionRequest.dataClass == null ||
+                subscriptionRequest.resources == null) {
+            return "Subscription request missing required fields";
+        }
+        if (subscriptionRequest.getNamespacedResources().isEmpty()) {
+            return "Subscription request missing resources";
+        }
+        return null;
+    }
+
     /**
      * {@code SubscriptionRequest} contains information needed to create a new subscription.
      */
@@ -0,0 +1,74 @@
+package com.catapult.lds;
+
+import lombok.Value;
+
+import java.net.HttpURLConnection;
+
+/**
+ * {@code SubscriptionResult} contains the result of one subscribe request of a batch, as {@linkplain
+ * SubscribeBatchRequestHandler processed} and reported in a {@linkplain Util#createSubscribeBatchResponse subscribe
+ * batch response}.
+ */
+@Value
+public class SubscriptionResult {
+
+    /**
+     * The status of the subscribe request
+     */
+    int status;
+
+    /**
+     * The request id of the subscribe request, or null if it was not defined
+     */
+    String requestId;
+
+    /**
+     * The id of the created subscription, or null if the subscribe request failed before it was added in part
+     */
+    String subscriptionId;
+
+    /**
+     * The reason that the subscribe request failed, or null if it succeeded
+     */
+    String errorMessage;
+
+    /**
+     * Returns the result of a subscribe request that created the subscription with the given id.
+     *
+     * @pre subscriptionId != null
+     * @post return != null
+     */
+    static SubscriptionResult created(String requestId, String subscriptionId) {
+        assert subscriptionId != null;
+
+        return new SubscriptionResult(HttpURLConnection.HTTP_CREATED, requestId, subscriptionId, null);
+    }
+
+    /**
+     * Returns the result of a subscribe request that failed with the given status and error message.
+     *
+     * @pre errorMessage != null
+     * @post return != null
+     */
+    static SubscriptionResult failed(int status, String requestId, String errorMessage) {
+        assert errorMessage != null;
+
+        return new SubscriptionResult(status, requestId, null, errorMessage);
+    }
+
+    /**
+     * Returns the result of a subscribe request whose subscription with the given id failed with the given error
+     * message after it was added in part.
+     *
+     * @pre subscriptionId != null
+     * @pre errorMessage != null
+     * @post return != null
+     */
+    static SubscriptionResult incomplete(String requestId, String subscriptionId, String errorMessage) {
+        assert subscriptionId != null;
+        assert errorMessage != null;
+
+        return new SubscriptionResult(HttpURLConnection.HTTP_INTERNAL_ERROR, requestId, subscriptionId,
+                errorMessage);
+    }
+}
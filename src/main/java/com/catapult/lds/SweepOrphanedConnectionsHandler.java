@@ -0,0 +1,68 @@
+package com.catapult.lds;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.ScheduledEvent;
+import com.catapult.lds.service.AsyncSubscriptionCacheService;
+import com.catapult.lds.service.ConnectionLivenessCheck;
+import com.catapult.lds.service.RedisAsyncSubscriptionCacheService;
+import com.catapult.lds.service.SubscriptionException;
+import com.catapult.lds.service.SweepReport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@code SweepOrphanedConnectionsHandler} is an implementation of {@link RequestHandler} that is invoked on a schedule
+ * to {@linkplain RedisAsyncSubscriptionCacheService#sweepOrphanedConnections close the orphaned connections} of the
+ * redis cache, whose {@code $disconnect} was never delivered.  The API gateway closes every WebSocket connection within
+ * two hours, so a connection older than the configured maximum age is closed on its age alone.  When connections
+ * expire, the subscriptions of the {@linkplain RedisAsyncSubscriptionCacheService#sweepExpiredConnections expired
+ * connections} are then removed from the denormalized cache.
+ */
+public class SweepOrphanedConnectionsHandler implements RequestHandler<ScheduledEvent, SweepReport> {
+
+    /**
+     * The singleton {@code AsyncSubscriptionCacheService}
+     *
+     * @invariant subscriptionCacheService != null
+     */
+    private static final AsyncSubscriptionCacheService subscriptionCacheService = Util.asyncCacheService;
+
+    /**
+     * The logger used by this handler.
+     *
+     * @invariant logger != null
+     */
+    private final Logger logger = LoggerFactory.getLogger(SweepOrphanedConnectionsHandler.class);
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Returns the report of the sweep, or null if the cache service is not backed by redis, in which case there is
+     * nothing to sweep.
+     */
+    @Override
+    public SweepReport handleRequest(ScheduledEvent event, Context context) {
+        if (!(subscriptionCacheService instanceof RedisAsyncSubscriptionCacheService)) {
+            logger.info("the cache service is not backed by redis, skipping the sweep");
+            return null;
+        }
+
+        RedisAsyncSubscriptionCacheService redisCacheService =
+                (RedisAsyncSubscriptionCacheService) subscriptionCacheService;
+        try {
+            SweepReport report = AsyncSubscriptionCacheService.join(
+                    redisCacheService.sweepOrphanedConnections(ConnectionLivenessCheck.NONE), Util.cacheTimeout(context));
+
+            // the subscriptions of connections that expired remain in the denormalized cache until swept
+            if (redisCacheService.getConfiguration().isConnectionExpiry()) {
+                AsyncSubscriptionCacheService.join(redisCacheService.sweepExpiredConnections(),
+                        Util.cacheTimeout(context));
+            }
+            return report;
+        } catch (SubscriptionException e) {
+            // connections that fail to close are counted by the report, so the sweep itself does not fail this way
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+}
@@ -4,11 +4,13 @@ import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayV2WebSocketEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayV2WebSocketResponse;
-import com.catapult.lds.service.SubscriptionCacheService;
+import com.catapult.lds.json.JsonCodec;
+import com.catapult.lds.service.AsyncSubscriptionCacheService;
+import com.catapult.lds.service.CacheUnavailableException;
 import com.catapult.lds.service.SubscriptionException;
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -21,18 +23,23 @@ import java.net.HttpURLConnection;
 public class UnsubscribeRequestHandler implements RequestHandler<APIGatewayV2WebSocketEvent, APIGatewayV2WebSocketResponse> {
 
     /**
-     * The singleton {@code SubscriptionCacheService}
+     * The singleton {@code AsyncSubscriptionCacheService}
      *
      * @invariant subscriptionCacheService != null
      */
-    private static final SubscriptionCacheService subscriptionCacheService = Util.cacheService;
+    private static final AsyncSubscriptionCacheService subscriptionCacheService = Util.asyncCacheService;
 
     /**
-     * The object mapper used by this handler.
+     * The reader of the unsubscribe requests handled by this handler.
      *
-     * @invariant objectMapper != null;
+     * @invariant unsubscribeRequestReader != null
      */
-    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final ObjectReader unsubscribeRequestReader = JsonCodec.readerFor(UnsubscribeRequest.class);
+
+    static {
+        // exercise the hot paths while the function initializes, so that they are part of a snapshot of the process
+        Priming.prime();
+    }
 
     /**
      * The logger used by this handler.
@@ -68,8 +75,7 @@ public class UnsubscribeRequestHandler implements RequestHandler<APIGatewayV2Web
 
         // Deserialize and validate the request
         try {
-            unsubscribeRequest = UnsubscribeRequestHandler.objectMapper.readValue(event.getBody(),
-                    UnsubscribeRequest.class);
+            unsubscribeRequest = readUnsubscribeRequest(event.getBody());
 
         } catch (JsonProcessingException e) {
             return Util.createSubscriptionErrorResponse(HttpURLConnection.HTTP_BAD_REQUEST, null, e.getMessage());
@@ -84,12 +90,19 @@ public class UnsubscribeRequestHandler implements RequestHandler<APIGatewayV2Web
         String subscriptionId = unsubscribeRequest.subscriptionId;
         logger.debug("Cancelling subscription: '{}'", subscriptionId);
         try {
-            subscriptionCacheService.cancelSubscription(connectionId, subscriptionId);
+            AsyncSubscriptionCacheService.join(subscriptionCacheService.cancelSubscription(connectionId,
+                    subscriptionId), Util.cacheTimeout(context));
 
             // return a successful response
             return Util.createUnsubscribeResponse(
                     HttpURLConnection.HTTP_OK,
                     unsubscribeRequest.requestId);
+        } catch (CacheUnavailableException e) {
+            logger.warn(e.getMessage());
+            return Util.createSubscriptionErrorResponse(
+                    HttpURLConnection.HTTP_UNAVAILABLE,
+                    unsubscribeRequest.requestId,
+                    e.getMessage());
         } catch (SubscriptionException e) {
             return Util.createSubscriptionErrorResponse(
                     HttpURLConnection.HTTP_GONE,
@@ -98,6 +111,16 @@ public class UnsubscribeRequestHandler implements RequestHandler<APIGatewayV2Web
         }
     }
 
+    /**
+     * Returns the unsubscribe request of the given request body.
+     *
+     * @throws JsonProcessingException if the body is not a valid unsubscribe request.
+     * @post return != null
+     */
+    static UnsubscribeRequest readUnsubscribeRequest(String body) throws JsonProcessingException {
+        return UnsubscribeRequestHandler.unsubscribeRequestReader.readValue(body);
+    }
+
     @JsonAutoDetect(fieldVisibility = JsonAutoDetect.Visibility.ANY)
     public static class UnsubscribeRequest {
         private String action;
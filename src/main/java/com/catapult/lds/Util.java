@@ -1,59 +1,193 @@
 package com.catapult.lds;
 
+import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayV2WebSocketResponse;
+import com.catapult.lds.json.JsonCodec;
+import com.catapult.lds.service.AsyncSubscriptionCacheService;
+import com.catapult.lds.service.InMemorySubscriptionCacheService;
+import com.catapult.lds.service.RedisAsyncSubscriptionCacheService;
 import com.catapult.lds.service.RedisSubscriptionCacheService;
 import com.catapult.lds.service.SubscriptionCacheService;
-import org.json.JSONObject;
+
+import java.net.HttpURLConnection;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
 
 /**
  * {@code Util} provides generic convenience methods to all handlers.
  */
 public class Util {
 
+    /**
+     * The name of the environment variable which has a value of the cache service used by all handlers: either {@value
+     * #REDIS_CACHE_SERVICE} (the default) or {@value #IN_MEMORY_CACHE_SERVICE}.
+     */
+    public static final String LDS_CACHE_SERVICE_ENV = "LDS_CACHE_SERVICE";
+
+    /**
+     * The value of {@link #LDS_CACHE_SERVICE_ENV} that selects the {@link RedisSubscriptionCacheService}
+     */
+    public static final String REDIS_CACHE_SERVICE = "redis";
+
+    /**
+     * The value of {@link #LDS_CACHE_SERVICE_ENV} that selects the {@link InMemorySubscriptionCacheService}
+     */
+    public static final String IN_MEMORY_CACHE_SERVICE = "memory";
+
+    /**
+     * The name of the environment variable which has a value of the time in milliseconds that a handler reserves to
+     * respond after it stops waiting for the cache service.  Defaults to {@value #DEFAULT_RESPONSE_RESERVE_MS}.
+     */
+    public static final String LDS_RESPONSE_RESERVE_MS_ENV = "LDS_RESPONSE_RESERVE_MS";
+
+    /**
+     * The default value of {@link #LDS_RESPONSE_RESERVE_MS_ENV}
+     */
+    static final long DEFAULT_RESPONSE_RESERVE_MS = 500;
+
+    /**
+     * The time that a handler waits for the cache service when invoked without a context, e.g. outside of Lambda,
+     * which is the timeout of the functions.
+     */
+    static final Duration DEFAULT_CACHE_TIMEOUT = Duration.ofSeconds(10);
+
+    /**
+     * The time in milliseconds that a handler reserves to respond after it stops waiting for the cache service
+     */
+    private static final long responseReserveMillis = Optional.ofNullable(System.getenv(LDS_RESPONSE_RESERVE_MS_ENV))
+            .map(Long::parseLong)
+            .orElse(DEFAULT_RESPONSE_RESERVE_MS);
+
+    /**
+     * Whether the configured cache service is the {@link InMemorySubscriptionCacheService}
+     */
+    private static final boolean inMemory = IN_MEMORY_CACHE_SERVICE.equals(System.getenv(LDS_CACHE_SERVICE_ENV));
+
     /**
      * The singleton {@code SubscriptionCacheService}
      *
      * @invariant subscriptionCacheService != null
      */
-    public static SubscriptionCacheService cacheService = RedisSubscriptionCacheService.instance;
+    public static SubscriptionCacheService cacheService = inMemory ?
+            InMemorySubscriptionCacheService.instance :
+            RedisSubscriptionCacheService.instance;
+
+    /**
+     * The singleton {@code AsyncSubscriptionCacheService}, used by handlers that join on its result only when building
+     * their response.
+     *
+     * @invariant asyncCacheService != null
+     */
+    public static AsyncSubscriptionCacheService asyncCacheService = inMemory ?
+            AsyncSubscriptionCacheService.of(InMemorySubscriptionCacheService.instance) :
+            RedisAsyncSubscriptionCacheService.instance;
+
+    /**
+     * Returns the time that a handler invoked with the given context may wait for the cache service, which is the time
+     * remaining before the function times out, less the time reserved to respond.  A handler that waits no longer
+     * responds with {@link HttpURLConnection#HTTP_UNAVAILABLE} rather than being timed out itself.
+     *
+     * @post return != null
+     */
+    public static Duration cacheTimeout(Context context) {
+        if (context == null) {
+            return DEFAULT_CACHE_TIMEOUT;
+        }
+        return Duration.ofMillis(Math.max(0, context.getRemainingTimeInMillis() - responseReserveMillis));
+    }
 
     public static APIGatewayV2WebSocketResponse createSubscriptionResponse(int status,
                                                                            String requestId,
                                                                            String subscriptionId) {
-        JSONObject responseBody = new JSONObject();
-        responseBody.put("status", status);
-        responseBody.put("requestId", requestId);
-        responseBody.put("subscriptionId", subscriptionId);
-
-        APIGatewayV2WebSocketResponse response = new APIGatewayV2WebSocketResponse();
-        response.setStatusCode(status);
-        response.setBody(responseBody.toString());
-        return response;
+        return createResponse(status, requestId, "subscriptionId", subscriptionId);
     }
 
     public static APIGatewayV2WebSocketResponse createUnsubscribeResponse(int status,
                                                                           String requestId) {
-        JSONObject responseBody = new JSONObject();
-        responseBody.put("status", status);
-        responseBody.put("requestId", requestId);
+        return createResponse(status, requestId, null, null);
+    }
 
-        APIGatewayV2WebSocketResponse response = new APIGatewayV2WebSocketResponse();
-        response.setStatusCode(status);
-        response.setBody(responseBody.toString());
-        return response;
+    public static APIGatewayV2WebSocketResponse createHeartbeatResponse(int status,
+                                                                        String requestId) {
+        return createResponse(status, requestId, null, null);
     }
 
     public static APIGatewayV2WebSocketResponse createSubscriptionErrorResponse(int status,
                                                                                 String requestId,
                                                                                 String errorMessage) {
-        JSONObject responseBody = new JSONObject();
-        responseBody.put("status", status);
-        responseBody.put("requestId", requestId);
-        responseBody.put("errorMessage", errorMessage);
+        return createResponse(status, requestId, "errorMessage", errorMessage);
+    }
+
+    /**
+     * Returns a response with the given status, whose json body has the given status and request id, and the given
+     * result of each subscribe request of a batch.  The fields of a result whose value is null are omitted.
+     *
+     * @pre results != null
+     * @post return != null
+     */
+    public static APIGatewayV2WebSocketResponse createSubscribeBatchResponse(
+            int status,
+            String requestId,
+            List<SubscriptionResult> results) {
+        assert results != null;
+
+        String responseBody = JsonCodec.generate(generator -> {
+            generator.writeStartObject();
+            generator.writeNumberField("status", status);
+            if (requestId != null) {
+                generator.writeStringField("requestId", requestId);
+            }
+            generator.writeArrayFieldStart("results");
+            for (SubscriptionResult result : results) {
+                generator.writeStartObject();
+                generator.writeNumberField("status", result.getStatus());
+                if (result.getRequestId() != null) {
+                    generator.writeStringField("requestId", result.getRequestId());
+                }
+                if (result.getSubscriptionId() != null) {
+                    generator.writeStringField("subscriptionId", result.getSubscriptionId());
+                }
+                if (result.getErrorMessage() != null) {
+                    generator.writeStringField("errorMessage", result.getErrorMessage());
+                }
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        });
+
+        APIGatewayV2WebSocketResponse response = new APIGatewayV2WebSocketResponse();
+        response.setStatusCode(status);
+        response.setBody(responseBody);
+        return response;
+    }
+
+    /**
+     * Returns a response with the given status, whose json body has the given status, request id and field.  The
+     * request id and the field are omitted from the body when their value is null.
+     *
+     * @post return != null
+     */
+    private static APIGatewayV2WebSocketResponse createResponse(int status,
+                                                                String requestId,
+                                                                String fieldName,
+                                                                String fieldValue) {
+        String responseBody = JsonCodec.generate(generator -> {
+            generator.writeStartObject();
+            generator.writeNumberField("status", status);
+            if (requestId != null) {
+                generator.writeStringField("requestId", requestId);
+            }
+            if (fieldName != null && fieldValue != null) {
+                generator.writeStringField(fieldName, fieldValue);
+            }
+            generator.writeEndObject();
+        });
 
         APIGatewayV2WebSocketResponse response = new APIGatewayV2WebSocketResponse();
         response.setStatusCode(status);
-        response.setBody(responseBody.toString());
+        response.setBody(responseBody);
         return response;
     }
 }
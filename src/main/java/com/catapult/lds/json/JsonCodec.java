@@ -0,0 +1,159 @@
+package com.catapult.lds.json;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Set;
+
+/**
+ * {@code JsonCodec} is the single source of json readers, writers, parsers and generators.  All of them share one
+ * {@link ObjectMapper}, so that the serializers and deserializers of each type are only created once per process.
+ * <p/>
+ * Readers and writers are immutable and thread safe, and are bound to their type once, typically in a static field of
+ * the class that uses them, rather than resolving the type on every call.  Small documents of a fixed shape, such as
+ * responses, are written with a {@linkplain #generate generator} without building an intermediate tree.
+ */
+public final class JsonCodec {
+
+    /**
+     * The object mapper that all readers and writers are created from
+     *
+     * @invariant objectMapper != null
+     */
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * The factory of all parsers and generators
+     *
+     * @invariant jsonFactory != null
+     */
+    private static final JsonFactory jsonFactory = objectMapper.getFactory();
+
+    /**
+     * The reader of a json array of strings
+     *
+     * @invariant STRING_SET_READER != null
+     */
+    public static final ObjectReader STRING_SET_READER = readerFor(new TypeReference<Set<String>>() {
+    });
+
+    /**
+     * The writer of a set of strings as a json array
+     *
+     * @invariant STRING_SET_WRITER != null
+     */
+    public static final ObjectWriter STRING_SET_WRITER = writerFor(new TypeReference<Set<String>>() {
+    });
+
+    private JsonCodec() {
+    }
+
+    /**
+     * Returns a reader bound to the given type.
+     *
+     * @pre type != null
+     * @post return != null
+     */
+    public static ObjectReader readerFor(Class<?> type) {
+        assert type != null;
+
+        return objectMapper.readerFor(type);
+    }
+
+    /**
+     * Returns a reader bound to the given generic type.
+     *
+     * @pre type != null
+     * @post return != null
+     */
+    public static ObjectReader readerFor(TypeReference<?> type) {
+        assert type != null;
+
+        return objectMapper.readerFor(type);
+    }
+
+    /**
+     * Returns a writer bound to the given type.
+     *
+     * @pre type != null
+     * @post return != null
+     */
+    public static ObjectWriter writerFor(Class<?> type) {
+        assert type != null;
+
+        return objectMapper.writerFor(type);
+    }
+
+    /**
+     * Returns a writer bound to the given generic type.
+     *
+     * @pre type != null
+     * @post return != null
+     */
+    public static ObjectWriter writerFor(TypeReference<?> type) {
+        assert type != null;
+
+        return objectMapper.writerFor(type);
+    }
+
+    /**
+     * Returns a writer of values of any type, which resolves the type of each value it writes.
+     *
+     * @post return != null
+     */
+    public static ObjectWriter writer() {
+        return objectMapper.writer();
+    }
+
+    /**
+     * Returns a streaming parser of the given json text.
+     *
+     * @pre content != null
+     * @post return != null
+     */
+    public static JsonParser createParser(String content) throws IOException {
+        assert content != null;
+
+        return jsonFactory.createParser(content);
+    }
+
+    /**
+     * Returns the json text written by the given generation to a streaming generator.
+     *
+     * @pre generation != null
+     * @post return != null
+     */
+    public static String generate(Generation generation) {
+        assert generation != null;
+
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator generator = jsonFactory.createGenerator(writer)) {
+            generation.write(generator);
+        } catch (IOException e) {
+            // a string writer never fails
+            throw new AssertionError(e.getMessage());
+        }
+        return writer.toString();
+    }
+
+    /**
+     * {@code Generation} writes a json document to a streaming generator.
+     */
+    @FunctionalInterface
+    public interface Generation {
+
+        /**
+         * Writes a json document to the given generator.
+         *
+         * @pre generator != null
+         */
+        void write(JsonGenerator generator) throws IOException;
+    }
+}
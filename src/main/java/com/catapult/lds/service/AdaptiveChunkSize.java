@@ -0,0 +1,126 @@
+package com.catapult.lds.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * {@code AdaptiveChunkSize} decides how many keys a multi-key command, e.g. an {@code MGET}, is issued with, so that
+ * each command transfers about a target number of bytes.  The number of bytes per key is estimated from the commands
+ * that were issued before, as a moving average, and the number of keys of a command is bounded by a minimum and a
+ * maximum.
+ * <p/>
+ * An {@code AdaptiveChunkSize} is shared by concurrent operations.  Updates of the estimate may be lost when they race,
+ * which only delays its adaptation.
+ */
+final class AdaptiveChunkSize {
+
+    /**
+     * The weight of the most recently recorded command in the moving average of the number of bytes per key
+     */
+    private static final double SMOOTHING = 0.2;
+
+    /**
+     * The number of bytes that each command should transfer
+     *
+     * @invariant targetBytes > 0
+     */
+    private final int targetBytes;
+
+    /**
+     * The minimum number of keys of a command
+     *
+     * @invariant minKeys > 0
+     */
+    private final int minKeys;
+
+    /**
+     * The maximum number of keys of a command
+     *
+     * @invariant maxKeys >= minKeys
+     */
+    private final int maxKeys;
+
+    /**
+     * The moving average of the number of bytes per key
+     *
+     * @invariant bytesPerKey > 0
+     */
+    private volatile double bytesPerKey;
+
+    /**
+     * Creates an {@code AdaptiveChunkSize} with the given target number of bytes per command, the given bounds of the
+     * number of keys per command, and the given initial estimate of the number of bytes per key.
+     *
+     * @pre targetBytes > 0
+     * @pre minKeys > 0
+     * @pre maxKeys >= minKeys
+     * @pre initialBytesPerKey > 0
+     */
+    AdaptiveChunkSize(int targetBytes, int minKeys, int maxKeys, int initialBytesPerKey) {
+        assert targetBytes > 0;
+        assert minKeys > 0;
+        assert maxKeys >= minKeys;
+        assert initialBytesPerKey > 0;
+
+        this.targetBytes = targetBytes;
+        this.minKeys = minKeys;
+        this.maxKeys = maxKeys;
+        this.bytesPerKey = initialBytesPerKey;
+    }
+
+    /**
+     * Returns the number of keys that the next command should be issued with.
+     *
+     * @post minKeys <= return && return <= maxKeys
+     */
+    int get() {
+        long keys = Math.round(this.targetBytes / this.bytesPerKey);
+        return (int) Math.max(this.minKeys, Math.min(this.maxKeys, keys));
+    }
+
+    /**
+     * Records that a command with the given number of keys transferred the given number of bytes.
+     *
+     * @pre keys >= 0
+     * @pre bytes >= 0
+     */
+    void record(int keys, long bytes) {
+        assert keys >= 0;
+        assert bytes >= 0;
+
+        if (keys == 0) {
+            return;
+        }
+
+        // a key always costs at least a byte, so that the estimate remains positive
+        double observed = Math.max(1.0, (double) bytes / keys);
+        double estimate = this.bytesPerKey;
+        this.bytesPerKey = estimate + SMOOTHING * (observed - estimate);
+    }
+
+    /**
+     * Splits the given keys into chunks of the {@linkplain #get current} number of keys per command.
+     *
+     * @pre keys != null
+     * @post return != null
+     */
+    List<List<String>> chunk(Collection<String> keys) {
+        assert keys != null;
+
+        int size = this.get();
+        List<List<String>> chunks = new ArrayList<>((keys.size() + size - 1) / size);
+        List<String> chunk = new ArrayList<>(Math.min(size, keys.size()));
+        for (String key : keys) {
+            if (chunk.size() == size) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>(Math.min(size, keys.size()));
+            }
+            chunk.add(key);
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+}
@@ -0,0 +1,254 @@
+package com.catapult.lds.service;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * {@code AsyncSubscriptionCacheService} provides non-blocking methods for storing and retrieving information about
+ * subscriptions.  It mirrors {@link SubscriptionCacheService}, but every method returns immediately with a future, so
+ * that independent operations may overlap.  Where the blocking service would throw a {@link SubscriptionException},
+ * the returned future is completed exceptionally with that exception instead.  A future of a service whose backing
+ * store cannot be reached is completed exceptionally with a {@link CacheUnavailableException}.
+ */
+public interface AsyncSubscriptionCacheService {
+
+    /**
+     * Returns true if the cache service is connected to the backing store, false otherwise.
+     */
+    boolean isConnected();
+
+    /**
+     * Create an entry associated with the given connection id in the cache.
+     * <p/>
+     * The returned future completes exceptionally with a {@link SubscriptionException} if the given connection id
+     * already exists in the cache.
+     *
+     * @pre connectionId != null
+     * @post return != null
+     */
+    CompletableFuture<Void> createConnection(String connectionId);
+
+    /**
+     * Returns a future of true if a connection with the given connection id exists in the cache, false otherwise.
+     *
+     * @pre connectionId != null
+     * @post return != null
+     */
+    CompletableFuture<Boolean> connectionExists(String connectionId);
+
+    /**
+     * Records that the connection with the given connection id is still connected, which refreshes the time to live of
+     * its entry when connections expire.
+     * <p/>
+     * The returned future completes exceptionally with a {@link SubscriptionException} if the given connection id does
+     * not exist in the cache, e.g. because it expired.
+     *
+     * @pre connectionId != null
+     * @post return != null
+     */
+    CompletableFuture<Void> heartbeat(String connectionId);
+
+    /**
+     * Removes the entry associated with the given connection id, and all of its subscriptions, from the cache.
+     * <p/>
+     * The returned future completes exceptionally with a {@link SubscriptionException} if the given connection id does
+     * not exist in the cache.
+     *
+     * @pre connectionId != null
+     * @post return != null
+     */
+    CompletableFuture<Void> closeConnection(String connectionId);
+
+    /**
+     * Puts the given subscription into the cache.
+     * <p/>
+     * The returned future completes exceptionally with a {@link SubscriptionException} if the connection of the given
+     * subscription does not exist in the cache, or if the subscription is already associated with the connection.
+     *
+     * @pre subscription != null
+     * @post return != null
+     */
+    CompletableFuture<Void> addSubscription(Subscription subscription);
+
+    /**
+     * Puts the given subscriptions of a single connection into the cache, atomically: either all of them are added, or
+     * none of them are.
+     * <p/>
+     * The returned future completes exceptionally with a {@link SubscriptionException} if the connection of the given
+     * subscriptions does not exist in the cache, or if any of them is already associated with the connection.
+     *
+     * @pre subscriptions != null
+     * @pre subscriptions.stream().map(Subscription::getConnectionId).distinct().count() <= 1
+     * @pre subscriptions.stream().map(Subscription::getId).distinct().count() == subscriptions.size()
+     * @post return != null
+     */
+    CompletableFuture<Void> addSubscriptions(Collection<Subscription> subscriptions);
+
+    /**
+     * Cancels the subscription identified by the given connection id and subscription id.
+     *
+     * @pre connectionId != null
+     * @pre subscriptionId != null
+     * @post return != null
+     */
+    CompletableFuture<Void> cancelSubscription(String connectionId, String subscriptionId);
+
+    /**
+     * Replaces the resources of the subscription identified by the given connection id and subscription id with the
+     * given resources.  The subscription keeps its id, and only the resources that are added or removed are modified.
+     * <p/>
+     * The returned future completes exceptionally with a {@link SubscriptionException} if the connection or the
+     * subscription does not exist in the cache.
+     *
+     * @pre connectionId != null
+     * @pre subscriptionId != null
+     * @pre resources != null
+     * @pre !resources.isEmpty()
+     * @post return != null
+     */
+    CompletableFuture<Void> modifySubscription(String connectionId, String subscriptionId, Set<String> resources);
+
+    /**
+     * Returns a future collection of subscriptions associated with the given connection id.
+     * <p/>
+     * The returned future completes exceptionally with a {@link SubscriptionException} if a connection with the given
+     * connection id does not exist in the cache.
+     *
+     * @pre connectionId != null
+     * @post return != null
+     */
+    CompletableFuture<Collection<Subscription>> getSubscriptions(String connectionId);
+
+    /**
+     * Returns a future of the subscription associated with the given connection id and subscription id, or of null if
+     * no such subscription exists.
+     *
+     * @pre connectionId != null
+     * @pre subscriptionId != null
+     * @post return != null
+     */
+    CompletableFuture<Subscription> getSubscription(String connectionId, String subscriptionId);
+
+    /**
+     * Returns a future map of {@code denormalized cache values} associated with the given criteria.  Any resource ids
+     * that did not have connections associated with it will have an {@linkplain DenormalizedCacheValue#isEmpty empty}
+     * value.
+     *
+     * @pre resourceIds != null
+     * @post return != null
+     */
+    CompletableFuture<Map<String, DenormalizedCacheValue>> getDenormalizedConnectionsForResourceIds(Set<String> resourceIds);
+
+    /**
+     * Returns a future of the recipients of the given resource ids: the ids of the subscriptions to any of the resource
+     * ids, keyed by the id of their connection.  This is the union of the {@linkplain
+     * #getDenormalizedConnectionsForResourceIds denormalized cache values} of the resource ids, inverted, so that a
+     * publisher of a batch of data points can build a single message for each connection.  A connection that is not
+     * subscribed to any of the resource ids is absent.
+     *
+     * @pre resourceIds != null
+     * @post return != null
+     */
+    CompletableFuture<Map<String, Set<String>>> resolveRecipients(Set<String> resourceIds);
+
+    /**
+     * Returns an {@code AsyncSubscriptionCacheService} that executes each operation of the given blocking cache service
+     * on the calling thread, and returns an already completed future of its result.
+     *
+     * @pre cacheService != null
+     * @post return != null
+     */
+    static AsyncSubscriptionCacheService of(SubscriptionCacheService cacheService) {
+        assert cacheService != null;
+
+        return new SynchronousAsyncSubscriptionCacheService(cacheService);
+    }
+
+    /**
+     * Waits for the given future to complete and returns its result.  This is intended to be called once, at the
+     * boundary where a blocking result is required.
+     *
+     * @throws SubscriptionException if the future completed exceptionally with a {@code SubscriptionException}.
+     * @pre future != null
+     */
+    static <T> T join(CompletableFuture<T> future) throws SubscriptionException {
+        assert future != null;
+
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw rethrow(e);
+        }
+    }
+
+    /**
+     * Waits at most the given timeout for the given future to complete and returns its result.  This is intended to be
+     * called once, at the boundary where a blocking result is required, with the time left to respond.
+     *
+     * @throws SubscriptionException if the future completed exceptionally with a {@code SubscriptionException}.
+     * @throws CacheUnavailableException if the future did not complete within the given timeout.
+     * @pre future != null
+     * @pre timeout != null
+     */
+    static <T> T join(CompletableFuture<T> future, Duration timeout) throws SubscriptionException {
+        assert future != null;
+        assert timeout != null;
+
+        try {
+            return future.get(Math.max(0, timeout.toMillis()), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw rethrow(e);
+        } catch (TimeoutException e) {
+            throw new CacheUnavailableException(String.format("The cache service did not respond within %d ms.",
+                    timeout.toMillis()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CacheUnavailableException("Interrupted while waiting for the cache service.");
+        }
+    }
+
+    /**
+     * Throws the cause of the given exception of a completed future if it is a {@link SubscriptionException} or a
+     * {@link RuntimeException}, and returns the given exception, to be thrown by the caller, otherwise.
+     *
+     * @pre exception != null
+     * @post return != null
+     */
+    private static RuntimeException rethrow(Exception exception) throws SubscriptionException {
+        assert exception != null;
+
+        Throwable cause = unwrap(exception);
+        if (cause instanceof SubscriptionException) {
+            throw (SubscriptionException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        return new CompletionException(cause);
+    }
+
+    /**
+     * Returns the cause of the given throwable if it is a {@link CompletionException} or an {@link
+     * ExecutionException}, and the given throwable otherwise.
+     *
+     * @pre throwable != null
+     * @post return != null
+     */
+    static Throwable unwrap(Throwable throwable) {
+        assert throwable != null;
+
+        Throwable cause = throwable;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) &&
+                cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+}
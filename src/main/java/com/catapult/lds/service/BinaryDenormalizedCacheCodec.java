@@ -0,0 +1,165 @@
+package com.catapult.lds.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * {@code BinaryDenormalizedCacheCodec} decodes denormalized cache values stored in the {@linkplain
+ * DenormalizedCacheFormat#BINARY binary} format.  Values are only ever encoded by the server-side scripts, in {@code
+ * denormalized.lua}, so that there is a single encoder for this decoder to agree with.
+ * <p/>
+ * A value consists of a header followed by the connections of the value:
+ * <pre>
+ *   value        := MAGIC VERSION uint(connection count) connection*
+ *   connection   := string(connection id) uint(subscription count) string(subscription id)*
+ *   string       := uint(utf-8 byte length) utf-8 bytes
+ *   uint         := (0x40 | digit)* digit         base 64 digits, most significant first, where 0 <= digit < 0x40
+ * </pre>
+ * Every byte outside of the strings is below {@code 0x80}, so an encoded value is itself valid utf-8 and is read and
+ * written as an ordinary redis string.  A json value never starts with {@link #MAGIC}, which allows the format of a
+ * value to be detected when it is read.
+ */
+final class BinaryDenormalizedCacheCodec {
+
+    /**
+     * The first byte of every binary value
+     */
+    static final byte MAGIC = 0x00;
+
+    /**
+     * The version of the binary format read by this codec
+     */
+    static final byte VERSION = 0x01;
+
+    /**
+     * The bit that marks every digit of an unsigned integer but the last
+     */
+    private static final int CONTINUATION = 0x40;
+
+    /**
+     * The mask of the value of a digit of an unsigned integer
+     */
+    private static final int DIGIT_MASK = 0x3f;
+
+    /**
+     * The number of bits in a digit of an unsigned integer
+     */
+    private static final int DIGIT_BITS = 6;
+
+    private BinaryDenormalizedCacheCodec() {
+    }
+
+    /**
+     * Returns true if the given stored value is in the binary format, false otherwise.
+     *
+     * @pre value != null
+     */
+    static boolean isBinary(String value) {
+        assert value != null;
+
+        return !value.isEmpty() && value.charAt(0) == MAGIC;
+    }
+
+    /**
+     * Passes the id and subscription ids of each connection of the given binary encoded value to the given consumer,
+     * as they are decoded.  The collection of subscription ids is reused, and is only valid during the call.
+     *
+     * @throws IllegalArgumentException if the given value is not a binary value of a known version.
+     * @pre value != null
+     * @pre consumer != null
+     */
+    static void decode(byte[] value, BiConsumer<String, Collection<String>> consumer) {
+        assert value != null;
+        assert consumer != null;
+
+        Reader reader = new Reader(value);
+        if (reader.readByte() != MAGIC) {
+            throw new IllegalArgumentException("Not a binary denormalized cache value");
+        }
+        int version = reader.readByte();
+        if (version != VERSION) {
+            throw new IllegalArgumentException(String.format("Unknown binary denormalized cache value version %d",
+                    version));
+        }
+
+        int connectionCount = reader.readUnsignedInt();
+        List<String> subscriptionIds = new ArrayList<>();
+        for (int i = 0; i < connectionCount; i++) {
+            String connectionId = reader.readString();
+            int subscriptionCount = reader.readUnsignedInt();
+            subscriptionIds.clear();
+            for (int j = 0; j < subscriptionCount; j++) {
+                subscriptionIds.add(reader.readString());
+            }
+            consumer.accept(connectionId, subscriptionIds);
+        }
+    }
+
+    /**
+     * {@code Reader} reads the elements of a binary value in order.
+     */
+    private static final class Reader {
+
+        /**
+         * The binary value being read
+         *
+         * @invariant bytes != null
+         */
+        private final byte[] bytes;
+
+        /**
+         * The index of the next byte to read
+         *
+         * @invariant 0 <= position <= bytes.length
+         */
+        private int position = 0;
+
+        Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        /**
+         * Returns the next byte.
+         *
+         * @throws IllegalArgumentException if the value is truncated.
+         */
+        int readByte() {
+            if (this.position >= this.bytes.length) {
+                throw new IllegalArgumentException("Truncated binary denormalized cache value");
+            }
+            return this.bytes[this.position++];
+        }
+
+        /**
+         * Returns the next unsigned integer.
+         *
+         * @throws IllegalArgumentException if the value is truncated.
+         */
+        int readUnsignedInt() {
+            int value = 0;
+            int digit;
+            while (((digit = this.readByte()) & CONTINUATION) != 0) {
+                value = (value << DIGIT_BITS) | (digit & DIGIT_MASK);
+            }
+            return (value << DIGIT_BITS) | digit;
+        }
+
+        /**
+         * Returns the next string.
+         *
+         * @throws IllegalArgumentException if the value is truncated.
+         */
+        String readString() {
+            int length = this.readUnsignedInt();
+            if (this.position + length > this.bytes.length) {
+                throw new IllegalArgumentException("Truncated binary denormalized cache value");
+            }
+            String value = new String(this.bytes, this.position, length, StandardCharsets.UTF_8);
+            this.position += length;
+            return value;
+        }
+    }
+}
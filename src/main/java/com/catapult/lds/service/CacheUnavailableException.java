@@ -0,0 +1,39 @@
+package com.catapult.lds.service;
+
+/**
+ * {@code CacheUnavailableException} is an exception that gets thrown when the backing store of a cache service cannot
+ * be reached, did not respond in time, or is considered unhealthy by a {@link CircuitBreaker}.  Unlike a {@link
+ * SubscriptionException}, it says nothing about the subscriptions themselves, and the same operation may succeed when
+ * retried later.
+ */
+public class CacheUnavailableException extends RuntimeException {
+
+    /**
+     * The version of the serialized form of this exception
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates a {@code CacheUnavailableException} with the given message.
+     *
+     * @pre message != null
+     */
+    public CacheUnavailableException(String message) {
+        super(message);
+
+        assert message != null;
+    }
+
+    /**
+     * Creates a {@code CacheUnavailableException} with the given message and cause.
+     *
+     * @pre message != null
+     * @pre cause != null
+     */
+    public CacheUnavailableException(String message, Throwable cause) {
+        super(message, cause);
+
+        assert message != null;
+        assert cause != null;
+    }
+}
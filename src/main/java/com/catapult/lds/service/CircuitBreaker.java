@@ -0,0 +1,178 @@
+package com.catapult.lds.service;
+
+import java.time.Duration;
+
+/**
+ * {@code CircuitBreaker} tracks the health of a backing store from the outcome of the operations issued to it, so that
+ * operations fail fast while it is unhealthy, rather than each of them waiting for a timeout.
+ * <p/>
+ * The breaker is {@linkplain State#CLOSED closed} while the store is healthy.  It {@linkplain State#OPEN opens} after a
+ * number of consecutive failures, and rejects every operation for the open duration.  It then lets a single trial
+ * operation through while {@linkplain State#HALF_OPEN half open}: the breaker closes if the trial succeeds, and opens
+ * again if it fails.
+ *
+ * @invariant getState() != null
+ */
+public class CircuitBreaker {
+
+    /**
+     * {@code State} enumerates the states of a {@code CircuitBreaker}.
+     */
+    public enum State {
+
+        /**
+         * Every operation is permitted
+         */
+        CLOSED,
+
+        /**
+         * Every operation is rejected
+         */
+        OPEN,
+
+        /**
+         * A single trial operation is in flight, and every other operation is rejected
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * The number of consecutive failures that opens this breaker
+     *
+     * @invariant failureThreshold > 0
+     */
+    private final int failureThreshold;
+
+    /**
+     * The period in milliseconds during which an open breaker rejects every operation
+     *
+     * @invariant openMillis >= 0
+     */
+    private final long openMillis;
+
+    /**
+     * The current state of this breaker
+     */
+    private State state = State.CLOSED;
+
+    /**
+     * The number of failures since the most recent success
+     */
+    private int consecutiveFailures = 0;
+
+    /**
+     * The time in milliseconds at which this breaker most recently opened
+     */
+    private long openedAtMillis = 0;
+
+    /**
+     * The number of times that this breaker has opened
+     */
+    private long openCount = 0;
+
+    /**
+     * The number of operations that were rejected
+     */
+    private long rejectionCount = 0;
+
+    /**
+     * Creates a closed {@code CircuitBreaker} that opens after the given number of consecutive failures, for the given
+     * duration.
+     *
+     * @pre failureThreshold > 0
+     * @pre openDuration != null
+     * @pre !openDuration.isNegative()
+     */
+    CircuitBreaker(int failureThreshold, Duration openDuration) {
+        assert failureThreshold > 0;
+        assert openDuration != null;
+        assert !openDuration.isNegative();
+
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openDuration.toMillis();
+    }
+
+    /**
+     * Returns true if an operation may be issued, false if it must be rejected.  An operation that is permitted must
+     * report its outcome with either {@link #recordSuccess} or {@link #recordFailure}.
+     */
+    synchronized boolean tryAcquire() {
+        if (this.state == State.OPEN && System.currentTimeMillis() - this.openedAtMillis >= this.openMillis) {
+            // the caller issues the trial operation
+            this.state = State.HALF_OPEN;
+            return true;
+        }
+        if (this.state == State.CLOSED) {
+            return true;
+        }
+
+        this.rejectionCount++;
+        return false;
+    }
+
+    /**
+     * Makes a permitted operation the trial operation of this breaker, if it is closed, e.g. while the operation waits
+     * for the backing store to be connected to.  Every other operation is rejected until it reports its outcome.
+     */
+    synchronized void beginTrial() {
+        if (this.state == State.CLOSED) {
+            this.state = State.HALF_OPEN;
+        }
+    }
+
+    /**
+     * Records that an operation reached the backing store, which closes this breaker.
+     */
+    synchronized void recordSuccess() {
+        this.consecutiveFailures = 0;
+        this.state = State.CLOSED;
+    }
+
+    /**
+     * Records that an operation failed to reach the backing store, which opens this breaker if its trial operation
+     * failed or if the failure threshold is reached.
+     */
+    synchronized void recordFailure() {
+        this.consecutiveFailures++;
+        if (this.state == State.HALF_OPEN ||
+                (this.state == State.CLOSED && this.consecutiveFailures >= this.failureThreshold)) {
+            this.state = State.OPEN;
+            this.openedAtMillis = System.currentTimeMillis();
+            this.openCount++;
+        }
+    }
+
+    /**
+     * Returns the current state of this breaker.
+     *
+     * @post return != null
+     */
+    public synchronized State getState() {
+        return this.state;
+    }
+
+    /**
+     * Returns the number of milliseconds until an open breaker permits a trial operation, or 0 if it is not open.
+     *
+     * @post return >= 0
+     */
+    public synchronized long getRetryAfterMillis() {
+        return this.state == State.OPEN ?
+                Math.max(0, this.openedAtMillis + this.openMillis - System.currentTimeMillis()) :
+                0;
+    }
+
+    /**
+     * Returns the number of times that this breaker has opened.
+     */
+    public synchronized long getOpenCount() {
+        return this.openCount;
+    }
+
+    /**
+     * Returns the number of operations that were rejected.
+     */
+    public synchronized long getRejectionCount() {
+        return this.rejectionCount;
+    }
+}
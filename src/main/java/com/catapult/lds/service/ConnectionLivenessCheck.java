@@ -0,0 +1,26 @@
+package com.catapult.lds.service;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@code ConnectionLivenessCheck} confirms whether a connection is still connected to the API gateway, e.g. with a
+ * {@code GET @connections/{connectionId}} request of the API Gateway Management API, before an {@linkplain
+ * RedisAsyncSubscriptionCacheService#sweepOrphanedConnections orphaned connection} is closed.
+ */
+@FunctionalInterface
+public interface ConnectionLivenessCheck {
+
+    /**
+     * The check that reports every connection as disconnected, so that a connection is closed on its age alone
+     */
+    ConnectionLivenessCheck NONE = connectionId -> CompletableFuture.completedFuture(false);
+
+    /**
+     * Returns a future of whether the connection with the given id is still connected.  A future that completes
+     * exceptionally is taken to mean that the connection may still be connected.
+     *
+     * @pre connectionId != null
+     * @post return != null
+     */
+    CompletableFuture<Boolean> isConnected(String connectionId);
+}
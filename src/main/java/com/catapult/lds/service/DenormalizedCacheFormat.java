@@ -0,0 +1,60 @@
+package com.catapult.lds.service;
+
+import java.util.Arrays;
+
+/**
+ * {@code DenormalizedCacheFormat} enumerates the ways that a value of the denormalized cache may be stored in redis.
+ * The {@linkplain #value value} of each is passed to the server-side scripts that modify the denormalized cache.
+ * <p/>
+ * Values stored in a format other than the configured one are still readable, and are converted to the configured
+ * format the next time they are modified.  A lookup in the {@link #SET} format reads a value still stored as a string
+ * with a {@code GET}.  A lookup in the other formats reads a value still stored as a set with {@code SMEMBERS} only
+ * during a {@linkplain RedisCacheConfiguration#isFormatMigration format migration}, as it costs an extra round trip for
+ * the resources that have no value at all.
+ */
+public enum DenormalizedCacheFormat {
+
+    /**
+     * Each resource key holds a stringified json array of connections and their subscription ids.
+     */
+    JSON("json"),
+
+    /**
+     * Each resource key holds a redis set with one {@linkplain DenormalizedCacheValue#toSetMember member} per
+     * connection and subscription id pair.
+     */
+    SET("set"),
+
+    /**
+     * Each resource key holds a compact {@linkplain BinaryDenormalizedCacheCodec binary encoding} of connections and
+     * their subscription ids.
+     */
+    BINARY("binary");
+
+    private final String value;
+
+    DenormalizedCacheFormat(String value) {
+        this.value = value;
+    }
+
+    public String value() {
+        return this.value;
+    }
+
+    /**
+     * Returns the format with the given value, or {@link #JSON} if the given value is null.
+     *
+     * @throws IllegalArgumentException if there is no format with the given value.
+     */
+    public static DenormalizedCacheFormat fromValue(String value) {
+        if (value == null) {
+            return JSON;
+        }
+
+        return Arrays.stream(values())
+                .filter(f -> f.value.equalsIgnoreCase(value))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException(String.format("Unknown denormalized cache format '%s'",
+                        value)));
+    }
+}
@@ -1,42 +1,63 @@
 package com.catapult.lds.service;
 
+import com.catapult.lds.json.JsonCodec;
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import lombok.AccessLevel;
-import lombok.AllArgsConstructor;
-import lombok.Builder;
-import lombok.NonNull;
-import lombok.Value;
-import lombok.extern.jackson.Jacksonized;
+import com.fasterxml.jackson.core.JsonToken;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Arrays;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Optional;
+import java.util.List;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.function.BiConsumer;
 
 /**
  * {@code DenormalizedCacheValue} is a deserialized representation of a value in the denormalized cache.
+ * <p/>
+ * The subscription ids of each connection are held in a map keyed by connection id, in the order that the connections
+ * were added, so that every lookup and modification of a connection takes constant time regardless of the number of
+ * connections.  Most connections have a single subscription to a resource, whose id is held in a singleton set until a
+ * second one is added.  The {@linkplain #getSerializedConnectionList serialized form} is computed when first requested,
+ * and recomputed only after a modification.
+ * <p/>
+ * The json form is a list of objects with a {@code connectionId} and its {@code subscriptionIds}.  It is read and
+ * written with a streaming parser and generator, directly from and to the map of subscription ids.
  */
-@AllArgsConstructor(access = AccessLevel.PRIVATE)
 public class DenormalizedCacheValue {
 
     /**
-     * The object mapper used by all {@code DenormalizedCacheValue} instances
+     * The logger used by all {@code DenormalizedCacheValue} instances
      */
-    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final Logger logger = LoggerFactory.getLogger(DenormalizedCacheValue.class);
 
     /**
-     * The logger used by all {@code DenormalizedCacheValue} instances
+     * The separator between the connection id and the subscription id of a member of a {@linkplain
+     * DenormalizedCacheFormat#SET set} formatted cache value.  Subscription ids never contain this separator.
      */
-    private static final Logger logger = LoggerFactory.getLogger(DenormalizedCacheValue.class);
+    static final char SET_MEMBER_SEPARATOR = '|';
+
+    /**
+     * The name of the field of a connection of a json formatted cache value that has a value of its id
+     */
+    private static final String CONNECTION_ID_FIELD = "connectionId";
+
+    /**
+     * The name of the field of a connection of a json formatted cache value that has a value of its subscription ids
+     */
+    private static final String SUBSCRIPTION_IDS_FIELD = "subscriptionIds";
 
     /**
      * The key in the denormalized cache whose value is this denormalized cache value
@@ -46,11 +67,58 @@ public class DenormalizedCacheValue {
     private final String resourceKey;
 
     /**
-     * The set of connections and their subscriptions associated with the resource key
+     * The subscription ids associated with the resource key, keyed by connection id
+     *
+     * @invariant subscriptionIdsByConnectionId != null
+     * @invariant subscriptionIdsByConnectionId.values().stream().noneMatch(Set::isEmpty)
+     */
+    private final Map<String, Set<String>> subscriptionIdsByConnectionId = new LinkedHashMap<>();
+
+    /**
+     * The read-only view of {@link #subscriptionIdsByConnectionId}
      *
-     * @invariant connectionSubscriptions != null
+     * @invariant readOnlySubscriptionIdsByConnectionId != null
+     */
+    private final Map<String, Set<String>> readOnlySubscriptionIdsByConnectionId =
+            new ReadOnlyConnections(this.subscriptionIdsByConnectionId);
+
+    /**
+     * The json serialized connection list, or null if it has not been computed since this value was last modified
      */
-    private final Collection<ConnectionSubscriptions> connectionSubscriptions;
+    private String serializedConnectionList;
+
+    /**
+     * Instantiates a new, empty {@code DenormalizedCacheValue} for the given key.
+     *
+     * @pre resourceKey != null
+     */
+    private DenormalizedCacheValue(String resourceKey) {
+        assert resourceKey != null;
+
+        this.resourceKey = resourceKey;
+    }
+
+    /**
+     * Instantiates a new {@code DenormalizedCacheValue} from the given key and stored string value, which is either in
+     * the {@linkplain DenormalizedCacheFormat#BINARY binary} or the {@linkplain DenormalizedCacheFormat#JSON json}
+     * format.
+     *
+     * @pre key != null
+     * @pre value != null
+     * @post return != null
+     */
+    public static DenormalizedCacheValue deserialize(String key, String value) {
+        assert key != null;
+        assert value != null;
+
+        if (BinaryDenormalizedCacheCodec.isBinary(value)) {
+            DenormalizedCacheValue denormalizedCacheValue = new DenormalizedCacheValue(key);
+            BinaryDenormalizedCacheCodec.decode(value.getBytes(StandardCharsets.UTF_8),
+                    denormalizedCacheValue::addSubscriptions);
+            return denormalizedCacheValue;
+        }
+        return deserializeFromJson(key, value);
+    }
 
     /**
      * Instantiates a new {@code DenormalizedCacheValue} from the given key and connection list json string.
@@ -63,27 +131,198 @@ public class DenormalizedCacheValue {
         assert key != null;
         assert connectionListJson != null;
 
-        try {
-            Collection<DenormalizedCacheValue.ConnectionSubscriptions> cs = objectMapper.readValue(connectionListJson,
-                    new TypeReference<Collection<ConnectionSubscriptions>>() {
-                    });
-            return new DenormalizedCacheValue(key, cs);
-        } catch (JsonProcessingException e) {
+        DenormalizedCacheValue denormalizedCacheValue = new DenormalizedCacheValue(key);
+        readJsonConnections(key, connectionListJson, denormalizedCacheValue::addSubscriptions);
+        return denormalizedCacheValue;
+    }
+
+    /**
+     * Passes each connection id and subscription id of the given key and stored string value, which is either in the
+     * {@linkplain DenormalizedCacheFormat#BINARY binary} or the {@linkplain DenormalizedCacheFormat#JSON json} format,
+     * to the given consumer, without instantiating a {@code DenormalizedCacheValue}.
+     *
+     * @pre key != null
+     * @pre value != null
+     * @pre consumer != null
+     */
+    static void forEachSubscription(String key, String value, BiConsumer<String, String> consumer) {
+        assert key != null;
+        assert value != null;
+        assert consumer != null;
+
+        if (BinaryDenormalizedCacheCodec.isBinary(value)) {
+            BinaryDenormalizedCacheCodec.decode(value.getBytes(StandardCharsets.UTF_8), (connectionId, subscriptionIds) ->
+                    subscriptionIds.forEach(s -> consumer.accept(connectionId, s)));
+            return;
+        }
+        readJsonConnections(key, value, (connectionId, subscriptionIds) ->
+                subscriptionIds.forEach(s -> consumer.accept(connectionId, s)));
+    }
+
+    /**
+     * Passes the id and subscription ids of each connection of the given key and connection list json string to the
+     * given consumer.  The collection of subscription ids is reused, and is only valid during the call.
+     *
+     * @pre key != null
+     * @pre connectionListJson != null
+     * @pre consumer != null
+     */
+    private static void readJsonConnections(String key,
+                                            String connectionListJson,
+                                            BiConsumer<String, Collection<String>> consumer) {
+        assert key != null;
+        assert connectionListJson != null;
+        assert consumer != null;
+
+        try (JsonParser parser = JsonCodec.createParser(connectionListJson)) {
+            expect(parser, JsonToken.START_ARRAY);
+
+            // the fields of a connection may be in any order, so its subscription ids are collected first
+            List<String> subscriptionIds = new ArrayList<>();
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                String connectionId = null;
+                boolean hasSubscriptionIds = false;
+                subscriptionIds.clear();
+
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    JsonToken value = parser.nextToken();
+                    if (CONNECTION_ID_FIELD.equals(field) && value == JsonToken.VALUE_STRING) {
+                        connectionId = parser.getText();
+                    } else if (SUBSCRIPTION_IDS_FIELD.equals(field) && value == JsonToken.START_ARRAY) {
+                        hasSubscriptionIds = true;
+                        while (parser.nextToken() == JsonToken.VALUE_STRING) {
+                            subscriptionIds.add(parser.getText());
+                        }
+                        expect(parser, parser.currentToken(), JsonToken.END_ARRAY);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+
+                if (connectionId == null || !hasSubscriptionIds) {
+                    throw new AssertionError(String.format("Invalid connection in denormalized cache value '%s'",
+                            key));
+                }
+                consumer.accept(connectionId, subscriptionIds);
+            }
+            expect(parser, parser.currentToken(), JsonToken.END_ARRAY);
+        } catch (IOException e) {
             throw new AssertionError(e.getMessage());
         }
     }
 
+    /**
+     * Advances the given parser to its next token, which must be the given token.
+     *
+     * @throws JsonParseException if the next token is not the given token.
+     * @pre parser != null
+     * @pre expected != null
+     */
+    private static void expect(JsonParser parser, JsonToken expected) throws IOException {
+        assert parser != null;
+        assert expected != null;
+
+        expect(parser, parser.nextToken(), expected);
+    }
+
+    /**
+     * Checks that the given token of the given parser is the given expected token.
+     *
+     * @throws JsonParseException if the token is not the expected token.
+     * @pre parser != null
+     * @pre expected != null
+     */
+    private static void expect(JsonParser parser, JsonToken token, JsonToken expected) throws JsonParseException {
+        assert parser != null;
+        assert expected != null;
+
+        if (token != expected) {
+            throw new JsonParseException(parser, String.format("Expected %s but found %s", expected, token));
+        }
+    }
+
+    /**
+     * Instantiates a new {@code DenormalizedCacheValue} from the given key and the members of a {@linkplain
+     * DenormalizedCacheFormat#SET set} formatted cache value.
+     *
+     * @pre key != null
+     * @pre members != null
+     * @post return != null
+     */
+    public static DenormalizedCacheValue fromSetMembers(String key, Collection<String> members) {
+        assert key != null;
+        assert members != null;
+
+        DenormalizedCacheValue denormalizedCacheValue = new DenormalizedCacheValue(key);
+        forEachSetMember(key, members, denormalizedCacheValue::addSubscription);
+        return denormalizedCacheValue;
+    }
+
+    /**
+     * Passes the connection id and subscription id of each of the given members of a {@linkplain
+     * DenormalizedCacheFormat#SET set} formatted cache value of the given key to the given consumer, without
+     * instantiating a {@code DenormalizedCacheValue}.
+     *
+     * @pre key != null
+     * @pre members != null
+     * @pre consumer != null
+     */
+    static void forEachSetMember(String key, Collection<String> members, BiConsumer<String, String> consumer) {
+        assert key != null;
+        assert members != null;
+        assert consumer != null;
+
+        for (String member : members) {
+            int separatorIndex = member.lastIndexOf(SET_MEMBER_SEPARATOR);
+            if (separatorIndex < 0) {
+                throw new AssertionError(String.format("Invalid member '%s' of denormalized cache value '%s'", member,
+                        key));
+            }
+            consumer.accept(member.substring(0, separatorIndex), member.substring(separatorIndex + 1));
+        }
+    }
+
+    /**
+     * Returns the member of a {@linkplain DenormalizedCacheFormat#SET set} formatted cache value that associates the
+     * given subscription id with the given connection id.
+     *
+     * @pre connectionId != null
+     * @pre subscriptionId != null
+     * @post return != null
+     */
+    public static String toSetMember(String connectionId, String subscriptionId) {
+        assert connectionId != null;
+        assert subscriptionId != null;
+
+        return connectionId + SET_MEMBER_SEPARATOR + subscriptionId;
+    }
+
     /**
      * Returns a json serialized version of the connection list.
      *
      * @post return != null
      */
     public String getSerializedConnectionList() {
-        try {
-            return objectMapper.writeValueAsString(this.connectionSubscriptions);
-        } catch (JsonProcessingException e) {
-            throw new AssertionError(e.getMessage());
+        String serialized = this.serializedConnectionList;
+        if (serialized == null) {
+            serialized = JsonCodec.generate(generator -> {
+                generator.writeStartArray();
+                for (Map.Entry<String, Set<String>> connection : this.subscriptionIdsByConnectionId.entrySet()) {
+                    generator.writeStartObject();
+                    generator.writeStringField(CONNECTION_ID_FIELD, connection.getKey());
+                    generator.writeArrayFieldStart(SUBSCRIPTION_IDS_FIELD);
+                    for (String subscriptionId : connection.getValue()) {
+                        generator.writeString(subscriptionId);
+                    }
+                    generator.writeEndArray();
+                    generator.writeEndObject();
+                }
+                generator.writeEndArray();
+            });
+            this.serializedConnectionList = serialized;
         }
+        return serialized;
     }
 
     /**
@@ -96,14 +335,30 @@ public class DenormalizedCacheValue {
         assert connectionId != null;
         assert subscriptionId != null;
 
-        this.connectionSubscriptions
-                .stream()
-                .filter(c -> c.connectionId.equals(connectionId))
-                .findFirst()
-                .ifPresentOrElse(
-                        c -> c.subscriptionIds.add(subscriptionId),
-                        () -> this.connectionSubscriptions.add(new ConnectionSubscriptions(connectionId,
-                                new HashSet<>(Arrays.asList(subscriptionId)))));
+        this.serializedConnectionList = null;
+        this.subscriptionIdsByConnectionId.merge(connectionId, Collections.singleton(subscriptionId),
+                (subscriptionIds, added) -> {
+                    if (subscriptionIds.contains(subscriptionId)) {
+                        return subscriptionIds;
+                    }
+                    Set<String> updated = subscriptionIds.size() == 1 ? new HashSet<>(subscriptionIds) :
+                            subscriptionIds;
+                    updated.add(subscriptionId);
+                    return updated;
+                });
+    }
+
+    /**
+     * Associates the given subscription ids to the given connection id in this cache value
+     *
+     * @pre connectionId != null
+     * @pre subscriptionIds != null
+     */
+    private void addSubscriptions(String connectionId, Collection<String> subscriptionIds) {
+        assert connectionId != null;
+        assert subscriptionIds != null;
+
+        subscriptionIds.forEach(s -> this.addSubscription(connectionId, s));
     }
 
     /**
@@ -116,29 +371,31 @@ public class DenormalizedCacheValue {
         assert connectionId != null;
         assert subscriptionId != null;
 
-        Optional<ConnectionSubscriptions> optionalConnection = this.connectionSubscriptions
-                .stream()
-                .filter(c -> c.connectionId.equals(connectionId))
-                .findFirst();
+        Set<String> subscriptionIds = this.subscriptionIdsByConnectionId.get(connectionId);
 
-        if (optionalConnection.isEmpty()) {
+        if (subscriptionIds == null) {
             logger.debug("Could not remove subscription {} from connection {}:  Connection not" +
                     " found.", subscriptionId, connectionId);
             return;
         }
 
-        ConnectionSubscriptions connection = optionalConnection.get();
-        if (connection.subscriptionIds.remove(subscriptionId) == false) {
+        if (!subscriptionIds.contains(subscriptionId)) {
             logger.debug("Could not remove subscription {} from connection {}:  Subscription " +
                     "not found.", subscriptionId, connectionId);
+            return;
         }
 
-        if (connection.subscriptionIds.isEmpty()) {
-            logger.debug("Afer removing subscription {} from connection {}, connection has no " +
+        this.serializedConnectionList = null;
+
+        if (subscriptionIds.size() == 1) {
+            logger.debug("After removing subscription {} from connection {}, connection has no " +
                     "more subscriptions associated with it.", subscriptionId, connectionId);
 
-            this.connectionSubscriptions.remove(connection);
+            this.subscriptionIdsByConnectionId.remove(connectionId);
+            return;
         }
+
+        subscriptionIds.remove(subscriptionId);
     }
 
     /**
@@ -146,7 +403,7 @@ public class DenormalizedCacheValue {
      */
     @JsonIgnore
     public boolean isEmpty() {
-        return this.connectionSubscriptions.isEmpty();
+        return this.subscriptionIdsByConnectionId.isEmpty();
     }
 
     /**
@@ -156,7 +413,7 @@ public class DenormalizedCacheValue {
      */
     @JsonIgnore
     public Set<String> getConnectionIds() {
-        return this.connectionSubscriptions.stream().map(c -> c.connectionId).collect(Collectors.toSet());
+        return Collections.unmodifiableSet(this.subscriptionIdsByConnectionId.keySet());
     }
 
     /**
@@ -165,24 +422,18 @@ public class DenormalizedCacheValue {
      * @post return != null
      */
     public Set<String> getSubscriptionIds(String connectionId) {
-        return this.connectionSubscriptions
-                .stream()
-                .filter(c -> c.connectionId.equals(connectionId))
-                .findAny()
-                .map(c -> c.subscriptionIds)
-                .orElse(Collections.emptySet());
+        return Collections.unmodifiableSet(this.subscriptionIdsByConnectionId.getOrDefault(connectionId,
+                Collections.emptySet()));
     }
 
     /**
-     * Returns a map of subscription ids keyed by connection id.
+     * Returns a read-only view of the subscription ids keyed by connection id, whose sets of subscription ids are
+     * read-only too.
      *
      * @post return != null
      */
     public Map<String, Set<String>> getSubscriptionIdsByConnectionId() {
-        return this.connectionSubscriptions
-                .stream()
-                .collect(Collectors.toMap(ConnectionSubscriptions::getConnectionId,
-                        ConnectionSubscriptions::getSubscriptionIds));
+        return this.readOnlySubscriptionIdsByConnectionId;
     }
 
     /**
@@ -191,30 +442,78 @@ public class DenormalizedCacheValue {
     @Override
     public String toString() {
         try {
-            return objectMapper.writer().writeValueAsString(this);
+            return JsonCodec.writer().writeValueAsString(this);
         } catch (JsonProcessingException e) {
             throw new AssertionError(e.getMessage());
         }
     }
 
     /**
-     * {@code ConnectionSubscriptions} is a container class that associates subscriptions ids with a connection.
-     * <p/>
+     * {@code ReadOnlyConnections} is a read-only view of subscription ids keyed by connection id, which wraps each set
+     * of subscription ids as it is read, so that neither the map nor its sets are copied.
      */
-    @Value
-    @Builder
-    @Jacksonized
-    private static class ConnectionSubscriptions {
-        /**
-         * The connection ID associated with this denormalized connection
-         */
-        @NonNull
-        String connectionId;
+    private static final class ReadOnlyConnections extends AbstractMap<String, Set<String>> {
 
         /**
-         * The set of subscription ids associated with this denormalized connection
+         * The viewed subscription ids keyed by connection id
+         *
+         * @invariant subscriptionIdsByConnectionId != null
          */
-        @NonNull
-        Set<String> subscriptionIds;
+        private final Map<String, Set<String>> subscriptionIdsByConnectionId;
+
+        ReadOnlyConnections(Map<String, Set<String>> subscriptionIdsByConnectionId) {
+            this.subscriptionIdsByConnectionId = subscriptionIdsByConnectionId;
+        }
+
+        @Override
+        public Set<String> get(Object connectionId) {
+            Set<String> subscriptionIds = this.subscriptionIdsByConnectionId.get(connectionId);
+            return subscriptionIds == null ? null : Collections.unmodifiableSet(subscriptionIds);
+        }
+
+        @Override
+        public boolean containsKey(Object connectionId) {
+            return this.subscriptionIdsByConnectionId.containsKey(connectionId);
+        }
+
+        @Override
+        public int size() {
+            return this.subscriptionIdsByConnectionId.size();
+        }
+
+        @Override
+        public void forEach(BiConsumer<? super String, ? super Set<String>> action) {
+            this.subscriptionIdsByConnectionId.forEach((connectionId, subscriptionIds) ->
+                    action.accept(connectionId, Collections.unmodifiableSet(subscriptionIds)));
+        }
+
+        @Override
+        public Set<Entry<String, Set<String>>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<String, Set<String>>> iterator() {
+                    Iterator<Entry<String, Set<String>>> entries =
+                            ReadOnlyConnections.this.subscriptionIdsByConnectionId.entrySet().iterator();
+                    return new Iterator<>() {
+                        @Override
+                        public boolean hasNext() {
+                            return entries.hasNext();
+                        }
+
+                        @Override
+                        public Entry<String, Set<String>> next() {
+                            Entry<String, Set<String>> entry = entries.next();
+                            return new SimpleImmutableEntry<>(entry.getKey(),
+                                    Collections.unmodifiableSet(entry.getValue()));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return ReadOnlyConnections.this.subscriptionIdsByConnectionId.size();
+                }
+            };
+        }
     }
 }
@@ -0,0 +1,446 @@
+package com.catapult.lds.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * {@code InMemorySubscriptionCacheService} is an implementation of {@code SubscriptionCacheService} that holds all
+ * subscriptions in process, with the same semantics as the {@link RedisSubscriptionCacheService}.  It is intended as a
+ * stand-in for redis in load tests and benchmarks, and for single node deployments.
+ * <p/>
+ * The subscriptions of each connection are held in a connection index, and the subscriptions of each resource in an
+ * inverted resource index.  Both are built of concurrent maps and sets that are modified in place, so that a
+ * modification costs the same however many subscriptions share a connection or a resource, and lookups never block.
+ * Modifications of the same connection are serialized by one of a fixed number of striped locks, and each resource is
+ * updated atomically, so that modifications of different connections proceed in parallel.
+ */
+public class InMemorySubscriptionCacheService implements SubscriptionCacheService {
+
+    /**
+     * The singleton instance of the in-memory subscription cache service
+     *
+     * @invariant instance != null
+     */
+    public static final SubscriptionCacheService instance = new InMemorySubscriptionCacheService();
+
+    /**
+     * The number of locks that modifications of connections are striped across
+     */
+    private static final int LOCK_STRIPES = 64;
+
+    /**
+     * The subscriptions of each connection, keyed by subscription id, in concurrent maps
+     *
+     * @invariant connections != null
+     */
+    private final Map<String, Map<String, Subscription>> connections = new ConcurrentHashMap<>();
+
+    /**
+     * The subscription ids of each resource, keyed by connection id, in concurrent maps and sets
+     *
+     * @invariant resources != null
+     */
+    private final Map<String, Map<String, Set<String>>> resources = new ConcurrentHashMap<>();
+
+    /**
+     * The locks that serialize modifications of connections
+     *
+     * @invariant locks.length == LOCK_STRIPES
+     */
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+
+    /**
+     * The logger used by this cache service.
+     *
+     * @invariant logger != null
+     */
+    private final Logger logger = LoggerFactory.getLogger(InMemorySubscriptionCacheService.class);
+
+    /**
+     * Creates an empty {@code InMemorySubscriptionCacheService}.
+     */
+    InMemorySubscriptionCacheService() {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            this.locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void createConnection(String connectionId) throws SubscriptionException {
+        assert connectionId != null;
+
+        this.logger.info("creating connection '{}' ", connectionId);
+
+        ReentrantLock lock = this.lockOf(connectionId);
+        lock.lock();
+        try {
+            if (this.connections.containsKey(connectionId)) {
+                throw new SubscriptionException(String.format("Connection '%s' already exists in the cache.",
+                        connectionId));
+            }
+
+            this.connections.put(connectionId, new ConcurrentHashMap<>());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean connectionExists(String connectionId) {
+        assert connectionId != null;
+
+        return this.connections.containsKey(connectionId);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Connections of this cache service do not expire, so a heartbeat only validates the connection.
+     */
+    @Override
+    public void heartbeat(String connectionId) throws SubscriptionException {
+        assert connectionId != null;
+
+        if (!this.connections.containsKey(connectionId)) {
+            throw new SubscriptionException(String.format("Connection '%s' does not exist in the cache.",
+                    connectionId));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void closeConnection(String connectionId) throws SubscriptionException {
+        assert connectionId != null;
+
+        this.logger.info("closing connection {} ", connectionId);
+
+        ReentrantLock lock = this.lockOf(connectionId);
+        lock.lock();
+        try {
+            Map<String, Subscription> subscriptions = this.connections.get(connectionId);
+            if (subscriptions == null) {
+                throw new SubscriptionException(String.format("Connection '%s' does not exist in the cache.",
+                        connectionId));
+            }
+
+            this.logger.info("removing all remaining subscriptions {} ", subscriptions.keySet());
+
+            subscriptions.values().forEach(s -> this.removeFromResources(s));
+            this.connections.remove(connectionId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addSubscription(Subscription subscription) throws SubscriptionException {
+        assert subscription != null;
+
+        String connectionId = subscription.getConnectionId();
+        String subscriptionId = subscription.getId();
+
+        this.logger.info("creating subscription '{}' for connection '{}'", subscriptionId, connectionId);
+
+        ReentrantLock lock = this.lockOf(connectionId);
+        lock.lock();
+        try {
+            Map<String, Subscription> subscriptions = this.connections.get(connectionId);
+            if (subscriptions == null) {
+                throw new SubscriptionException(String.format("Connection '%s' does not exist in the cache.",
+                        connectionId));
+            }
+            if (subscriptions.containsKey(subscriptionId)) {
+                throw new SubscriptionException(String.format("subscription '%s' for connection `%s` already " +
+                        "exists in the cache.", subscriptionId, connectionId));
+            }
+
+            subscriptions.put(subscriptionId, subscription);
+            this.addToResources(subscription);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addSubscriptions(Collection<Subscription> subscriptions) throws SubscriptionException {
+        assert subscriptions != null;
+
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+
+        String connectionId = subscriptions.iterator().next().getConnectionId();
+
+        assert subscriptions.stream().allMatch(s -> s.getConnectionId().equals(connectionId));
+
+        this.logger.info("creating subscriptions {} for connection '{}'",
+                subscriptions.stream().map(Subscription::getId).collect(Collectors.toList()), connectionId);
+
+        ReentrantLock lock = this.lockOf(connectionId);
+        lock.lock();
+        try {
+            Map<String, Subscription> existingSubscriptions = this.connections.get(connectionId);
+            if (existingSubscriptions == null) {
+                throw new SubscriptionException(String.format("Connection '%s' does not exist in the cache.",
+                        connectionId));
+            }
+
+            // every subscription is validated before any is added, so that none are added if one fails
+            Set<String> subscriptionIds = new HashSet<>();
+            for (Subscription subscription : subscriptions) {
+                if (existingSubscriptions.containsKey(subscription.getId()) ||
+                        !subscriptionIds.add(subscription.getId())) {
+                    throw new SubscriptionException(String.format("subscription '%s' for connection `%s` already " +
+                            "exists in the cache.", subscription.getId(), connectionId));
+                }
+            }
+
+            for (Subscription subscription : subscriptions) {
+                existingSubscriptions.put(subscription.getId(), subscription);
+                this.addToResources(subscription);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void cancelSubscription(String connectionId, String subscriptionId) {
+        assert connectionId != null;
+        assert subscriptionId != null;
+
+        this.logger.debug("cancelling subscription '{}' for connection '{}'", subscriptionId, connectionId);
+
+        ReentrantLock lock = this.lockOf(connectionId);
+        lock.lock();
+        try {
+            Map<String, Subscription> subscriptions = this.connections.get(connectionId);
+
+            // no work to do if subscription cannot be found
+            if (subscriptions == null || !subscriptions.containsKey(subscriptionId)) {
+                return;
+            }
+
+            this.removeFromResources(subscriptions.remove(subscriptionId));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void modifySubscription(String connectionId, String subscriptionId, Set<String> resources)
+            throws SubscriptionException {
+        assert connectionId != null;
+        assert subscriptionId != null;
+        assert resources != null;
+        assert !resources.isEmpty();
+
+        this.logger.info("modifying subscription '{}' for connection '{}'", subscriptionId, connectionId);
+
+        ReentrantLock lock = this.lockOf(connectionId);
+        lock.lock();
+        try {
+            Map<String, Subscription> subscriptions = this.connections.get(connectionId);
+            if (subscriptions == null) {
+                throw new SubscriptionException(String.format("Connection '%s' does not exist in the cache.",
+                        connectionId));
+            }
+            Subscription subscription = subscriptions.get(subscriptionId);
+            if (subscription == null) {
+                throw new SubscriptionException(String.format("subscription '%s' for connection `%s` does not " +
+                        "exist in the cache.", subscriptionId, connectionId));
+            }
+
+            Subscription modifiedSubscription = subscription.withResources(resources);
+            subscriptions.put(subscriptionId, modifiedSubscription);
+
+            // only the resources that were added or removed are modified
+            Set<String> removed = subscription.getResources();
+            removed.removeAll(resources);
+            Set<String> added = new HashSet<>(resources);
+            added.removeAll(subscription.getResources());
+            this.removeFromResources(subscription, removed);
+            this.addToResources(modifiedSubscription, added);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<Subscription> getSubscriptions(String connectionId) throws SubscriptionException {
+        assert connectionId != null;
+
+        Map<String, Subscription> subscriptions = this.connections.get(connectionId);
+        if (subscriptions == null) {
+            throw new SubscriptionException(String.format("Connection '%s' does not exist in the cache",
+                    connectionId));
+        }
+        return new HashSet<>(subscriptions.values());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Subscription getSubscription(String connectionId, String subscriptionId) {
+        assert connectionId != null;
+        assert subscriptionId != null;
+
+        return this.connections.getOrDefault(connectionId, Collections.emptyMap()).get(subscriptionId);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, DenormalizedCacheValue> getDenormalizedConnectionsForResourceIds(Set<String> resourceIds) {
+        assert resourceIds != null;
+
+        return resourceIds.stream().collect(Collectors.toMap(Function.identity(), resourceId -> {
+            DenormalizedCacheValue value = DenormalizedCacheValue.fromSetMembers(resourceId,
+                    Collections.emptyList());
+            this.resources.getOrDefault(resourceId, Collections.emptyMap()).forEach((connectionId,
+                                                                                    subscriptionIds) ->
+                    subscriptionIds.forEach(s -> value.addSubscription(connectionId, s)));
+            return value;
+        }));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Set<String>> resolveRecipients(Set<String> resourceIds) {
+        assert resourceIds != null;
+
+        Map<String, Set<String>> subscriptionIdsByConnectionId = new HashMap<>();
+        for (String resourceId : resourceIds) {
+            this.resources.getOrDefault(resourceId, Collections.emptyMap()).forEach((connectionId, subscriptionIds) ->
+                    subscriptionIdsByConnectionId.computeIfAbsent(connectionId, c -> new HashSet<>())
+                            .addAll(subscriptionIds));
+        }
+        return subscriptionIdsByConnectionId;
+    }
+
+    /**
+     * Adds the given subscription to the inverted resource index.
+     *
+     * @pre subscription != null
+     */
+    private void addToResources(Subscription subscription) {
+        assert subscription != null;
+
+        this.addToResources(subscription, subscription.getResources());
+    }
+
+    /**
+     * Adds the given subscription to the given resources of the inverted resource index.
+     *
+     * @pre subscription != null
+     * @pre resources != null
+     */
+    private void addToResources(Subscription subscription, Collection<String> resources) {
+        assert subscription != null;
+        assert resources != null;
+
+        String connectionId = subscription.getConnectionId();
+        for (String resource : resources) {
+            this.resources.compute(resource, (r, subscriptionIdsByConnectionId) -> {
+                Map<String, Set<String>> updated = subscriptionIdsByConnectionId == null ?
+                        new ConcurrentHashMap<>() :
+                        subscriptionIdsByConnectionId;
+                updated.computeIfAbsent(connectionId, c -> ConcurrentHashMap.newKeySet()).add(subscription.getId());
+                return updated;
+            });
+        }
+    }
+
+    /**
+     * Removes the given subscription from the inverted resource index.
+     *
+     * @pre subscription != null
+     */
+    private void removeFromResources(Subscription subscription) {
+        assert subscription != null;
+
+        this.removeFromResources(subscription, subscription.getResources());
+    }
+
+    /**
+     * Removes the given subscription from the given resources of the inverted resource index.
+     *
+     * @pre subscription != null
+     * @pre resources != null
+     */
+    private void removeFromResources(Subscription subscription, Collection<String> resources) {
+        assert subscription != null;
+        assert resources != null;
+
+        String connectionId = subscription.getConnectionId();
+        for (String resource : resources) {
+            this.resources.computeIfPresent(resource, (r, subscriptionIdsByConnectionId) -> {
+                subscriptionIdsByConnectionId.computeIfPresent(connectionId, (c, subscriptionIds) -> {
+                    subscriptionIds.remove(subscription.getId());
+                    return subscriptionIds.isEmpty() ? null : subscriptionIds;
+                });
+
+                // like an empty denormalized cache value, an empty resource is removed entirely
+                return subscriptionIdsByConnectionId.isEmpty() ? null : subscriptionIdsByConnectionId;
+            });
+        }
+    }
+
+    /**
+     * Returns the lock that serializes modifications of the connection with the given id.
+     *
+     * @pre connectionId != null
+     * @post return != null
+     */
+    private ReentrantLock lockOf(String connectionId) {
+        assert connectionId != null;
+
+        return this.locks[Math.floorMod(connectionId.hashCode(), LOCK_STRIPES)];
+    }
+}
@@ -0,0 +1,28 @@
+package com.catapult.lds.service;
+
+/**
+ * {@code IncompleteWriteException} is a {@link SubscriptionException} that gets thrown when a modification was applied
+ * to only some of the keys it spans, e.g. the slots of a redis cluster, and could not be undone.  Unlike other
+ * subscription exceptions, the modified subscriptions may therefore exist in part.  The drift is repaired by the next
+ * {@linkplain RedisAsyncSubscriptionCacheService#reconcile reconciliation} of the caches.
+ */
+public class IncompleteWriteException extends SubscriptionException {
+
+    /**
+     * The version of the serialized form of this exception
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates an {@code IncompleteWriteException} with the given message and cause.
+     *
+     * @pre message != null
+     * @pre cause != null
+     */
+    public IncompleteWriteException(String message, Throwable cause) {
+        super(message);
+        assert cause != null;
+
+        this.initCause(cause);
+    }
+}
@@ -0,0 +1,216 @@
+package com.catapult.lds.service;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@code NearCache} is a size bounded, least recently used, in-process cache of {@linkplain DenormalizedCacheValue
+ * denormalized cache values}, keyed by resource id.  It does not detect modifications of the backing store itself;
+ * entries are removed when the store reports that they were modified.
+ * <p/>
+ * A value that is read from the backing store may have been invalidated while the read was in flight.  The {@linkplain
+ * #getSequence sequence} of the cache is therefore captured before a read, and the values read are only stored if no
+ * invalidation has occurred since.
+ * <p/>
+ * Cached values are shared by every caller, and must not be modified.
+ *
+ * @invariant size() <= maximumSize
+ */
+public class NearCache {
+
+    /**
+     * The maximum number of values held by this cache
+     *
+     * @invariant maximumSize > 0
+     */
+    private final int maximumSize;
+
+    /**
+     * The cached values, in access order
+     *
+     * @invariant values != null
+     */
+    private final LinkedHashMap<String, DenormalizedCacheValue> values;
+
+    /**
+     * The number of invalidations that have occurred, used to detect invalidations that race with a read
+     */
+    private long sequence = 0;
+
+    /**
+     * Whether values may currently be stored in and read from this cache
+     */
+    private boolean active = false;
+
+    /**
+     * The number of lookups that were served by this cache
+     */
+    private final LongAdder hitCount = new LongAdder();
+
+    /**
+     * The number of lookups that were not served by this cache
+     */
+    private final LongAdder missCount = new LongAdder();
+
+    /**
+     * The number of values that were removed to make room for other values
+     */
+    private final LongAdder evictionCount = new LongAdder();
+
+    /**
+     * The number of values that were removed because they were modified in the backing store
+     */
+    private final LongAdder invalidationCount = new LongAdder();
+
+    /**
+     * Creates an inactive {@code NearCache} that holds at most the given number of values.
+     *
+     * @pre maximumSize > 0
+     */
+    NearCache(int maximumSize) {
+        assert maximumSize > 0;
+
+        this.maximumSize = maximumSize;
+        this.values = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, DenormalizedCacheValue> eldest) {
+                if (this.size() <= NearCache.this.maximumSize) {
+                    return false;
+                }
+                NearCache.this.evictionCount.increment();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached values of those of the given resource ids that are present in this cache.
+     *
+     * @pre resourceIds != null
+     * @post return != null
+     */
+    synchronized Map<String, DenormalizedCacheValue> getAll(Set<String> resourceIds) {
+        assert resourceIds != null;
+
+        Map<String, DenormalizedCacheValue> cachedValues = new HashMap<>();
+        if (this.active) {
+            for (String resourceId : resourceIds) {
+                DenormalizedCacheValue value = this.values.get(resourceId);
+                if (value != null) {
+                    cachedValues.put(resourceId, value);
+                }
+            }
+        }
+        this.hitCount.add(cachedValues.size());
+        this.missCount.add(resourceIds.size() - cachedValues.size());
+        return cachedValues;
+    }
+
+    /**
+     * Returns the current sequence of this cache, to be passed to {@link #putAll} once the values read after this call
+     * are available.
+     */
+    synchronized long getSequence() {
+        return this.sequence;
+    }
+
+    /**
+     * Stores the given values, unless an invalidation occurred after the given sequence was obtained.
+     *
+     * @pre valuesByResourceId != null
+     */
+    synchronized void putAll(Map<String, DenormalizedCacheValue> valuesByResourceId, long sequence) {
+        assert valuesByResourceId != null;
+
+        if (this.active && sequence == this.sequence) {
+            this.values.putAll(valuesByResourceId);
+        }
+    }
+
+    /**
+     * Removes the values of the given resource ids.
+     *
+     * @pre resourceIds != null
+     */
+    synchronized void invalidate(Collection<String> resourceIds) {
+        assert resourceIds != null;
+
+        this.sequence++;
+        for (String resourceId : resourceIds) {
+            if (this.values.remove(resourceId) != null) {
+                this.invalidationCount.increment();
+            }
+        }
+    }
+
+    /**
+     * Removes all values.
+     */
+    synchronized void invalidateAll() {
+        this.sequence++;
+        this.invalidationCount.add(this.values.size());
+        this.values.clear();
+    }
+
+    /**
+     * Allows values to be stored in and read from this cache, once the backing store reports modifications.
+     */
+    synchronized void activate() {
+        this.active = true;
+    }
+
+    /**
+     * Removes all values and stops storing values, because modifications may no longer be reported by the backing
+     * store.
+     */
+    synchronized void deactivate() {
+        this.active = false;
+        this.invalidateAll();
+    }
+
+    /**
+     * Returns true if values are stored in and read from this cache, false otherwise.
+     */
+    public synchronized boolean isActive() {
+        return this.active;
+    }
+
+    /**
+     * Returns the number of values held by this cache.
+     */
+    public synchronized int size() {
+        return this.values.size();
+    }
+
+    /**
+     * Returns the number of lookups that were served by this cache.
+     */
+    public long getHitCount() {
+        return this.hitCount.sum();
+    }
+
+    /**
+     * Returns the number of lookups that were not served by this cache.
+     */
+    public long getMissCount() {
+        return this.missCount.sum();
+    }
+
+    /**
+     * Returns the number of values that were removed to make room for other values.
+     */
+    public long getEvictionCount() {
+        return this.evictionCount.sum();
+    }
+
+    /**
+     * Returns the number of values that were removed because they were modified in the backing store.
+     */
+    public long getInvalidationCount() {
+        return this.invalidationCount.sum();
+    }
+}
@@ -0,0 +1,48 @@
+package com.catapult.lds.service;
+
+import lombok.Value;
+
+/**
+ * {@code ReconcileReport} contains the outcome of a {@linkplain RedisAsyncSubscriptionCacheService#reconcile
+ * reconciliation} of the normalized and denormalized caches.  An entry is a subscription of a resource, i.e. a
+ * subscription id of a connection in the denormalized cache value of the resource.
+ */
+@Value
+public class ReconcileReport {
+
+    /**
+     * Whether the drift was only reported, rather than repaired
+     */
+    boolean dryRun;
+
+    /**
+     * The number of connection keys that were scanned
+     */
+    long scannedConnections;
+
+    /**
+     * The number of denormalized cache values that were scanned
+     */
+    long scannedResources;
+
+    /**
+     * The number of entries of the subscriptions in the normalized cache that were missing from the denormalized cache
+     */
+    long missingEntries;
+
+    /**
+     * The number of entries of the denormalized cache without a subscription of their connection to their resource in
+     * the normalized cache, e.g. those of connections that no longer exist
+     */
+    long staleEntries;
+
+    /**
+     * The number of missing entries that were added, and stale entries that were removed
+     */
+    long repairedEntries;
+
+    /**
+     * The number of missing or stale entries that could not be repaired
+     */
+    long failedEntries;
+}
@@ -0,0 +1,1612 @@
+package com.catapult.lds.service;
+
+import com.catapult.lds.json.JsonCodec;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import io.lettuce.core.KeyValue;
+import io.lettuce.core.RedisCommandExecutionException;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.XAddArgs;
+import io.lettuce.core.cluster.SlotHash;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import org.crac.Context;
+import org.crac.Core;
+import org.crac.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * {@code RedisAsyncSubscriptionCacheService} is an implementation of {@code AsyncSubscriptionCacheService} that is
+ * backed by either a single redis instance or a redis cluster.  Commands are issued through the asynchronous lettuce
+ * api, so that commands issued without waiting for a previous result are pipelined on the shared connection.
+ * <p/>
+ * A script may only access keys of a single cluster slot.  When connected to a cluster, the keys of an operation are
+ * therefore grouped by slot: the script that validates and modifies the connection key also updates the first chunk of
+ * the resources that share its slot, after which the other resources are updated by one script per slot and chunk, in
+ * parallel.  An operation of a single chunk per slot is atomic per slot, and on a single redis instance (where every key
+ * shares one slot) it is fully atomic; a larger operation is undone if any of its scripts fails.
+ * <p/>
+ * When {@linkplain RedisCacheConfiguration#isReplicaReads replica reads} are configured, subscription and denormalized
+ * cache lookups are issued on a second connection that routes them according to the configured {@link
+ * io.lettuce.core.ReadFrom} policy, while all writes, and the reads that validate them, remain on the primary.  Lookups
+ * fall back to the primary if they fail on a replica, and are served by the primary during the {@linkplain
+ * RedisCacheConfiguration#getPrimaryReadWindow primary read window} that follows a write.
+ * <p/>
+ * When a {@linkplain RedisCacheConfiguration#isNearCache near cache} is configured, denormalized cache values are held
+ * in process, and only the values that are not held are read from redis.  Those reads are issued by the primary on a
+ * dedicated connection with {@code CLIENT TRACKING} enabled, so that redis reports every later modification of the
+ * values read, which are then removed from the near cache.  Values modified by this service are removed as soon as the
+ * modification completes.  The near cache is only supported on a single redis instance.
+ * <p/>
+ * Connections are established lazily and asynchronously, by the first operation that requires them, with a number of
+ * attempts.  That operation is the trial of the circuit breaker, which rejects every other operation until it
+ * completes.  A failure to connect fails that operation rather than the creation of the service, and the next
+ * operation permitted by the breaker tries again.  The connections and the breaker are kept by a {@link
+ * RedisConnectionHolder}, which the service shares with the classes that sweep the connections, reconcile the caches
+ * and load routing indexes.
+ * Every command fails after the {@linkplain RedisCacheConfiguration#getCommandTimeout command timeout}, and commands
+ * issued while a connection is being re-established fail immediately rather than being queued.  A {@link
+ * CircuitBreaker} tracks the operations that fail to reach redis, and while it is open operations fail fast.  All of
+ * these failures complete the returned futures exceptionally with a {@link CacheUnavailableException}.
+ * <p/>
+ * The service is a CRaC {@link Resource}: its connections are closed before a checkpoint of the process, e.g. the
+ * snapshot taken by Lambda SnapStart, and are re-established after the process is restored, since the sockets of the
+ * checkpointed process are no longer connected.  Operations issued between the two fail.
+ */
+public class RedisAsyncSubscriptionCacheService implements AsyncSubscriptionCacheService, Resource {
+
+    /**
+     * The singleton instance of the asynchronous redis subscription cache service
+     *
+     * @invariant instance != null
+     */
+    public static final AsyncSubscriptionCacheService instance = new RedisAsyncSubscriptionCacheService();
+
+    /**
+     * The result returned by a script when it completed successfully
+     */
+    private static final long SCRIPT_OK = 0;
+
+    /**
+     * The result returned by a script when the connection does not exist in the cache
+     */
+    private static final long SCRIPT_CONNECTION_NOT_FOUND = 1;
+
+    /**
+     * The result returned by a script when the subscription already exists in the cache
+     */
+    private static final long SCRIPT_SUBSCRIPTION_EXISTS = 2;
+
+    /**
+     * The result returned by a script when the subscription does not exist in the cache
+     */
+    private static final long SCRIPT_SUBSCRIPTION_NOT_FOUND = 3;
+
+    /**
+     * The result returned by a script when the subscriptions of a connection, or the resources of a subscription,
+     * were modified after they were read
+     */
+    private static final long SCRIPT_CONNECTION_MODIFIED = 4;
+
+    /**
+     * The result returned by a script when the connection already exists in the cache
+     */
+    private static final long SCRIPT_CONNECTION_EXISTS = 5;
+
+    /**
+     * The maximum number of attempts to close a connection whose subscriptions are concurrently modified
+     */
+    private static final int MAX_CLOSE_CONNECTION_ATTEMPTS = 3;
+
+    /**
+     * The maximum number of attempts to modify a subscription whose resources are concurrently modified
+     */
+    private static final int MAX_MODIFY_SUBSCRIPTION_ATTEMPTS = 3;
+
+    /**
+     * The prefix of the error returned by redis when a command is executed against a key holding the wrong type
+     */
+    private static final String WRONG_TYPE_ERROR = "WRONGTYPE";
+
+    /**
+     * The slot of every key when not connected to a cluster
+     */
+    private static final int STANDALONE_SLOT = 0;
+
+    /**
+     * The minimum number of keys of each {@code MGET} issued to resolve recipients
+     */
+    private static final int MIN_RESOLVE_CHUNK_KEYS = 8;
+
+    /**
+     * The estimated number of bytes of a denormalized cache value before any has been read, which is about that of a
+     * value with a single connection and subscription
+     */
+    private static final int INITIAL_VALUE_BYTES = 100;
+
+    /**
+     * The minimum number of resource keys of each script issued to modify the subscriptions
+     */
+    private static final int MIN_WRITE_CHUNK_KEYS = 8;
+
+    /**
+     * The holder of the connections to AWS Elasticache redis, which is shared with the classes that sweep, reconcile
+     * and scan the caches of this service
+     *
+     * @invariant redis != null
+     */
+    private final RedisConnectionHolder redis;
+
+    /**
+     * The sweeper of the orphaned and expired connections of this service
+     *
+     * @invariant connectionSweeper != null
+     */
+    private final RedisConnectionSweeper connectionSweeper;
+
+    /**
+     * The reconciler of the normalized and denormalized caches of this service
+     *
+     * @invariant cacheReconciler != null
+     */
+    private final RedisCacheReconciler cacheReconciler;
+
+    /**
+     * The loader of routing indexes from the denormalized cache of this service
+     *
+     * @invariant routingIndexLoader != null
+     */
+    private final RedisRoutingIndexLoader routingIndexLoader;
+
+    /**
+     * The in-process cache of denormalized cache values, or null if not configured
+     */
+    private final NearCache nearCache;
+
+    /**
+     * The number of resource ids of each {@code MGET} issued to {@linkplain #resolveRecipients resolve recipients}
+     *
+     * @invariant resolveChunkSize != null
+     */
+    private final AdaptiveChunkSize resolveChunkSize;
+
+    /**
+     * The number of resource keys of each script issued to modify the subscriptions
+     *
+     * @invariant writeChunkSize != null
+     */
+    private final AdaptiveChunkSize writeChunkSize;
+
+    /**
+     * The number of {@code MGET} commands issued to read denormalized cache values
+     */
+    private final LongAdder readChunkCount = new LongAdder();
+
+    /**
+     * The number of scripts issued to modify the subscriptions
+     */
+    private final LongAdder writeChunkCount = new LongAdder();
+
+    /**
+     * The number of modifications of the subscriptions that were split into more than one script
+     */
+    private final LongAdder chunkedWriteCount = new LongAdder();
+
+    /**
+     * The configuration of this service
+     *
+     * @invariant configuration != null
+     */
+    private final RedisCacheConfiguration configuration;
+
+    /**
+     * The layout of the keys of the normalized cache
+     *
+     * @invariant keyLayout != null
+     */
+    private final RedisKeyLayout keyLayout;
+
+    /**
+     * The format in which denormalized cache values are written
+     *
+     * @invariant denormalizedCacheFormat != null
+     */
+    private final DenormalizedCacheFormat denormalizedCacheFormat;
+
+    /**
+     * The logger used by this cache service.
+     *
+     * @invariant logger != null
+     */
+    private final Logger logger = LoggerFactory.getLogger(RedisAsyncSubscriptionCacheService.class);
+
+    /**
+     * Creates the singleton {@code RedisAsyncSubscriptionCacheService}, which is registered to close its connections
+     * before a checkpoint of the process and to re-establish them after it is restored.
+     */
+    private RedisAsyncSubscriptionCacheService() {
+        this(RedisCacheConfiguration.fromEnvironment());
+
+        Core.getGlobalContext().register(this);
+    }
+
+    /**
+     * Creates a {@code RedisAsyncSubscriptionCacheService} with the given configuration.
+     *
+     * @pre configuration != null
+     */
+    RedisAsyncSubscriptionCacheService(RedisCacheConfiguration configuration) {
+        assert configuration != null;
+
+        this.configuration = configuration;
+        this.keyLayout = new RedisKeyLayout(configuration.isHashTags());
+        this.denormalizedCacheFormat = configuration.getDenormalizedCacheFormat();
+
+        this.nearCache = configuration.isNearCache() && !configuration.isCluster() ?
+                new NearCache(configuration.getNearCacheSize()) :
+                null;
+        if (configuration.isNearCache() && configuration.isCluster()) {
+            this.logger.warn("a near cache is not supported when connected to a cluster");
+        }
+
+        this.resolveChunkSize = new AdaptiveChunkSize(configuration.getResolveChunkBytes(),
+                Math.min(MIN_RESOLVE_CHUNK_KEYS, configuration.getResolveChunkMaxKeys()),
+                configuration.getResolveChunkMaxKeys(),
+                INITIAL_VALUE_BYTES);
+        this.writeChunkSize = new AdaptiveChunkSize(configuration.getWriteChunkBytes(),
+                Math.min(MIN_WRITE_CHUNK_KEYS, configuration.getWriteChunkMaxKeys()),
+                configuration.getWriteChunkMaxKeys(),
+                INITIAL_VALUE_BYTES);
+
+        this.redis = new RedisConnectionHolder(configuration, this.nearCache);
+        this.connectionSweeper = new RedisConnectionSweeper(this, this.redis, this.keyLayout);
+        this.cacheReconciler = new RedisCacheReconciler(this, this.redis, this.keyLayout);
+        this.routingIndexLoader = new RedisRoutingIndexLoader(this, this.redis);
+    }
+
+    /**
+     * Closes the connections of this service, and empties its near cache, which redis no longer reports modifications
+     * to.  Connections that are being established are closed once they are.
+     */
+    @Override
+    public void beforeCheckpoint(Context<? extends Resource> context) {
+        this.logger.info("closing the redis connections before checkpoint");
+
+        if (this.nearCache != null) {
+            this.nearCache.deactivate();
+            this.nearCache.invalidateAll();
+        }
+        this.redis.checkpoint();
+    }
+
+    /**
+     * Closes the connections of this service for good, e.g. once a test that created it is done.  Operations issued
+     * afterwards fail.
+     */
+    void shutdown() {
+        if (this.nearCache != null) {
+            this.nearCache.deactivate();
+        }
+        this.redis.checkpoint();
+    }
+
+    /**
+     * Starts to re-establish the connections of this service, without waiting for them.  If they cannot be
+     * established, they are established by the first operation that requires them instead.
+     */
+    @Override
+    public void afterRestore(Context<? extends Resource> context) {
+        this.logger.info("re-establishing the redis connections after restore");
+
+        this.redis.restore();
+    }
+
+    /**
+     * Helper method that converts the given set of strings to a stringified json array.
+     *
+     * @pre set != null
+     * @post return != null
+     */
+    static String setToJsonString(Set<String> set) {
+        assert set != null;
+
+        try {
+            return JsonCodec.STRING_SET_WRITER.writeValueAsString(set);
+        } catch (JsonProcessingException e) {
+            throw new AssertionError(e.getMessage());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The connections are not established by this method, but by the first operation that requires them, or by {@link
+     * #connect}.
+     */
+    @Override
+    public boolean isConnected() {
+        return this.redis.isConnected();
+    }
+
+    /**
+     * Starts to establish the connections of this service, unless they are established or being established, and
+     * returns a future that completes once they are.  The future completes exceptionally with a {@link
+     * CacheUnavailableException} if they cannot be established.
+     *
+     * @post return != null
+     */
+    public CompletableFuture<Void> connect() {
+        return this.redis.establish();
+    }
+
+    /**
+     * Returns the configuration of this service.
+     *
+     * @post return != null
+     */
+    public RedisCacheConfiguration getConfiguration() {
+        return this.configuration;
+    }
+
+    /**
+     * Returns the circuit breaker of this service.
+     *
+     * @post return != null
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return this.redis.getCircuitBreaker();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The connection key is created, and given its time to live when connections expire, by a single script.
+     */
+    @Override
+    public CompletableFuture<Void> createConnection(String connectionId) {
+        assert connectionId != null;
+
+        this.logger.info("creating connection '{}' ", connectionId);
+
+        String connectionKey = this.keyLayout.connectionKey(connectionId);
+
+        // the creation time and the time to live of the key are set in a single atomic round trip
+        String ttl = this.configuration.isConnectionExpiry() ?
+                Long.toString(this.configuration.getConnectionTtl().toMillis()) :
+                "0";
+        return this.redis.guarded(connections -> this.redis.written(RedisScript.CREATE_CONNECTION.<Long>execute(
+                connections.commands,
+                ScriptOutputType.INTEGER,
+                new String[]{connectionKey},
+                Long.toString(System.currentTimeMillis()), ttl).thenCompose(result -> {
+            if (result == SCRIPT_CONNECTION_EXISTS) {
+                return failed("Connection '%s' already exists in the cache.", connectionId);
+            }
+
+            assert result == SCRIPT_OK;
+            return CompletableFuture.completedFuture(null);
+        })));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * When connections expire, the time to live of the connection key is refreshed with a single {@code PEXPIRE}.
+     * Otherwise the heartbeat only validates the connection, with a single {@code EXISTS}.
+     */
+    @Override
+    public CompletableFuture<Void> heartbeat(String connectionId) {
+        assert connectionId != null;
+
+        String connectionKey = this.keyLayout.connectionKey(connectionId);
+
+        return this.redis.guarded(connections -> {
+            CompletableFuture<Boolean> exists = this.configuration.isConnectionExpiry() ?
+                    connections.commands
+                            .pexpire(connectionKey, this.configuration.getConnectionTtl().toMillis())
+                            .toCompletableFuture() :
+                    connections.commands
+                            .exists(connectionKey)
+                            .toCompletableFuture()
+                            .thenApply(count -> count > 0);
+
+            return exists.thenCompose(e -> e ?
+                    CompletableFuture.<Void>completedFuture(null) :
+                    failed("Connection '%s' does not exist in the cache.", connectionId));
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Boolean> connectionExists(String connectionId) {
+        assert connectionId != null;
+
+        String connectionKey = this.keyLayout.connectionKey(connectionId);
+
+        return this.redis.guarded(connections -> connections.commands
+                .exists(connectionKey)
+                .toCompletableFuture()
+                .thenApply(count -> count > 0));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Void> closeConnection(String connectionId) {
+        assert connectionId != null;
+
+        this.logger.info("closing connection {} ", connectionId);
+
+        return this.redis.guarded(connections -> this.redis.written(this.closeConnection(connections, connectionId, 1)
+                .thenAccept(closedSubscriptions -> { })));
+    }
+
+    /**
+     * Closes the connection with the given connection id with the given connections, retrying when its subscriptions
+     * are concurrently modified.  Returns a future of the subscriptions that the connection had when it was closed.
+     *
+     * @pre connections != null
+     * @pre connectionId != null
+     * @pre attempt > 0
+     * @post return != null
+     */
+    CompletableFuture<Set<Subscription>> closeConnection(RedisConnections connections,
+                                                         String connectionId,
+                                                         int attempt) {
+        assert connections != null;
+        assert connectionId != null;
+        assert attempt > 0;
+
+        String connectionKey = this.keyLayout.connectionKey(connectionId);
+
+        // read all remaining subscriptions in a single round trip
+        return connections.commands.hgetall(connectionKey).toCompletableFuture().thenCompose(resourceListsBySubscriptionId -> {
+            if (resourceListsBySubscriptionId.isEmpty()) {
+                return failed("Connection '%s' does not exist in the cache.", connectionId);
+            }
+
+            Set<Subscription> remainingSubscriptions = resourceListsBySubscriptionId.entrySet()
+                    .stream()
+                    .filter(e -> !RedisKeyLayout.CREATED_AT.equals(e.getKey()))
+                    .map(e -> new Subscription(connectionId, e.getKey(), e.getValue()))
+                    .collect(Collectors.toSet());
+
+            this.logger.info("removing all remaining subscriptions {} ",
+                    remainingSubscriptions.stream().map(Subscription::getId).collect(Collectors.toSet()));
+
+            // every resource is modified once, no matter how many of the subscriptions reference it
+            Set<String> resources = remainingSubscriptions.stream()
+                    .flatMap(r -> r.getResources().stream())
+                    .collect(Collectors.toSet());
+
+            // the format and connection id are followed by the ids of all remaining subscriptions
+            String[] args = new String[remainingSubscriptions.size() + 2];
+            args[0] = this.denormalizedCacheFormat.value();
+            args[1] = connectionId;
+            System.arraycopy(remainingSubscriptions.stream().map(Subscription::getId).toArray(String[]::new), 0,
+                    args, 2, remainingSubscriptions.size());
+
+            List<String> subscriptionIds = List.of(args).subList(2, args.length);
+            List<SubscriptionEvent> events = remainingSubscriptions.stream()
+                    .map(s -> new SubscriptionEvent(SubscriptionEvent.Type.REMOVED, connectionId, s.getId(),
+                            s.getResources()))
+                    .collect(Collectors.toList());
+
+            // remove all subscriptions from the denormalized cache and delete the connection hash in a single atomic
+            // round trip
+            return this.executeBySlot(connections,
+                    RedisScript.CLOSE_CONNECTION,
+                    connectionKey,
+                    resources,
+                    args,
+                    connectionId,
+                    r -> Collections.emptyList(),
+                    r -> subscriptionIds,
+                    events,
+                    Collections.emptyList(),
+                    resourceListsBySubscriptionId).thenCompose(result -> {
+                if (result == SCRIPT_CONNECTION_NOT_FOUND) {
+                    return failed("Connection '%s' does not exist in the cache.", connectionId);
+                }
+                if (result == SCRIPT_OK) {
+                    return CompletableFuture.completedFuture(remainingSubscriptions);
+                }
+
+                assert result == SCRIPT_CONNECTION_MODIFIED;
+
+                // a subscription was added or cancelled after the subscriptions were read
+                if (attempt == MAX_CLOSE_CONNECTION_ATTEMPTS) {
+                    return failed("Connection '%s' was modified while being closed.", connectionId);
+                }
+                return this.closeConnection(connections, connectionId, attempt + 1);
+            });
+        });
+    }
+
+    /**
+     * Closes the orphaned connections of the cache: those that were created more than the {@linkplain
+     * RedisCacheConfiguration#getSweepMaxAge maximum age} ago, and that the given liveness check does not report as
+     * still connected.  A connection is orphaned when the API gateway never delivered its {@code $disconnect}, e.g.
+     * because the function timed out or was being deployed.  Returns a future of a report of the reclaimed connections.
+     * The connections are swept in paced batches, and a connection without a creation time is never swept.
+     *
+     * @pre livenessCheck != null
+     * @post return != null
+     */
+    public CompletableFuture<SweepReport> sweepOrphanedConnections(ConnectionLivenessCheck livenessCheck) {
+        assert livenessCheck != null;
+
+        return this.connectionSweeper.sweepOrphanedConnections(livenessCheck);
+    }
+
+    /**
+     * Removes the subscriptions of the expired connections from the denormalized cache: those of the connections that
+     * are referenced by a denormalized cache value, but whose connection key no longer exists.  A connection key
+     * expires when the connection sent no {@linkplain #heartbeat heartbeat} within the {@linkplain
+     * RedisCacheConfiguration#getConnectionTtl time to live}, which leaves its subscriptions in the values of its
+     * resources.  Returns a future of the number of subscriptions that were removed from a value.
+     *
+     * @post return != null
+     */
+    public CompletableFuture<Long> sweepExpiredConnections() {
+        return this.connectionSweeper.sweepExpiredConnections();
+    }
+
+    /**
+     * Reconciles the normalized and denormalized caches, which drift apart when a modification whose resources span
+     * several slots fails part way through and cannot be undone.  Drift is detected in both directions: missing
+     * entries, the subscriptions of a connection hash to a resource that are absent from the denormalized cache value
+     * of the resource, and stale entries, the subscriptions of a denormalized cache value without a matching
+     * subscription in the hash of their connection.  Unless the given flag requests a dry run, missing entries are
+     * added and stale entries removed, with an {@linkplain SubscriptionEvent event} of each repair.  Returns a future
+     * of a report of the drift.
+     *
+     * @post return != null
+     */
+    public CompletableFuture<ReconcileReport> reconcile(boolean dryRun) {
+        return this.cacheReconciler.reconcile(dryRun);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Void> addSubscription(Subscription subscription) {
+        assert subscription != null;
+
+        String connectionId = subscription.getConnectionId();
+        String subscriptionId = subscription.getId();
+        String connectionKey = this.keyLayout.connectionKey(connectionId);
+
+        this.logger.info("creating subscription '{}' for connection '{}'", subscriptionId, connectionId);
+
+        Set<String> resources = subscription.getResources();
+
+        // validate the subscription, add it to the connection hash and update the denormalized cache in a single
+        // atomic round trip
+        String[] args = {this.denormalizedCacheFormat.value(), connectionId, subscriptionId,
+                setToJsonString(resources)};
+
+        return this.redis.guarded(connections -> this.redis.written(this.executeBySlot(connections,
+                RedisScript.ADD_SUBSCRIPTION,
+                connectionKey,
+                resources,
+                args,
+                connectionId,
+                r -> List.of(subscriptionId),
+                r -> Collections.emptyList(),
+                List.of(new SubscriptionEvent(SubscriptionEvent.Type.ADDED, connectionId, subscriptionId,
+                        resources)),
+                List.of(subscriptionId),
+                Collections.emptyMap()).thenCompose(result -> {
+            if (result == SCRIPT_CONNECTION_NOT_FOUND) {
+                return failed("Connection '%s' does not exist in the cache.", connectionId);
+            }
+            if (result == SCRIPT_SUBSCRIPTION_EXISTS) {
+                return failed("subscription '%s' for connection `%s` already exists in the cache.", subscriptionId,
+                        connectionId);
+            }
+
+            assert result == SCRIPT_OK;
+            return CompletableFuture.<Void>completedFuture(null);
+        })));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Void> addSubscriptions(Collection<Subscription> subscriptions) {
+        assert subscriptions != null;
+
+        if (subscriptions.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        String connectionId = subscriptions.iterator().next().getConnectionId();
+        String connectionKey = this.keyLayout.connectionKey(connectionId);
+
+        assert subscriptions.stream().allMatch(s -> s.getConnectionId().equals(connectionId));
+
+        this.logger.info("creating subscriptions {} for connection '{}'",
+                subscriptions.stream().map(Subscription::getId).collect(Collectors.toList()), connectionId);
+
+        // the ids of the subscriptions that reference each resource
+        Map<String, List<String>> subscriptionIdsByResource = new HashMap<>();
+        for (Subscription subscription : subscriptions) {
+            subscription.getResources().forEach(r -> subscriptionIdsByResource
+                    .computeIfAbsent(r, k -> new ArrayList<>())
+                    .add(subscription.getId()));
+        }
+
+        // the format and connection id are followed by the id and resources of each subscription
+        String[] args = new String[2 * subscriptions.size() + 2];
+        args[0] = this.denormalizedCacheFormat.value();
+        args[1] = connectionId;
+        int index = 2;
+        for (Subscription subscription : subscriptions) {
+            args[index++] = subscription.getId();
+            args[index++] = setToJsonString(subscription.getResources());
+        }
+
+        // validate the subscriptions, add them to the connection hash and update the denormalized cache in a single
+        // atomic round trip
+        return this.redis.guarded(connections -> this.redis.written(this.executeBySlot(connections,
+                RedisScript.ADD_SUBSCRIPTIONS,
+                connectionKey,
+                subscriptionIdsByResource.keySet(),
+                args,
+                connectionId,
+                subscriptionIdsByResource::get,
+                r -> Collections.emptyList(),
+                subscriptions.stream()
+                        .map(s -> new SubscriptionEvent(SubscriptionEvent.Type.ADDED, connectionId, s.getId(),
+                                s.getResources()))
+                        .collect(Collectors.toList()),
+                subscriptions.stream().map(Subscription::getId).collect(Collectors.toList()),
+                Collections.emptyMap()).thenCompose(result -> {
+            if (result == SCRIPT_CONNECTION_NOT_FOUND) {
+                return failed("Connection '%s' does not exist in the cache.", connectionId);
+            }
+            if (result == SCRIPT_SUBSCRIPTION_EXISTS) {
+                return failed("A subscription for connection `%s` already exists in the cache.", connectionId);
+            }
+
+            assert result == SCRIPT_OK;
+            return CompletableFuture.<Void>completedFuture(null);
+        })));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Void> cancelSubscription(String connectionId, String subscriptionId) {
+        assert connectionId != null;
+        assert subscriptionId != null;
+
+        String connectionKey = this.keyLayout.connectionKey(connectionId);
+
+        this.logger.debug("cancelling subscription '{}' for connection '{}'", subscriptionId, connectionId);
+
+        return this.redis.guarded(connections -> this.redis.written(this.getSubscription(connections, connectionId,
+                subscriptionId).thenCompose(subscription -> {
+
+            // no work to do if subscription cannot be found
+            if (subscription == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            // remove the subscription from the denormalized cache and the connection hash in a single atomic round
+            // trip
+            String[] args = {this.denormalizedCacheFormat.value(), connectionId, subscriptionId};
+
+            return this.executeBySlot(connections,
+                    RedisScript.CANCEL_SUBSCRIPTION,
+                    connectionKey,
+                    subscription.getResources(),
+                    args,
+                    connectionId,
+                    r -> Collections.emptyList(),
+                    r -> List.of(subscriptionId),
+                    List.of(new SubscriptionEvent(SubscriptionEvent.Type.REMOVED, connectionId, subscriptionId,
+                            subscription.getResources())),
+                    Collections.emptyList(),
+                    Map.of(subscriptionId, setToJsonString(subscription.getResources()))).thenAccept(result -> {
+
+                // the subscription may have been cancelled concurrently, in which case there is no work left to do
+                assert result == SCRIPT_OK || result == SCRIPT_SUBSCRIPTION_NOT_FOUND;
+            });
+        })));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Void> modifySubscription(String connectionId,
+                                                      String subscriptionId,
+                                                      Set<String> resources) {
+        assert connectionId != null;
+        assert subscriptionId != null;
+        assert resources != null;
+        assert !resources.isEmpty();
+
+        this.logger.info("modifying subscription '{}' for connection '{}'", subscriptionId, connectionId);
+
+        return this.redis.guarded(connections -> this.redis.written(this.modifySubscription(connections, connectionId,
+                subscriptionId, Set.copyOf(resources), 1)));
+    }
+
+    /**
+     * Replaces the resources of the given subscription with the given resources with the given connections, retrying
+     * when the resources of the subscription are concurrently modified.
+     *
+     * @pre connections != null
+     * @pre connectionId != null
+     * @pre subscriptionId != null
+     * @pre resources != null
+     * @pre attempt > 0
+     * @post return != null
+     */
+    private CompletableFuture<Void> modifySubscription(RedisConnections connections,
+                                                       String connectionId,
+                                                       String subscriptionId,
+                                                       Set<String> resources,
+                                                       int attempt) {
+        assert connections != null;
+        assert connectionId != null;
+        assert subscriptionId != null;
+        assert resources != null;
+        assert attempt > 0;
+
+        String connectionKey = this.keyLayout.connectionKey(connectionId);
+
+        // the stored resources are read to compute the delta, and passed to the script to detect a concurrent
+        // modification
+        return connections.commands.hget(connectionKey, subscriptionId).toCompletableFuture().thenCompose(storedJson -> {
+            if (storedJson == null) {
+                return failed("subscription '%s' for connection `%s` does not exist in the cache.", subscriptionId,
+                        connectionId);
+            }
+
+            Set<String> storedResources = new Subscription(connectionId, subscriptionId, storedJson).getResources();
+            Set<String> added = new HashSet<>(resources);
+            added.removeAll(storedResources);
+            Set<String> removed = new HashSet<>(storedResources);
+            removed.removeAll(resources);
+            if (added.isEmpty() && removed.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            Set<String> modifiedResources = new HashSet<>(added);
+            modifiedResources.addAll(removed);
+
+            String[] args = {this.denormalizedCacheFormat.value(), connectionId, subscriptionId, storedJson,
+                    setToJsonString(resources)};
+
+            List<SubscriptionEvent> events = new ArrayList<>(2);
+            if (!added.isEmpty()) {
+                events.add(new SubscriptionEvent(SubscriptionEvent.Type.ADDED, connectionId, subscriptionId, added));
+            }
+            if (!removed.isEmpty()) {
+                events.add(new SubscriptionEvent(SubscriptionEvent.Type.REMOVED, connectionId, subscriptionId,
+                        removed));
+            }
+
+            // update the normalized cache and only the added and removed resources in a single atomic round trip
+            return this.executeBySlot(connections,
+                    RedisScript.MODIFY_SUBSCRIPTION,
+                    connectionKey,
+                    modifiedResources,
+                    args,
+                    connectionId,
+                    r -> added.contains(r) ? List.of(subscriptionId) : Collections.emptyList(),
+                    r -> removed.contains(r) ? List.of(subscriptionId) : Collections.emptyList(),
+                    events,
+                    Collections.emptyList(),
+                    Map.of(subscriptionId, storedJson))
+                    .thenCompose(result -> {
+                        if (result == SCRIPT_CONNECTION_NOT_FOUND) {
+                            return failed("Connection '%s' does not exist in the cache.", connectionId);
+                        }
+                        if (result == SCRIPT_SUBSCRIPTION_NOT_FOUND) {
+                            return failed("subscription '%s' for connection `%s` does not exist in the cache.",
+                                    subscriptionId, connectionId);
+                        }
+                        if (result == SCRIPT_OK) {
+                            return CompletableFuture.completedFuture(null);
+                        }
+
+                        assert result == SCRIPT_CONNECTION_MODIFIED;
+
+                        // the subscription was modified or cancelled after its resources were read
+                        if (attempt == MAX_MODIFY_SUBSCRIPTION_ATTEMPTS) {
+                            return failed("subscription '%s' for connection `%s` was modified concurrently.",
+                                    subscriptionId, connectionId);
+                        }
+                        return this.modifySubscription(connections, connectionId, subscriptionId, resources,
+                                attempt + 1);
+                    });
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Collection<Subscription>> getSubscriptions(String connectionId) {
+        assert connectionId != null;
+
+        String connectionKey = this.keyLayout.connectionKey(connectionId);
+
+        return this.redis.guarded(connections -> this.redis
+                .read(connections, c -> c.hgetall(connectionKey).toCompletableFuture())
+                .thenCompose(resourceListsBySubscriptionId -> {
+                    if (resourceListsBySubscriptionId.isEmpty()) {
+                        return failed("Connection '%s' does not exist in the cache", connectionId);
+                    }
+
+                    return CompletableFuture.completedFuture(resourceListsBySubscriptionId.entrySet()
+                            .stream()
+                            .filter(e -> !RedisKeyLayout.CREATED_AT.equals(e.getKey()))
+                            .map(e -> new Subscription(connectionId, e.getKey(), e.getValue()))
+                            .collect(Collectors.toSet()));
+                }));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Subscription> getSubscription(String connectionId, String subscriptionId) {
+        assert connectionId != null;
+        assert subscriptionId != null;
+
+        return this.redis.guarded(connections -> this.getSubscription(connections, connectionId, subscriptionId));
+    }
+
+    /**
+     * Returns a future of the subscription associated with the given connection id and subscription id, or of null if
+     * no such subscription exists, read with the given connections.
+     *
+     * @pre connections != null
+     * @pre connectionId != null
+     * @pre subscriptionId != null
+     * @post return != null
+     */
+    private CompletableFuture<Subscription> getSubscription(RedisConnections connections,
+                                                            String connectionId,
+                                                            String subscriptionId) {
+        assert connections != null;
+        assert connectionId != null;
+        assert subscriptionId != null;
+
+        String connectionKey = this.keyLayout.connectionKey(connectionId);
+
+        return connections.commands
+                .hget(connectionKey, subscriptionId)
+                .toCompletableFuture()
+                .thenApply(resourceJson -> resourceJson == null ?
+                        null :
+                        new Subscription(connectionId, subscriptionId, resourceJson));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Map<String, DenormalizedCacheValue>> getDenormalizedConnectionsForResourceIds(Set<String> resourceIds) {
+        assert resourceIds != null;
+
+        if (resourceIds.isEmpty()) return CompletableFuture.completedFuture(Collections.emptyMap());
+
+        return this.redis.guarded(connections -> {
+            CompletableFuture<Map<String, DenormalizedCacheValue>> connectionsByResourceId = this.nearCache == null ?
+                    this.redis.read(connections, c -> this.getCacheValues(c, resourceIds)) :
+                    this.getNearCachedCacheValues(connections, resourceIds);
+
+            return connectionsByResourceId.thenApply(c -> {
+                assert resourceIds.size() == c.size();
+                return c;
+            });
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The values held by the {@link #nearCache} are served from process.  Otherwise the resource ids are split into
+     * chunks, each read with a single {@code MGET} (or a pipeline of {@code SMEMBERS} in the {@linkplain
+     * DenormalizedCacheFormat#SET set format}), and the chunks are pipelined.  The number of resource ids of a chunk is
+     * adapted to the size of the values read before, so that each chunk reads about {@link
+     * RedisCacheConfiguration#getResolveChunkBytes} bytes.  The stored values are read directly into the returned map,
+     * without instantiating a {@code DenormalizedCacheValue} for each of them.
+     */
+    @Override
+    public CompletableFuture<Map<String, Set<String>>> resolveRecipients(Set<String> resourceIds) {
+        assert resourceIds != null;
+
+        if (resourceIds.isEmpty()) return CompletableFuture.completedFuture(Collections.emptyMap());
+
+        return this.redis.guarded(connections -> {
+            Map<String, Set<String>> subscriptionIdsByConnectionId = new HashMap<>();
+
+            if (this.nearCache != null) {
+                return this.getNearCachedCacheValues(connections, resourceIds).thenApply(values -> {
+                    values.values().forEach(value -> value.getSubscriptionIdsByConnectionId().forEach(
+                            (connectionId, subscriptionIds) -> subscriptionIds.forEach(
+                                    s -> addRecipient(subscriptionIdsByConnectionId, connectionId, s))));
+                    return subscriptionIdsByConnectionId;
+                });
+            }
+
+            // issue all chunks before waiting for any of them, so that they are pipelined
+            List<CompletableFuture<Void>> chunks = new ArrayList<>();
+            for (List<String> chunk : this.resolveChunkSize.chunk(resourceIds)) {
+                chunks.add(this.redis.read(connections, c -> this.resolveRecipients(c, chunk,
+                        subscriptionIdsByConnectionId)));
+            }
+
+            return CompletableFuture.allOf(chunks.toArray(CompletableFuture[]::new))
+                    .thenApply(v -> subscriptionIdsByConnectionId);
+        });
+    }
+
+    /**
+     * Reads the denormalized cache values of the given resource ids with the given commands, and adds their connection
+     * ids and subscription ids to the given map, which is shared by the chunks of a single resolution.  During a
+     * {@linkplain RedisCacheConfiguration#isFormatMigration format migration}, values that an {@code MGET} does not
+     * return, as they are missing or still stored as a set, are read with {@code SMEMBERS}.
+     *
+     * @pre asyncCommands != null
+     * @pre resourceIds != null
+     * @pre subscriptionIdsByConnectionId != null
+     * @post return != null
+     */
+    private CompletableFuture<Void> resolveRecipients(RedisClusterAsyncCommands<String, String> asyncCommands,
+                                                      List<String> resourceIds,
+                                                      Map<String, Set<String>> subscriptionIdsByConnectionId) {
+        assert asyncCommands != null;
+        assert resourceIds != null;
+        assert subscriptionIdsByConnectionId != null;
+
+        if (this.denormalizedCacheFormat == DenormalizedCacheFormat.SET) {
+            return getSetFormattedCacheValues(asyncCommands, new HashSet<>(resourceIds)).thenAccept(values -> {
+                synchronized (subscriptionIdsByConnectionId) {
+                    values.values().forEach(value -> value.getSubscriptionIdsByConnectionId().forEach(
+                            (connectionId, subscriptionIds) -> subscriptionIds.forEach(
+                                    s -> addRecipient(subscriptionIdsByConnectionId, connectionId, s))));
+                }
+            });
+        }
+
+        return asyncCommands.mget(resourceIds.toArray(String[]::new)).toCompletableFuture().thenCompose(values -> {
+            long bytes = 0;
+            Set<String> unreadResourceIds = new HashSet<>();
+            synchronized (subscriptionIdsByConnectionId) {
+                for (KeyValue<String, String> value : values) {
+                    if (value.hasValue()) {
+                        bytes += value.getValue().length();
+                        DenormalizedCacheValue.forEachSubscription(value.getKey(), value.getValue(),
+                                (connectionId, s) -> addRecipient(subscriptionIdsByConnectionId, connectionId, s));
+                    } else {
+                        unreadResourceIds.add(value.getKey());
+                    }
+                }
+            }
+            this.recordValueBytes(values.size(), bytes);
+
+            if (unreadResourceIds.isEmpty() || !this.configuration.isFormatMigration()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            return getSetFormattedCacheValues(asyncCommands, unreadResourceIds).thenAccept(setValues -> {
+                synchronized (subscriptionIdsByConnectionId) {
+                    setValues.values().forEach(value -> value.getSubscriptionIdsByConnectionId().forEach(
+                            (connectionId, subscriptionIds) -> subscriptionIds.forEach(
+                                    s -> addRecipient(subscriptionIdsByConnectionId, connectionId, s))));
+                }
+            });
+        });
+    }
+
+    /**
+     * Records that an {@code MGET} of the given number of keys read denormalized cache values of the given number of
+     * bytes, which adapts the size of the chunks of both later reads and later writes.
+     *
+     * @pre keys >= 0
+     * @pre bytes >= 0
+     */
+    private void recordValueBytes(int keys, long bytes) {
+        assert keys >= 0;
+        assert bytes >= 0;
+
+        this.readChunkCount.increment();
+        this.resolveChunkSize.record(keys, bytes);
+        this.writeChunkSize.record(keys, bytes);
+    }
+
+    /**
+     * Adds the given subscription id to the subscription ids of the given connection id in the given map.
+     *
+     * @pre subscriptionIdsByConnectionId != null
+     * @pre connectionId != null
+     * @pre subscriptionId != null
+     */
+    private static void addRecipient(Map<String, Set<String>> subscriptionIdsByConnectionId,
+                                     String connectionId,
+                                     String subscriptionId) {
+        assert subscriptionIdsByConnectionId != null;
+        assert connectionId != null;
+        assert subscriptionId != null;
+
+        // most connections have a single subscription to the resources of a batch
+        subscriptionIdsByConnectionId.computeIfAbsent(connectionId, c -> new HashSet<>(2)).add(subscriptionId);
+    }
+
+    /**
+     * Returns a future of a {@link RoutingIndex} of every denormalized cache value, which a publisher uses to resolve
+     * recipients in process.  The index is loaded from a scan of the keyspace, and observes the modifications made
+     * while it is loaded only partially; a publisher that needs them applies the {@linkplain SubscriptionEventConsumer
+     * events} that follow the load to a {@link RoutingTable} instead.
+     *
+     * @post return != null
+     */
+    public CompletableFuture<RoutingIndex> loadRoutingIndex() {
+        return this.routingIndexLoader.loadRoutingIndex();
+    }
+
+    /**
+     * Returns the number of {@code MGET} commands issued to read denormalized cache values, i.e. the number of chunks
+     * that the resource ids of the lookups were split into.
+     */
+    public long getReadChunkCount() {
+        return this.readChunkCount.sum();
+    }
+
+    /**
+     * Returns the number of scripts issued to modify the subscriptions, i.e. the number of chunks that the resources of
+     * the modifications were split into.
+     */
+    public long getWriteChunkCount() {
+        return this.writeChunkCount.sum();
+    }
+
+    /**
+     * Returns the number of modifications of the subscriptions whose resources were split into more than one script,
+     * because they span several cluster slots.
+     */
+    public long getChunkedWriteCount() {
+        return this.chunkedWriteCount.sum();
+    }
+
+    /**
+     * Returns the near cache of this service, if configured.
+     *
+     * @post return != null
+     */
+    public Optional<NearCache> getNearCache() {
+        return Optional.ofNullable(this.nearCache);
+    }
+
+    /**
+     * Returns the denormalized cache values of the given resource ids, serving those held by the {@link #nearCache}
+     * from process and reading the remaining values with the {@linkplain RedisConnections#trackingCommands tracking
+     * commands} of the given connections.
+     *
+     * @pre nearCache != null
+     * @pre connections != null
+     * @pre resourceIds != null
+     * @post return != null
+     */
+    private CompletableFuture<Map<String, DenormalizedCacheValue>> getNearCachedCacheValues(
+            RedisConnections connections,
+            Set<String> resourceIds) {
+        assert this.nearCache != null;
+        assert connections != null;
+        assert resourceIds != null;
+
+        Map<String, DenormalizedCacheValue> cachedValues = this.nearCache.getAll(resourceIds);
+        if (cachedValues.size() == resourceIds.size()) {
+            return CompletableFuture.completedFuture(cachedValues);
+        }
+
+        Set<String> missingResourceIds = resourceIds.stream()
+                .filter(r -> !cachedValues.containsKey(r))
+                .collect(Collectors.toSet());
+
+        long sequence = this.nearCache.getSequence();
+        return this.getCacheValues(connections.trackingCommands, missingResourceIds).thenApply(readValues -> {
+            this.nearCache.putAll(readValues, sequence);
+
+            Map<String, DenormalizedCacheValue> values = new HashMap<>(cachedValues);
+            values.putAll(readValues);
+            return values;
+        });
+    }
+
+    /**
+     * Returns the denormalized cache values of the given resource ids, read with the given commands in the format of
+     * this service.
+     *
+     * @pre asyncCommands != null
+     * @pre resourceIds != null
+     * @post return != null
+     */
+    CompletableFuture<Map<String, DenormalizedCacheValue>> getCacheValues(
+            RedisClusterAsyncCommands<String, String> asyncCommands,
+            Set<String> resourceIds) {
+        assert asyncCommands != null;
+        assert resourceIds != null;
+
+        return this.denormalizedCacheFormat == DenormalizedCacheFormat.SET ?
+                getSetFormattedCacheValues(asyncCommands, resourceIds) :
+                this.getStringFormattedCacheValues(asyncCommands, resourceIds);
+    }
+
+    /**
+     * Returns the {@linkplain DenormalizedCacheFormat#JSON json} or {@linkplain DenormalizedCacheFormat#BINARY binary}
+     * formatted denormalized cache values of the given resource ids, read with the given commands.  The resource ids
+     * are split into {@linkplain #resolveChunkSize chunks}, each read with a single {@code MGET}, and the chunks are
+     * pipelined.  The format of each value is detected as it is read.  An {@code MGET} returns nothing for a value that
+     * is still stored as a set, so during a {@linkplain RedisCacheConfiguration#isFormatMigration format migration} the
+     * values it does not return are read with {@code SMEMBERS}, which returns nothing for those that are missing.
+     * Otherwise those values are taken to be missing.
+     *
+     * @pre asyncCommands != null
+     * @pre resourceIds != null
+     * @post return != null
+     */
+    private CompletableFuture<Map<String, DenormalizedCacheValue>> getStringFormattedCacheValues(
+            RedisClusterAsyncCommands<String, String> asyncCommands,
+            Set<String> resourceIds) {
+        assert asyncCommands != null;
+        assert resourceIds != null;
+
+        // issue all chunks before waiting for any of them, so that they are pipelined
+        List<CompletableFuture<List<KeyValue<String, String>>>> chunks = new ArrayList<>();
+        for (List<String> chunk : this.resolveChunkSize.chunk(resourceIds)) {
+            chunks.add(asyncCommands.mget(chunk.toArray(String[]::new)).toCompletableFuture().thenApply(values -> {
+                this.recordValueBytes(values.size(), values.stream()
+                        .filter(KeyValue::hasValue)
+                        .mapToLong(kv -> kv.getValue().length())
+                        .sum());
+                return values;
+            }));
+        }
+
+        return CompletableFuture.allOf(chunks.toArray(CompletableFuture[]::new)).thenCompose(v -> {
+            Map<String, DenormalizedCacheValue> values = new HashMap<>();
+            Set<String> unreadResourceIds = new HashSet<>();
+            chunks.stream().flatMap(chunk -> chunk.join().stream()).forEach(kv -> {
+                if (kv.hasValue()) {
+                    values.put(kv.getKey(), DenormalizedCacheValue.deserialize(kv.getKey(), kv.getValue()));
+                } else if (this.configuration.isFormatMigration()) {
+                    unreadResourceIds.add(kv.getKey());
+                } else {
+                    values.put(kv.getKey(), DenormalizedCacheValue.fromSetMembers(kv.getKey(), List.of()));
+                }
+            });
+
+            if (unreadResourceIds.isEmpty()) {
+                return CompletableFuture.completedFuture(values);
+            }
+            return getSetFormattedCacheValues(asyncCommands, unreadResourceIds).thenApply(setValues -> {
+                values.putAll(setValues);
+                return values;
+            });
+        });
+    }
+
+    /**
+     * Returns the {@linkplain DenormalizedCacheFormat#SET set formatted} denormalized cache values of the given
+     * resource ids, read with a pipeline of {@code SMEMBERS} commands issued with the given commands.  Values that are
+     * still stored as a string are read with a {@code GET} instead.
+     *
+     * @pre asyncCommands != null
+     * @pre resourceIds != null
+     * @post return != null
+     */
+    private static CompletableFuture<Map<String, DenormalizedCacheValue>> getSetFormattedCacheValues(
+            RedisClusterAsyncCommands<String, String> asyncCommands,
+            Set<String> resourceIds) {
+        assert asyncCommands != null;
+        assert resourceIds != null;
+
+        // issue all commands before waiting for any of them, so that they are pipelined
+        Map<String, CompletableFuture<DenormalizedCacheValue>> valuesByResourceId = new HashMap<>();
+        for (String resourceId : resourceIds) {
+            valuesByResourceId.put(resourceId, asyncCommands.smembers(resourceId)
+                    .toCompletableFuture()
+                    .thenApply(members -> DenormalizedCacheValue.fromSetMembers(resourceId, members))
+                    .handle((value, throwable) -> {
+                        if (throwable == null) {
+                            return CompletableFuture.completedFuture(value);
+                        }
+
+                        Throwable cause = AsyncSubscriptionCacheService.unwrap(throwable);
+                        if (!(cause instanceof RedisCommandExecutionException) ||
+                                !cause.getMessage().startsWith(WRONG_TYPE_ERROR)) {
+                            return CompletableFuture.<DenormalizedCacheValue>failedFuture(cause);
+                        }
+
+                        // the value has not been converted to the set format yet
+                        return asyncCommands.get(resourceId)
+                                .toCompletableFuture()
+                                .thenApply(stored -> stored == null ?
+                                        DenormalizedCacheValue.deserializeFromJson(resourceId, "[]") :
+                                        DenormalizedCacheValue.deserialize(resourceId, stored));
+                    })
+                    .thenCompose(f -> f));
+        }
+
+        return CompletableFuture.allOf(valuesByResourceId.values().toArray(CompletableFuture[]::new))
+                .thenApply(v -> valuesByResourceId.entrySet()
+                        .stream()
+                        .collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().join())));
+    }
+
+    /**
+     * Executes the given script with the given connection key and those of the given resources that share its slot.  If
+     * the script succeeds, the subscription ids that the given functions return for each remaining resource are added
+     * to and removed from the given connection in their denormalized cache values, with one {@link
+     * RedisScript#UPDATE_DENORMALIZED} script per slot and distinct lists of added and removed ids.  The returned future
+     * completes with the result of the given script once all scripts have completed, after the resources have been
+     * removed from the {@link #nearCache}.  The scripts are issued with the given connections.
+     * <p/>
+     * The given arguments start with the format of the denormalized cache, which the maximum length of the event stream
+     * is inserted after.  The given events are appended to the event stream by the given script, in the same atomic
+     * operation, when the stream shares the slot of the connection key, as it always does on a single instance.
+     * Otherwise they are appended once the script succeeds.
+     * <p/>
+     * The given script modifies the first {@linkplain #writeChunkSize chunk} of the resources that share the slot of
+     * the connection key, so that an operation of a single chunk is atomic on a single instance, where every key shares
+     * that slot.  The other resources, co-located or not, are updated by pipelined scripts of a chunk each, so that a
+     * large operation does not block redis for long.  If any of them fails, the operation is {@linkplain #undo undone}:
+     * the inverse update is applied to every resource, and the given fields of the connection hash are restored, those
+     * added by the script removed, and the inverse events appended.
+     *
+     * @pre connections != null
+     * @pre script != null
+     * @pre connectionKey != null
+     * @pre resources != null
+     * @pre args != null
+     * @pre connectionId != null
+     * @pre added != null
+     * @pre removed != null
+     * @pre events != null
+     * @pre addedFields != null
+     * @pre restoredFields != null
+     * @post return != null
+     */
+    private CompletableFuture<Long> executeBySlot(RedisConnections connections,
+                                                  RedisScript script,
+                                                  String connectionKey,
+                                                  Set<String> resources,
+                                                  String[] args,
+                                                  String connectionId,
+                                                  Function<String, List<String>> added,
+                                                  Function<String, List<String>> removed,
+                                                  List<SubscriptionEvent> events,
+                                                  Collection<String> addedFields,
+                                                  Map<String, String> restoredFields) {
+        assert connections != null;
+        assert script != null;
+        assert connectionKey != null;
+        assert resources != null;
+        assert args != null;
+        assert connectionId != null;
+        assert added != null;
+        assert removed != null;
+        assert events != null;
+        assert addedFields != null;
+        assert restoredFields != null;
+
+        RedisClusterAsyncCommands<String, String> commands = connections.commands;
+        Map<Integer, Set<String>> resourcesBySlot = this.groupBySlot(resources);
+        int connectionSlot = this.slotOf(connectionKey);
+        List<List<String>> coLocatedChunks = this.writeChunkSize.chunk(
+                Optional.ofNullable(resourcesBySlot.remove(connectionSlot)).orElse(Collections.emptySet()));
+
+        // the script modifies the first chunk of the co-located resources, and the other chunks are updated like
+        // those of the other slots
+        List<String> scriptResources = coLocatedChunks.isEmpty() ? List.of() : coLocatedChunks.get(0);
+        if (coLocatedChunks.size() > 1) {
+            resourcesBySlot.put(connectionSlot, coLocatedChunks.subList(1, coLocatedChunks.size())
+                    .stream()
+                    .flatMap(List::stream)
+                    .collect(Collectors.toSet()));
+        }
+
+        // the stream is a placeholder, sharing the slot of the connection key, when the script does not append events
+        String eventStream = this.configuration.getEventStream();
+        boolean scriptEvents = eventStream != null && this.slotOf(eventStream) == connectionSlot;
+        String[] scriptArgs = new String[args.length + 1];
+        scriptArgs[0] = args[0];
+        scriptArgs[1] = scriptEvents ? Long.toString(this.configuration.getEventStreamMaxLength()) : "0";
+        System.arraycopy(args, 1, scriptArgs, 2, args.length - 1);
+
+        this.writeChunkCount.increment();
+        CompletableFuture<Long> scriptExecution = script.<Long>execute(commands, ScriptOutputType.INTEGER,
+                keysOf(connectionKey, scriptEvents ? eventStream : connectionKey, scriptResources), scriptArgs);
+
+        // the events that the script did not append are appended once it succeeds
+        if (eventStream != null && !scriptEvents) {
+            scriptExecution = scriptExecution.thenCompose(result -> result != SCRIPT_OK ?
+                    CompletableFuture.completedFuture(result) :
+                    this.appendEvents(commands, events).thenApply(v -> result));
+        }
+
+        CompletableFuture<Long> execution = scriptExecution.thenCompose(result -> {
+            if (result != SCRIPT_OK || resourcesBySlot.isEmpty()) {
+                return CompletableFuture.completedFuture(result);
+            }
+
+            this.chunkedWriteCount.increment();
+            return this.updateDenormalized(commands, resourcesBySlot, connectionId, added, removed)
+                    .handle((v, throwable) -> throwable == null ?
+                            CompletableFuture.completedFuture(result) :
+                            this.<Long>undo(commands, connectionKey, resources, connectionId, added, removed, events,
+                                    addedFields, restoredFields, throwable))
+                    .thenCompose(Function.identity());
+        });
+
+        return this.invalidated(execution, resources);
+    }
+
+    /**
+     * Returns a future that completes with the given future of a write, after the given resources have been removed
+     * from the {@link #nearCache}, if configured.
+     *
+     * @pre write != null
+     * @pre resources != null
+     * @post return != null
+     */
+    <T> CompletableFuture<T> invalidated(CompletableFuture<T> write, Set<String> resources) {
+        assert write != null;
+        assert resources != null;
+
+        // do not wait for redis to report the modification of the resources to the tracking connection
+        return this.nearCache == null ?
+                write :
+                write.whenComplete((result, throwable) -> this.nearCache.invalidate(resources));
+    }
+
+    /**
+     * Undoes an operation on the connection of the given key whose denormalized cache values could not all be updated
+     * with the given commands, and returns a future that fails with the cause of the given failure once it is undone.
+     * The inverse of the update of the given functions is applied to every given resource, which is harmless for those
+     * that were never updated, as an update is idempotent.  The given fields of the connection hash are restored and
+     * those added by the operation removed, and the inverse of the given events are appended.  If the operation cannot
+     * be undone, the future fails with an {@link IncompleteWriteException} instead.
+     *
+     * @pre commands != null
+     * @pre connectionKey != null
+     * @pre resources != null
+     * @pre connectionId != null
+     * @pre added != null
+     * @pre removed != null
+     * @pre events != null
+     * @pre addedFields != null
+     * @pre restoredFields != null
+     * @pre failure != null
+     * @post return != null
+     */
+    private <T> CompletableFuture<T> undo(RedisClusterAsyncCommands<String, String> commands,
+                                          String connectionKey,
+                                          Set<String> resources,
+                                          String connectionId,
+                                          Function<String, List<String>> added,
+                                          Function<String, List<String>> removed,
+                                          List<SubscriptionEvent> events,
+                                          Collection<String> addedFields,
+                                          Map<String, String> restoredFields,
+                                          Throwable failure) {
+        assert commands != null;
+        assert connectionKey != null;
+        assert resources != null;
+        assert connectionId != null;
+        assert added != null;
+        assert removed != null;
+        assert events != null;
+        assert addedFields != null;
+        assert restoredFields != null;
+        assert failure != null;
+
+        Throwable cause = AsyncSubscriptionCacheService.unwrap(failure);
+        this.logger.warn("undoing the modification of connection '{}', its denormalized cache values could not be " +
+                "updated: {}", connectionId, cause.getMessage());
+
+        // issue all commands before waiting for any of them, so that they are pipelined
+        List<CompletableFuture<?>> undone = new ArrayList<>();
+        undone.add(this.updateDenormalized(commands, this.groupBySlot(resources), connectionId, removed, added));
+        if (!addedFields.isEmpty()) {
+            undone.add(commands.hdel(connectionKey, addedFields.toArray(String[]::new)).toCompletableFuture());
+        }
+        if (!restoredFields.isEmpty()) {
+            undone.add(commands.hset(connectionKey, restoredFields).toCompletableFuture());
+
+            // a restored connection expires like a created one
+            if (restoredFields.containsKey(RedisKeyLayout.CREATED_AT) && this.configuration.isConnectionExpiry()) {
+                undone.add(commands.pexpire(connectionKey, this.configuration.getConnectionTtl().toMillis())
+                        .toCompletableFuture());
+            }
+        }
+        if (this.configuration.isEvents() && !events.isEmpty()) {
+            List<SubscriptionEvent> inverseEvents = events.stream()
+                    .map(SubscriptionEvent::inverse)
+                    .collect(Collectors.toList());
+            Collections.reverse(inverseEvents);
+            undone.add(this.appendEvents(commands, inverseEvents));
+        }
+
+        return CompletableFuture.allOf(undone.toArray(CompletableFuture[]::new)).handle((v, throwable) -> {
+            if (throwable == null) {
+                return CompletableFuture.<T>failedFuture(cause);
+            }
+
+            this.logger.error("could not undo the modification of connection '{}': {}", connectionId,
+                    AsyncSubscriptionCacheService.unwrap(throwable).getMessage());
+            return CompletableFuture.<T>failedFuture(new IncompleteWriteException(String.format(
+                    "The modification of connection '%s' was applied in part and could not be undone: %s",
+                    connectionId, cause.getMessage()), cause));
+        }).thenCompose(Function.identity());
+    }
+
+    /**
+     * Adds and removes the subscription ids that the given functions return for each of the given resources to and
+     * from the given connection in their denormalized cache values, with the given commands.  The resources are
+     * updated by {@link RedisScript#UPDATE_DENORMALIZED} scripts of a {@linkplain #writeChunkSize chunk} of the
+     * resources of a slot each, which are pipelined.  Resources are not removed from the {@link #nearCache}.
+     *
+     * @pre commands != null
+     * @pre resourcesBySlot != null
+     * @pre connectionId != null
+     * @pre added != null
+     * @pre removed != null
+     * @post return != null
+     */
+    CompletableFuture<Void> updateDenormalized(RedisClusterAsyncCommands<String, String> commands,
+                                               Map<Integer, Set<String>> resourcesBySlot,
+                                               String connectionId,
+                                               Function<String, List<String>> added,
+                                               Function<String, List<String>> removed) {
+        assert commands != null;
+        assert resourcesBySlot != null;
+        assert connectionId != null;
+        assert added != null;
+        assert removed != null;
+
+        // the resources of a slot that have the same ids added and removed are updated by the same scripts
+        List<CompletableFuture<Object>> updates = new ArrayList<>();
+        for (Set<String> slotResources : resourcesBySlot.values()) {
+            Map<List<List<String>>, List<String>> resourcesByUpdate = slotResources.stream()
+                    .collect(Collectors.groupingBy(r -> List.of(added.apply(r), removed.apply(r))));
+
+            resourcesByUpdate.forEach((update, updatedResources) -> {
+                List<String> addedIds = update.get(0);
+                List<String> removedIds = update.get(1);
+
+                // the format and connection id are followed by the number of added ids, the added ids and the
+                // removed ids
+                List<String> updateArgs = new ArrayList<>(addedIds.size() + removedIds.size() + 3);
+                updateArgs.add(this.denormalizedCacheFormat.value());
+                updateArgs.add(connectionId);
+                updateArgs.add(Integer.toString(addedIds.size()));
+                updateArgs.addAll(addedIds);
+                updateArgs.addAll(removedIds);
+
+                String[] updateArgsArray = updateArgs.toArray(String[]::new);
+                for (List<String> chunk : this.writeChunkSize.chunk(updatedResources)) {
+                    updates.add(RedisScript.UPDATE_DENORMALIZED.execute(commands,
+                            ScriptOutputType.INTEGER,
+                            chunk.toArray(String[]::new),
+                            updateArgsArray));
+                }
+            });
+        }
+        this.writeChunkCount.add(updates.size());
+
+        // the scripts of each slot are routed to the node serving that slot, and run in parallel
+        return CompletableFuture.allOf(updates.toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * Returns the given keys grouped by their {@linkplain #slotOf slot}.
+     *
+     * @pre keys != null
+     * @post return != null
+     */
+    Map<Integer, Set<String>> groupBySlot(Set<String> keys) {
+        assert keys != null;
+
+        Map<Integer, Set<String>> keysBySlot = new HashMap<>();
+        keys.forEach(k -> keysBySlot.computeIfAbsent(this.slotOf(k), s -> new HashSet<>()).add(k));
+        return keysBySlot;
+    }
+
+    /**
+     * Returns the cluster slot of the given key, or {@link #STANDALONE_SLOT} when not connected to a cluster.
+     *
+     * @pre key != null
+     */
+    private int slotOf(String key) {
+        assert key != null;
+
+        return this.configuration.isCluster() ? SlotHash.getSlot(key) : STANDALONE_SLOT;
+    }
+
+    /**
+     * Appends the given events to the event stream with the given commands.  The returned future completes once all of
+     * them have been appended.
+     *
+     * @pre configuration.isEvents()
+     * @pre commands != null
+     * @pre events != null
+     * @post return != null
+     */
+    CompletableFuture<Void> appendEvents(RedisClusterAsyncCommands<String, String> commands,
+                                         List<SubscriptionEvent> events) {
+        assert this.configuration.isEvents();
+        assert commands != null;
+        assert events != null;
+
+        XAddArgs xAddArgs = new XAddArgs().maxlen(this.configuration.getEventStreamMaxLength()).approximateTrimming();
+
+        // issue all commands before waiting for any of them, so that they are pipelined
+        return CompletableFuture.allOf(events.stream()
+                .map(event -> commands.xadd(this.configuration.getEventStream(), xAddArgs, event.toFields())
+                        .toCompletableFuture())
+                .toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * Returns the keys of a script invocation, consisting of the given connection key and event stream key followed by
+     * the given resource keys.
+     *
+     * @pre connectionKey != null
+     * @pre eventStream != null
+     * @pre resources != null
+     * @post return != null
+     */
+    private static String[] keysOf(String connectionKey, String eventStream, Collection<String> resources) {
+        assert connectionKey != null;
+        assert eventStream != null;
+        assert resources != null;
+
+        String[] keys = new String[resources.size() + 2];
+        keys[0] = connectionKey;
+        keys[1] = eventStream;
+        System.arraycopy(resources.toArray(String[]::new), 0, keys, 2, resources.size());
+        return keys;
+    }
+
+    /**
+     * Returns a future that is completed exceptionally with a {@link SubscriptionException} with the given formatted
+     * message.
+     *
+     * @pre format != null
+     * @post return != null
+     */
+    private static <T> CompletableFuture<T> failed(String format, Object... args) {
+        assert format != null;
+
+        return CompletableFuture.failedFuture(new SubscriptionException(String.format(format, args)));
+    }
+}
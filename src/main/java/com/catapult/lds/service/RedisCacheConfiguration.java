@@ -0,0 +1,453 @@
+package com.catapult.lds.service;
+
+import io.lettuce.core.ReadFrom;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.resource.ClientResources;
+import lombok.Builder;
+import lombok.NonNull;
+import lombok.Value;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * {@code RedisCacheConfiguration} contains the settings of a redis backed subscription cache service.
+ */
+@Value
+@Builder(toBuilder = true)
+public class RedisCacheConfiguration {
+
+    /**
+     * The name of the environment variable which, when {@code true}, connects to a redis cluster instead of a single
+     * primary.  In that case {@link RedisSubscriptionCacheService#LDS_REDIS_HOST_ENV} is the configuration endpoint of
+     * the cluster.
+     */
+    public static final String LDS_REDIS_CLUSTER_ENV = "LDS_REDIS_CLUSTER";
+
+    /**
+     * The name of the environment variable which, when {@code true}, wraps the connection id of a connection key in a
+     * hash tag.
+     */
+    public static final String LDS_REDIS_HASH_TAGS_ENV = "LDS_REDIS_HASH_TAGS";
+
+    /**
+     * The name of the environment variable which, when {@code true}, reads the denormalized cache values still stored
+     * in a format other than the configured one while the keyspace is being migrated.
+     */
+    public static final String LDS_DENORMALIZED_FORMAT_MIGRATION_ENV = "LDS_DENORMALIZED_FORMAT_MIGRATION";
+
+    /**
+     * The name of the environment variable which has a value of the url of a read replica of the redis instance.  The
+     * replica is expected to listen on {@link RedisSubscriptionCacheService#LDS_REDIS_PORT_ENV}.  Not used when
+     * connected to a cluster, whose replicas are discovered from its topology.
+     */
+    public static final String LDS_REDIS_REPLICA_HOST_ENV = "LDS_REDIS_REPLICA_HOST";
+
+    /**
+     * The name of the environment variable which has a value of the {@linkplain ReadFrom#valueOf name} of the policy
+     * used to select the node that serves lookups, e.g. {@code replicaPreferred}.  Defaults to {@code
+     * replicaPreferred} when a replica host is defined, and lookups are served by the primary otherwise.
+     */
+    public static final String LDS_REDIS_READ_FROM_ENV = "LDS_REDIS_READ_FROM";
+
+    /**
+     * The name of the environment variable which has a value of the {@linkplain #primaryReadWindow primary read
+     * window} in milliseconds.
+     */
+    public static final String LDS_REDIS_PRIMARY_READ_WINDOW_MS_ENV = "LDS_REDIS_PRIMARY_READ_WINDOW_MS";
+
+    /**
+     * The name of the environment variable which has a value of the {@linkplain #nearCacheSize maximum number of
+     * denormalized cache values held in process}.  Defaults to 0, which disables the near cache.
+     */
+    public static final String LDS_REDIS_NEAR_CACHE_SIZE_ENV = "LDS_REDIS_NEAR_CACHE_SIZE";
+
+    /**
+     * The name of the environment variable which has a value of the {@linkplain #commandTimeout command timeout} in
+     * milliseconds.
+     */
+    public static final String LDS_REDIS_COMMAND_TIMEOUT_MS_ENV = "LDS_REDIS_COMMAND_TIMEOUT_MS";
+
+    /**
+     * The name of the environment variable which has a value of the {@linkplain #connectAttempts number of attempts} to
+     * connect to redis.
+     */
+    public static final String LDS_REDIS_CONNECT_ATTEMPTS_ENV = "LDS_REDIS_CONNECT_ATTEMPTS";
+
+    /**
+     * The name of the environment variable which has a value of the {@linkplain #circuitBreakerThreshold number of
+     * consecutive failures} that opens the circuit breaker.
+     */
+    public static final String LDS_REDIS_BREAKER_THRESHOLD_ENV = "LDS_REDIS_BREAKER_THRESHOLD";
+
+    /**
+     * The name of the environment variable which has a value of the {@linkplain #circuitBreakerOpenDuration open
+     * duration} of the circuit breaker in milliseconds.
+     */
+    public static final String LDS_REDIS_BREAKER_OPEN_MS_ENV = "LDS_REDIS_BREAKER_OPEN_MS";
+
+    /**
+     * The name of the environment variable which has a value of the {@linkplain #resolveChunkBytes number of bytes}
+     * that each {@code MGET} issued to resolve recipients should read.
+     */
+    public static final String LDS_REDIS_RESOLVE_CHUNK_BYTES_ENV = "LDS_REDIS_RESOLVE_CHUNK_BYTES";
+
+    /**
+     * The name of the environment variable which has a value of the {@linkplain #resolveChunkMaxKeys maximum number of
+     * keys} of each {@code MGET} issued to resolve recipients.
+     */
+    public static final String LDS_REDIS_RESOLVE_CHUNK_MAX_KEYS_ENV = "LDS_REDIS_RESOLVE_CHUNK_MAX_KEYS";
+
+    /**
+     * The name of the environment variable which has a value of the {@linkplain #eventStream key of the stream} that
+     * subscription events are appended to.  Events are disabled when not defined.
+     */
+    public static final String LDS_REDIS_EVENT_STREAM_ENV = "LDS_REDIS_EVENT_STREAM";
+
+    /**
+     * The name of the environment variable which has a value of the {@linkplain #connectionTtl time to live} in
+     * milliseconds of a connection.  Connections do not expire when not defined.
+     */
+    public static final String LDS_REDIS_CONNECTION_TTL_MS_ENV = "LDS_REDIS_CONNECTION_TTL_MS";
+
+    /**
+     * The name of the environment variable which has a value of the {@linkplain #sweepMaxAge age} in milliseconds
+     * beyond which a connection is swept as orphaned.
+     */
+    public static final String LDS_REDIS_SWEEP_MAX_AGE_MS_ENV = "LDS_REDIS_SWEEP_MAX_AGE_MS";
+
+    /**
+     * The name of the environment variable which has a value of the {@linkplain #sweepBatchSize number of connection
+     * keys} that each scan of a sweep is hinted to return.
+     */
+    public static final String LDS_REDIS_SWEEP_BATCH_SIZE_ENV = "LDS_REDIS_SWEEP_BATCH_SIZE";
+
+    /**
+     * The name of the environment variable which has a value of the {@linkplain #sweepRate maximum number of
+     * connections} that a sweep closes per second.
+     */
+    public static final String LDS_REDIS_SWEEP_RATE_ENV = "LDS_REDIS_SWEEP_RATE";
+
+    /**
+     * The name of the environment variable which has a value of the {@linkplain #reconcileWorkers number of batches}
+     * that a reconciliation checks concurrently.
+     */
+    public static final String LDS_REDIS_RECONCILE_WORKERS_ENV = "LDS_REDIS_RECONCILE_WORKERS";
+
+    /**
+     * The name of the environment variable which has a value of the {@linkplain #reconcileRate maximum number of keys}
+     * that a reconciliation scans per second.
+     */
+    public static final String LDS_REDIS_RECONCILE_RATE_ENV = "LDS_REDIS_RECONCILE_RATE";
+
+    /**
+     * The name of the environment variable which has a value of the {@linkplain #writeChunkBytes number of bytes} of
+     * the denormalized cache values that each script should modify.
+     */
+    public static final String LDS_REDIS_WRITE_CHUNK_BYTES_ENV = "LDS_REDIS_WRITE_CHUNK_BYTES";
+
+    /**
+     * The name of the environment variable which has a value of the {@linkplain #writeChunkMaxKeys maximum number of
+     * resource keys} that each script modifies.
+     */
+    public static final String LDS_REDIS_WRITE_CHUNK_MAX_KEYS_ENV = "LDS_REDIS_WRITE_CHUNK_MAX_KEYS";
+
+    /**
+     * The name of the environment variable which has a value of the {@linkplain #eventStreamMaxLength approximate
+     * maximum length} of the event stream.
+     */
+    public static final String LDS_REDIS_EVENT_STREAM_MAXLEN_ENV = "LDS_REDIS_EVENT_STREAM_MAXLEN";
+
+    /**
+     * The uri of the redis instance, or of the configuration endpoint of the redis cluster.
+     */
+    @NonNull
+    RedisURI redisURI;
+
+    /**
+     * Whether {@link #redisURI} is a redis cluster
+     */
+    @Builder.Default
+    boolean cluster = false;
+
+    /**
+     * Whether the connection id of a connection key is wrapped in a hash tag, so that a connection key and the other
+     * keys related to the same connection are stored in the same cluster slot.
+     */
+    @Builder.Default
+    boolean hashTags = false;
+
+    /**
+     * The format in which denormalized cache values are written
+     */
+    @NonNull
+    @Builder.Default
+    DenormalizedCacheFormat denormalizedCacheFormat = DenormalizedCacheFormat.JSON;
+
+    /**
+     * Whether the denormalized cache values may still be stored as a set while the {@link #denormalizedCacheFormat} is
+     * a string format, e.g. after switching from the {@linkplain DenormalizedCacheFormat#SET set format}.  Lookups
+     * then read the values that an {@code MGET} does not return with {@code SMEMBERS}, which costs an extra round trip
+     * for the resources that have no value at all.  Otherwise those resources are taken to have no value.
+     */
+    @Builder.Default
+    boolean formatMigration = false;
+
+    /**
+     * The uri of a read replica of {@link #redisURI}, or null if the replicas are not known up front.
+     */
+    @Builder.Default
+    RedisURI replicaURI = null;
+
+    /**
+     * The policy used to select the node that serves subscription and denormalized cache lookups, or null if all
+     * lookups are served by the primary.
+     */
+    @Builder.Default
+    ReadFrom readFrom = null;
+
+    /**
+     * The period after a write issued by this process during which lookups are served by the primary, so that the
+     * write is observed regardless of the replication lag of the replicas.  A zero window accepts any staleness.
+     */
+    @NonNull
+    @Builder.Default
+    Duration primaryReadWindow = Duration.ofSeconds(1);
+
+    /**
+     * The maximum number of denormalized cache values held in a {@link NearCache}, or 0 if values are always read from
+     * redis.
+     */
+    @Builder.Default
+    int nearCacheSize = 0;
+
+    /**
+     * The resources shared by the redis clients, e.g. to record the commands that they issue, or null if each client
+     * creates its own.
+     */
+    @Builder.Default
+    ClientResources clientResources = null;
+
+    /**
+     * The period after which a command that redis has not responded to fails, which is also the timeout of each
+     * attempt to connect.  Well below the timeout of a function, so that a slow redis does not exhaust it.
+     */
+    @NonNull
+    @Builder.Default
+    Duration commandTimeout = Duration.ofSeconds(2);
+
+    /**
+     * The number of attempts to connect to redis each time the connections are established, before the operation that
+     * required them fails
+     */
+    @Builder.Default
+    int connectAttempts = 2;
+
+    /**
+     * The number of consecutive operations that fail to reach redis after which the {@link CircuitBreaker} opens
+     */
+    @Builder.Default
+    int circuitBreakerThreshold = 5;
+
+    /**
+     * The period during which an open {@link CircuitBreaker} rejects every operation
+     */
+    @NonNull
+    @Builder.Default
+    Duration circuitBreakerOpenDuration = Duration.ofSeconds(5);
+
+    /**
+     * The number of bytes that each {@code MGET} issued to {@linkplain
+     * AsyncSubscriptionCacheService#resolveRecipients resolve recipients}, or to {@linkplain
+     * AsyncSubscriptionCacheService#getDenormalizedConnectionsForResourceIds look up} denormalized cache values, should
+     * read.  The resource ids are split into chunks whose size is adapted to the size of the values read before, so that
+     * no single command blocks redis for long.
+     */
+    @Builder.Default
+    int resolveChunkBytes = 128 * 1024;
+
+    /**
+     * The maximum number of keys of each {@code MGET} issued to {@linkplain
+     * AsyncSubscriptionCacheService#resolveRecipients resolve recipients} or to look up denormalized cache values
+     */
+    @Builder.Default
+    int resolveChunkMaxKeys = 500;
+
+    /**
+     * The number of bytes of the denormalized cache values that each script issued to update the resources of a
+     * subscription should read and write.  The resources are split into chunks whose size is adapted to the size of the
+     * values read before, so that a subscription to thousands of resources does not block redis for long, whether it
+     * is a single instance or a cluster.  The script that validates the subscription modifies the first chunk of the
+     * resources in the slot of its connection.
+     */
+    @Builder.Default
+    int writeChunkBytes = 64 * 1024;
+
+    /**
+     * The maximum number of resource keys that each script issued to update the resources of a subscription modifies
+     */
+    @Builder.Default
+    int writeChunkMaxKeys = 200;
+
+    /**
+     * The key of the stream that a {@link SubscriptionEvent} is appended to for each modification of the subscriptions,
+     * or null if events are disabled
+     */
+    @Builder.Default
+    String eventStream = null;
+
+    /**
+     * The approximate maximum number of events held by the {@link #eventStream}, beyond which the oldest events are
+     * trimmed
+     */
+    @Builder.Default
+    long eventStreamMaxLength = 100_000;
+
+    /**
+     * The time to live of a connection, which each {@linkplain AsyncSubscriptionCacheService#heartbeat heartbeat}
+     * refreshes, or null if connections do not expire.  The subscriptions of an expired connection are removed from
+     * the denormalized cache by a {@linkplain RedisAsyncSubscriptionCacheService#sweepExpiredConnections sweep}.
+     */
+    @Builder.Default
+    Duration connectionTtl = null;
+
+    /**
+     * The age beyond which a connection is {@linkplain RedisAsyncSubscriptionCacheService#sweepOrphanedConnections
+     * swept} as orphaned.  The API gateway closes a WebSocket connection after two hours, so an older connection was
+     * never closed in the cache.
+     */
+    @NonNull
+    @Builder.Default
+    Duration sweepMaxAge = Duration.ofHours(3);
+
+    /**
+     * The number of connection keys that each {@code SCAN} issued by a sweep is hinted to return, which are closed
+     * together in a single pipeline
+     */
+    @Builder.Default
+    int sweepBatchSize = 100;
+
+    /**
+     * The maximum number of connections that a sweep closes per second, so that a sweep of many orphaned connections
+     * does not compete with the handlers for redis
+     */
+    @Builder.Default
+    int sweepRate = 50;
+
+    /**
+     * The number of scanned batches of keys that a {@linkplain RedisAsyncSubscriptionCacheService#reconcile
+     * reconciliation} checks and repairs concurrently, while the next batches are scanned.  Batches have the
+     * {@linkplain #sweepBatchSize size} of the batches of a sweep.
+     */
+    @Builder.Default
+    int reconcileWorkers = 4;
+
+    /**
+     * The maximum number of keys that a reconciliation scans per second, so that it can run during peak hours without
+     * competing with the handlers for redis
+     */
+    @Builder.Default
+    int reconcileRate = 1000;
+
+    /**
+     * Returns true if lookups may be served by a replica, false otherwise.
+     */
+    public boolean isReplicaReads() {
+        return this.readFrom != null;
+    }
+
+    /**
+     * Returns true if denormalized cache values are held in a near cache, false otherwise.
+     */
+    public boolean isNearCache() {
+        return this.nearCacheSize > 0;
+    }
+
+    /**
+     * Returns true if subscription events are appended to the {@link #eventStream}, false otherwise.
+     */
+    public boolean isEvents() {
+        return this.eventStream != null;
+    }
+
+    /**
+     * Returns true if connections expire after the {@link #connectionTtl}, false otherwise.
+     */
+    public boolean isConnectionExpiry() {
+        return this.connectionTtl != null;
+    }
+
+    /**
+     * Returns a configuration built from the environment variables of this process.  The settings whose environment
+     * variable is not defined keep the default of the builder.
+     *
+     * @post return != null
+     */
+    public static RedisCacheConfiguration fromEnvironment() {
+        int port = Integer.parseInt(System.getenv(RedisSubscriptionCacheService.LDS_REDIS_PORT_ENV));
+        RedisCacheConfigurationBuilder builder = RedisCacheConfiguration.builder()
+                .redisURI(RedisURI.create(System.getenv(RedisSubscriptionCacheService.LDS_REDIS_HOST_ENV), port));
+
+        env(LDS_REDIS_CLUSTER_ENV, Boolean::parseBoolean, builder::cluster);
+        env(LDS_REDIS_HASH_TAGS_ENV, Boolean::parseBoolean, builder::hashTags);
+        env(RedisSubscriptionCacheService.LDS_DENORMALIZED_FORMAT_ENV, DenormalizedCacheFormat::fromValue,
+                builder::denormalizedCacheFormat);
+        env(LDS_DENORMALIZED_FORMAT_MIGRATION_ENV, Boolean::parseBoolean, builder::formatMigration);
+
+        // lookups are served by the replicas, in preference to the primary, once a replica is known
+        env(LDS_REDIS_REPLICA_HOST_ENV, host -> RedisURI.create(host, port), builder::replicaURI);
+        env(LDS_REDIS_REPLICA_HOST_ENV, host -> ReadFrom.REPLICA_PREFERRED, builder::readFrom);
+        env(LDS_REDIS_READ_FROM_ENV, ReadFrom::valueOf, builder::readFrom);
+        env(LDS_REDIS_PRIMARY_READ_WINDOW_MS_ENV, RedisCacheConfiguration::millis, builder::primaryReadWindow);
+
+        env(LDS_REDIS_NEAR_CACHE_SIZE_ENV, Integer::parseInt, builder::nearCacheSize);
+        env(LDS_REDIS_COMMAND_TIMEOUT_MS_ENV, RedisCacheConfiguration::millis, builder::commandTimeout);
+        env(LDS_REDIS_CONNECT_ATTEMPTS_ENV, Integer::parseInt, builder::connectAttempts);
+        env(LDS_REDIS_BREAKER_THRESHOLD_ENV, Integer::parseInt, builder::circuitBreakerThreshold);
+        env(LDS_REDIS_BREAKER_OPEN_MS_ENV, RedisCacheConfiguration::millis, builder::circuitBreakerOpenDuration);
+        env(LDS_REDIS_RESOLVE_CHUNK_BYTES_ENV, Integer::parseInt, builder::resolveChunkBytes);
+        env(LDS_REDIS_RESOLVE_CHUNK_MAX_KEYS_ENV, Integer::parseInt, builder::resolveChunkMaxKeys);
+        env(LDS_REDIS_WRITE_CHUNK_BYTES_ENV, Integer::parseInt, builder::writeChunkBytes);
+        env(LDS_REDIS_WRITE_CHUNK_MAX_KEYS_ENV, Integer::parseInt, builder::writeChunkMaxKeys);
+        env(LDS_REDIS_EVENT_STREAM_ENV, Function.identity(), builder::eventStream);
+        env(LDS_REDIS_EVENT_STREAM_MAXLEN_ENV, Long::parseLong, builder::eventStreamMaxLength);
+        env(LDS_REDIS_CONNECTION_TTL_MS_ENV, RedisCacheConfiguration::millis, builder::connectionTtl);
+        env(LDS_REDIS_SWEEP_MAX_AGE_MS_ENV, RedisCacheConfiguration::millis, builder::sweepMaxAge);
+        env(LDS_REDIS_SWEEP_BATCH_SIZE_ENV, Integer::parseInt, builder::sweepBatchSize);
+        env(LDS_REDIS_SWEEP_RATE_ENV, Integer::parseInt, builder::sweepRate);
+        env(LDS_REDIS_RECONCILE_WORKERS_ENV, Integer::parseInt, builder::reconcileWorkers);
+        env(LDS_REDIS_RECONCILE_RATE_ENV, Integer::parseInt, builder::reconcileRate);
+
+        return builder.build();
+    }
+
+    /**
+     * Passes the value of the environment variable with the given name, parsed with the given parser, to the given
+     * setter of a builder, unless the variable is not defined.
+     *
+     * @pre name != null
+     * @pre parser != null
+     * @pre setter != null
+     */
+    private static <T> void env(String name, Function<String, T> parser, Consumer<T> setter) {
+        assert name != null;
+        assert parser != null;
+        assert setter != null;
+
+        Optional.ofNullable(System.getenv(name)).map(parser).ifPresent(setter);
+    }
+
+    /**
+     * Returns the duration of the given number of milliseconds.
+     *
+     * @pre millis != null
+     * @post return != null
+     */
+    private static Duration millis(String millis) {
+        assert millis != null;
+
+        return Duration.ofMillis(Long.parseLong(millis));
+    }
+}
@@ -0,0 +1,504 @@
+package com.catapult.lds.service;
+
+import io.lettuce.core.KeyValue;
+import io.lettuce.core.ScanArgs;
+import io.lettuce.core.ScanCursor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * {@code RedisCacheReconciler} {@linkplain #reconcile reconciles} the normalized and denormalized caches of a {@link
+ * RedisAsyncSubscriptionCacheService}, which drift apart when a modification whose resources span several slots fails
+ * part way through and cannot be undone.  Its operations are issued through the connection holder of the service.
+ */
+final class RedisCacheReconciler {
+
+    /**
+     * The service whose caches are reconciled
+     *
+     * @invariant cacheService != null
+     */
+    private final RedisAsyncSubscriptionCacheService cacheService;
+
+    /**
+     * The holder of the connections of {@link #cacheService}
+     *
+     * @invariant redis != null
+     */
+    private final RedisConnectionHolder redis;
+
+    /**
+     * The configuration of {@link #cacheService}
+     *
+     * @invariant configuration != null
+     */
+    private final RedisCacheConfiguration configuration;
+
+    /**
+     * The layout of the keys of the normalized cache
+     *
+     * @invariant keyLayout != null
+     */
+    private final RedisKeyLayout keyLayout;
+
+    /**
+     * The logger used by this reconciler.
+     *
+     * @invariant logger != null
+     */
+    private final Logger logger = LoggerFactory.getLogger(RedisCacheReconciler.class);
+
+    /**
+     * Creates a {@code RedisCacheReconciler} of the caches of the given service, whose connections are held by the
+     * given holder and whose keys have the given layout.
+     *
+     * @pre cacheService != null
+     * @pre connectionHolder != null
+     * @pre keyLayout != null
+     */
+    RedisCacheReconciler(RedisAsyncSubscriptionCacheService cacheService,
+                         RedisConnectionHolder connectionHolder,
+                         RedisKeyLayout keyLayout) {
+        assert cacheService != null;
+        assert connectionHolder != null;
+        assert keyLayout != null;
+
+        this.cacheService = cacheService;
+        this.redis = connectionHolder;
+        this.configuration = cacheService.getConfiguration();
+        this.keyLayout = keyLayout;
+    }
+
+    /**
+     * Detects the drift between the normalized and denormalized caches, and repairs it unless the given flag requests
+     * a dry run, as {@linkplain RedisAsyncSubscriptionCacheService#reconcile described} by the service.  Returns a
+     * future of a report of the drift.
+     * <p/>
+     * The connection keys, and then the resource keys, are iterated with {@code SCAN} in batches of about {@linkplain
+     * RedisCacheConfiguration#getSweepBatchSize the batch size}.  Up to {@linkplain
+     * RedisCacheConfiguration#getReconcileWorkers the number of workers} batches are checked concurrently, each with
+     * pipelined reads, and the scan pauses as needed to scan no more than {@linkplain
+     * RedisCacheConfiguration#getReconcileRate the rate} of keys per second.  The subscriptions of a batch are read
+     * again just before its drift is repaired, and entries modified in the meantime are skipped.  A modification
+     * between that read and the repair may still be undone, in which case the next reconciliation repairs it.
+     *
+     * @post return != null
+     */
+    CompletableFuture<ReconcileReport> reconcile(boolean dryRun) {
+        ReconcileTally tally = new ReconcileTally();
+
+        this.logger.info("reconciling the caches{}", dryRun ? " (dry run)" : "");
+
+        return this.redis.guarded(connections -> this.scanInBatches(connections,
+                        RedisKeyLayout.CONNECTION_NAMESPACE + "*",
+                        keys -> this.reconcileConnectionKeys(connections, keys, dryRun, tally))
+                .thenCompose(v -> this.scanInBatches(connections,
+                        RedisKeyLayout.RESOURCE_KEY_PATTERN,
+                        keys -> this.reconcileResourceKeys(connections, keys, dryRun, tally))))
+                .thenApply(v -> {
+                    ReconcileReport report = tally.report(dryRun);
+                    this.logger.info("reconciled the caches: {}", report);
+                    return report;
+                });
+    }
+
+    /**
+     * Scans the keys that match the given pattern with the given connections, and applies the given function to each
+     * scanned batch of keys.  The batches are processed concurrently by up to {@linkplain
+     * RedisCacheConfiguration#getReconcileWorkers the number of workers}, and scanned at no more than {@linkplain
+     * RedisCacheConfiguration#getReconcileRate the rate} of keys per second.  The returned future completes once all
+     * batches have been processed.
+     *
+     * @pre connections != null
+     * @pre pattern != null
+     * @pre batchFunction != null
+     * @post return != null
+     */
+    private CompletableFuture<Void> scanInBatches(RedisConnections connections,
+                                                  String pattern,
+                                                  Function<List<String>, CompletableFuture<Void>> batchFunction) {
+        assert connections != null;
+        assert pattern != null;
+        assert batchFunction != null;
+
+        ScanArgs args = ScanArgs.Builder.matches(pattern).limit(this.configuration.getSweepBatchSize());
+        return this.scanInBatches(connections, ScanCursor.INITIAL, args, System.currentTimeMillis(), 0,
+                new ArrayList<>(), batchFunction);
+    }
+
+    /**
+     * Scans the keys that follow the given cursor with the given connections and arguments, and applies the given
+     * function to each scanned batch of keys, until the scan is finished.  The scan started at the given time, and has
+     * scanned the given number of keys, whose batches were added to the given list.
+     *
+     * @pre connections != null
+     * @pre cursor != null
+     * @pre args != null
+     * @pre scannedCount >= 0
+     * @pre batches != null
+     * @pre batchFunction != null
+     * @post return != null
+     */
+    private CompletableFuture<Void> scanInBatches(RedisConnections connections,
+                                                  ScanCursor cursor,
+                                                  ScanArgs args,
+                                                  long startMillis,
+                                                  long scannedCount,
+                                                  List<CompletableFuture<Void>> batches,
+                                                  Function<List<String>, CompletableFuture<Void>> batchFunction) {
+        assert connections != null;
+        assert cursor != null;
+        assert args != null;
+        assert scannedCount >= 0;
+        assert batches != null;
+        assert batchFunction != null;
+
+        return connections.commands.scan(cursor, args).toCompletableFuture().thenCompose(scanned -> {
+            long scannedKeys = scannedCount + scanned.getKeys().size();
+
+            // the list of batches is only accessed by one scan at a time
+            if (!scanned.getKeys().isEmpty()) {
+                batches.add(batchFunction.apply(scanned.getKeys()));
+            }
+            if (scanned.isFinished()) {
+                return CompletableFuture.allOf(batches.toArray(CompletableFuture[]::new));
+            }
+
+            // the next batch is scanned once a worker is available
+            CompletableFuture<?>[] pending = batches.stream()
+                    .filter(b -> !b.isDone())
+                    .toArray(CompletableFuture[]::new);
+            CompletableFuture<?> available = pending.length < this.configuration.getReconcileWorkers() ?
+                    CompletableFuture.<Object>completedFuture(null) :
+                    CompletableFuture.anyOf(pending);
+
+            return available
+                    .thenCompose(v -> RedisConnectionSweeper.paced(startMillis, scannedKeys,
+                            this.configuration.getReconcileRate()))
+                    .thenCompose(v -> this.scanInBatches(connections, scanned, args, startMillis, scannedKeys,
+                            batches, batchFunction));
+        });
+    }
+
+    /**
+     * Detects the missing entries of the subscriptions of the connections of the given keys, and repairs them unless
+     * the given flag requests a dry run.  The outcome is counted by the given tally.
+     *
+     * @pre connections != null
+     * @pre connectionKeys != null
+     * @pre tally != null
+     * @post return != null
+     */
+    private CompletableFuture<Void> reconcileConnectionKeys(RedisConnections connections,
+                                                            List<String> connectionKeys,
+                                                            boolean dryRun,
+                                                            ReconcileTally tally) {
+        assert connections != null;
+        assert connectionKeys != null;
+        assert tally != null;
+
+        tally.scannedConnections.add(connectionKeys.size());
+
+        // issue all commands before waiting for any of them, so that they are pipelined
+        Map<String, CompletableFuture<Map<String, String>>> hashesByConnectionId = new HashMap<>();
+        for (String connectionKey : connectionKeys) {
+            hashesByConnectionId.put(this.keyLayout.connectionId(connectionKey),
+                    connections.commands.hgetall(connectionKey).toCompletableFuture());
+        }
+
+        return CompletableFuture.allOf(hashesByConnectionId.values().toArray(CompletableFuture[]::new)).thenCompose(v -> {
+            // the subscription ids of each connection to each resource, as stored in the connection hashes
+            Map<String, Map<String, Set<String>>> storedEntries = new HashMap<>();
+            hashesByConnectionId.forEach((connectionId, hash) -> hash.join().forEach((subscriptionId, resourceList) -> {
+                if (!RedisKeyLayout.CREATED_AT.equals(subscriptionId)) {
+                    new Subscription(connectionId, subscriptionId, resourceList).getResources()
+                            .forEach(r -> addEntry(storedEntries, connectionId, r, subscriptionId));
+                }
+            }));
+
+            Set<String> resources = storedEntries.values()
+                    .stream()
+                    .flatMap(subscriptionIdsByResource -> subscriptionIdsByResource.keySet().stream())
+                    .collect(Collectors.toSet());
+            if (resources.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            return this.cacheService.getCacheValues(connections.commands, resources).thenCompose(values -> {
+                Map<String, Map<String, Set<String>>> missingEntries = new HashMap<>();
+                storedEntries.forEach((connectionId, subscriptionIdsByResource) ->
+                        subscriptionIdsByResource.forEach((resource, subscriptionIds) -> {
+                            DenormalizedCacheValue value = values.get(resource);
+                            Set<String> denormalizedIds = value == null ?
+                                    Collections.emptySet() :
+                                    value.getSubscriptionIdsByConnectionId()
+                                            .getOrDefault(connectionId, Collections.emptySet());
+                            subscriptionIds.stream()
+                                    .filter(s -> !denormalizedIds.contains(s))
+                                    .forEach(s -> addEntry(missingEntries, connectionId, resource, s));
+                        }));
+
+                tally.missingEntries.add(countEntries(missingEntries));
+                return dryRun || missingEntries.isEmpty() ?
+                        CompletableFuture.<Void>completedFuture(null) :
+                        this.repairEntries(connections, missingEntries, true, tally);
+            });
+        });
+    }
+
+    /**
+     * Detects the stale entries of the denormalized cache values of the given keys, and repairs them unless the given
+     * flag requests a dry run.  Keys that are not resource keys are skipped.  The outcome is counted by the given
+     * tally.
+     *
+     * @pre connections != null
+     * @pre keys != null
+     * @pre tally != null
+     * @post return != null
+     */
+    private CompletableFuture<Void> reconcileResourceKeys(RedisConnections connections,
+                                                          List<String> keys,
+                                                          boolean dryRun,
+                                                          ReconcileTally tally) {
+        assert connections != null;
+        assert keys != null;
+        assert tally != null;
+
+        Set<String> resourceIds = RedisKeyLayout.resourceIds(keys, this.configuration.getEventStream());
+        tally.scannedResources.add(resourceIds.size());
+        if (resourceIds.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return this.cacheService.getCacheValues(connections.commands, resourceIds).thenCompose(values -> {
+            // the subscription ids of each connection to each resource, as stored in the denormalized cache values
+            Map<String, Map<String, Set<String>>> denormalizedEntries = new HashMap<>();
+            values.forEach((resource, value) -> value.getSubscriptionIdsByConnectionId().forEach(
+                    (connectionId, subscriptionIds) -> subscriptionIds.forEach(
+                            s -> addEntry(denormalizedEntries, connectionId, resource, s))));
+            if (denormalizedEntries.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            return this.getStoredResources(connections, denormalizedEntries).thenCompose(storedResources -> {
+                Map<String, Map<String, Set<String>>> staleEntries = new HashMap<>();
+                denormalizedEntries.forEach((connectionId, subscriptionIdsByResource) ->
+                        subscriptionIdsByResource.forEach((resource, subscriptionIds) -> subscriptionIds.stream()
+                                .filter(s -> !isStored(storedResources, connectionId, s, resource))
+                                .forEach(s -> addEntry(staleEntries, connectionId, resource, s))));
+
+                tally.staleEntries.add(countEntries(staleEntries));
+                return dryRun || staleEntries.isEmpty() ?
+                        CompletableFuture.<Void>completedFuture(null) :
+                        this.repairEntries(connections, staleEntries, false, tally);
+            });
+        });
+    }
+
+    /**
+     * Adds the given missing entries to the denormalized cache values, or removes the given stale entries from them,
+     * as indicated by the given flag, with the given connections.  The entries are keyed by connection id and then by
+     * resource.  Their subscriptions are read again first, and the entries that are no longer missing or stale are
+     * skipped.  The outcome is counted by the given tally.
+     *
+     * @pre connections != null
+     * @pre entries != null
+     * @pre tally != null
+     * @post return != null
+     */
+    private CompletableFuture<Void> repairEntries(RedisConnections connections,
+                                                  Map<String, Map<String, Set<String>>> entries,
+                                                  boolean missing,
+                                                  ReconcileTally tally) {
+        assert connections != null;
+        assert entries != null;
+        assert tally != null;
+
+        return this.getStoredResources(connections, entries).thenCompose(storedResources -> {
+            List<CompletableFuture<Void>> repairs = new ArrayList<>();
+            List<SubscriptionEvent> events = new ArrayList<>();
+            Set<String> modifiedResources = new HashSet<>();
+
+            entries.forEach((connectionId, subscriptionIdsByResource) -> {
+                Map<String, Set<String>> verifiedEntries = new HashMap<>();
+                Map<String, Set<String>> resourcesBySubscriptionId = new HashMap<>();
+                subscriptionIdsByResource.forEach((resource, subscriptionIds) -> subscriptionIds.stream()
+                        .filter(s -> isStored(storedResources, connectionId, s, resource) == missing)
+                        .forEach(s -> {
+                            verifiedEntries.computeIfAbsent(resource, r -> new HashSet<>()).add(s);
+                            resourcesBySubscriptionId.computeIfAbsent(s, k -> new HashSet<>()).add(resource);
+                        }));
+                if (verifiedEntries.isEmpty()) {
+                    return;
+                }
+
+                long entryCount = verifiedEntries.values().stream().mapToLong(Set::size).sum();
+                Function<String, List<String>> repaired = r -> verifiedEntries.get(r)
+                        .stream()
+                        .sorted()
+                        .collect(Collectors.toList());
+                Function<String, List<String>> unchanged = r -> Collections.emptyList();
+
+                repairs.add(this.cacheService.updateDenormalized(connections.commands,
+                        this.cacheService.groupBySlot(verifiedEntries.keySet()),
+                        connectionId,
+                        missing ? repaired : unchanged,
+                        missing ? unchanged : repaired).handle((v, throwable) -> {
+                    if (throwable != null) {
+                        this.logger.warn("could not repair {} entries of connection '{}': {}", entryCount,
+                                connectionId, AsyncSubscriptionCacheService.unwrap(throwable).getMessage());
+                        tally.failedEntries.add(entryCount);
+                    } else {
+                        tally.repairedEntries.add(entryCount);
+                    }
+                    return null;
+                }));
+
+                SubscriptionEvent.Type type = missing ? SubscriptionEvent.Type.ADDED : SubscriptionEvent.Type.REMOVED;
+                resourcesBySubscriptionId.forEach((subscriptionId, resources) ->
+                        events.add(new SubscriptionEvent(type, connectionId, subscriptionId, resources)));
+                modifiedResources.addAll(verifiedEntries.keySet());
+            });
+
+            if (this.configuration.isEvents() && !events.isEmpty()) {
+                repairs.add(this.cacheService.appendEvents(connections.commands, events));
+            }
+
+            CompletableFuture<Void> repaired = this.redis.written(
+                    CompletableFuture.allOf(repairs.toArray(CompletableFuture[]::new)));
+            return this.cacheService.invalidated(repaired, modifiedResources);
+        });
+    }
+
+    /**
+     * Returns a future of the resources of the subscriptions of the given entries, as stored in the hashes of their
+     * connections, keyed by connection id and then by subscription id.  Subscriptions that do not exist are absent.
+     * The fields of each connection are read with a single {@code HMGET}, and the commands are pipelined.
+     *
+     * @pre connections != null
+     * @pre entries != null
+     * @post return != null
+     */
+    private CompletableFuture<Map<String, Map<String, Set<String>>>> getStoredResources(
+            RedisConnections connections,
+            Map<String, Map<String, Set<String>>> entries) {
+        assert connections != null;
+        assert entries != null;
+
+        // issue all commands before waiting for any of them, so that they are pipelined
+        Map<String, CompletableFuture<List<KeyValue<String, String>>>> fieldsByConnectionId = new HashMap<>();
+        entries.forEach((connectionId, subscriptionIdsByResource) -> {
+            String[] subscriptionIds = subscriptionIdsByResource.values()
+                    .stream()
+                    .flatMap(Set::stream)
+                    .distinct()
+                    .toArray(String[]::new);
+            fieldsByConnectionId.put(connectionId, connections.commands
+                    .hmget(this.keyLayout.connectionKey(connectionId), subscriptionIds)
+                    .toCompletableFuture());
+        });
+
+        return CompletableFuture.allOf(fieldsByConnectionId.values().toArray(CompletableFuture[]::new)).thenApply(v -> {
+            Map<String, Map<String, Set<String>>> resourcesBySubscriptionIdByConnectionId = new HashMap<>();
+            fieldsByConnectionId.forEach((connectionId, fields) -> {
+                Map<String, Set<String>> resourcesBySubscriptionId = new HashMap<>();
+                fields.join().stream()
+                        .filter(KeyValue::hasValue)
+                        .forEach(field -> resourcesBySubscriptionId.put(field.getKey(),
+                                new Subscription(connectionId, field.getKey(), field.getValue()).getResources()));
+                resourcesBySubscriptionIdByConnectionId.put(connectionId, resourcesBySubscriptionId);
+            });
+            return resourcesBySubscriptionIdByConnectionId;
+        });
+    }
+
+    /**
+     * Returns whether the subscription with the given id of the connection with the given id is to the given resource,
+     * according to the given stored resources, keyed by connection id and then by subscription id.
+     *
+     * @pre storedResources != null
+     */
+    private static boolean isStored(Map<String, Map<String, Set<String>>> storedResources,
+                                    String connectionId,
+                                    String subscriptionId,
+                                    String resource) {
+        assert storedResources != null;
+
+        return storedResources.getOrDefault(connectionId, Collections.emptyMap())
+                .getOrDefault(subscriptionId, Collections.emptySet())
+                .contains(resource);
+    }
+
+    /**
+     * Adds the subscription with the given id of the connection with the given id to the given resource in the given
+     * entries, keyed by connection id and then by resource.
+     *
+     * @pre entries != null
+     */
+    private static void addEntry(Map<String, Map<String, Set<String>>> entries,
+                                 String connectionId,
+                                 String resource,
+                                 String subscriptionId) {
+        assert entries != null;
+
+        entries.computeIfAbsent(connectionId, c -> new HashMap<>())
+                .computeIfAbsent(resource, r -> new HashSet<>())
+                .add(subscriptionId);
+    }
+
+    /**
+     * Returns the number of subscriptions of a resource in the given entries, keyed by connection id and then by
+     * resource.
+     *
+     * @pre entries != null
+     */
+    private static long countEntries(Map<String, Map<String, Set<String>>> entries) {
+        assert entries != null;
+
+        return entries.values()
+                .stream()
+                .flatMap(subscriptionIdsByResource -> subscriptionIdsByResource.values().stream())
+                .mapToLong(Set::size)
+                .sum();
+    }
+
+    /**
+     * {@code ReconcileTally} counts the outcome of a reconciliation, whose batches are checked concurrently.
+     */
+    private static final class ReconcileTally {
+
+        private final LongAdder scannedConnections = new LongAdder();
+        private final LongAdder scannedResources = new LongAdder();
+        private final LongAdder missingEntries = new LongAdder();
+        private final LongAdder staleEntries = new LongAdder();
+        private final LongAdder repairedEntries = new LongAdder();
+        private final LongAdder failedEntries = new LongAdder();
+
+        /**
+         * Returns a report of the counts of this tally, of a reconciliation that is a dry run if the given flag is set.
+         *
+         * @post return != null
+         */
+        ReconcileReport report(boolean dryRun) {
+            return new ReconcileReport(dryRun,
+                    this.scannedConnections.sum(),
+                    this.scannedResources.sum(),
+                    this.missingEntries.sum(),
+                    this.staleEntries.sum(),
+                    this.repairedEntries.sum(),
+                    this.failedEntries.sum());
+        }
+    }
+}
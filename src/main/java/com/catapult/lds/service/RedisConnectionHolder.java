@@ -0,0 +1,611 @@
+package com.catapult.lds.service;
+
+import io.lettuce.core.AbstractRedisClient;
+import io.lettuce.core.ClientOptions;
+import io.lettuce.core.RedisChannelHandler;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisCommandExecutionException;
+import io.lettuce.core.RedisConnectionStateListener;
+import io.lettuce.core.RedisException;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.SocketOptions;
+import io.lettuce.core.TimeoutOptions;
+import io.lettuce.core.TrackingArgs;
+import io.lettuce.core.cluster.ClusterClientOptions;
+import io.lettuce.core.cluster.ClusterTopologyRefreshOptions;
+import io.lettuce.core.cluster.RedisClusterClient;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import io.lettuce.core.codec.StringCodec;
+import io.lettuce.core.masterreplica.MasterReplica;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * {@code RedisConnectionHolder} holds the {@link RedisConnections} of a {@link RedisAsyncSubscriptionCacheService},
+ * which it shares with the classes that sweep, reconcile and scan the caches of that service.  Every operation on redis
+ * is {@linkplain #guarded issued} through the holder, which establishes the connections lazily and asynchronously, and
+ * fails operations fast with its {@link CircuitBreaker} while redis is unreachable.  The holder also {@linkplain #read
+ * routes lookups} to the replicas when they are configured, and tracks the writes that keep lookups on the primary.
+ * <p/>
+ * The connections are established by the first operation that requires them, with a number of attempts.  That
+ * operation is the trial of the circuit breaker, which rejects every other operation until it completes.  A failure to
+ * connect fails that operation, and the next operation permitted by the breaker tries again.  The connections are
+ * closed while the process is {@linkplain #checkpoint checkpointed}.
+ */
+final class RedisConnectionHolder {
+
+    /**
+     * The delay in milliseconds before the second attempt to connect, which doubles with each further attempt
+     */
+    private static final long CONNECT_BACKOFF_MILLIS = 100;
+
+    /**
+     * The connections to AWS Elasticache redis, or null until they are established and while the process is
+     * checkpointed
+     */
+    private volatile RedisConnections connections;
+
+    /**
+     * The future of the connections while they are being established, or null if no attempt is in flight
+     */
+    private CompletableFuture<RedisConnections> connecting = null;
+
+    /**
+     * Whether the connections are closed for a checkpoint of the process, during which they must not be established
+     */
+    private boolean checkpointed = false;
+
+    /**
+     * The breaker that fails operations fast while redis is unreachable
+     *
+     * @invariant circuitBreaker != null
+     */
+    private final CircuitBreaker circuitBreaker;
+
+    /**
+     * The near cache that is invalidated by the tracking connection, or null if not configured
+     */
+    private final NearCache nearCache;
+
+    /**
+     * The time in milliseconds at which the most recent write issued through this holder completed
+     */
+    private volatile long lastWriteMillis = 0;
+
+    /**
+     * The configuration of the connections
+     *
+     * @invariant configuration != null
+     */
+    private final RedisCacheConfiguration configuration;
+
+    /**
+     * The logger used by this holder.
+     *
+     * @invariant logger != null
+     */
+    private final Logger logger = LoggerFactory.getLogger(RedisConnectionHolder.class);
+
+    /**
+     * Creates a {@code RedisConnectionHolder} of connections with the given configuration, which invalidates the given
+     * near cache, if any, whenever redis reports a modification of a value read into it.
+     *
+     * @pre configuration != null
+     */
+    RedisConnectionHolder(RedisCacheConfiguration configuration, NearCache nearCache) {
+        assert configuration != null;
+
+        this.configuration = configuration;
+        this.nearCache = nearCache;
+        this.circuitBreaker = new CircuitBreaker(configuration.getCircuitBreakerThreshold(),
+                configuration.getCircuitBreakerOpenDuration());
+    }
+
+    /**
+     * Returns a future of the connections to redis, which starts to establish them if they have not been established
+     * and no attempt is in flight.  The future completes exceptionally with a {@link CacheUnavailableException} if they
+     * cannot be established, or if the process is checkpointed.
+     *
+     * @post return != null
+     */
+    private CompletableFuture<RedisConnections> connections() {
+        RedisConnections connections = this.connections;
+        if (connections != null) {
+            return CompletableFuture.completedFuture(connections);
+        }
+
+        synchronized (this) {
+            if (this.checkpointed) {
+                return CompletableFuture.failedFuture(
+                        new CacheUnavailableException("The redis connections are closed for a checkpoint."));
+            }
+            if (this.connections != null) {
+                return CompletableFuture.completedFuture(this.connections);
+            }
+            if (this.connecting == null) {
+                CompletableFuture<RedisConnections> connecting = new CompletableFuture<>();
+                this.connecting = connecting;
+                this.connectWithRetries(1).whenComplete((established, throwable) ->
+                        this.connected(connecting, established, throwable));
+            }
+            return this.connecting;
+        }
+    }
+
+    /**
+     * Completes the given future of the connections being established with the given outcome of the attempts.  The
+     * established connections are closed instead if the process was checkpointed in the meantime.
+     *
+     * @pre connecting != null
+     * @pre (connections == null) != (throwable == null)
+     */
+    private void connected(CompletableFuture<RedisConnections> connecting,
+                           RedisConnections connections,
+                           Throwable throwable) {
+        assert connecting != null;
+        assert (connections == null) != (throwable == null);
+
+        boolean checkpointed;
+        synchronized (this) {
+            this.connecting = null;
+            checkpointed = this.checkpointed;
+            if (throwable == null && !checkpointed) {
+                this.connections = connections;
+            }
+        }
+
+        if (throwable != null) {
+            Throwable cause = AsyncSubscriptionCacheService.unwrap(throwable);
+            this.logger.warn("unable to connect to redis: {}", cause.getMessage());
+            connecting.completeExceptionally(cause);
+        } else if (checkpointed) {
+            connections.close();
+            connecting.completeExceptionally(
+                    new CacheUnavailableException("The redis connections are closed for a checkpoint."));
+        } else {
+            connecting.complete(connections);
+        }
+    }
+
+    /**
+     * Returns a future of new connections to redis, which makes the given attempt and up to the configured number of
+     * attempts, with an exponential backoff between them.  The backoff is scheduled, rather than slept, so that no
+     * thread waits for it.
+     *
+     * @pre attempt > 0
+     * @post return != null
+     */
+    private CompletableFuture<RedisConnections> connectWithRetries(int attempt) {
+        assert attempt > 0;
+
+        int attempts = Math.max(1, this.configuration.getConnectAttempts());
+        return this.connect().handle((connections, throwable) -> {
+            if (throwable == null) {
+                return CompletableFuture.completedFuture(connections);
+            }
+
+            Throwable cause = AsyncSubscriptionCacheService.unwrap(throwable);
+            if (attempt >= attempts) {
+                return CompletableFuture.<RedisConnections>failedFuture(new CacheUnavailableException(String.format(
+                        "Unable to connect to redis after %d attempts.", attempts), cause));
+            }
+
+            long backoffMillis = CONNECT_BACKOFF_MILLIS << (attempt - 1);
+            this.logger.warn("attempt {} to connect to redis failed, retrying in {} ms: {}", attempt,
+                    backoffMillis, cause.getMessage());
+            return CompletableFuture.runAsync(() -> {
+            }, CompletableFuture.delayedExecutor(backoffMillis, TimeUnit.MILLISECONDS))
+                    .thenCompose(v -> this.connectWithRetries(attempt + 1));
+        }).thenCompose(Function.identity());
+    }
+
+    /**
+     * Returns a future of new connections to redis, as configured, which completes once the scripts are loaded.
+     *
+     * @post return != null
+     */
+    private CompletableFuture<RedisConnections> connect() {
+        RedisCacheConfiguration configuration = this.configuration;
+        SocketOptions socketOptions = SocketOptions.builder()
+                .connectTimeout(configuration.getCommandTimeout())
+                .build();
+        TimeoutOptions timeoutOptions = TimeoutOptions.enabled(configuration.getCommandTimeout());
+
+        if (configuration.isCluster()) {
+            RedisClusterClient clusterClient = configuration.getClientResources() == null ?
+                    RedisClusterClient.create(configuration.getRedisURI()) :
+                    RedisClusterClient.create(configuration.getClientResources(), configuration.getRedisURI());
+            clusterClient.setOptions(ClusterClientOptions.builder()
+                    .autoReconnect(true)
+                    .disconnectedBehavior(ClientOptions.DisconnectedBehavior.REJECT_COMMANDS)
+                    .socketOptions(socketOptions)
+                    .timeoutOptions(timeoutOptions)
+                    .topologyRefreshOptions(ClusterTopologyRefreshOptions.builder()
+                            .enableAllAdaptiveRefreshTriggers()
+                            .build())
+                    .build());
+            return this.establish(clusterClient, () -> this.connectCluster(clusterClient));
+        }
+
+        RedisClient client = configuration.getClientResources() == null ?
+                RedisClient.create(configuration.getRedisURI()) :
+                RedisClient.create(configuration.getClientResources(), configuration.getRedisURI());
+        client.setOptions(ClientOptions.builder()
+                .autoReconnect(true)
+                .disconnectedBehavior(ClientOptions.DisconnectedBehavior.REJECT_COMMANDS)
+                .socketOptions(socketOptions)
+                .timeoutOptions(timeoutOptions)
+                .build());
+        return this.establish(client, () -> this.connectStandalone(client));
+    }
+
+    /**
+     * Returns a future of the connections created by the given connector, which completes once the scripts are loaded
+     * with them.  The future fails if they are not established within the {@linkplain
+     * RedisCacheConfiguration#getCommandTimeout command timeout}, and the given client is shut down if it fails.
+     *
+     * @pre client != null
+     * @pre connector != null
+     * @post return != null
+     */
+    private CompletableFuture<RedisConnections> establish(AbstractRedisClient client,
+                                                          Supplier<CompletableFuture<RedisConnections>> connector) {
+        assert client != null;
+        assert connector != null;
+
+        CompletableFuture<RedisConnections> established;
+        try {
+            established = connector.get().thenCompose(connections ->
+                    RedisScript.loadAll(connections.commands).thenApply(v -> connections));
+        } catch (RuntimeException e) {
+            established = CompletableFuture.failedFuture(e);
+        }
+
+        return established
+                .orTimeout(this.configuration.getCommandTimeout().toMillis(), TimeUnit.MILLISECONDS)
+                .whenComplete((connections, throwable) -> {
+                    if (throwable != null) {
+                        client.shutdownAsync();
+                    }
+                });
+    }
+
+    /**
+     * Returns a future of new connections to the redis cluster of the given client.
+     *
+     * @pre clusterClient != null
+     * @post return != null
+     */
+    private CompletableFuture<RedisConnections> connectCluster(RedisClusterClient clusterClient) {
+        assert clusterClient != null;
+
+        RedisCacheConfiguration configuration = this.configuration;
+
+        return clusterClient.connectAsync(StringCodec.UTF8).thenCompose(clusterConnection -> {
+            RedisClusterAsyncCommands<String, String> commands = clusterConnection.async();
+            CompletableFuture<RedisClusterAsyncCommands<String, String>> readCommands = configuration.isReplicaReads() ?
+                    this.connectReplicaReads(commands, () -> clusterClient.connectAsync(StringCodec.UTF8)
+                            .thenApply(readConnection -> {
+                                readConnection.setReadFrom(configuration.getReadFrom());
+                                return readConnection.async();
+                            })) :
+                    CompletableFuture.completedFuture(commands);
+
+            return readCommands.thenApply(r -> new RedisConnections(clusterClient, clusterConnection, commands, r,
+                    null));
+        });
+    }
+
+    /**
+     * Returns a future of new connections to the single redis instance of the given client.
+     *
+     * @pre client != null
+     * @post return != null
+     */
+    private CompletableFuture<RedisConnections> connectStandalone(RedisClient client) {
+        assert client != null;
+
+        RedisCacheConfiguration configuration = this.configuration;
+
+        return client.connectAsync(StringCodec.UTF8, configuration.getRedisURI()).toCompletableFuture()
+                .thenCompose(connection -> {
+                    RedisClusterAsyncCommands<String, String> commands = connection.async();
+                    CompletableFuture<RedisClusterAsyncCommands<String, String>> readCommands =
+                            configuration.isReplicaReads() ?
+                                    this.connectReplicaReads(commands, () -> {
+                                        List<RedisURI> nodes = Stream.of(configuration.getRedisURI(),
+                                                        configuration.getReplicaURI())
+                                                .filter(uri -> uri != null)
+                                                .collect(Collectors.toList());
+                                        return MasterReplica.connectAsync(client, StringCodec.UTF8, nodes)
+                                                .thenApply(readConnection -> {
+                                                    readConnection.setReadFrom(configuration.getReadFrom());
+                                                    return readConnection.async();
+                                                });
+                                    }) :
+                                    CompletableFuture.completedFuture(commands);
+                    CompletableFuture<RedisClusterAsyncCommands<String, String>> trackingCommands =
+                            this.nearCache == null ?
+                                    CompletableFuture.completedFuture(null) :
+                                    connectTracking(client, configuration.getRedisURI(), this.nearCache);
+
+                    return readCommands.thenCombine(trackingCommands, (r, t) ->
+                            new RedisConnections(client, connection, commands, r, t));
+                });
+    }
+
+
+    /**
+     * Returns a future of the commands created by the given connector, or of the given commands of the primary
+     * connection if the replicas cannot be connected to.
+     *
+     * @pre commands != null
+     * @pre connector != null
+     * @post return != null
+     */
+    private CompletableFuture<RedisClusterAsyncCommands<String, String>> connectReplicaReads(
+            RedisClusterAsyncCommands<String, String> commands,
+            Supplier<CompletableFuture<? extends RedisClusterAsyncCommands<String, String>>> connector) {
+        assert commands != null;
+        assert connector != null;
+
+        CompletableFuture<? extends RedisClusterAsyncCommands<String, String>> readCommands;
+        try {
+            readCommands = connector.get();
+        } catch (RedisException e) {
+            readCommands = CompletableFuture.failedFuture(e);
+        }
+
+        return readCommands.handle((replicaCommands, throwable) -> {
+            if (throwable == null) {
+                return replicaCommands;
+            }
+
+            this.logger.warn("unable to connect to replicas, serving all lookups from the primary", throwable);
+            return commands;
+        });
+    }
+
+    /**
+     * Returns a future of the commands of a new connection to the given uri that has {@code CLIENT TRACKING} enabled,
+     * and invalidates the given near cache whenever redis reports that a key read with those commands was modified.
+     * The near cache is deactivated while the connection is disconnected, since modifications are not reported, and
+     * activated once tracking has been enabled again after reconnecting.
+     *
+     * @pre client != null
+     * @pre redisURI != null
+     * @pre nearCache != null
+     * @post return != null
+     */
+    private static CompletableFuture<RedisClusterAsyncCommands<String, String>> connectTracking(RedisClient client,
+                                                                                                RedisURI redisURI,
+                                                                                                NearCache nearCache) {
+        assert client != null;
+        assert redisURI != null;
+        assert nearCache != null;
+
+        return client.connectAsync(StringCodec.UTF8, redisURI).toCompletableFuture().thenCompose(trackingConnection -> {
+            trackingConnection.addListener(message -> {
+                if (!"invalidate".equals(message.getType())) {
+                    return;
+                }
+
+                // the invalidated keys are null when the whole database was flushed
+                @SuppressWarnings("unchecked")
+                List<String> keys = (List<String>) message.getContent(StringCodec.UTF8::decodeKey).get(1);
+                if (keys == null) {
+                    nearCache.invalidateAll();
+                } else {
+                    nearCache.invalidate(keys);
+                }
+            });
+
+            client.addListener(new RedisConnectionStateListener() {
+                @Override
+                public void onRedisConnected(RedisChannelHandler<?, ?> connection, SocketAddress socketAddress) {
+                    if (connection == trackingConnection) {
+                        trackingConnection.async().clientTracking(TrackingArgs.Builder.enabled())
+                                .thenRun(nearCache::activate);
+                    }
+                }
+
+                @Override
+                public void onRedisDisconnected(RedisChannelHandler<?, ?> connection) {
+                    if (connection == trackingConnection) {
+                        nearCache.deactivate();
+                    }
+                }
+
+                @Override
+                public void onRedisExceptionCaught(RedisChannelHandler<?, ?> connection, Throwable cause) {
+                }
+            });
+
+            return trackingConnection.async().clientTracking(TrackingArgs.Builder.enabled()).toCompletableFuture()
+                    .thenApply(ok -> {
+                        nearCache.activate();
+                        return trackingConnection.async();
+                    });
+        });
+    }
+
+
+    /**
+     * Closes the connections of this holder for a checkpoint of the process.  Connections that are being established
+     * are closed once they are.
+     */
+    synchronized void checkpoint() {
+        this.checkpointed = true;
+        if (this.connections != null) {
+            this.connections.close();
+            this.connections = null;
+        }
+    }
+
+    /**
+     * Starts to re-establish the connections of this holder after the process is restored, without waiting for them.
+     * If they cannot be established, they are established by the first operation that requires them instead.
+     */
+    synchronized void restore() {
+        this.checkpointed = false;
+        this.establish();
+    }
+
+    /**
+     * Starts to establish the connections of this holder, unless they are established or being established, and
+     * returns a future that completes once they are.  The future completes exceptionally with a {@link
+     * CacheUnavailableException} if they cannot be established, or if the process is checkpointed.
+     *
+     * @post return != null
+     */
+    CompletableFuture<Void> establish() {
+        return this.connections().thenApply(established -> null);
+    }
+
+    /**
+     * Returns whether the connections are established and open.  Connections that are not established are neither
+     * waited for nor started to be established.
+     */
+    boolean isConnected() {
+        if (this.circuitBreaker.getState() == CircuitBreaker.State.OPEN) {
+            return false;
+        }
+
+        RedisConnections connections = this.connections;
+        return connections != null && connections.connection.isOpen();
+    }
+
+    /**
+     * Returns the circuit breaker of this holder.
+     *
+     * @post return != null
+     */
+    CircuitBreaker getCircuitBreaker() {
+        return this.circuitBreaker;
+    }
+
+    /**
+     * Issues the given lookup with the {@linkplain RedisConnections#readCommands read commands} of the given
+     * connections, unless a write completed within the primary read window, in which case it is issued with the
+     * primary commands.  A lookup that fails on a replica with a redis error is retried on the primary.
+     *
+     * @pre connections != null
+     * @pre lookup != null
+     * @post return != null
+     */
+    <T> CompletableFuture<T> read(
+            RedisConnections connections,
+            Function<RedisClusterAsyncCommands<String, String>, CompletableFuture<T>> lookup) {
+        assert connections != null;
+        assert lookup != null;
+
+        if (connections.readCommands == connections.commands ||
+                System.currentTimeMillis() - this.lastWriteMillis < this.configuration.getPrimaryReadWindow().toMillis()) {
+            return lookup.apply(connections.commands);
+        }
+
+        // lettuce throws, rather than failing the future, when no node matches the read policy
+        CompletableFuture<T> replicaLookup;
+        try {
+            replicaLookup = lookup.apply(connections.readCommands);
+        } catch (RedisException e) {
+            replicaLookup = CompletableFuture.failedFuture(e);
+        }
+
+        return replicaLookup
+                .handle((value, throwable) -> {
+                    if (throwable == null) {
+                        return CompletableFuture.completedFuture(value);
+                    }
+
+                    Throwable cause = AsyncSubscriptionCacheService.unwrap(throwable);
+                    if (!(cause instanceof RedisException)) {
+                        return CompletableFuture.<T>failedFuture(cause);
+                    }
+
+                    this.logger.warn("lookup failed on a replica, retrying on the primary: {}", cause.getMessage());
+                    return lookup.apply(connections.commands);
+                })
+                .thenCompose(Function.identity());
+    }
+
+    /**
+     * Returns a future that completes with the given future of a write, after recording the time at which the write
+     * completed for the {@linkplain #read primary read window}.
+     *
+     * @pre write != null
+     * @post return != null
+     */
+    <T> CompletableFuture<T> written(CompletableFuture<T> write) {
+        assert write != null;
+
+        return write.whenComplete((result, throwable) -> this.lastWriteMillis = System.currentTimeMillis());
+    }
+
+    /**
+     * Issues the given operation with the connections of this holder, unless the {@link #circuitBreaker} is open.
+     * Failures to reach redis, i.e. failures to connect, timeouts and disconnections, are recorded by the breaker, and
+     * complete the returned future exceptionally with a {@link CacheUnavailableException}.  Any other outcome shows
+     * that redis responded, and is passed through.
+     *
+     * @pre operation != null
+     * @post return != null
+     */
+    <T> CompletableFuture<T> guarded(Function<RedisConnections, CompletableFuture<T>> operation) {
+        assert operation != null;
+
+        if (!this.circuitBreaker.tryAcquire()) {
+            return CompletableFuture.failedFuture(new CacheUnavailableException(String.format(
+                    "Redis is unavailable, retry in %d ms.", this.circuitBreaker.getRetryAfterMillis())));
+        }
+
+        // an operation that waits for the connections to be established is the trial of the breaker, so that every
+        // other operation fails fast rather than waiting for the same attempts
+        CompletableFuture<RedisConnections> connections = this.connections();
+        if (!connections.isDone()) {
+            this.circuitBreaker.beginTrial();
+        }
+
+        // lettuce throws, rather than failing the future, when a command is rejected while disconnected, and the outcome
+        // of a trial operation must always be recorded
+        CompletableFuture<T> result = connections.thenCompose(established -> {
+            try {
+                return operation.apply(established);
+            } catch (RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        });
+
+        return result
+                .handle((value, throwable) -> {
+                    if (throwable == null) {
+                        this.circuitBreaker.recordSuccess();
+                        return CompletableFuture.completedFuture(value);
+                    }
+
+                    Throwable cause = AsyncSubscriptionCacheService.unwrap(throwable);
+                    if (cause instanceof CacheUnavailableException) {
+                        this.circuitBreaker.recordFailure();
+                        return CompletableFuture.<T>failedFuture(cause);
+                    }
+                    if (cause instanceof RedisException && !(cause instanceof RedisCommandExecutionException)) {
+                        this.circuitBreaker.recordFailure();
+                        return CompletableFuture.<T>failedFuture(
+                                new CacheUnavailableException("Redis did not respond: " + cause.getMessage(), cause));
+                    }
+
+                    this.circuitBreaker.recordSuccess();
+                    return CompletableFuture.<T>failedFuture(cause);
+                })
+                .thenCompose(Function.identity());
+    }
+}
@@ -0,0 +1,441 @@
+package com.catapult.lds.service;
+
+import io.lettuce.core.ScanArgs;
+import io.lettuce.core.ScanCursor;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * {@code RedisConnectionSweeper} reclaims the connections of a {@link RedisAsyncSubscriptionCacheService} that were
+ * never closed: the {@linkplain #sweepOrphanedConnections orphaned connections}, whose {@code $disconnect} was never
+ * delivered, and the {@linkplain #sweepExpiredConnections expired connections}, whose subscriptions remain in the
+ * denormalized cache after their connection key expired.  Its operations are issued through the connection holder of
+ * the service.
+ */
+final class RedisConnectionSweeper {
+
+    /**
+     * The service whose connections are swept
+     *
+     * @invariant cacheService != null
+     */
+    private final RedisAsyncSubscriptionCacheService cacheService;
+
+    /**
+     * The holder of the connections of {@link #cacheService}
+     *
+     * @invariant redis != null
+     */
+    private final RedisConnectionHolder redis;
+
+    /**
+     * The configuration of {@link #cacheService}
+     *
+     * @invariant configuration != null
+     */
+    private final RedisCacheConfiguration configuration;
+
+    /**
+     * The layout of the keys of the normalized cache
+     *
+     * @invariant keyLayout != null
+     */
+    private final RedisKeyLayout keyLayout;
+
+    /**
+     * The logger used by this sweeper.
+     *
+     * @invariant logger != null
+     */
+    private final Logger logger = LoggerFactory.getLogger(RedisConnectionSweeper.class);
+
+    /**
+     * Creates a {@code RedisConnectionSweeper} of the connections of the given service, which are held by the given
+     * holder and whose keys have the given layout.
+     *
+     * @pre cacheService != null
+     * @pre connectionHolder != null
+     * @pre keyLayout != null
+     */
+    RedisConnectionSweeper(RedisAsyncSubscriptionCacheService cacheService,
+                           RedisConnectionHolder connectionHolder,
+                           RedisKeyLayout keyLayout) {
+        assert cacheService != null;
+        assert connectionHolder != null;
+        assert keyLayout != null;
+
+        this.cacheService = cacheService;
+        this.redis = connectionHolder;
+        this.configuration = cacheService.getConfiguration();
+        this.keyLayout = keyLayout;
+    }
+
+    /**
+     * Closes the {@linkplain RedisAsyncSubscriptionCacheService#sweepOrphanedConnections orphaned connections} that the
+     * given liveness check does not report as still connected, and returns a future of a report of them.
+     * <p/>
+     * The connection keys are iterated with {@code SCAN}, in batches of about {@linkplain
+     * RedisCacheConfiguration#getSweepBatchSize the batch size}.  The creation times of a batch are read in a single
+     * pipeline, and its orphaned connections are closed in another, after which the sweep pauses as needed to close no
+     * more than {@linkplain RedisCacheConfiguration#getSweepRate the rate} of connections per second.  A connection that
+     * cannot be closed, e.g. because it is closed concurrently, is counted and skipped.  A connection without a creation
+     * time is never swept.
+     *
+     * @pre livenessCheck != null
+     * @post return != null
+     */
+    CompletableFuture<SweepReport> sweepOrphanedConnections(ConnectionLivenessCheck livenessCheck) {
+        assert livenessCheck != null;
+
+        long createdBefore = System.currentTimeMillis() - this.configuration.getSweepMaxAge().toMillis();
+        SweepTally tally = new SweepTally();
+
+        this.logger.info("sweeping connections created before {}", createdBefore);
+
+        return this.redis.guarded(connections -> this.sweepOrphanedConnections(connections,
+                        ScanCursor.INITIAL, createdBefore, livenessCheck, tally))
+                .thenApply(v -> {
+                    SweepReport report = tally.report();
+                    this.logger.info("swept orphaned connections: {}", report);
+                    return report;
+                });
+    }
+
+    /**
+     * Scans the connection keys that follow the given cursor with the given connections, and closes those of the
+     * connections that were created before the given time and that are not reported as connected by the given
+     * liveness check, until the scan is finished.  The outcome is counted by the given tally.
+     *
+     * @pre connections != null
+     * @pre cursor != null
+     * @pre livenessCheck != null
+     * @pre tally != null
+     * @post return != null
+     */
+    private CompletableFuture<Void> sweepOrphanedConnections(RedisConnections connections,
+                                                             ScanCursor cursor,
+                                                             long createdBefore,
+                                                             ConnectionLivenessCheck livenessCheck,
+                                                             SweepTally tally) {
+        assert connections != null;
+        assert cursor != null;
+        assert livenessCheck != null;
+        assert tally != null;
+
+        long startMillis = System.currentTimeMillis();
+        ScanArgs args = ScanArgs.Builder
+                .matches(RedisKeyLayout.CONNECTION_NAMESPACE + "*")
+                .limit(this.configuration.getSweepBatchSize());
+
+        return connections.commands.scan(cursor, args).toCompletableFuture().thenCompose(scanned -> {
+            tally.scannedConnections.add(scanned.getKeys().size());
+
+            return this.sweepConnectionKeys(connections, scanned.getKeys(), createdBefore, livenessCheck, tally)
+                    .thenCompose(closedCount -> {
+                        if (scanned.isFinished()) {
+                            return CompletableFuture.completedFuture(null);
+                        }
+
+                        return paced(startMillis, closedCount, this.configuration.getSweepRate()).thenCompose(v ->
+                                this.sweepOrphanedConnections(connections, scanned, createdBefore, livenessCheck,
+                                        tally));
+                    });
+        });
+    }
+
+    /**
+     * Closes the connections of the given keys that were created before the given time, and that are not reported as
+     * connected by the given liveness check.  Returns a future of the number of closed connections.  The outcome is
+     * counted by the given tally.
+     *
+     * @pre connections != null
+     * @pre connectionKeys != null
+     * @pre livenessCheck != null
+     * @pre tally != null
+     * @post return != null
+     */
+    private CompletableFuture<Integer> sweepConnectionKeys(RedisConnections connections,
+                                                           List<String> connectionKeys,
+                                                           long createdBefore,
+                                                           ConnectionLivenessCheck livenessCheck,
+                                                           SweepTally tally) {
+        assert connections != null;
+        assert connectionKeys != null;
+        assert livenessCheck != null;
+        assert tally != null;
+
+        // issue all commands before waiting for any of them, so that they are pipelined
+        Map<String, CompletableFuture<String>> createdAtByConnectionId = new HashMap<>();
+        for (String connectionKey : connectionKeys) {
+            createdAtByConnectionId.put(this.keyLayout.connectionId(connectionKey),
+                    connections.commands.hget(connectionKey, RedisKeyLayout.CREATED_AT)
+                            .toCompletableFuture());
+        }
+
+        return CompletableFuture.allOf(createdAtByConnectionId.values().toArray(CompletableFuture[]::new))
+                .thenCompose(v -> {
+                    List<String> staleConnectionIds = createdAtByConnectionId.entrySet()
+                            .stream()
+                            .filter(e -> isCreatedBefore(e.getValue().join(), createdBefore))
+                            .map(Map.Entry::getKey)
+                            .collect(Collectors.toList());
+                    tally.staleConnections.add(staleConnectionIds.size());
+
+                    // a connection whose liveness cannot be confirmed is kept
+                    Map<String, CompletableFuture<Boolean>> connectedByConnectionId = new HashMap<>();
+                    for (String connectionId : staleConnectionIds) {
+                        connectedByConnectionId.put(connectionId, livenessCheck.isConnected(connectionId)
+                                .exceptionally(throwable -> {
+                                    this.logger.warn("keeping connection '{}', its liveness check failed: {}",
+                                            connectionId, throwable.getMessage());
+                                    return true;
+                                }));
+                    }
+                    return CompletableFuture.allOf(connectedByConnectionId.values().toArray(CompletableFuture[]::new))
+                            .thenApply(w -> connectedByConnectionId);
+                })
+                .thenCompose(connectedByConnectionId -> {
+                    List<CompletableFuture<Boolean>> closures = new ArrayList<>();
+                    connectedByConnectionId.forEach((connectionId, connected) -> {
+                        if (connected.join()) {
+                            tally.liveConnections.increment();
+                            return;
+                        }
+                        closures.add(this.redis.written(this.cacheService.closeConnection(connections, connectionId, 1))
+                                .handle((closedSubscriptions, throwable) -> {
+                                    if (throwable != null) {
+                                        this.logger.warn("could not sweep connection '{}': {}", connectionId,
+                                                AsyncSubscriptionCacheService.unwrap(throwable).getMessage());
+                                        tally.failedConnections.increment();
+                                        return false;
+                                    }
+                                    tally.closedConnections.increment();
+                                    tally.reclaimedSubscriptions.add(closedSubscriptions.size());
+                                    closedSubscriptions.forEach(s ->
+                                            tally.reclaimedResourceEntries.add(s.getResources().size()));
+                                    return true;
+                                }));
+                    });
+
+                    return CompletableFuture.allOf(closures.toArray(CompletableFuture[]::new))
+                            .thenApply(w -> (int) closures.stream().filter(CompletableFuture::join).count());
+                });
+    }
+
+    /**
+     * Removes the subscriptions of the {@linkplain RedisAsyncSubscriptionCacheService#sweepExpiredConnections expired
+     * connections} from the denormalized cache, and returns a future of the number of subscriptions that were removed
+     * from a value.
+     * <p/>
+     * The denormalized cache is iterated with {@code SCAN}, in batches of about {@linkplain
+     * RedisCacheConfiguration#getSweepBatchSize the batch size}.  The values of a batch are read, the existence of the
+     * connections that they reference is checked in a single pipeline, and the subscriptions of the expired connections
+     * are removed with pipelined scripts, together with an {@linkplain SubscriptionEvent event} of each removal.  The
+     * sweep paces the batches like a {@linkplain #sweepOrphanedConnections sweep of orphaned connections}.
+     *
+     * @post return != null
+     */
+    CompletableFuture<Long> sweepExpiredConnections() {
+        LongAdder removedEntries = new LongAdder();
+
+        return this.redis.guarded(connections ->
+                        this.sweepExpiredConnections(connections, ScanCursor.INITIAL, removedEntries))
+                .thenApply(v -> {
+                    this.logger.info("removed {} subscriptions of expired connections", removedEntries.sum());
+                    return removedEntries.sum();
+                });
+    }
+
+    /**
+     * Scans the denormalized cache values that follow the given cursor with the given connections, and removes the
+     * subscriptions of the expired connections that they reference, until the scan is finished.  The number of
+     * removed subscriptions is added to the given adder.
+     *
+     * @pre connections != null
+     * @pre cursor != null
+     * @pre removedEntries != null
+     * @post return != null
+     */
+    private CompletableFuture<Void> sweepExpiredConnections(RedisConnections connections,
+                                                            ScanCursor cursor,
+                                                            LongAdder removedEntries) {
+        assert connections != null;
+        assert cursor != null;
+        assert removedEntries != null;
+
+        long startMillis = System.currentTimeMillis();
+        ScanArgs args = ScanArgs.Builder
+                .matches(RedisKeyLayout.RESOURCE_KEY_PATTERN)
+                .limit(this.configuration.getSweepBatchSize());
+
+        return connections.commands.scan(cursor, args).toCompletableFuture().thenCompose(scanned -> {
+            Set<String> resourceIds =
+                    RedisKeyLayout.resourceIds(scanned.getKeys(), this.configuration.getEventStream());
+
+            CompletableFuture<Integer> swept = resourceIds.isEmpty() ?
+                    CompletableFuture.completedFuture(0) :
+                    this.cacheService.getCacheValues(connections.commands, resourceIds).thenCompose(values ->
+                            this.removeExpiredConnections(connections, values, removedEntries));
+
+            return swept.thenCompose(expiredCount -> scanned.isFinished() ?
+                    CompletableFuture.completedFuture(null) :
+                    paced(startMillis, expiredCount, this.configuration.getSweepRate()).thenCompose(v ->
+                            this.sweepExpiredConnections(connections, scanned, removedEntries)));
+        });
+    }
+
+    /**
+     * Removes the subscriptions of the expired connections that the given denormalized cache values reference from
+     * those values, with the given connections.  Returns a future of the number of expired connections.  The number of
+     * removed subscriptions is added to the given adder.
+     *
+     * @pre connections != null
+     * @pre values != null
+     * @pre removedEntries != null
+     * @post return != null
+     */
+    private CompletableFuture<Integer> removeExpiredConnections(RedisConnections connections,
+                                                                Map<String, DenormalizedCacheValue> values,
+                                                                LongAdder removedEntries) {
+        assert connections != null;
+        assert values != null;
+        assert removedEntries != null;
+
+        RedisClusterAsyncCommands<String, String> commands = connections.commands;
+
+        // the subscription ids of each connection, keyed by the resource whose value references them
+        Map<String, Map<String, List<String>>> subscriptionIdsByResourceByConnectionId = new HashMap<>();
+        values.forEach((resourceId, value) -> value.getSubscriptionIdsByConnectionId().forEach(
+                (connectionId, subscriptionIds) -> subscriptionIdsByResourceByConnectionId
+                        .computeIfAbsent(connectionId, c -> new HashMap<>())
+                        .put(resourceId, List.copyOf(subscriptionIds))));
+
+        // issue all commands before waiting for any of them, so that they are pipelined
+        Map<String, CompletableFuture<Long>> existsByConnectionId = new HashMap<>();
+        for (String connectionId : subscriptionIdsByResourceByConnectionId.keySet()) {
+            existsByConnectionId.put(connectionId,
+                    commands.exists(this.keyLayout.connectionKey(connectionId)).toCompletableFuture());
+        }
+
+        return CompletableFuture.allOf(existsByConnectionId.values().toArray(CompletableFuture[]::new)).thenCompose(v -> {
+            List<String> expiredConnectionIds = existsByConnectionId.entrySet()
+                    .stream()
+                    .filter(e -> e.getValue().join() == 0)
+                    .map(Map.Entry::getKey)
+                    .collect(Collectors.toList());
+
+            List<CompletableFuture<Void>> removals = new ArrayList<>();
+            List<SubscriptionEvent> events = new ArrayList<>();
+            Set<String> modifiedResources = new HashSet<>();
+            for (String connectionId : expiredConnectionIds) {
+                Map<String, List<String>> subscriptionIdsByResource =
+                        subscriptionIdsByResourceByConnectionId.get(connectionId);
+                this.logger.info("removing the subscriptions of expired connection '{}' from {} resources",
+                        connectionId, subscriptionIdsByResource.size());
+
+                Map<String, Set<String>> resourcesBySubscriptionId = new HashMap<>();
+                subscriptionIdsByResource.forEach((resourceId, subscriptionIds) -> {
+                    removedEntries.add(subscriptionIds.size());
+                    subscriptionIds.forEach(s ->
+                            resourcesBySubscriptionId.computeIfAbsent(s, k -> new HashSet<>()).add(resourceId));
+                });
+                resourcesBySubscriptionId.forEach((subscriptionId, resources) -> events.add(new SubscriptionEvent(
+                        SubscriptionEvent.Type.REMOVED, connectionId, subscriptionId, resources)));
+
+                modifiedResources.addAll(subscriptionIdsByResource.keySet());
+                removals.add(this.cacheService.updateDenormalized(commands,
+                        this.cacheService.groupBySlot(subscriptionIdsByResource.keySet()),
+                        connectionId,
+                        r -> Collections.emptyList(),
+                        subscriptionIdsByResource::get));
+            }
+
+            if (this.configuration.isEvents() && !events.isEmpty()) {
+                removals.add(this.cacheService.appendEvents(commands, events));
+            }
+
+            CompletableFuture<Integer> removed = this.redis.written(CompletableFuture
+                    .allOf(removals.toArray(CompletableFuture[]::new))
+                    .thenApply(w -> expiredConnectionIds.size()));
+            return this.cacheService.invalidated(removed, modifiedResources);
+        });
+    }
+
+    /**
+     * Returns a future that completes once work that started at the given time, and processed the given number of
+     * connections or keys, has taken long enough to process no more than the given rate of them per second, e.g.
+     * {@linkplain RedisCacheConfiguration#getSweepRate the rate} of a sweep.
+     *
+     * @pre count >= 0
+     * @pre rate > 0
+     * @post return != null
+     */
+    static CompletableFuture<Void> paced(long startMillis, long count, int rate) {
+        assert count >= 0;
+        assert rate > 0;
+
+        long pauseMillis = count * 1000L / rate - (System.currentTimeMillis() - startMillis);
+        if (pauseMillis <= 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.runAsync(() -> { },
+                CompletableFuture.delayedExecutor(pauseMillis, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Returns whether the given creation time, as stored in a connection hash, is before the given time.  A missing or
+     * malformed creation time is never before it.
+     */
+    private static boolean isCreatedBefore(String createdAt, long time) {
+        if (createdAt == null) {
+            return false;
+        }
+        try {
+            return Long.parseLong(createdAt) < time;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * {@code SweepTally} counts the outcome of a sweep of orphaned connections, whose batches are closed concurrently.
+     */
+    private static final class SweepTally {
+
+        private final LongAdder scannedConnections = new LongAdder();
+        private final LongAdder staleConnections = new LongAdder();
+        private final LongAdder liveConnections = new LongAdder();
+        private final LongAdder closedConnections = new LongAdder();
+        private final LongAdder failedConnections = new LongAdder();
+        private final LongAdder reclaimedSubscriptions = new LongAdder();
+        private final LongAdder reclaimedResourceEntries = new LongAdder();
+
+        /**
+         * Returns a report of the counts of this tally.
+         *
+         * @post return != null
+         */
+        SweepReport report() {
+            return new SweepReport(this.scannedConnections.sum(),
+                    this.staleConnections.sum(),
+                    this.liveConnections.sum(),
+                    this.closedConnections.sum(),
+                    this.failedConnections.sum(),
+                    this.reclaimedSubscriptions.sum(),
+                    this.reclaimedResourceEntries.sum());
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.catapult.lds.service;
+
+import io.lettuce.core.AbstractRedisClient;
+import io.lettuce.core.api.StatefulConnection;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+
+/**
+ * {@code RedisConnections} contains the connections held by a {@link RedisConnectionHolder}, which are replaced
+ * together when they are re-established.
+ */
+final class RedisConnections {
+
+    /**
+     * The client that created the connections
+     *
+     * @invariant client != null
+     */
+    final AbstractRedisClient client;
+
+    /**
+     * Connection to AWS Elasticache redis cluster
+     *
+     * @invariant connection != null
+     */
+    final StatefulConnection<String, String> connection;
+
+    /**
+     * The asynchronous commands of {@link #connection}
+     *
+     * @invariant commands != null
+     */
+    final RedisClusterAsyncCommands<String, String> commands;
+
+    /**
+     * The asynchronous commands used for lookups that may be served by a replica.  Identical to {@link #commands}
+     * when replica reads are not configured.
+     *
+     * @invariant readCommands != null
+     */
+    final RedisClusterAsyncCommands<String, String> readCommands;
+
+    /**
+     * The asynchronous commands of the connection that tracks the keys read into the near cache, or null if no near
+     * cache is configured
+     */
+    final RedisClusterAsyncCommands<String, String> trackingCommands;
+
+    RedisConnections(AbstractRedisClient client,
+                     StatefulConnection<String, String> connection,
+                     RedisClusterAsyncCommands<String, String> commands,
+                     RedisClusterAsyncCommands<String, String> readCommands,
+                     RedisClusterAsyncCommands<String, String> trackingCommands) {
+        this.client = client;
+        this.connection = connection;
+        this.commands = commands;
+        this.readCommands = readCommands;
+        this.trackingCommands = trackingCommands;
+    }
+
+    /**
+     * Closes every connection, and shuts down the client and the resources that it created.
+     */
+    void close() {
+        this.client.shutdown();
+    }
+}
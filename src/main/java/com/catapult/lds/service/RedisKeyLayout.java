@@ -0,0 +1,93 @@
+package com.catapult.lds.service;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * {@code RedisKeyLayout} defines the keys under which the normalized cache is stored.
+ * <p/>
+ * When hash tags are enabled, the connection id of a connection key is wrapped in a {@code {hash tag}}, so that in a
+ * redis cluster every key derived from the same connection id is stored in the same slot and may be modified by a
+ * single script.
+ */
+final class RedisKeyLayout {
+
+    /**
+     * The namespace for a connection key
+     */
+    static final String CONNECTION_NAMESPACE = "$connection-id-";
+
+    /**
+     * The name of the field of a connection hash which has a value of the timestamp that the connection was created at
+     */
+    static final String CREATED_AT = "created_at";
+
+    /**
+     * The pattern matched by the keys scanned for denormalized cache values, which is that of a namespaced resource key
+     */
+    static final String RESOURCE_KEY_PATTERN = "*:*:*";
+
+    /**
+     * Whether connection ids are wrapped in hash tags
+     */
+    private final boolean hashTags;
+
+    RedisKeyLayout(boolean hashTags) {
+        this.hashTags = hashTags;
+    }
+
+    /**
+     * Returns the key of the given connection id
+     *
+     * @pre connectionId != null
+     * @post return != null
+     */
+    String connectionKey(String connectionId) {
+        assert connectionId != null;
+
+        return CONNECTION_NAMESPACE + this.tagged(connectionId);
+    }
+
+    /**
+     * Returns the connection id of the given connection key.
+     *
+     * @pre connectionKey != null
+     * @pre connectionKey.startsWith(CONNECTION_NAMESPACE)
+     * @post return != null
+     */
+    String connectionId(String connectionKey) {
+        assert connectionKey != null;
+        assert connectionKey.startsWith(CONNECTION_NAMESPACE);
+
+        String tagged = connectionKey.substring(CONNECTION_NAMESPACE.length());
+        return this.hashTags && tagged.startsWith("{") && tagged.endsWith("}") ?
+                tagged.substring(1, tagged.length() - 1) :
+                tagged;
+    }
+
+    /**
+     * Returns the keys of denormalized cache values among the given keys, which match the {@link
+     * #RESOURCE_KEY_PATTERN}, i.e. those that are neither connection keys nor the given event stream.
+     *
+     * @pre keys != null
+     * @post return != null
+     */
+    static Set<String> resourceIds(Collection<String> keys, String eventStream) {
+        assert keys != null;
+
+        return keys.stream()
+                .filter(k -> !k.startsWith(CONNECTION_NAMESPACE) && !k.equals(eventStream))
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * Returns the given connection id, wrapped in a hash tag if hash tags are enabled.
+     *
+     * @pre connectionId != null
+     * @post return != null
+     */
+    private String tagged(String connectionId) {
+        return this.hashTags ? "{" + connectionId + "}" : connectionId;
+    }
+}
@@ -0,0 +1,109 @@
+package com.catapult.lds.service;
+
+import io.lettuce.core.ScanArgs;
+import io.lettuce.core.ScanCursor;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@code RedisRoutingIndexLoader} {@linkplain #loadRoutingIndex loads} a {@link RoutingIndex} from the denormalized
+ * cache of a {@link RedisAsyncSubscriptionCacheService}.  Its scans are issued through the connection holder of the
+ * service.
+ */
+final class RedisRoutingIndexLoader {
+
+    /**
+     * The number of keys that each {@code SCAN} issued to load a routing index is hinted to return
+     */
+    private static final int ROUTING_INDEX_SCAN_COUNT = 1000;
+
+    /**
+     * The service whose denormalized cache is loaded
+     *
+     * @invariant cacheService != null
+     */
+    private final RedisAsyncSubscriptionCacheService cacheService;
+
+    /**
+     * The holder of the connections of {@link #cacheService}
+     *
+     * @invariant redis != null
+     */
+    private final RedisConnectionHolder redis;
+
+    /**
+     * The configuration of {@link #cacheService}
+     *
+     * @invariant configuration != null
+     */
+    private final RedisCacheConfiguration configuration;
+
+    /**
+     * Creates a {@code RedisRoutingIndexLoader} of the denormalized cache of the given service, whose connections are
+     * held by the given holder.
+     *
+     * @pre cacheService != null
+     * @pre connectionHolder != null
+     */
+    RedisRoutingIndexLoader(RedisAsyncSubscriptionCacheService cacheService, RedisConnectionHolder connectionHolder) {
+        assert cacheService != null;
+        assert connectionHolder != null;
+
+        this.cacheService = cacheService;
+        this.redis = connectionHolder;
+        this.configuration = cacheService.getConfiguration();
+    }
+
+    /**
+     * Returns a future of a {@link RoutingIndex} of every denormalized cache value.
+     * <p/>
+     * The keyspace is iterated with {@code SCAN}, matching the {@linkplain RedisKeyLayout#RESOURCE_KEY_PATTERN pattern
+     * of a namespaced resource key}, and the values of each batch of keys are read before the next batch is scanned, so
+     * that the load adds little to the load of redis.  Connection keys and the event stream are skipped.  The scan is
+     * issued on the primary, since the cursor of a scan is only valid on the node that returned it.
+     *
+     * @post return != null
+     */
+    CompletableFuture<RoutingIndex> loadRoutingIndex() {
+        return this.redis.guarded(connections -> {
+            RoutingIndex.Builder builder = RoutingIndex.builder();
+            return this.scanRoutingIndex(connections.commands, ScanCursor.INITIAL, builder)
+                    .thenApply(v -> builder.build());
+        });
+    }
+
+    /**
+     * Scans the keys that follow the given cursor with the given commands, and adds the subscriptions of the
+     * denormalized cache values of the scanned resource keys to the given builder, until the scan is finished.
+     *
+     * @pre asyncCommands != null
+     * @pre cursor != null
+     * @pre builder != null
+     * @post return != null
+     */
+    private CompletableFuture<Void> scanRoutingIndex(RedisClusterAsyncCommands<String, String> asyncCommands,
+                                                     ScanCursor cursor,
+                                                     RoutingIndex.Builder builder) {
+        assert asyncCommands != null;
+        assert cursor != null;
+        assert builder != null;
+
+        ScanArgs args = ScanArgs.Builder.matches(RedisKeyLayout.RESOURCE_KEY_PATTERN).limit(ROUTING_INDEX_SCAN_COUNT);
+        return asyncCommands.scan(cursor, args).toCompletableFuture().thenCompose(scanned -> {
+            Set<String> resourceIds =
+                    RedisKeyLayout.resourceIds(scanned.getKeys(), this.configuration.getEventStream());
+
+            // the builder is only accessed by one batch at a time, as the next batch is scanned after it is loaded
+            CompletableFuture<Void> loaded = resourceIds.isEmpty() ?
+                    CompletableFuture.completedFuture(null) :
+                    this.cacheService.getCacheValues(asyncCommands, resourceIds)
+                            .thenAccept(values -> values.forEach(builder::add));
+
+            return scanned.isFinished() ?
+                    loaded :
+                    loaded.thenCompose(v -> this.scanRoutingIndex(asyncCommands, scanned, builder));
+        });
+    }
+}
@@ -0,0 +1,190 @@
+package com.catapult.lds.service;
+
+import io.lettuce.core.RedisNoScriptException;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.api.async.RedisScriptingAsyncCommands;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * {@code RedisScript} enumerates the lua scripts that are executed server side by the {@link
+ * RedisSubscriptionCacheService}.  The source of each script is read from the classpath, prefixed with the functions of
+ * the shared {@linkplain Libraries libraries}, and its SHA1 digest is computed once so that every invocation only needs to
+ * send the digest to redis.
+ */
+enum RedisScript {
+
+    /**
+     * Creates a connection in the normalized cache, and sets the time to live of its key.
+     */
+    CREATE_CONNECTION("create_connection.lua"),
+
+    /**
+     * Validates and adds a subscription to the normalized and denormalized caches.
+     */
+    ADD_SUBSCRIPTION("add_subscription.lua"),
+
+    /**
+     * Validates and adds several subscriptions of one connection to the normalized and denormalized caches.
+     */
+    ADD_SUBSCRIPTIONS("add_subscriptions.lua"),
+
+    /**
+     * Removes a subscription from the normalized and denormalized caches.
+     */
+    CANCEL_SUBSCRIPTION("cancel_subscription.lua"),
+
+    /**
+     * Replaces the resources of a subscription in the normalized cache, and updates the added and removed resources in
+     * the denormalized cache.
+     */
+    MODIFY_SUBSCRIPTION("modify_subscription.lua"),
+
+    /**
+     * Removes a connection and all of its subscriptions from the normalized and denormalized caches.
+     */
+    CLOSE_CONNECTION("close_connection.lua"),
+
+    /**
+     * Adds subscription ids to, and removes subscription ids from, a connection in the denormalized cache.
+     */
+    UPDATE_DENORMALIZED("update_denormalized.lua");
+
+    /**
+     * The classpath location of all lua scripts
+     */
+    private static final String SCRIPT_PATH = "/lua/";
+
+    /**
+     * The source of this script
+     *
+     * @invariant source != null
+     */
+    private final String source;
+
+    /**
+     * The SHA1 digest of this script, as used by {@code EVALSHA}.
+     *
+     * @invariant sha != null
+     */
+    private final String sha;
+
+    RedisScript(String fileName) {
+        StringBuilder source = new StringBuilder();
+        for (String library : Libraries.NAMES) {
+            source.append(readSource(SCRIPT_PATH + library));
+        }
+        this.source = source.append(readSource(SCRIPT_PATH + fileName)).toString();
+        this.sha = sha1Hex(this.source);
+    }
+
+    /**
+     * Loads every script into the script cache of the redis instance behind the given commands.  The returned future
+     * completes once all scripts have been loaded.
+     *
+     * @pre commands != null
+     * @post return != null
+     */
+    static CompletableFuture<Void> loadAll(RedisScriptingAsyncCommands<String, String> commands) {
+        assert commands != null;
+
+        return CompletableFuture.allOf(Arrays.stream(values())
+                .map(script -> commands.scriptLoad(script.source)
+                        .thenAccept(loadedSha -> {
+                            assert script.sha.equals(loadedSha);
+                        })
+                        .toCompletableFuture())
+                .toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * Executes this script with {@code EVALSHA}.  If the script is not present in the script cache (e.g. after a
+     * failover or a {@code SCRIPT FLUSH}) it is loaded and the call is retried once.
+     *
+     * @pre commands != null
+     * @pre outputType != null
+     * @pre keys != null
+     * @pre args != null
+     * @post return != null
+     */
+    <T> CompletableFuture<T> execute(RedisScriptingAsyncCommands<String, String> commands,
+                                     ScriptOutputType outputType,
+                                     String[] keys,
+                                     String... args) {
+        assert commands != null;
+        assert outputType != null;
+        assert keys != null;
+        assert args != null;
+
+        return commands.<T>evalsha(this.sha, outputType, keys, args)
+                .toCompletableFuture()
+                .handle((result, throwable) -> {
+                    if (throwable == null) {
+                        return CompletableFuture.completedFuture(result);
+                    }
+                    if (AsyncSubscriptionCacheService.unwrap(throwable) instanceof RedisNoScriptException) {
+                        return commands.scriptLoad(this.source)
+                                .thenCompose(loadedSha -> commands.<T>evalsha(this.sha, outputType, keys, args))
+                                .toCompletableFuture();
+                    }
+                    return CompletableFuture.<T>failedFuture(throwable);
+                })
+                .thenCompose(Function.identity());
+    }
+
+    /**
+     * Returns the contents of the given classpath resource.
+     *
+     * @pre path != null
+     * @post return != null
+     */
+    private static String readSource(String path) {
+        try (InputStream inputStream = RedisScript.class.getResourceAsStream(path)) {
+            if (inputStream == null) {
+                throw new IllegalStateException(String.format("Script '%s' not found on the classpath", path));
+            }
+            return new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the lowercase hex encoded SHA1 digest of the given script source.
+     *
+     * @pre source != null
+     * @post return != null
+     */
+    private static String sha1Hex(String source) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(source.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e.getMessage());
+        }
+    }
+
+    /**
+     * {@code Libraries} holds the names of the libraries whose functions are available to every script.  An enum
+     * constructor may not refer to the static fields of its own enum, which are initialized after its constants.
+     */
+    private static final class Libraries {
+
+        /**
+         * The names of the libraries, in the order that they are prefixed to a script
+         */
+        private static final String[] NAMES = {"denormalized.lua", "events.lua"};
+    }
+}
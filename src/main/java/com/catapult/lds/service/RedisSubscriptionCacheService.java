@@ -1,24 +1,15 @@
 package com.catapult.lds.service;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import io.lettuce.core.RedisClient;
 import io.lettuce.core.RedisURI;
-import io.lettuce.core.api.StatefulRedisConnection;
-import io.lettuce.core.api.sync.RedisCommands;
-import io.lettuce.core.api.sync.RedisHashCommands;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * {@code RedisSubscriptionCacheService} is an implementation of {@code SubscriptionCacheService} that is backed by a
- * redis instance.
+ * redis instance.  It is a blocking view of a {@link RedisAsyncSubscriptionCacheService}, which issues all commands.
  */
 public class RedisSubscriptionCacheService implements SubscriptionCacheService {
 
@@ -27,7 +18,8 @@ public class RedisSubscriptionCacheService implements SubscriptionCacheService {
      *
      * @invariant instance != null
      */
-    public static final SubscriptionCacheService instance = new RedisSubscriptionCacheService();
+    public static final SubscriptionCacheService instance =
+            new RedisSubscriptionCacheService(RedisAsyncSubscriptionCacheService.instance);
 
     /**
      * The name of the environment variable which has a value of the url of the redis cluster.
@@ -40,59 +32,51 @@ public class RedisSubscriptionCacheService implements SubscriptionCacheService {
     public static final String LDS_REDIS_PORT_ENV = "LDS_REDIS_PORT";
 
     /**
-     * The name of the key which has a value of the timestamp that a hash value was created at.
+     * The name of the environment variable which has a value of the {@linkplain DenormalizedCacheFormat#value format}
+     * of the denormalized cache.  Defaults to {@link DenormalizedCacheFormat#JSON} when not defined.
      */
-    private static final String CREATED_AT = "created_at";
+    public static final String LDS_DENORMALIZED_FORMAT_ENV = "LDS_DENORMALIZED_FORMAT";
 
     /**
-     * The object mapper used by this service.
+     * The asynchronous cache service that all operations are delegated to
      *
-     * @invariant objectMapper != null
+     * @invariant asyncCacheService != null
      */
-    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private final AsyncSubscriptionCacheService asyncCacheService;
 
     /**
-     * The namespace for a connection key
-     */
-    private static final String CONNECTION_NAMESPACE = "$connection-id-";
-
-    /**
-     * Connection to AWS Elasticache redis cluster
+     * Creates a {@code RedisSubscriptionCacheService} that blocks on the results of the given asynchronous cache
+     * service.
      *
-     * @invariant redisClient != null
+     * @pre asyncCacheService != null
      */
-    private final StatefulRedisConnection<String, String> redisClient;
+    RedisSubscriptionCacheService(AsyncSubscriptionCacheService asyncCacheService) {
+        assert asyncCacheService != null;
+
+        this.asyncCacheService = asyncCacheService;
+    }
 
     /**
-     * The logger used by this cache service.
+     * Creates a {@code RedisSubscriptionCacheService} with the given configuration.
      *
-     * @invariant logger != null
+     * @pre configuration != null
      */
-    private final Logger logger = LoggerFactory.getLogger(RedisSubscriptionCacheService.class);
-
-    private RedisSubscriptionCacheService() {
-
-        String host = System.getenv(RedisSubscriptionCacheService.LDS_REDIS_HOST_ENV);
-        String port = System.getenv(RedisSubscriptionCacheService.LDS_REDIS_PORT_ENV);
-        RedisURI redisURI = RedisURI.create(host, Integer.parseInt(port));
-
-        this.redisClient = RedisClient.create(redisURI).connect();
+    public RedisSubscriptionCacheService(RedisCacheConfiguration configuration) {
+        this(new RedisAsyncSubscriptionCacheService(configuration));
     }
 
     /**
-     * Helper method that converts the given set of strings to a stringified json array.
+     * Creates a {@code RedisSubscriptionCacheService} connected to the given redis instance that writes denormalized
+     * cache values in the given format.
      *
-     * @pre set != null
-     * @post return != null
-     */
-    static String setToJsonString(Set<String> set) {
-        assert set != null;
-
-        try {
-            return objectMapper.writeValueAsString(set);
-        } catch (JsonProcessingException e) {
-            throw new AssertionError(e.getMessage());
-        }
+     * @pre redisURI != null
+     * @pre denormalizedCacheFormat != null
+     */
+    RedisSubscriptionCacheService(RedisURI redisURI, DenormalizedCacheFormat denormalizedCacheFormat) {
+        this(new RedisAsyncSubscriptionCacheService(RedisCacheConfiguration.builder()
+                .redisURI(redisURI)
+                .denormalizedCacheFormat(denormalizedCacheFormat)
+                .build()));
     }
 
     /**
@@ -100,7 +84,7 @@ public class RedisSubscriptionCacheService implements SubscriptionCacheService {
      */
     @Override
     public boolean isConnected() {
-        return this.redisClient.isOpen();
+        return this.asyncCacheService.isConnected();
     }
 
     /**
@@ -108,19 +92,7 @@ public class RedisSubscriptionCacheService implements SubscriptionCacheService {
      */
     @Override
     public void createConnection(String connectionId) throws SubscriptionException {
-        assert connectionId != null;
-
-        this.logger.info("creating connection '{}' ", connectionId);
-
-        RedisHashCommands<String, String> syncCommands = this.redisClient.sync();
-
-        String connectionKey = this.connectionIdToKey(connectionId);
-        boolean success = syncCommands.hsetnx(connectionKey, CREATED_AT, "" + System.currentTimeMillis());
-
-        if (!success) {
-            throw new SubscriptionException(String.format("Connection '%s' already exists in the cache.",
-                    connectionId));
-        }
+        AsyncSubscriptionCacheService.join(this.asyncCacheService.createConnection(connectionId));
     }
 
     /**
@@ -128,56 +100,23 @@ public class RedisSubscriptionCacheService implements SubscriptionCacheService {
      */
     @Override
     public boolean connectionExists(String connectionId) {
-        assert connectionId != null;
-        String connectionKey = this.connectionIdToKey(connectionId);
-
-        RedisCommands<String, String> syncCommands = this.redisClient.sync();
-
-        return syncCommands.exists(connectionKey) > 0;
+        return joinUnchecked(this.asyncCacheService.connectionExists(connectionId));
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void closeConnection(String connectionId) throws SubscriptionException {
-        assert connectionId != null;
-
-        this.logger.info("closing connection {} ", connectionId);
-
-        RedisCommands<String, String> syncCommands = this.redisClient.sync();
-
-        String connectionKey = this.connectionIdToKey(connectionId);
-        if (syncCommands.exists(connectionKey) == 0) {
-            throw new SubscriptionException(String.format("Connection '%s' does not exist in the cache.",
-                    connectionId));
-        }
-
-        Set<String> remainingSubscriptionIds = syncCommands.hkeys(connectionKey)
-                .stream()
-                .filter(k -> !CREATED_AT.equals(k))
-                .collect(Collectors.toSet());
-
-        this.logger.info("removing all remaining subscriptions {} ", remainingSubscriptionIds);
-
-        remainingSubscriptionIds.forEach(k -> this.cancelSubscriptionInternal(connectionId, k)); // cancel all remaining subscriptions
-
-        syncCommands.del(connectionKey);
+    public void heartbeat(String connectionId) throws SubscriptionException {
+        AsyncSubscriptionCacheService.join(this.asyncCacheService.heartbeat(connectionId));
     }
 
     /**
-     * {@linkplain #cancelSubscription Cancels} the subscription identified by the given connection id and subscription
-     * id, suppressing the exception when a connection is not found.
-     *
-     * @pre connectionId != null
-     * @pre subscriptionId != null
+     * {@inheritDoc}
      */
-    private void cancelSubscriptionInternal(String connectionId, String subscriptionId) {
-        try {
-            this.cancelSubscription(connectionId, subscriptionId);
-        } catch (SubscriptionException e) {
-            // ignore this exception
-        }
+    @Override
+    public void closeConnection(String connectionId) throws SubscriptionException {
+        AsyncSubscriptionCacheService.join(this.asyncCacheService.closeConnection(connectionId));
     }
 
     /**
@@ -185,52 +124,15 @@ public class RedisSubscriptionCacheService implements SubscriptionCacheService {
      */
     @Override
     public void addSubscription(Subscription subscription) throws SubscriptionException {
-        assert subscription != null;
-
-        RedisCommands<String, String> syncCommands = this.redisClient.sync();
-
-        String connectionId = subscription.getConnectionId();
-        String subscriptionId = subscription.getId();
-        String connectionKey = this.connectionIdToKey(connectionId);
-
-        this.logger.info("creating subscription '{}' for connection '{}'", subscriptionId, connectionId);
-
-        if (syncCommands.exists(connectionKey) == 0) {
-            throw new SubscriptionException(String.format("Connection '%s' does not exist in the cache.",
-                    connectionId));
-        }
-        if (syncCommands.hexists(connectionKey, subscriptionId)) {
-            throw new SubscriptionException(String.format("subscription '%s' for connection `%s` already exists in " +
-                    "the cache.", subscriptionId, connectionId));
-        }
-
-        // add subscription to connection hash
-        syncCommands.hset(connectionKey, subscriptionId, setToJsonString(subscription.getResources()));
-
-        // DENORMALIZED CACHE UPDATE
-
-        // get connections for all resources in the new subscription
-        Map<String, DenormalizedCacheValue> connectionsByResourceId =
-                this.getDenormalizedConnectionsForResourceIds(subscription.getResources());
-
-        // add the subscription to each of the denormalized cache values:
-        connectionsByResourceId.values().forEach(v -> v.addSubscription(connectionId, subscriptionId));
-
-        // store the updated denormalized cache
-        Map<String, String> request = connectionsByResourceId
-                .entrySet()
-                .stream()
-                .collect(Collectors.toMap(
-                        kv -> kv.getKey(),
-                        kv -> kv.getValue().getSerializedConnectionList())
-                );
-
-        // if there are name-spaced resources that were not initially associated with a connection, add them now.
-        if (connectionsByResourceId.size() > 0) {
-            syncCommands.mset(request);
-        }
+        AsyncSubscriptionCacheService.join(this.asyncCacheService.addSubscription(subscription));
+    }
 
-        this.logger.debug("sending request to cache: {}", request);
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addSubscriptions(Collection<Subscription> subscriptions) throws SubscriptionException {
+        AsyncSubscriptionCacheService.join(this.asyncCacheService.addSubscriptions(subscriptions));
     }
 
     /**
@@ -238,76 +140,17 @@ public class RedisSubscriptionCacheService implements SubscriptionCacheService {
      */
     @Override
     public void cancelSubscription(String connectionId, String subscriptionId) throws SubscriptionException {
-        assert connectionId != null;
-        assert subscriptionId != null;
-
-        RedisCommands<String, String> syncCommands = this.redisClient.sync();
-
-        String connectionKey = this.connectionIdToKey(connectionId);
-
-        this.logger.debug("cancelling subscription '{}' for connection '{}'", subscriptionId, connectionId);
-
-        // adjust denormalized cache here
-
-        Subscription subscription = this.getSubscription(connectionId, subscriptionId);
-
-        // no work to do if subscription cannot be found
-        if (subscription == null) {
-            return;
-        }
-
-        Set<String> resources = subscription.getResources();
-
-        if (!resources.isEmpty()) {
-            Map<String, DenormalizedCacheValue> denormalizedCacheValuesByResourceId =
-                    syncCommands.mget(resources.toArray(String[]::new))
-                            .stream()
-                            .collect(Collectors.toMap(
-                                    kv -> kv.getKey(),
-                                    kv -> DenormalizedCacheValue.deserializeFromJson(kv.getKey(), kv.getValue())));
-
-            this.logger.trace("denormalizedCacheValuesByResourceId: {}", denormalizedCacheValuesByResourceId);
-
-            denormalizedCacheValuesByResourceId.values()
-                    .forEach(v -> v.removeSubscription(connectionId, subscriptionId));
-
-            this.logger.trace("resources: {} ", denormalizedCacheValuesByResourceId);
-
-            // get the set of empty resources to delete
-            Set<String> resourcesToDelete = denormalizedCacheValuesByResourceId.entrySet()
-                    .stream()
-                    .filter(es -> es.getValue().isEmpty())
-                    .map(es -> es.getKey())
-                    .collect(Collectors.toSet());
-
-            this.logger.trace("resourcesToDelete: {} ", resourcesToDelete);
-
-            // build the map of modified resources
-            Map<String, String> resourcesToModify =
-                    denormalizedCacheValuesByResourceId.entrySet()
-                            .stream()
-                            .filter(es -> !resourcesToDelete.contains(es.getKey()))
-                            .collect(Collectors.toMap(
-                                    es -> es.getKey(),
-                                    es -> es.getValue().getSerializedConnectionList()));
-
-            // remove denormalized connections from a device if the list of subscriptions is empty
-
-            this.logger.trace("modifiedResources: {} " + resourcesToModify);
-
-            // delete resource cache
-            if (resourcesToDelete.size() > 0) {
-                syncCommands.del(resourcesToDelete.toArray(String[]::new));
-            }
-
-            // modify resource cache entries
-            if (resourcesToModify.size() > 0) {
-                syncCommands.mset(resourcesToModify);
-            }
-
-        }
+        AsyncSubscriptionCacheService.join(this.asyncCacheService.cancelSubscription(connectionId, subscriptionId));
+    }
 
-        syncCommands.hdel(connectionKey, subscriptionId);
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void modifySubscription(String connectionId, String subscriptionId, Set<String> resources)
+            throws SubscriptionException {
+        AsyncSubscriptionCacheService.join(this.asyncCacheService.modifySubscription(connectionId, subscriptionId,
+                resources));
     }
 
     /**
@@ -315,22 +158,7 @@ public class RedisSubscriptionCacheService implements SubscriptionCacheService {
      */
     @Override
     public Collection<Subscription> getSubscriptions(String connectionId) throws SubscriptionException {
-        assert connectionId != null;
-
-        RedisCommands<String, String> syncCommands = this.redisClient.sync();
-
-        String connectionKey = this.connectionIdToKey(connectionId);
-
-        Map<String, String> resourceListsBySubscriptionId = syncCommands.hgetall(connectionKey);
-        if (resourceListsBySubscriptionId.isEmpty()) {
-            throw new SubscriptionException(String.format("Connection '%s' does not exist in the cache", connectionId));
-        }
-
-        return resourceListsBySubscriptionId.entrySet()
-                .stream()
-                .filter(e -> !CREATED_AT.equals(e.getKey()))
-                .map(e -> new Subscription(connectionId, e.getKey(), e.getValue()))
-                .collect(Collectors.toSet());
+        return AsyncSubscriptionCacheService.join(this.asyncCacheService.getSubscriptions(connectionId));
     }
 
     /**
@@ -338,51 +166,36 @@ public class RedisSubscriptionCacheService implements SubscriptionCacheService {
      */
     @Override
     public Subscription getSubscription(String connectionId, String subscriptionId) {
-        assert connectionId != null;
-        assert subscriptionId != null;
-
-        RedisCommands<String, String> syncCommands = this.redisClient.sync();
-
-        String connectionKey = this.connectionIdToKey(connectionId);
-        String resourceJson = syncCommands.hget(connectionKey, subscriptionId);
-
-        return resourceJson == null ? null : new Subscription(connectionId, subscriptionId, resourceJson);
+        return joinUnchecked(this.asyncCacheService.getSubscription(connectionId, subscriptionId));
     }
 
     /**
      * {@inheritDoc}
      */
+    @Override
     public Map<String, DenormalizedCacheValue> getDenormalizedConnectionsForResourceIds(Set<String> resourceIds) {
-        assert resourceIds != null;
-
-        if (resourceIds.isEmpty()) return Collections.emptyMap();
-
-        RedisCommands<String, String> syncCommands = this.redisClient.sync();
-
-        Map<String, DenormalizedCacheValue> connectionsByResourceId =
-                syncCommands.mget(resourceIds.toArray(String[]::new))
-                        .stream()
-                        .collect(Collectors.toMap(
-                                kv -> kv.getKey(),
-                                kv -> kv.isEmpty() ?
-                                        DenormalizedCacheValue.deserializeFromJson(kv.getKey(), "[]") :
-                                        DenormalizedCacheValue.deserializeFromJson(kv.getKey(), kv.getValue()))
-                        );
-
-        assert resourceIds.size() == connectionsByResourceId.size();
+        return joinUnchecked(this.asyncCacheService.getDenormalizedConnectionsForResourceIds(resourceIds));
+    }
 
-        return connectionsByResourceId;
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Set<String>> resolveRecipients(Set<String> resourceIds) {
+        return joinUnchecked(this.asyncCacheService.resolveRecipients(resourceIds));
     }
 
     /**
-     * Returns the key of the given connection id
+     * {@linkplain AsyncSubscriptionCacheService#join Joins} the given future of an operation that does not fail with a
+     * {@code SubscriptionException}.
      *
-     * @pre connectionId != null
-     * @post return != null
+     * @pre future != null
      */
-    private String connectionIdToKey(String connectionId) {
-        assert connectionId != null;
-
-        return CONNECTION_NAMESPACE + connectionId;
+    private static <T> T joinUnchecked(CompletableFuture<T> future) {
+        try {
+            return AsyncSubscriptionCacheService.join(future);
+        } catch (SubscriptionException e) {
+            throw new AssertionError(e.getMessage());
+        }
     }
 }
@@ -0,0 +1,363 @@
+package com.catapult.lds.service;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@code RoutingIndex} is an immutable, compact snapshot of the denormalized cache, from which a publisher resolves the
+ * recipients of a batch of data points in process.
+ * <p/>
+ * Connection ids and subscription ids are interned to ints, in the order that they are first added, and every
+ * subscription refers to the int of its connection.  The subscriptions of each resource are held in a sorted array of
+ * the ints of the subscriptions, which costs four bytes per subscription of a resource rather than the two strings of a
+ * {@link DenormalizedCacheValue}.  The union of the subscriptions of many resources is computed over the ints: small
+ * unions are merged in a scratch array, and large ones in a {@link BitSet} of all subscriptions.
+ * <p/>
+ * Unlike a {@link RoutingTable}, an index is not modified once built.  It is {@linkplain
+ * RedisAsyncSubscriptionCacheService#loadRoutingIndex loaded} from a scan of the denormalized cache, or built with a
+ * {@link Builder}, and is rebuilt to observe later modifications.
+ */
+public final class RoutingIndex {
+
+    /**
+     * The empty array of subscriptions of a resource that has none
+     */
+    private static final int[] NO_SUBSCRIPTIONS = new int[0];
+
+    /**
+     * The ratio of the number of subscriptions to the number of candidate members of a union below which the union is
+     * merged in a sorted array rather than in a bit set
+     */
+    private static final int BITSET_THRESHOLD = 64;
+
+    /**
+     * The connection ids, indexed by their int
+     *
+     * @invariant connectionIds != null
+     */
+    private final String[] connectionIds;
+
+    /**
+     * The subscription ids, indexed by their int
+     *
+     * @invariant subscriptionIds != null
+     */
+    private final String[] subscriptionIds;
+
+    /**
+     * The int of the connection of each subscription, indexed by the int of the subscription
+     *
+     * @invariant connectionOfSubscription.length == subscriptionIds.length
+     */
+    private final int[] connectionOfSubscription;
+
+    /**
+     * The sorted, distinct ints of the subscriptions of each resource
+     *
+     * @invariant subscriptionsByResource != null
+     */
+    private final Map<String, int[]> subscriptionsByResource;
+
+    /**
+     * The number of subscriptions of all resources
+     */
+    private final long edgeCount;
+
+    private RoutingIndex(String[] connectionIds,
+                         String[] subscriptionIds,
+                         int[] connectionOfSubscription,
+                         Map<String, int[]> subscriptionsByResource) {
+        assert connectionIds != null;
+        assert subscriptionIds != null;
+        assert connectionOfSubscription != null;
+        assert connectionOfSubscription.length == subscriptionIds.length;
+        assert subscriptionsByResource != null;
+
+        this.connectionIds = connectionIds;
+        this.subscriptionIds = subscriptionIds;
+        this.connectionOfSubscription = connectionOfSubscription;
+        this.subscriptionsByResource = subscriptionsByResource;
+        this.edgeCount = subscriptionsByResource.values().stream().mapToLong(s -> s.length).sum();
+    }
+
+    /**
+     * Returns a new, empty {@code Builder}.
+     *
+     * @post return != null
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Returns the sorted, distinct ints of the subscriptions to any of the given resource ids.
+     *
+     * @pre resourceIds != null
+     * @post return != null
+     */
+    public int[] union(Collection<String> resourceIds) {
+        assert resourceIds != null;
+
+        int candidateCount = 0;
+        int[][] members = new int[resourceIds.size()][];
+        int resourceCount = 0;
+        for (String resourceId : resourceIds) {
+            int[] subscriptions = this.subscriptionsByResource.getOrDefault(resourceId, NO_SUBSCRIPTIONS);
+            if (subscriptions.length > 0) {
+                members[resourceCount++] = subscriptions;
+                candidateCount += subscriptions.length;
+            }
+        }
+
+        if (resourceCount == 0) {
+            return NO_SUBSCRIPTIONS;
+        }
+        if (resourceCount == 1) {
+            return members[0].clone();
+        }
+
+        // a bit set costs a bit per subscription of the index, so small unions are merged in an array instead
+        if ((long) candidateCount * BITSET_THRESHOLD < this.subscriptionIds.length) {
+            int[] candidates = new int[candidateCount];
+            int position = 0;
+            for (int i = 0; i < resourceCount; i++) {
+                System.arraycopy(members[i], 0, candidates, position, members[i].length);
+                position += members[i].length;
+            }
+            return distinct(candidates);
+        }
+
+        BitSet union = new BitSet(this.subscriptionIds.length);
+        for (int i = 0; i < resourceCount; i++) {
+            for (int subscription : members[i]) {
+                union.set(subscription);
+            }
+        }
+        return union.stream().toArray();
+    }
+
+    /**
+     * Returns the recipients of the given resource ids: the ids of the subscriptions to any of the resource ids, keyed
+     * by the id of their connection, as {@linkplain AsyncSubscriptionCacheService#resolveRecipients resolved} by the
+     * cache service.
+     *
+     * @pre resourceIds != null
+     * @post return != null
+     */
+    public Map<String, Set<String>> resolveRecipients(Collection<String> resourceIds) {
+        assert resourceIds != null;
+
+        Map<String, Set<String>> subscriptionIdsByConnectionId = new HashMap<>();
+        for (int subscription : this.union(resourceIds)) {
+            subscriptionIdsByConnectionId.computeIfAbsent(this.connectionId(this.connectionOf(subscription)),
+                    c -> new HashSet<>(2)).add(this.subscriptionIds[subscription]);
+        }
+        return subscriptionIdsByConnectionId;
+    }
+
+    /**
+     * Returns the int of the connection of the subscription with the given int.
+     *
+     * @pre 0 <= subscription && subscription < getSubscriptionCount()
+     * @post 0 <= return && return < getConnectionCount()
+     */
+    public int connectionOf(int subscription) {
+        return this.connectionOfSubscription[subscription];
+    }
+
+    /**
+     * Returns the id of the connection with the given int.
+     *
+     * @pre 0 <= connection && connection < getConnectionCount()
+     * @post return != null
+     */
+    public String connectionId(int connection) {
+        return this.connectionIds[connection];
+    }
+
+    /**
+     * Returns the id of the subscription with the given int.
+     *
+     * @pre 0 <= subscription && subscription < getSubscriptionCount()
+     * @post return != null
+     */
+    public String subscriptionId(int subscription) {
+        return this.subscriptionIds[subscription];
+    }
+
+    /**
+     * Returns the number of resources with at least one subscription
+     */
+    public int getResourceCount() {
+        return this.subscriptionsByResource.size();
+    }
+
+    /**
+     * Returns the number of interned connection ids
+     */
+    public int getConnectionCount() {
+        return this.connectionIds.length;
+    }
+
+    /**
+     * Returns the number of interned subscription ids
+     */
+    public int getSubscriptionCount() {
+        return this.subscriptionIds.length;
+    }
+
+    /**
+     * Returns the number of subscriptions of all resources, i.e. the number of edges between a resource and a
+     * subscription
+     */
+    public long getEdgeCount() {
+        return this.edgeCount;
+    }
+
+    /**
+     * Returns the sorted, distinct values of the given array, which is sorted in place.
+     *
+     * @pre values != null
+     * @post return != null
+     */
+    private static int[] distinct(int[] values) {
+        assert values != null;
+
+        if (values.length == 0) {
+            return values;
+        }
+
+        Arrays.sort(values);
+        int count = 1;
+        for (int i = 1; i < values.length; i++) {
+            if (values[i] != values[count - 1]) {
+                values[count++] = values[i];
+            }
+        }
+        return count == values.length ? values : Arrays.copyOf(values, count);
+    }
+
+    /**
+     * {@code Builder} collects the subscriptions of each resource and interns their ids.  A builder is not thread safe.
+     */
+    public static final class Builder {
+
+        /**
+         * The int of each interned connection id
+         */
+        private final Map<String, Integer> connections = new HashMap<>();
+
+        /**
+         * The int of each interned subscription id
+         */
+        private final Map<String, Integer> subscriptions = new HashMap<>();
+
+        /**
+         * The int of the connection of each subscription, indexed by the int of the subscription
+         */
+        private int[] connectionOfSubscription = new int[16];
+
+        /**
+         * The ints of the subscriptions of each resource, which are sorted and made distinct when built.  The first
+         * element of each array is the number of ints that follow it.
+         */
+        private final Map<String, int[]> subscriptionsByResource = new HashMap<>();
+
+        private Builder() {
+        }
+
+        /**
+         * Adds the subscription with the given id, of the connection with the given id, to the resource with the given
+         * id.
+         *
+         * @pre resourceId != null
+         * @pre connectionId != null
+         * @pre subscriptionId != null
+         * @post return == this
+         */
+        public Builder add(String resourceId, String connectionId, String subscriptionId) {
+            assert resourceId != null;
+            assert connectionId != null;
+            assert subscriptionId != null;
+
+            int subscription = this.intern(connectionId, subscriptionId);
+            this.subscriptionsByResource.compute(resourceId, (r, members) -> {
+                int[] updated = members == null ? new int[3] : members;
+                int count = updated[0];
+                if (count + 1 == updated.length) {
+                    updated = Arrays.copyOf(updated, updated.length * 2);
+                }
+                updated[count + 1] = subscription;
+                updated[0] = count + 1;
+                return updated;
+            });
+            return this;
+        }
+
+        /**
+         * Adds the subscriptions of the given denormalized cache value to the resource with the given id.
+         *
+         * @pre resourceId != null
+         * @pre value != null
+         * @post return == this
+         */
+        public Builder add(String resourceId, DenormalizedCacheValue value) {
+            assert resourceId != null;
+            assert value != null;
+
+            value.getSubscriptionIdsByConnectionId().forEach((connectionId, subscriptionIds) ->
+                    subscriptionIds.forEach(s -> this.add(resourceId, connectionId, s)));
+            return this;
+        }
+
+        /**
+         * Returns the int of the given subscription id, interning it and the given connection id if not interned yet.
+         *
+         * @pre connectionId != null
+         * @pre subscriptionId != null
+         */
+        private int intern(String connectionId, String subscriptionId) {
+            Integer subscription = this.subscriptions.get(subscriptionId);
+            if (subscription != null) {
+                return subscription;
+            }
+
+            int connection = this.connections.computeIfAbsent(connectionId, c -> this.connections.size());
+            int interned = this.subscriptions.size();
+            this.subscriptions.put(subscriptionId, interned);
+            if (interned == this.connectionOfSubscription.length) {
+                this.connectionOfSubscription = Arrays.copyOf(this.connectionOfSubscription, interned * 2);
+            }
+            this.connectionOfSubscription[interned] = connection;
+            return interned;
+        }
+
+        /**
+         * Returns the index of the subscriptions added to this builder.
+         *
+         * @post return != null
+         */
+        public RoutingIndex build() {
+            String[] connectionIds = new String[this.connections.size()];
+            this.connections.forEach((connectionId, connection) -> connectionIds[connection] = connectionId);
+
+            String[] subscriptionIds = new String[this.subscriptions.size()];
+            this.subscriptions.forEach((subscriptionId, subscription) -> subscriptionIds[subscription] =
+                    subscriptionId);
+
+            Map<String, int[]> subscriptionsByResource = new HashMap<>(this.subscriptionsByResource.size() * 2);
+            this.subscriptionsByResource.forEach((resourceId, members) ->
+                    subscriptionsByResource.put(resourceId, distinct(Arrays.copyOfRange(members, 1, members[0] + 1))));
+
+            return new RoutingIndex(connectionIds,
+                    subscriptionIds,
+                    Arrays.copyOf(this.connectionOfSubscription, subscriptionIds.length),
+                    subscriptionsByResource);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.catapult.lds.service;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@code RoutingTable} is an in-process copy of the denormalized cache, kept up to date by applying {@linkplain
+ * SubscriptionEvent subscription events}, so that a publisher resolves the recipients of its data points from memory
+ * rather than with a lookup per message.
+ * <p/>
+ * Events are applied by a single thread, typically that of a {@link SubscriptionEventConsumer}, while recipients are
+ * resolved by any number of threads.  As in the {@link InMemorySubscriptionCacheService}, every value of the table is
+ * immutable, and is replaced rather than modified, so that resolving recipients never blocks.  Applying an event is
+ * idempotent, so that events may be applied again, e.g. after a table is loaded from the cache.
+ */
+public class RoutingTable {
+
+    /**
+     * The subscription ids of each resource, keyed by connection id
+     *
+     * @invariant resources != null
+     * @invariant resources.values().stream().noneMatch(Map::isEmpty)
+     */
+    private final Map<String, Map<String, Set<String>>> resources = new ConcurrentHashMap<>();
+
+    /**
+     * Applies the given event to this table.
+     *
+     * @pre event != null
+     */
+    public void apply(SubscriptionEvent event) {
+        assert event != null;
+
+        String connectionId = event.getConnectionId();
+        String subscriptionId = event.getSubscriptionId();
+        boolean added = event.getType() == SubscriptionEvent.Type.ADDED;
+
+        for (String resource : event.getResources()) {
+            this.resources.compute(resource, (r, subscriptionIdsByConnectionId) -> {
+                Map<String, Set<String>> updated = subscriptionIdsByConnectionId == null ?
+                        new HashMap<>() :
+                        new HashMap<>(subscriptionIdsByConnectionId);
+                Set<String> subscriptionIds = new HashSet<>(updated.getOrDefault(connectionId,
+                        Collections.emptySet()));
+                if (added) {
+                    subscriptionIds.add(subscriptionId);
+                } else {
+                    subscriptionIds.remove(subscriptionId);
+                }
+
+                if (subscriptionIds.isEmpty()) {
+                    updated.remove(connectionId);
+                } else {
+                    updated.put(connectionId, Collections.unmodifiableSet(subscriptionIds));
+                }
+                return updated.isEmpty() ? null : Collections.unmodifiableMap(updated);
+            });
+        }
+    }
+
+    /**
+     * Replaces the subscriptions of the resource of the given key with those of the given denormalized cache value,
+     * e.g. as read from the cache when the table is first loaded.
+     *
+     * @pre resourceId != null
+     * @pre value != null
+     */
+    public void load(String resourceId, DenormalizedCacheValue value) {
+        assert resourceId != null;
+        assert value != null;
+
+        if (value.isEmpty()) {
+            this.resources.remove(resourceId);
+            return;
+        }
+
+        Map<String, Set<String>> subscriptionIdsByConnectionId = new HashMap<>();
+        value.getSubscriptionIdsByConnectionId().forEach((connectionId, subscriptionIds) ->
+                subscriptionIdsByConnectionId.put(connectionId, Set.copyOf(subscriptionIds)));
+        this.resources.put(resourceId, Collections.unmodifiableMap(subscriptionIdsByConnectionId));
+    }
+
+    /**
+     * Returns the recipients of the given resource ids: the ids of the subscriptions to any of the resource ids, keyed
+     * by the id of their connection, as {@linkplain AsyncSubscriptionCacheService#resolveRecipients resolved} by the
+     * cache service.
+     *
+     * @pre resourceIds != null
+     * @post return != null
+     */
+    public Map<String, Set<String>> resolveRecipients(Set<String> resourceIds) {
+        assert resourceIds != null;
+
+        Map<String, Set<String>> subscriptionIdsByConnectionId = new HashMap<>();
+        for (String resourceId : resourceIds) {
+            this.resources.getOrDefault(resourceId, Collections.emptyMap()).forEach((connectionId, subscriptionIds) ->
+                    subscriptionIdsByConnectionId.computeIfAbsent(connectionId, c -> new HashSet<>())
+                            .addAll(subscriptionIds));
+        }
+        return subscriptionIdsByConnectionId;
+    }
+
+    /**
+     * Returns the number of resources that have at least one subscription in this table.
+     *
+     * @post return >= 0
+     */
+    public int size() {
+        return this.resources.size();
+    }
+}
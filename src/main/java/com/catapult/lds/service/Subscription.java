@@ -1,12 +1,11 @@
 package com.catapult.lds.service;
 
-import org.json.JSONArray;
+import com.catapult.lds.json.JsonCodec;
 
+import java.io.IOException;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.UUID;
-import java.util.stream.Collectors;
-import java.util.stream.StreamSupport;
 
 /**
  * {@code Subscription} is an immutable.... TBD
@@ -26,16 +25,56 @@ public class Subscription {
         this.resources = Set.copyOf(resources);
     }
 
+    /**
+     * Creates the {@code Subscription} with the given connection id, id and stored resource list json.
+     *
+     * @throws IllegalArgumentException if the resource list is not a json array of strings.
+     * @pre connectionId != null
+     * @pre resourceListJson != null
+     */
     public Subscription(String connectionId, String id, String resourceListJson) {
         assert connectionId != null;
         assert resourceListJson != null;
 
         this.id = id;
         this.connectionId = connectionId;
-        this.resources =
-                StreamSupport.stream(new JSONArray(resourceListJson).spliterator(), false)
-                        .map(Object::toString)
-                        .collect(Collectors.toSet());
+        try {
+            this.resources = JsonCodec.STRING_SET_READER.readValue(resourceListJson);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(String.format("Invalid resource list of subscription '%s': %s", id,
+                    e.getMessage()), e);
+        }
+    }
+
+    /**
+     * Creates a subscription with the given connection id, id and resources.
+     *
+     * @pre connectionId != null
+     * @pre id != null
+     * @pre resources != null
+     */
+    private Subscription(String connectionId, String id, Set<String> resources) {
+        assert connectionId != null;
+        assert id != null;
+        assert resources != null;
+
+        this.id = id;
+        this.connectionId = connectionId;
+        this.resources = Set.copyOf(resources);
+    }
+
+    /**
+     * Returns a subscription with the id and connection id of this subscription, and the given resources.
+     *
+     * @pre resources != null
+     * @pre !resources.isEmpty()
+     * @post return != null
+     */
+    public Subscription withResources(Set<String> resources) {
+        assert resources != null;
+        assert !resources.isEmpty();
+
+        return new Subscription(this.connectionId, this.id, resources);
     }
 
     /**
@@ -29,6 +29,15 @@ public interface SubscriptionCacheService {
      */
     boolean connectionExists(String connectionId);
 
+    /**
+     * Records that the connection with the given connection id is still connected, which refreshes the time to live of
+     * its entry when connections expire.
+     *
+     * @throws SubscriptionException if the given connection id does not exist in the cache, e.g. because it expired.
+     * @pre connectionId != null
+     */
+    void heartbeat(String connectionId) throws SubscriptionException;
+
     /**
      * Create an entry associated with the given connection id in the cache.
      *
@@ -47,6 +56,18 @@ public interface SubscriptionCacheService {
      */
     void addSubscription(Subscription subscription) throws SubscriptionException;
 
+    /**
+     * Puts the given subscriptions of a single connection into the cache, atomically: either all of them are added, or
+     * none of them are.
+     *
+     * @throws SubscriptionException if the connection of the given subscriptions does not exist in the cache, or if
+     *                               any of them is already associated with the connection.
+     * @pre subscriptions != null
+     * @pre subscriptions.stream().map(Subscription::getConnectionId).distinct().count() <= 1
+     * @pre subscriptions.stream().map(Subscription::getId).distinct().count() == subscriptions.size()
+     */
+    void addSubscriptions(Collection<Subscription> subscriptions) throws SubscriptionException;
+
     /**
      * Cancels the subscription identified by the given connection id and subscription id.
      *
@@ -55,6 +76,19 @@ public interface SubscriptionCacheService {
      */
     void cancelSubscription(String connectionId, String subscriptionId) throws SubscriptionException;
 
+    /**
+     * Replaces the resources of the subscription identified by the given connection id and subscription id with the
+     * given resources.  The subscription keeps its id, and only the resources that are added or removed are modified.
+     *
+     * @throws SubscriptionException if the connection or the subscription does not exist in the cache.
+     * @pre connectionId != null
+     * @pre subscriptionId != null
+     * @pre resources != null
+     * @pre !resources.isEmpty()
+     */
+    void modifySubscription(String connectionId, String subscriptionId, Set<String> resources)
+            throws SubscriptionException;
+
     /**
      * Returns a collection of subscriptions associated with the given connection id.
      *
@@ -82,5 +116,14 @@ public interface SubscriptionCacheService {
      */
     Map<String, DenormalizedCacheValue> getDenormalizedConnectionsForResourceIds(Set<String> resourceIds);
 
+    /**
+     * Returns the recipients of the given resource ids: the ids of the subscriptions to any of the resource ids, keyed
+     * by the id of their connection.  A connection that is not subscribed to any of the resource ids is absent.
+     *
+     * @pre resourceIds != null
+     * @post return != null
+     */
+    Map<String, Set<String>> resolveRecipients(Set<String> resourceIds);
+
 }
 
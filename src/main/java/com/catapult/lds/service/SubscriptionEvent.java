@@ -0,0 +1,218 @@
+package com.catapult.lds.service;
+
+import com.catapult.lds.json.JsonCodec;
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@code SubscriptionEvent} is an immutable entry of the subscription event stream, which records that a subscription
+ * of a connection was added to, or removed from, a set of resources.  The events are appended by the server-side
+ * scripts in the same atomic operation as the modification of the caches, and are read by a {@link
+ * SubscriptionEventConsumer}.
+ * <p/>
+ * An event is stored as a stream entry with single letter fields, so that the stream stays compact:
+ * <pre>
+ *   t    'a' if the subscription was added to the resources, 'r' if it was removed from them
+ *   c    the connection id
+ *   s    the subscription id
+ *   r    the stringified json array of the namespaced resource keys
+ * </pre>
+ */
+public final class SubscriptionEvent {
+
+    /**
+     * The field of the type of an event
+     */
+    static final String TYPE_FIELD = "t";
+
+    /**
+     * The field of the connection id of an event
+     */
+    static final String CONNECTION_ID_FIELD = "c";
+
+    /**
+     * The field of the subscription id of an event
+     */
+    static final String SUBSCRIPTION_ID_FIELD = "s";
+
+    /**
+     * The field of the resources of an event
+     */
+    static final String RESOURCES_FIELD = "r";
+
+    /**
+     * {@code Type} enumerates the kinds of subscription events.
+     */
+    public enum Type {
+
+        /**
+         * The subscription was added to the resources
+         */
+        ADDED("a"),
+
+        /**
+         * The subscription was removed from the resources
+         */
+        REMOVED("r");
+
+        /**
+         * The value of the type field of an event of this type
+         */
+        private final String value;
+
+        Type(String value) {
+            this.value = value;
+        }
+
+        /**
+         * Returns the value of the type field of an event of this type
+         *
+         * @post return != null
+         */
+        public String value() {
+            return this.value;
+        }
+
+        /**
+         * Returns the type with the given value of the type field.
+         *
+         * @throws IllegalArgumentException if there is no type with the given value.
+         * @pre value != null
+         * @post return != null
+         */
+        static Type fromValue(String value) {
+            assert value != null;
+
+            for (Type type : values()) {
+                if (type.value.equals(value)) {
+                    return type;
+                }
+            }
+            throw new IllegalArgumentException(String.format("Unknown subscription event type '%s'", value));
+        }
+    }
+
+    private final Type type;
+    private final String connectionId;
+    private final String subscriptionId;
+    private final Set<String> resources;
+
+    /**
+     * Creates a {@code SubscriptionEvent} of the given type, connection id, subscription id and resources.
+     *
+     * @pre type != null
+     * @pre connectionId != null
+     * @pre subscriptionId != null
+     * @pre resources != null
+     */
+    public SubscriptionEvent(Type type, String connectionId, String subscriptionId, Set<String> resources) {
+        assert type != null;
+        assert connectionId != null;
+        assert subscriptionId != null;
+        assert resources != null;
+
+        this.type = type;
+        this.connectionId = connectionId;
+        this.subscriptionId = subscriptionId;
+        this.resources = Set.copyOf(resources);
+    }
+
+    /**
+     * Returns the event stored in the given fields of a stream entry.
+     *
+     * @throws IllegalArgumentException if the fields are not those of an event.
+     * @pre fields != null
+     * @post return != null
+     */
+    static SubscriptionEvent fromFields(Map<String, String> fields) {
+        assert fields != null;
+
+        String type = fields.get(TYPE_FIELD);
+        String connectionId = fields.get(CONNECTION_ID_FIELD);
+        String subscriptionId = fields.get(SUBSCRIPTION_ID_FIELD);
+        String resources = fields.get(RESOURCES_FIELD);
+        if (type == null || connectionId == null || subscriptionId == null || resources == null) {
+            throw new IllegalArgumentException(String.format("Invalid subscription event %s", fields));
+        }
+
+        try {
+            return new SubscriptionEvent(Type.fromValue(type), connectionId, subscriptionId,
+                    JsonCodec.STRING_SET_READER.readValue(resources));
+        } catch (IOException e) {
+            throw new IllegalArgumentException(String.format("Invalid resources of subscription event %s", fields), e);
+        }
+    }
+
+    /**
+     * Returns the fields of the stream entry of this event.
+     *
+     * @post return != null
+     */
+    Map<String, String> toFields() {
+        try {
+            return Map.of(TYPE_FIELD, this.type.value,
+                    CONNECTION_ID_FIELD, this.connectionId,
+                    SUBSCRIPTION_ID_FIELD, this.subscriptionId,
+                    RESOURCES_FIELD, JsonCodec.STRING_SET_WRITER.writeValueAsString(this.resources));
+        } catch (JsonProcessingException e) {
+            throw new AssertionError(e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the event that undoes this event, i.e. the removal of an added subscription and vice versa.
+     *
+     * @post return != null
+     */
+    SubscriptionEvent inverse() {
+        return new SubscriptionEvent(this.type == Type.ADDED ? Type.REMOVED : Type.ADDED, this.connectionId,
+                this.subscriptionId, this.resources);
+    }
+
+    /**
+     * Returns the type of this event
+     *
+     * @post return != null
+     */
+    public Type getType() {
+        return this.type;
+    }
+
+    /**
+     * Returns the id of the connection of the subscription of this event
+     *
+     * @post return != null
+     */
+    public String getConnectionId() {
+        return this.connectionId;
+    }
+
+    /**
+     * Returns the id of the subscription of this event
+     *
+     * @post return != null
+     */
+    public String getSubscriptionId() {
+        return this.subscriptionId;
+    }
+
+    /**
+     * Returns the namespaced resource keys that the subscription was added to or removed from
+     *
+     * @post return != null
+     */
+    public Set<String> getResources() {
+        return this.resources;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return String.format("%s %s/%s %s", this.type, this.connectionId, this.subscriptionId, this.resources);
+    }
+}
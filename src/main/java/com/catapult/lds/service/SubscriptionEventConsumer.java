@@ -0,0 +1,177 @@
+package com.catapult.lds.service;
+
+import io.lettuce.core.Limit;
+import io.lettuce.core.Range;
+import io.lettuce.core.StreamMessage;
+import io.lettuce.core.XReadArgs;
+import io.lettuce.core.api.async.RedisStreamAsyncCommands;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@code SubscriptionEventConsumer} reads the {@linkplain RedisCacheConfiguration#getEventStream event stream} in
+ * order, and applies each {@link SubscriptionEvent} to a {@link RoutingTable}, so that a publisher keeps an incremental
+ * copy of the denormalized cache in process.
+ * <p/>
+ * The stream is capped, so a publisher that starts after events were trimmed first loads the table from the cache:
+ * <ol>
+ *     <li>read the {@linkplain #latestId latest id} of the stream,</li>
+ *     <li>{@linkplain RoutingTable#load load} the table from the {@linkplain
+ *     AsyncSubscriptionCacheService#getDenormalizedConnectionsForResourceIds denormalized cache values} of the resources
+ *     it publishes,</li>
+ *     <li>{@linkplain #poll poll} from that id onwards.</li>
+ * </ol>
+ * Events appended while the table is loaded are applied again, which is harmless as applying an event is idempotent.
+ * <p/>
+ * A consumer is polled by a single thread at a time.  A poll that waits for events blocks the connection of its
+ * commands, which should therefore not be shared with other operations.
+ */
+public class SubscriptionEventConsumer {
+
+    /**
+     * The id that precedes the id of every stream entry
+     */
+    public static final String FIRST_ID = "0-0";
+
+    /**
+     * The commands used to read the stream
+     *
+     * @invariant commands != null
+     */
+    private final RedisStreamAsyncCommands<String, String> commands;
+
+    /**
+     * The key of the stream
+     *
+     * @invariant stream != null
+     */
+    private final String stream;
+
+    /**
+     * The table that the events are applied to
+     *
+     * @invariant routingTable != null
+     */
+    private final RoutingTable routingTable;
+
+    /**
+     * The id of the most recently applied event, or the id to read after if none has been applied
+     *
+     * @invariant lastId != null
+     */
+    private volatile String lastId;
+
+    /**
+     * The logger used by this consumer.
+     *
+     * @invariant logger != null
+     */
+    private final Logger logger = LoggerFactory.getLogger(SubscriptionEventConsumer.class);
+
+    /**
+     * Creates a {@code SubscriptionEventConsumer} that reads the given stream with the given commands, starting after
+     * the event with the given id, and applies its events to the given routing table.
+     *
+     * @pre commands != null
+     * @pre stream != null
+     * @pre routingTable != null
+     * @pre lastId != null
+     */
+    public SubscriptionEventConsumer(RedisStreamAsyncCommands<String, String> commands,
+                                     String stream,
+                                     RoutingTable routingTable,
+                                     String lastId) {
+        assert commands != null;
+        assert stream != null;
+        assert routingTable != null;
+        assert lastId != null;
+
+        this.commands = commands;
+        this.stream = stream;
+        this.routingTable = routingTable;
+        this.lastId = lastId;
+    }
+
+    /**
+     * Returns a future of the id of the latest event of the given stream, or of {@link #FIRST_ID} if the stream is
+     * empty or does not exist.
+     *
+     * @pre commands != null
+     * @pre stream != null
+     * @post return != null
+     */
+    public static CompletableFuture<String> latestId(RedisStreamAsyncCommands<String, String> commands, String stream) {
+        assert commands != null;
+        assert stream != null;
+
+        return commands.xrevrange(stream, Range.unbounded(), Limit.from(1))
+                .toCompletableFuture()
+                .thenApply(messages -> messages.isEmpty() ? FIRST_ID : messages.get(0).getId());
+    }
+
+    /**
+     * Reads at most the given number of events that follow the last applied event, waiting at most the given timeout
+     * for one to be appended if there are none, and applies them to the routing table.  Returns a future of the number
+     * of applied events.
+     *
+     * @pre count > 0
+     * @pre timeout != null
+     * @post return != null
+     */
+    public CompletableFuture<Integer> poll(int count, Duration timeout) {
+        assert count > 0;
+        assert timeout != null;
+
+        XReadArgs args = XReadArgs.Builder.count(count).block(timeout);
+
+        // the array of the varargs offsets is created here, as it cannot be created generic; it holds a single offset
+        @SuppressWarnings("unchecked")
+        XReadArgs.StreamOffset<String>[] offsets =
+                new XReadArgs.StreamOffset[] {XReadArgs.StreamOffset.from(this.stream, this.lastId)};
+        return this.commands.xread(args, offsets)
+                .toCompletableFuture()
+                .thenApply(this::apply);
+    }
+
+    /**
+     * Applies the given messages of the stream to the routing table, in order, and returns their number.
+     *
+     * @pre messages != null
+     */
+    private int apply(List<StreamMessage<String, String>> messages) {
+        assert messages != null;
+
+        for (StreamMessage<String, String> message : messages) {
+            try {
+                this.routingTable.apply(SubscriptionEvent.fromFields(message.getBody()));
+            } catch (IllegalArgumentException e) {
+                this.logger.warn("skipping event '{}': {}", message.getId(), e.getMessage());
+            }
+            this.lastId = message.getId();
+        }
+        return messages.size();
+    }
+
+    /**
+     * Returns the id of the most recently applied event, or the id that this consumer started after if none has been
+     * applied.
+     *
+     * @post return != null
+     */
+    public String getLastId() {
+        return this.lastId;
+    }
+
+    /**
+     * Returns the routing table that the events are applied to
+     *
+     * @post return != null
+     */
+    public RoutingTable getRoutingTable() {
+        return this.routingTable;
+    }
+}
@@ -0,0 +1,47 @@
+package com.catapult.lds.service;
+
+import lombok.Value;
+
+/**
+ * {@code SweepReport} contains the outcome of a {@linkplain
+ * RedisAsyncSubscriptionCacheService#sweepOrphanedConnections sweep of orphaned connections}.
+ */
+@Value
+public class SweepReport {
+
+    /**
+     * The number of connection keys that were scanned
+     */
+    long scannedConnections;
+
+    /**
+     * The number of scanned connections that were created before the maximum age
+     */
+    long staleConnections;
+
+    /**
+     * The number of stale connections that the liveness check reported as still connected, which were kept
+     */
+    long liveConnections;
+
+    /**
+     * The number of orphaned connections that were closed
+     */
+    long closedConnections;
+
+    /**
+     * The number of orphaned connections that could not be closed, e.g. because they were closed concurrently
+     */
+    long failedConnections;
+
+    /**
+     * The number of subscriptions of the closed connections, which were removed from the normalized cache
+     */
+    long reclaimedSubscriptions;
+
+    /**
+     * The number of subscriptions of the closed connections to a resource, which were removed from the denormalized
+     * cache values
+     */
+    long reclaimedResourceEntries;
+}
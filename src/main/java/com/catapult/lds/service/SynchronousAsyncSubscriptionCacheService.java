@@ -0,0 +1,186 @@
+package com.catapult.lds.service;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@code SynchronousAsyncSubscriptionCacheService} is an implementation of {@code AsyncSubscriptionCacheService} that
+ * executes every operation of a blocking {@link SubscriptionCacheService} on the calling thread, and returns an already
+ * completed future of its result.  It suits cache services whose operations never wait on i/o.
+ */
+class SynchronousAsyncSubscriptionCacheService implements AsyncSubscriptionCacheService {
+
+    /**
+     * The cache service that all operations are delegated to
+     *
+     * @invariant cacheService != null
+     */
+    private final SubscriptionCacheService cacheService;
+
+    /**
+     * Creates a {@code SynchronousAsyncSubscriptionCacheService} that delegates to the given cache service.
+     *
+     * @pre cacheService != null
+     */
+    SynchronousAsyncSubscriptionCacheService(SubscriptionCacheService cacheService) {
+        assert cacheService != null;
+
+        this.cacheService = cacheService;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isConnected() {
+        return this.cacheService.isConnected();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Void> createConnection(String connectionId) {
+        return this.run(() -> this.cacheService.createConnection(connectionId));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Boolean> connectionExists(String connectionId) {
+        return this.call(() -> this.cacheService.connectionExists(connectionId));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Void> heartbeat(String connectionId) {
+        return this.run(() -> this.cacheService.heartbeat(connectionId));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Void> closeConnection(String connectionId) {
+        return this.run(() -> this.cacheService.closeConnection(connectionId));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Void> addSubscription(Subscription subscription) {
+        return this.run(() -> this.cacheService.addSubscription(subscription));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Void> addSubscriptions(Collection<Subscription> subscriptions) {
+        return this.run(() -> this.cacheService.addSubscriptions(subscriptions));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Void> cancelSubscription(String connectionId, String subscriptionId) {
+        return this.run(() -> this.cacheService.cancelSubscription(connectionId, subscriptionId));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Void> modifySubscription(String connectionId, String subscriptionId,
+                                                      Set<String> resources) {
+        return this.run(() -> this.cacheService.modifySubscription(connectionId, subscriptionId, resources));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Collection<Subscription>> getSubscriptions(String connectionId) {
+        return this.call(() -> this.cacheService.getSubscriptions(connectionId));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Subscription> getSubscription(String connectionId, String subscriptionId) {
+        return this.call(() -> this.cacheService.getSubscription(connectionId, subscriptionId));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Map<String, DenormalizedCacheValue>> getDenormalizedConnectionsForResourceIds(Set<String> resourceIds) {
+        return this.call(() -> this.cacheService.getDenormalizedConnectionsForResourceIds(resourceIds));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Map<String, Set<String>>> resolveRecipients(Set<String> resourceIds) {
+        return this.call(() -> this.cacheService.resolveRecipients(resourceIds));
+    }
+
+    /**
+     * Returns a future completed with the result of the given operation, or completed exceptionally with the exception
+     * that it threw.
+     *
+     * @pre operation != null
+     * @post return != null && return.isDone()
+     */
+    private <T> CompletableFuture<T> call(Operation<T> operation) {
+        assert operation != null;
+
+        try {
+            return CompletableFuture.completedFuture(operation.call());
+        } catch (SubscriptionException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Returns a future completed once the given operation has run, or completed exceptionally with the exception that it
+     * threw.
+     *
+     * @pre operation != null
+     * @post return != null && return.isDone()
+     */
+    private CompletableFuture<Void> run(VoidOperation operation) {
+        assert operation != null;
+
+        return this.call(() -> {
+            operation.run();
+            return null;
+        });
+    }
+
+    /**
+     * An operation of a {@code SubscriptionCacheService} that returns a result
+     */
+    @FunctionalInterface
+    private interface Operation<T> {
+        T call() throws SubscriptionException;
+    }
+
+    /**
+     * An operation of a {@code SubscriptionCacheService} that does not return a result
+     */
+    @FunctionalInterface
+    private interface VoidOperation {
+        void run() throws SubscriptionException;
+    }
+}
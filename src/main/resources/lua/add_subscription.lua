@@ -0,0 +1,40 @@
+-- add_subscription.lua
+--
+-- Atomically adds a subscription to the normalized cache and to every denormalized cache value of its resources, and
+-- appends an event of the addition to the event stream.
+--
+-- KEYS[1]     the connection key in the normalized cache
+-- KEYS[2]     the event stream
+-- KEYS[3..n]  the namespaced resource keys of the subscription
+-- ARGV[1]     the format of the denormalized cache
+-- ARGV[2]     the maximum length of the event stream, or '0' if events are disabled
+-- ARGV[3]     the connection id
+-- ARGV[4]     the subscription id
+-- ARGV[5]     the stringified json array of the resources of the subscription
+--
+-- Returns 0 on success, 1 if the connection does not exist, 2 if the subscription already exists.
+
+local connectionKey = KEYS[1]
+local stream = KEYS[2]
+local format = ARGV[1]
+local maxlen = ARGV[2]
+local connectionId = ARGV[3]
+local subscriptionId = ARGV[4]
+
+if redis.call('EXISTS', connectionKey) == 0 then
+    return 1
+end
+
+if redis.call('HEXISTS', connectionKey, subscriptionId) == 1 then
+    return 2
+end
+
+redis.call('HSET', connectionKey, subscriptionId, ARGV[5])
+
+for i = 3, #KEYS do
+    update_denormalized(KEYS[i], format, connectionId, { subscriptionId }, {})
+end
+
+append_event(stream, maxlen, EVENT_ADDED, connectionId, subscriptionId, ARGV[5])
+
+return 0
@@ -0,0 +1,56 @@
+-- add_subscriptions.lua
+--
+-- Atomically adds several subscriptions of one connection to the normalized cache and to the denormalized cache values
+-- of their resources, and appends an event of each addition to the event stream. Each value is read and written once,
+-- no matter how many of the subscriptions reference it.
+--
+-- KEYS[1]     the connection key in the normalized cache
+-- KEYS[2]     the event stream
+-- KEYS[3..n]  the namespaced resource keys of the subscriptions that are stored in the same cluster slot as KEYS[1]
+-- ARGV[1]     the format of the denormalized cache
+-- ARGV[2]     the maximum length of the event stream, or '0' if events are disabled
+-- ARGV[3]     the connection id
+-- ARGV[4..]   pairs of a subscription id and the stringified json array of the resources of that subscription
+--
+-- Returns 0 on success, 1 if the connection does not exist, 2 if any of the subscriptions already exists.
+
+local connectionKey = KEYS[1]
+local stream = KEYS[2]
+local format = ARGV[1]
+local maxlen = ARGV[2]
+local connectionId = ARGV[3]
+
+if redis.call('EXISTS', connectionKey) == 0 then
+    return 1
+end
+
+for i = 4, #ARGV, 2 do
+    if redis.call('HEXISTS', connectionKey, ARGV[i]) == 1 then
+        return 2
+    end
+end
+
+-- the ids of the subscriptions added to each resource of this slot
+local added = {}
+for i = 3, #KEYS do
+    added[KEYS[i]] = {}
+end
+
+for i = 4, #ARGV, 2 do
+    redis.call('HSET', connectionKey, ARGV[i], ARGV[i + 1])
+    for _, resource in ipairs(cjson.decode(ARGV[i + 1])) do
+        if added[resource] ~= nil then
+            table.insert(added[resource], ARGV[i])
+        end
+    end
+end
+
+for i = 3, #KEYS do
+    update_denormalized(KEYS[i], format, connectionId, added[KEYS[i]], {})
+end
+
+for i = 4, #ARGV, 2 do
+    append_event(stream, maxlen, EVENT_ADDED, connectionId, ARGV[i], ARGV[i + 1])
+end
+
+return 0
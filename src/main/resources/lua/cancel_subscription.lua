@@ -0,0 +1,36 @@
+-- cancel_subscription.lua
+--
+-- Atomically removes a subscription from the normalized cache and from every denormalized cache value of its
+-- resources, and appends an event of the removal to the event stream.
+--
+-- KEYS[1]     the connection key in the normalized cache
+-- KEYS[2]     the event stream
+-- KEYS[3..n]  the namespaced resource keys of the subscription
+-- ARGV[1]     the format of the denormalized cache
+-- ARGV[2]     the maximum length of the event stream, or '0' if events are disabled
+-- ARGV[3]     the connection id
+-- ARGV[4]     the subscription id
+--
+-- Returns 0 on success, 3 if the subscription does not exist.
+
+local connectionKey = KEYS[1]
+local stream = KEYS[2]
+local format = ARGV[1]
+local maxlen = ARGV[2]
+local connectionId = ARGV[3]
+local subscriptionId = ARGV[4]
+
+local resources = redis.call('HGET', connectionKey, subscriptionId)
+if not resources then
+    return 3
+end
+
+for i = 3, #KEYS do
+    update_denormalized(KEYS[i], format, connectionId, {}, { subscriptionId })
+end
+
+redis.call('HDEL', connectionKey, subscriptionId)
+
+append_event(stream, maxlen, EVENT_REMOVED, connectionId, subscriptionId, resources)
+
+return 0
@@ -0,0 +1,63 @@
+-- close_connection.lua
+--
+-- Atomically removes a connection and all of its subscriptions from the normalized and denormalized caches, and
+-- appends an event of the removal of each subscription to the event stream. Every denormalized cache value is modified
+-- once, regardless of the number of subscriptions that reference its resource.
+--
+-- KEYS[1]     the connection key in the normalized cache
+-- KEYS[2]     the event stream
+-- KEYS[3..n]  the union of the namespaced resource keys of all subscriptions of the connection
+-- ARGV[1]     the format of the denormalized cache
+-- ARGV[2]     the maximum length of the event stream, or '0' if events are disabled
+-- ARGV[3]     the connection id
+-- ARGV[4..m]  the ids of all subscriptions of the connection
+--
+-- Returns 0 on success, 1 if the connection does not exist, 4 if the subscriptions of the connection are not the given
+-- subscriptions (i.e. they were modified after they were read by the caller).
+
+local CREATED_AT = 'created_at'
+
+local connectionKey = KEYS[1]
+local stream = KEYS[2]
+local format = ARGV[1]
+local maxlen = ARGV[2]
+local connectionId = ARGV[3]
+
+if redis.call('EXISTS', connectionKey) == 0 then
+    return 1
+end
+
+local subscriptionIds = {}
+local expected = {}
+for i = 4, #ARGV do
+    table.insert(subscriptionIds, ARGV[i])
+    expected[ARGV[i]] = true
+end
+
+local actualCount = 0
+for _, field in ipairs(redis.call('HKEYS', connectionKey)) do
+    if field ~= CREATED_AT then
+        if not expected[field] then
+            return 4
+        end
+        actualCount = actualCount + 1
+    end
+end
+if actualCount ~= #subscriptionIds then
+    return 4
+end
+
+for i = 3, #KEYS do
+    update_denormalized(KEYS[i], format, connectionId, {}, subscriptionIds)
+end
+
+if maxlen ~= '0' then
+    for _, subscriptionId in ipairs(subscriptionIds) do
+        append_event(stream, maxlen, EVENT_REMOVED, connectionId, subscriptionId,
+            redis.call('HGET', connectionKey, subscriptionId))
+    end
+end
+
+redis.call('DEL', connectionKey)
+
+return 0
@@ -0,0 +1,24 @@
+-- create_connection.lua
+--
+-- Atomically creates a connection in the normalized cache, and sets the time to live of its connection key, so that
+-- the key never outlives a failure between the two.
+--
+-- KEYS[1]     the connection key in the normalized cache
+-- ARGV[1]     the creation time of the connection, in milliseconds since the epoch
+-- ARGV[2]     the time to live of the connection key in milliseconds, or '0' if connections do not expire
+--
+-- Returns 0 on success, 5 if the connection already exists.
+
+local connectionKey = KEYS[1]
+local createdAt = ARGV[1]
+local ttl = tonumber(ARGV[2])
+
+if redis.call('HSETNX', connectionKey, 'created_at', createdAt) == 0 then
+    return 5
+end
+
+if ttl > 0 then
+    redis.call('PEXPIRE', connectionKey, ttl)
+end
+
+return 0
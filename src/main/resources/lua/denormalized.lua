@@ -0,0 +1,209 @@
+-- denormalized.lua
+--
+-- Functions shared by every script that modifies the denormalized cache. This file is prepended to the source of each
+-- script when it is loaded.
+--
+-- A denormalized cache value is stored in one of the following formats:
+--
+--   'json'    a string holding a stringified json array of {connectionId, subscriptionIds} objects
+--   'set'     a set whose members are '<connection id>|<subscription id>'
+--   'binary'  a string holding the compact encoding described in BinaryDenormalizedCacheCodec.java
+--
+-- A value that is stored in a format other than the requested one is converted when it is modified, which allows the
+-- format to be switched without migrating the whole keyspace at once.
+
+local MEMBER_SEPARATOR = '|'
+
+-- The header of a binary value: a magic byte that never starts a json value, followed by the version of the encoding
+local BINARY_HEADER = string.char(0, 1)
+
+-- Returns the set member that associates the given subscription id with the given connection id
+local function to_member(connectionId, subscriptionId)
+    return connectionId .. MEMBER_SEPARATOR .. subscriptionId
+end
+
+-- Returns the connection id and subscription id of the given set member. Subscription ids never contain the separator,
+-- so the member is split at the last separator.
+local function from_member(member)
+    local index = #member
+    while index > 0 and string.sub(member, index, index) ~= MEMBER_SEPARATOR do
+        index = index - 1
+    end
+    return string.sub(member, 1, index - 1), string.sub(member, index + 1)
+end
+
+-- Returns the given non-negative integer encoded as base 64 digits, most significant first, where every digit but the
+-- last is marked by the 0x40 bit
+local function encode_uint(n)
+    local digits = { string.char(n % 64) }
+    n = math.floor(n / 64)
+    while n > 0 do
+        table.insert(digits, 1, string.char(64 + n % 64))
+        n = math.floor(n / 64)
+    end
+    return table.concat(digits)
+end
+
+-- Returns the integer encoded at the given position of the given value, and the position that follows it
+local function decode_uint(value, position)
+    local n = 0
+    local digit = string.byte(value, position)
+    while digit >= 64 do
+        n = n * 64 + digit - 64
+        position = position + 1
+        digit = string.byte(value, position)
+    end
+    return n * 64 + digit, position + 1
+end
+
+-- Returns the string encoded at the given position of the given value, and the position that follows it
+local function decode_string(value, position)
+    local length
+    length, position = decode_uint(value, position)
+    return string.sub(value, position, position + length - 1), position + length
+end
+
+-- Returns a table of subscription id sets keyed by connection id, decoded from the given binary value
+local function decode_binary(value)
+    if string.sub(value, 1, 2) ~= BINARY_HEADER then
+        error('unknown binary denormalized cache value version')
+    end
+
+    local connections = {}
+    local connectionCount, position = decode_uint(value, 3)
+    for _ = 1, connectionCount do
+        local connectionId, subscriptionCount, subscriptionId
+        connectionId, position = decode_string(value, position)
+        subscriptionCount, position = decode_uint(value, position)
+        local subscriptionIds = connections[connectionId] or {}
+        for _ = 1, subscriptionCount do
+            subscriptionId, position = decode_string(value, position)
+            subscriptionIds[subscriptionId] = true
+        end
+        connections[connectionId] = subscriptionIds
+    end
+    return connections
+end
+
+-- Returns the binary encoding of the given table of subscription id sets keyed by connection id, or nil if there are
+-- no subscriptions
+local function encode_binary(connections)
+    local parts = {}
+    local connectionCount = 0
+    for connectionId, subscriptionIds in pairs(connections) do
+        local subscriptionParts = {}
+        for subscriptionId in pairs(subscriptionIds) do
+            table.insert(subscriptionParts, encode_uint(#subscriptionId) .. subscriptionId)
+        end
+        if #subscriptionParts > 0 then
+            connectionCount = connectionCount + 1
+            table.insert(parts, encode_uint(#connectionId) .. connectionId .. encode_uint(#subscriptionParts))
+            table.insert(parts, table.concat(subscriptionParts))
+        end
+    end
+
+    if connectionCount == 0 then
+        return nil
+    end
+    return BINARY_HEADER .. encode_uint(connectionCount) .. table.concat(parts)
+end
+
+-- Returns a table of subscription id sets keyed by connection id, read from the value stored at the given key in any
+-- format.
+local function read_connections(key)
+    local connections = {}
+    local keyType = redis.call('TYPE', key).ok
+
+    if keyType == 'string' then
+        local value = redis.call('GET', key)
+        if string.byte(value, 1) == 0 then
+            return decode_binary(value)
+        end
+        for _, c in ipairs(cjson.decode(value)) do
+            local subscriptionIds = connections[c.connectionId] or {}
+            for _, s in ipairs(c.subscriptionIds) do
+                subscriptionIds[s] = true
+            end
+            connections[c.connectionId] = subscriptionIds
+        end
+    elseif keyType == 'set' then
+        for _, member in ipairs(redis.call('SMEMBERS', key)) do
+            local connectionId, subscriptionId = from_member(member)
+            local subscriptionIds = connections[connectionId] or {}
+            subscriptionIds[subscriptionId] = true
+            connections[connectionId] = subscriptionIds
+        end
+    end
+
+    return connections
+end
+
+-- Stores the given table of subscription id sets keyed by connection id as a stringified json array, deleting the key
+-- when there are no connections left.
+local function write_json(key, connections)
+    local connectionList = {}
+    for connectionId, subscriptionIds in pairs(connections) do
+        local subscriptionIdList = {}
+        for subscriptionId in pairs(subscriptionIds) do
+            table.insert(subscriptionIdList, subscriptionId)
+        end
+        if #subscriptionIdList > 0 then
+            table.insert(connectionList, { connectionId = connectionId, subscriptionIds = subscriptionIdList })
+        end
+    end
+
+    if #connectionList == 0 then
+        redis.call('DEL', key)
+    else
+        redis.call('SET', key, cjson.encode(connectionList))
+    end
+end
+
+-- Stores the given table of subscription id sets keyed by connection id in the binary format, deleting the key when
+-- there are no connections left.
+local function write_binary(key, connections)
+    local value = encode_binary(connections)
+    if value == nil then
+        redis.call('DEL', key)
+    else
+        redis.call('SET', key, value)
+    end
+end
+
+-- Adds the subscription ids in the 'added' list to, and removes the subscription ids in the 'removed' list from, the
+-- given connection in the denormalized cache value stored at the given key.
+local function update_denormalized(key, format, connectionId, added, removed)
+    if format == 'set' then
+        if redis.call('TYPE', key).ok == 'string' then
+            local connections = read_connections(key)
+            redis.call('DEL', key)
+            for c, subscriptionIds in pairs(connections) do
+                for s in pairs(subscriptionIds) do
+                    redis.call('SADD', key, to_member(c, s))
+                end
+            end
+        end
+        for _, s in ipairs(added) do
+            redis.call('SADD', key, to_member(connectionId, s))
+        end
+        for _, s in ipairs(removed) do
+            redis.call('SREM', key, to_member(connectionId, s))
+        end
+    else
+        local connections = read_connections(key)
+        local subscriptionIds = connections[connectionId] or {}
+        for _, s in ipairs(added) do
+            subscriptionIds[s] = true
+        end
+        for _, s in ipairs(removed) do
+            subscriptionIds[s] = nil
+        end
+        connections[connectionId] = subscriptionIds
+        if format == 'binary' then
+            write_binary(key, connections)
+        else
+            write_json(key, connections)
+        end
+    end
+end
+
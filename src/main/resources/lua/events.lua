@@ -0,0 +1,36 @@
+-- events.lua
+--
+-- Functions shared by every script that appends subscription change events to the event stream. This file is
+-- prepended to the source of each script when it is loaded.
+--
+-- An event is a stream entry with the following fields:
+--
+--   't'  'a' if the subscription was added to the resources, 'r' if it was removed from them
+--   'c'  the connection id
+--   's'  the subscription id
+--   'r'  the stringified json array of the namespaced resource keys
+--
+-- The stream is passed to a script as KEYS[2], and its maximum length as ARGV[2]. A maximum length of '0' disables
+-- events, in which case KEYS[2] is only a placeholder that shares the cluster slot of KEYS[1].
+
+local EVENT_ADDED = 'a'
+local EVENT_REMOVED = 'r'
+
+-- Appends an event of the given type, connection id, subscription id and stringified json array of resources to the
+-- given stream, which is trimmed to about the given maximum length. Does nothing if the maximum length is '0' or there
+-- are no resources.
+local function append_event(stream, maxlen, type, connectionId, subscriptionId, resources)
+    if maxlen == '0' or resources == '[]' then
+        return
+    end
+    redis.call('XADD', stream, 'MAXLEN', '~', maxlen, '*', 't', type, 'c', connectionId, 's', subscriptionId,
+        'r', resources)
+end
+
+-- Returns the stringified json array of the given list of resources
+local function encode_resources(resources)
+    if #resources == 0 then
+        return '[]'
+    end
+    return cjson.encode(resources)
+end
@@ -0,0 +1,75 @@
+-- modify_subscription.lua
+--
+-- Atomically replaces the resources of a subscription in the normalized cache, and adds the subscription to, or
+-- removes it from, the denormalized cache values of the resources that were added or removed. The resources that the
+-- subscription keeps are not modified. An event of the added resources and an event of the removed resources are
+-- appended to the event stream.
+--
+-- KEYS[1]     the connection key in the normalized cache
+-- KEYS[2]     the event stream
+-- KEYS[3..n]  the namespaced resource keys that are added or removed, and that share the cluster slot of KEYS[1]
+-- ARGV[1]     the format of the denormalized cache
+-- ARGV[2]     the maximum length of the event stream, or '0' if events are disabled
+-- ARGV[3]     the connection id
+-- ARGV[4]     the subscription id
+-- ARGV[5]     the stringified json array of the resources of the subscription, as read before the modification
+-- ARGV[6]     the stringified json array of the modified resources of the subscription
+--
+-- Returns 0 on success, 1 if the connection does not exist, 3 if the subscription does not exist, 4 if the resources
+-- of the subscription were modified after they were read.
+
+local connectionKey = KEYS[1]
+local stream = KEYS[2]
+local format = ARGV[1]
+local maxlen = ARGV[2]
+local connectionId = ARGV[3]
+local subscriptionId = ARGV[4]
+
+if redis.call('EXISTS', connectionKey) == 0 then
+    return 1
+end
+
+local stored = redis.call('HGET', connectionKey, subscriptionId)
+if not stored then
+    return 3
+end
+if stored ~= ARGV[5] then
+    return 4
+end
+
+redis.call('HSET', connectionKey, subscriptionId, ARGV[6])
+
+local resources = {}
+for _, resource in ipairs(cjson.decode(ARGV[6])) do
+    resources[resource] = true
+end
+
+for i = 3, #KEYS do
+    if resources[KEYS[i]] then
+        update_denormalized(KEYS[i], format, connectionId, { subscriptionId }, {})
+    else
+        update_denormalized(KEYS[i], format, connectionId, {}, { subscriptionId })
+    end
+end
+
+-- the events hold every added and removed resource, including those of other cluster slots
+if maxlen ~= '0' then
+    local storedResources = {}
+    local removed = {}
+    for _, resource in ipairs(cjson.decode(stored)) do
+        storedResources[resource] = true
+        if not resources[resource] then
+            table.insert(removed, resource)
+        end
+    end
+    local added = {}
+    for resource in pairs(resources) do
+        if not storedResources[resource] then
+            table.insert(added, resource)
+        end
+    end
+    append_event(stream, maxlen, EVENT_ADDED, connectionId, subscriptionId, encode_resources(added))
+    append_event(stream, maxlen, EVENT_REMOVED, connectionId, subscriptionId, encode_resources(removed))
+end
+
+return 0
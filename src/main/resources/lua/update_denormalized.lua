@@ -0,0 +1,32 @@
+-- update_denormalized.lua
+--
+-- Atomically adds subscription ids to, and removes subscription ids from, a connection in the denormalized cache
+-- values of the given resources. This is used for the resources that are not stored in the same cluster slot as the
+-- connection key.
+--
+-- KEYS[1..n]  the namespaced resource keys
+-- ARGV[1]     the format of the denormalized cache
+-- ARGV[2]     the connection id
+-- ARGV[3]     the number of subscription ids to add, a
+-- ARGV[4..]   the a subscription ids to add, followed by the subscription ids to remove
+--
+-- Returns 0.
+
+local format = ARGV[1]
+local connectionId = ARGV[2]
+local addedCount = tonumber(ARGV[3])
+
+local added = {}
+local removed = {}
+for i = 4, 3 + addedCount do
+    table.insert(added, ARGV[i])
+end
+for i = 4 + addedCount, #ARGV do
+    table.insert(removed, ARGV[i])
+end
+
+for i = 1, #KEYS do
+    update_denormalized(KEYS[i], format, connectionId, added, removed)
+end
+
+return 0
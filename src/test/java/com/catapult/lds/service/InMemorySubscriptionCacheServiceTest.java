@@ -0,0 +1,157 @@
+package com.catapult.lds.service;
+
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.testng.collections.Sets;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+public class InMemorySubscriptionCacheServiceTest {
+
+    @Test
+    void testConnectionLifecycle() throws SubscriptionException {
+        SubscriptionCacheService cacheService = new InMemorySubscriptionCacheService();
+
+        String trainer1ConnectionId = "trainer-1-connection-id";
+        String ath1Id = "athlete-1-id";
+
+        Assert.assertThrows(SubscriptionException.class, () -> cacheService.closeConnection(trainer1ConnectionId));
+        Assert.assertThrows(SubscriptionException.class, () -> cacheService.getSubscriptions(trainer1ConnectionId));
+        Assert.assertThrows(SubscriptionException.class,
+                () -> cacheService.addSubscription(new Subscription(trainer1ConnectionId,
+                        Collections.singleton(ath1Id))));
+
+        cacheService.createConnection(trainer1ConnectionId);
+        Assert.assertTrue(cacheService.connectionExists(trainer1ConnectionId));
+        Assert.assertThrows(SubscriptionException.class, () -> cacheService.createConnection(trainer1ConnectionId));
+
+        Subscription sub1 = new Subscription(trainer1ConnectionId, Collections.singleton(ath1Id));
+        cacheService.addSubscription(sub1);
+        Assert.assertThrows(SubscriptionException.class, () -> cacheService.addSubscription(sub1));
+        Assert.assertEquals(cacheService.getSubscription(trainer1ConnectionId, sub1.getId()).getResources(),
+                Collections.singleton(ath1Id));
+
+        // a batch with an existing subscription adds none of its subscriptions
+        Subscription sub2 = new Subscription(trainer1ConnectionId, Collections.singleton("athlete-2-id"));
+        Assert.assertThrows(SubscriptionException.class, () -> cacheService.addSubscriptions(List.of(sub2, sub1)));
+        Assert.assertNull(cacheService.getSubscription(trainer1ConnectionId, sub2.getId()));
+        Assert.assertTrue(cacheService.resolveRecipients(Collections.singleton("athlete-2-id")).isEmpty());
+
+        // cancelling an unknown subscription has no effect
+        cacheService.cancelSubscription(trainer1ConnectionId, "unknown-subscription-id");
+        cacheService.cancelSubscription("unknown-connection-id", sub1.getId());
+
+        cacheService.closeConnection(trainer1ConnectionId);
+        Assert.assertFalse(cacheService.connectionExists(trainer1ConnectionId));
+        Assert.assertTrue(cacheService.getDenormalizedConnectionsForResourceIds(Collections.singleton(ath1Id))
+                .get(ath1Id)
+                .isEmpty());
+    }
+
+    @Test
+    void testConcurrentSubscriptionsToSharedResource() throws Exception {
+        SubscriptionCacheService cacheService = new InMemorySubscriptionCacheService();
+
+        String ath1Id = "athlete-1-id";
+        int connectionCount = 50;
+        List<String> connectionIds = IntStream.range(0, connectionCount)
+                .mapToObj(i -> "trainer-" + i + "-connection-id")
+                .collect(Collectors.toList());
+        for (String connectionId : connectionIds) {
+            cacheService.createConnection(connectionId);
+        }
+
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Object>> futures = executorService.invokeAll(connectionIds.stream()
+                    .map(connectionId -> (Callable<Object>) () -> {
+                        Subscription subscription = new Subscription(connectionId, Sets.newHashSet(ath1Id,
+                                connectionId + "-device"));
+                        cacheService.addSubscription(subscription);
+                        cacheService.addSubscription(new Subscription(connectionId, Collections.singleton(ath1Id)));
+                        cacheService.cancelSubscription(connectionId, subscription.getId());
+                        return null;
+                    })
+                    .collect(Collectors.toList()));
+            for (Future<Object> future : futures) {
+                future.get();
+            }
+        } finally {
+            executorService.shutdown();
+        }
+
+        DenormalizedCacheValue value =
+                cacheService.getDenormalizedConnectionsForResourceIds(Collections.singleton(ath1Id)).get(ath1Id);
+        Assert.assertEquals(value.getConnectionIds(), Set.copyOf(connectionIds));
+        connectionIds.forEach(c -> Assert.assertEquals(value.getSubscriptionIds(c).size(), 1));
+    }
+
+    @Test
+    void testMatchesRedisSubscriptionCacheService() throws SubscriptionException {
+        RedisURI redisURI = RedisURI.create(System.getenv(RedisSubscriptionCacheService.LDS_REDIS_HOST_ENV),
+                Integer.parseInt(System.getenv(RedisSubscriptionCacheService.LDS_REDIS_PORT_ENV)));
+        RedisClient.create(redisURI).connect().sync().flushall();
+
+        SubscriptionCacheService redisCacheService = RedisSubscriptionCacheService.instance;
+        SubscriptionCacheService inMemoryCacheService = new InMemorySubscriptionCacheService();
+
+        String trainer1ConnectionId = "trainer-1-connection-id";
+        String trainer2ConnectionId = "trainer-2-connection-id";
+        Set<String> resources = Sets.newHashSet("athlete-1-id", "athlete-2-id", "device-1-id");
+
+        Subscription sub1 = new Subscription(trainer1ConnectionId, Sets.newHashSet("athlete-1-id", "athlete-2-id"));
+        Subscription sub2 = new Subscription(trainer1ConnectionId, Sets.newHashSet("athlete-2-id", "device-1-id"));
+        Subscription sub3 = new Subscription(trainer2ConnectionId, Collections.singleton("athlete-2-id"));
+        Subscription sub4 = new Subscription(trainer2ConnectionId, Sets.newHashSet("athlete-1-id", "device-1-id"));
+        Subscription sub5 = new Subscription(trainer2ConnectionId, Collections.singleton("device-1-id"));
+
+        for (SubscriptionCacheService cacheService : List.of(redisCacheService, inMemoryCacheService)) {
+            cacheService.createConnection(trainer1ConnectionId);
+            cacheService.createConnection(trainer2ConnectionId);
+            cacheService.addSubscription(sub1);
+            cacheService.addSubscription(sub2);
+            cacheService.addSubscription(sub3);
+            cacheService.addSubscriptions(List.of(sub4, sub5));
+            cacheService.modifySubscription(trainer2ConnectionId, sub4.getId(),
+                    Sets.newHashSet("athlete-2-id", "device-1-id"));
+            cacheService.cancelSubscription(trainer1ConnectionId, sub1.getId());
+        }
+
+        Assert.assertEquals(subscriptionIdsByConnectionId(inMemoryCacheService, resources),
+                subscriptionIdsByConnectionId(redisCacheService, resources));
+        Assert.assertEquals(inMemoryCacheService.resolveRecipients(resources),
+                redisCacheService.resolveRecipients(resources));
+
+        for (SubscriptionCacheService cacheService : List.of(redisCacheService, inMemoryCacheService)) {
+            cacheService.closeConnection(trainer2ConnectionId);
+        }
+
+        Assert.assertEquals(subscriptionIdsByConnectionId(inMemoryCacheService, resources),
+                subscriptionIdsByConnectionId(redisCacheService, resources));
+        Assert.assertEquals(
+                inMemoryCacheService.getSubscriptions(trainer1ConnectionId).stream().map(Subscription::getId).collect(Collectors.toSet()),
+                redisCacheService.getSubscriptions(trainer1ConnectionId).stream().map(Subscription::getId).collect(Collectors.toSet()));
+    }
+
+    /**
+     * Returns the subscription ids of each connection of each of the given resources in the given cache service.
+     */
+    private static Map<String, Map<String, Set<String>>> subscriptionIdsByConnectionId(SubscriptionCacheService cacheService,
+                                                                                       Set<String> resources) {
+        return cacheService.getDenormalizedConnectionsForResourceIds(resources)
+                .entrySet()
+                .stream()
+                .collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().getSubscriptionIdsByConnectionId()));
+    }
+}
@@ -1,9 +1,13 @@
 package com.catapult.lds.service;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import io.lettuce.core.ReadFrom;
 import io.lettuce.core.RedisClient;
 import io.lettuce.core.RedisURI;
+import io.lettuce.core.ScriptOutputType;
 import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.async.RedisStreamAsyncCommands;
+import io.lettuce.core.api.sync.RedisCommands;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.testng.Assert;
@@ -12,12 +16,23 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 import org.testng.collections.Sets;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static org.testng.AssertJUnit.assertEquals;
 
@@ -51,17 +66,64 @@ public class RedisSubscriptionCacheServiceTest {
         String host = System.getenv(RedisSubscriptionCacheService.LDS_REDIS_HOST_ENV);
         String port = System.getenv(RedisSubscriptionCacheService.LDS_REDIS_PORT_ENV);
         RedisURI redisURI = RedisURI.create(host, Integer.parseInt(port));
-        StatefulRedisConnection<String, String> redisClient = RedisClient.create(redisURI).connect();
-        List<String> keys = redisClient.sync().keys("*");
-        this.logger.info("==========================");
-        keys.forEach(k -> this.logger.info(k + ": " + (redisClient.sync().type(k).equals("string") ?
-                redisClient.sync().get(k) : redisClient.sync().hgetall(k))));
+        RedisClient client = RedisClient.create(redisURI);
+        try {
+            RedisCommands<String, String> commands = client.connect().sync();
+            List<String> keys = commands.keys("*");
+            this.logger.info("==========================");
+            keys.forEach(k -> this.logger.info(k + ": " + describe(commands, k)));
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    /**
+     * Returns a description of the value of the given key for the log, which is read according to its type.
+     */
+    private static Object describe(RedisCommands<String, String> commands, String key) {
+        String type = commands.type(key);
+        switch (type) {
+            case "string":
+                return commands.get(key);
+            case "hash":
+                return commands.hgetall(key);
+            case "set":
+                return commands.smembers(key);
+            case "stream":
+                return commands.xlen(key) + " events";
+            default:
+                return type;
+        }
+    }
+
+    /**
+     * Returns the uri of the redis instance used by this test.
+     */
+    private RedisURI redisURI() {
+        String host = System.getenv(RedisSubscriptionCacheService.LDS_REDIS_HOST_ENV);
+        String port = System.getenv(RedisSubscriptionCacheService.LDS_REDIS_PORT_ENV);
+        return RedisURI.create(host, Integer.parseInt(port));
     }
 
     @Test
-    void testRedisCanConnect() {
-        SubscriptionCacheService cacheService = RedisSubscriptionCacheService.instance;
-        Assert.assertTrue(cacheService.isConnected());
+    void testRedisCanConnect() throws SubscriptionException, InterruptedException {
+        RedisAsyncSubscriptionCacheService asyncCacheService = new RedisAsyncSubscriptionCacheService(
+                RedisCacheConfiguration.builder()
+                        .redisURI(this.redisURI())
+                        .build());
+
+        try {
+            // a fresh service only reports its state, so it is still not connected once a connection would have been
+            Assert.assertFalse(asyncCacheService.isConnected());
+            Thread.sleep(500);
+            Assert.assertFalse(asyncCacheService.isConnected());
+            Assert.assertEquals(asyncCacheService.getCircuitBreaker().getState(), CircuitBreaker.State.CLOSED);
+
+            AsyncSubscriptionCacheService.join(asyncCacheService.connect(), Duration.ofSeconds(10));
+            Assert.assertTrue(asyncCacheService.isConnected());
+        } finally {
+            asyncCacheService.shutdown();
+        }
     }
 
     @Test
@@ -235,6 +297,920 @@ public class RedisSubscriptionCacheServiceTest {
         Assert.assertEquals(cacheService.getDenormalizedConnectionsForResourceIds(Collections.singleton(ath2Id)).get(ath2Id).getConnectionIds().size(), 0);
     }
 
+    @Test
+    void testConcurrentSubscriptionsToSharedResource() throws Exception {
+        SubscriptionCacheService cacheService = RedisSubscriptionCacheService.instance;
+
+        String ath1Id = "athlete-1-id";
+        List<String> connectionIds = IntStream.range(0, 50)
+                .mapToObj(i -> "connection-" + i)
+                .collect(Collectors.toList());
+
+        for (String connectionId : connectionIds) {
+            cacheService.createConnection(connectionId);
+        }
+
+        // subscribe every connection to the same resource at the same time
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (String connectionId : connectionIds) {
+                futures.add(executorService.submit(() -> {
+                    cacheService.addSubscription(new Subscription(connectionId, Collections.singleton(ath1Id)));
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executorService.shutdown();
+        }
+
+        // no subscription was lost
+        Assert.assertEquals(cacheService.getDenormalizedConnectionsForResourceIds(Collections.singleton(ath1Id)).get(ath1Id).getConnectionIds(),
+                Set.copyOf(connectionIds));
+    }
+
+    @Test
+    void testAddSubscriptionValidation() throws SubscriptionException {
+        SubscriptionCacheService cacheService = RedisSubscriptionCacheService.instance;
+
+        String trainer1ConnectionId = "trainer-1-connection-id";
+        String ath1Id = "athlete-1-id";
+
+        Subscription sub1 = new Subscription(trainer1ConnectionId, Sets.newHashSet(ath1Id));
+
+        // the connection does not exist yet, and nothing is written to the denormalized cache
+        Assert.assertThrows(SubscriptionException.class, () -> cacheService.addSubscription(sub1));
+        Assert.assertTrue(cacheService.getDenormalizedConnectionsForResourceIds(Collections.singleton(ath1Id)).get(ath1Id).isEmpty());
+
+        cacheService.createConnection(trainer1ConnectionId);
+        cacheService.addSubscription(sub1);
+
+        // the same subscription cannot be added twice
+        Assert.assertThrows(SubscriptionException.class, () -> cacheService.addSubscription(sub1));
+        Assert.assertEquals(cacheService.getDenormalizedConnectionsForResourceIds(Collections.singleton(ath1Id)).get(ath1Id).getSubscriptionIds(trainer1ConnectionId),
+                Collections.singleton(sub1.getId()));
+    }
+
+    @Test
+    void testAddSubscriptions() throws SubscriptionException {
+        for (DenormalizedCacheFormat format : DenormalizedCacheFormat.values()) {
+            SubscriptionCacheService cacheService = new RedisSubscriptionCacheService(this.redisURI(), format);
+
+            String trainer1ConnectionId = format.value() + "-trainer-1-connection-id";
+            String ath1Id = format.value() + "-athlete-1-id";
+            String ath2Id = format.value() + "-athlete-2-id";
+            String dev1Id = format.value() + "-device-1-id";
+            Set<String> resources = Sets.newHashSet(ath1Id, ath2Id, dev1Id);
+
+            Subscription sub1 = new Subscription(trainer1ConnectionId, Sets.newHashSet(ath1Id, ath2Id));
+            Subscription sub2 = new Subscription(trainer1ConnectionId, Sets.newHashSet(ath2Id, dev1Id));
+            Subscription sub3 = new Subscription(trainer1ConnectionId, Collections.singleton(dev1Id));
+
+            // the connection does not exist yet
+            Assert.assertThrows(SubscriptionException.class, () -> cacheService.addSubscriptions(List.of(sub1, sub2)));
+
+            cacheService.createConnection(trainer1ConnectionId);
+            cacheService.addSubscription(sub1);
+
+            // none of the subscriptions are added if one of them already exists
+            Assert.assertThrows(SubscriptionException.class, () -> cacheService.addSubscriptions(List.of(sub2, sub1)));
+            Assert.assertNull(cacheService.getSubscription(trainer1ConnectionId, sub2.getId()));
+            Assert.assertTrue(cacheService.getDenormalizedConnectionsForResourceIds(resources).get(dev1Id).isEmpty());
+
+            cacheService.addSubscriptions(List.of(sub2, sub3));
+
+            Map<String, DenormalizedCacheValue> values = cacheService.getDenormalizedConnectionsForResourceIds(resources);
+            Assert.assertEquals(values.get(ath1Id).getSubscriptionIds(trainer1ConnectionId),
+                    Collections.singleton(sub1.getId()));
+            Assert.assertEquals(values.get(ath2Id).getSubscriptionIds(trainer1ConnectionId),
+                    Sets.newHashSet(sub1.getId(), sub2.getId()));
+            Assert.assertEquals(values.get(dev1Id).getSubscriptionIds(trainer1ConnectionId),
+                    Sets.newHashSet(sub2.getId(), sub3.getId()));
+            Assert.assertEquals(cacheService.getSubscriptions(trainer1ConnectionId).size(), 3);
+
+            cacheService.closeConnection(trainer1ConnectionId);
+            Assert.assertTrue(cacheService.getDenormalizedConnectionsForResourceIds(resources)
+                    .values()
+                    .stream()
+                    .allMatch(DenormalizedCacheValue::isEmpty));
+        }
+    }
+
+    @Test
+    void testModifySubscription() throws SubscriptionException {
+        for (DenormalizedCacheFormat format : DenormalizedCacheFormat.values()) {
+            SubscriptionCacheService cacheService = new RedisSubscriptionCacheService(this.redisURI(), format);
+
+            String trainer1ConnectionId = format.value() + "-trainer-1-connection-id";
+            String ath1Id = format.value() + "-athlete-1-id";
+            String ath2Id = format.value() + "-athlete-2-id";
+            String dev1Id = format.value() + "-device-1-id";
+            Set<String> resources = Sets.newHashSet(ath1Id, ath2Id, dev1Id);
+
+            Subscription sub1 = new Subscription(trainer1ConnectionId, Sets.newHashSet(ath1Id, ath2Id));
+            Subscription sub2 = new Subscription(trainer1ConnectionId, Collections.singleton(ath2Id));
+
+            // the connection does not exist yet
+            Assert.assertThrows(SubscriptionException.class, () -> cacheService.modifySubscription(
+                    trainer1ConnectionId, sub1.getId(), Collections.singleton(dev1Id)));
+
+            cacheService.createConnection(trainer1ConnectionId);
+            cacheService.addSubscription(sub1);
+            cacheService.addSubscription(sub2);
+
+            // the subscription does not exist
+            Assert.assertThrows(SubscriptionException.class, () -> cacheService.modifySubscription(
+                    trainer1ConnectionId, "unknown-subscription-id", Collections.singleton(dev1Id)));
+
+            // athlete 1 is removed, athlete 2 is kept and device 1 is added
+            cacheService.modifySubscription(trainer1ConnectionId, sub1.getId(), Sets.newHashSet(ath2Id, dev1Id));
+
+            Assert.assertEquals(cacheService.getSubscription(trainer1ConnectionId, sub1.getId()).getResources(),
+                    Sets.newHashSet(ath2Id, dev1Id));
+
+            Map<String, DenormalizedCacheValue> values = cacheService.getDenormalizedConnectionsForResourceIds(resources);
+            Assert.assertTrue(values.get(ath1Id).isEmpty());
+            Assert.assertEquals(values.get(ath2Id).getSubscriptionIds(trainer1ConnectionId),
+                    Sets.newHashSet(sub1.getId(), sub2.getId()));
+            Assert.assertEquals(values.get(dev1Id).getSubscriptionIds(trainer1ConnectionId),
+                    Collections.singleton(sub1.getId()));
+
+            // an unchanged set of resources is not a modification
+            cacheService.modifySubscription(trainer1ConnectionId, sub1.getId(), Sets.newHashSet(ath2Id, dev1Id));
+            Assert.assertEquals(cacheService.getSubscription(trainer1ConnectionId, sub1.getId()).getResources(),
+                    Sets.newHashSet(ath2Id, dev1Id));
+
+            cacheService.closeConnection(trainer1ConnectionId);
+            Assert.assertTrue(cacheService.getDenormalizedConnectionsForResourceIds(resources)
+                    .values()
+                    .stream()
+                    .allMatch(DenormalizedCacheValue::isEmpty));
+        }
+    }
+
+    @Test
+    void testResolveRecipients() throws SubscriptionException {
+        for (DenormalizedCacheFormat format : DenormalizedCacheFormat.values()) {
+
+            // a few keys per chunk, so that the resource ids are read in several chunks
+            SubscriptionCacheService cacheService = new RedisSubscriptionCacheService(RedisCacheConfiguration.builder()
+                    .redisURI(this.redisURI())
+                    .denormalizedCacheFormat(format)
+                    .resolveChunkMaxKeys(2)
+                    .build());
+
+            String trainer1ConnectionId = format.value() + "-trainer-1-connection-id";
+            String trainer2ConnectionId = format.value() + "-trainer-2-connection-id";
+            List<String> athleteIds = IntStream.range(0, 7)
+                    .mapToObj(i -> format.value() + "-athlete-" + i + "-id")
+                    .collect(Collectors.toList());
+
+            Subscription sub1 = new Subscription(trainer1ConnectionId, Set.copyOf(athleteIds.subList(0, 4)));
+            Subscription sub2 = new Subscription(trainer1ConnectionId, Set.copyOf(athleteIds.subList(3, 5)));
+            Subscription sub3 = new Subscription(trainer2ConnectionId, Collections.singleton(athleteIds.get(6)));
+
+            cacheService.createConnection(trainer1ConnectionId);
+            cacheService.createConnection(trainer2ConnectionId);
+            cacheService.addSubscription(sub1);
+            cacheService.addSubscription(sub2);
+            cacheService.addSubscription(sub3);
+
+            Assert.assertEquals(cacheService.resolveRecipients(Set.copyOf(athleteIds)), Map.of(
+                    trainer1ConnectionId, Set.of(sub1.getId(), sub2.getId()),
+                    trainer2ConnectionId, Set.of(sub3.getId())));
+            Assert.assertEquals(cacheService.resolveRecipients(Set.of(athleteIds.get(4), athleteIds.get(5))),
+                    Map.of(trainer1ConnectionId, Set.of(sub2.getId())));
+            Assert.assertTrue(cacheService.resolveRecipients(Collections.singleton(athleteIds.get(5))).isEmpty());
+
+            cacheService.closeConnection(trainer1ConnectionId);
+            cacheService.closeConnection(trainer2ConnectionId);
+            Assert.assertTrue(cacheService.resolveRecipients(Set.copyOf(athleteIds)).isEmpty());
+        }
+    }
+
+    @Test
+    void testFormatMigration() throws SubscriptionException {
+        SubscriptionCacheService setCacheService = new RedisSubscriptionCacheService(RedisCacheConfiguration.builder()
+                .redisURI(this.redisURI())
+                .denormalizedCacheFormat(DenormalizedCacheFormat.SET)
+                .build());
+
+        String trainer1ConnectionId = "trainer-1-connection-id";
+        String ath1Id = "athlete-1-id";
+        String ath2Id = "athlete-2-id";
+        Subscription sub1 = new Subscription(trainer1ConnectionId, Collections.singleton(ath1Id));
+        setCacheService.createConnection(trainer1ConnectionId);
+        setCacheService.addSubscription(sub1);
+
+        // a value still stored as a set is only read by the json format during a migration
+        for (boolean formatMigration : List.of(false, true)) {
+            SubscriptionCacheService cacheService = new RedisSubscriptionCacheService(RedisCacheConfiguration.builder()
+                    .redisURI(this.redisURI())
+                    .formatMigration(formatMigration)
+                    .build());
+
+            Assert.assertEquals(cacheService.resolveRecipients(Set.of(ath1Id, ath2Id)), formatMigration ?
+                    Map.of(trainer1ConnectionId, Set.of(sub1.getId())) :
+                    Collections.emptyMap());
+            Map<String, DenormalizedCacheValue> values =
+                    cacheService.getDenormalizedConnectionsForResourceIds(Set.of(ath1Id, ath2Id));
+            Assert.assertEquals(values.get(ath1Id).isEmpty(), !formatMigration);
+            Assert.assertTrue(values.get(ath2Id).isEmpty());
+        }
+
+        setCacheService.closeConnection(trainer1ConnectionId);
+    }
+
+    @Test
+    void testSweepOrphanedConnections() throws SubscriptionException {
+        RedisAsyncSubscriptionCacheService asyncCacheService = new RedisAsyncSubscriptionCacheService(
+                RedisCacheConfiguration.builder()
+                        .redisURI(this.redisURI())
+                        .sweepBatchSize(2)
+                        .build());
+        SubscriptionCacheService cacheService = new RedisSubscriptionCacheService(asyncCacheService);
+        StatefulRedisConnection<String, String> connection = RedisClient.create(this.redisURI()).connect();
+
+        String orphanedConnectionId = "orphaned-connection-id";
+        String liveConnectionId = "live-connection-id";
+        String recentConnectionId = "recent-connection-id";
+        Subscription sub1 = new Subscription(orphanedConnectionId, Sets.newHashSet("ath-1-id", "ath-2-id"));
+        Subscription sub2 = new Subscription(orphanedConnectionId, Collections.singleton("ath-2-id"));
+        Subscription sub3 = new Subscription(liveConnectionId, Collections.singleton("ath-1-id"));
+
+        for (String connectionId : List.of(orphanedConnectionId, liveConnectionId, recentConnectionId)) {
+            cacheService.createConnection(connectionId);
+        }
+        cacheService.addSubscription(sub1);
+        cacheService.addSubscription(sub2);
+        cacheService.addSubscription(sub3);
+
+        // the orphaned and live connections were created long before the maximum age
+        connection.sync().hset("$connection-id-" + orphanedConnectionId, "created_at", "0");
+        connection.sync().hset("$connection-id-" + liveConnectionId, "created_at", "0");
+
+        // the stub of the management api reports only the live connection as connected
+        SweepReport report = asyncCacheService.sweepOrphanedConnections(connectionId ->
+                CompletableFuture.completedFuture(connectionId.equals(liveConnectionId))).join();
+        Assert.assertEquals(report, new SweepReport(3, 2, 1, 1, 0, 2, 3));
+
+        Assert.assertFalse(cacheService.connectionExists(orphanedConnectionId));
+        Assert.assertTrue(cacheService.connectionExists(liveConnectionId));
+        Assert.assertTrue(cacheService.connectionExists(recentConnectionId));
+        Assert.assertEquals(cacheService.getDenormalizedConnectionsForResourceIds(Set.of("ath-1-id")).get("ath-1-id")
+                .getSubscriptionIdsByConnectionId(), Map.of(liveConnectionId, Set.of(sub3.getId())));
+        Assert.assertTrue(cacheService.getDenormalizedConnectionsForResourceIds(Set.of("ath-2-id")).get("ath-2-id")
+                .isEmpty());
+
+        // a connection that fails its liveness check is kept
+        report = asyncCacheService.sweepOrphanedConnections(connectionId ->
+                CompletableFuture.failedFuture(new IllegalStateException("unreachable"))).join();
+        Assert.assertEquals(report, new SweepReport(2, 1, 1, 0, 0, 0, 0));
+
+        connection.close();
+    }
+
+    @Test
+    void testConnectionExpiry() throws SubscriptionException, InterruptedException {
+        RedisAsyncSubscriptionCacheService asyncCacheService = new RedisAsyncSubscriptionCacheService(
+                RedisCacheConfiguration.builder()
+                        .redisURI(this.redisURI())
+                        .connectionTtl(Duration.ofMillis(500))
+                        .build());
+        SubscriptionCacheService cacheService = new RedisSubscriptionCacheService(asyncCacheService);
+
+        // expired connections are found by scanning for namespaced resource keys
+        String expiringConnectionId = "expiring-connection-id";
+        String liveConnectionId = "live-connection-id";
+        String athlete1Id = "ts:athlete:1";
+        String athlete2Id = "ts:athlete:2";
+        Subscription sub1 = new Subscription(expiringConnectionId, Set.of(athlete1Id, athlete2Id));
+        Subscription sub2 = new Subscription(liveConnectionId, Set.of(athlete1Id));
+
+        cacheService.createConnection(expiringConnectionId);
+        cacheService.createConnection(liveConnectionId);
+        cacheService.addSubscription(sub1);
+        cacheService.addSubscription(sub2);
+
+        // only the live connection sends heartbeats
+        for (int i = 0; i < 4; i++) {
+            Thread.sleep(200);
+            cacheService.heartbeat(liveConnectionId);
+        }
+
+        Assert.assertFalse(cacheService.connectionExists(expiringConnectionId));
+        Assert.assertTrue(cacheService.connectionExists(liveConnectionId));
+        Assert.assertThrows(SubscriptionException.class, () -> cacheService.heartbeat(expiringConnectionId));
+
+        // the subscriptions of the expired connection remain in the denormalized cache until swept
+        Assert.assertEquals(cacheService.getDenormalizedConnectionsForResourceIds(Set.of(athlete2Id)).get(athlete2Id)
+                .getSubscriptionIdsByConnectionId(), Map.of(expiringConnectionId, Set.of(sub1.getId())));
+        Assert.assertEquals(asyncCacheService.sweepExpiredConnections().join(), Long.valueOf(2));
+
+        Assert.assertEquals(cacheService.getDenormalizedConnectionsForResourceIds(Set.of(athlete1Id)).get(athlete1Id)
+                .getSubscriptionIdsByConnectionId(), Map.of(liveConnectionId, Set.of(sub2.getId())));
+        Assert.assertTrue(cacheService.getDenormalizedConnectionsForResourceIds(Set.of(athlete2Id)).get(athlete2Id)
+                .isEmpty());
+
+        // a second sweep finds nothing to remove
+        Assert.assertEquals(asyncCacheService.sweepExpiredConnections().join(), Long.valueOf(0));
+    }
+
+    @Test
+    void testChunkedSubscription() throws SubscriptionException {
+        for (DenormalizedCacheFormat format : DenormalizedCacheFormat.values()) {
+
+            // a few keys per chunk, which split the resources of a single instance too
+            RedisAsyncSubscriptionCacheService asyncCacheService = new RedisAsyncSubscriptionCacheService(
+                    RedisCacheConfiguration.builder()
+                            .redisURI(this.redisURI())
+                            .denormalizedCacheFormat(format)
+                            .resolveChunkMaxKeys(2)
+                            .writeChunkMaxKeys(2)
+                            .build());
+            SubscriptionCacheService cacheService = new RedisSubscriptionCacheService(asyncCacheService);
+
+            String trainer1ConnectionId = format.value() + "-trainer-1-connection-id";
+            Set<String> athleteIds = IntStream.range(0, 9)
+                    .mapToObj(i -> format.value() + "-athlete-" + i + "-id")
+                    .collect(Collectors.toSet());
+            Subscription sub1 = new Subscription(trainer1ConnectionId, athleteIds);
+
+            cacheService.createConnection(trainer1ConnectionId);
+            cacheService.addSubscription(sub1);
+
+            // every resource shares the slot of the connection key: the script modifies the first chunk, and the
+            // other 7 resources are updated by 4 more chunks
+            Assert.assertEquals(asyncCacheService.getWriteChunkCount(), 5);
+            Assert.assertEquals(asyncCacheService.getChunkedWriteCount(), 1);
+
+            Map<String, DenormalizedCacheValue> values = cacheService.getDenormalizedConnectionsForResourceIds(athleteIds);
+            Assert.assertEquals(values.size(), athleteIds.size());
+            values.values().forEach(value ->
+                    Assert.assertEquals(value.getSubscriptionIds(trainer1ConnectionId), Set.of(sub1.getId())));
+            if (format != DenormalizedCacheFormat.SET) {
+                Assert.assertEquals(asyncCacheService.getReadChunkCount(), 5);
+            }
+
+            cacheService.cancelSubscription(trainer1ConnectionId, sub1.getId());
+            Assert.assertEquals(asyncCacheService.getWriteChunkCount(), 10);
+            Assert.assertEquals(asyncCacheService.getChunkedWriteCount(), 2);
+            cacheService.getDenormalizedConnectionsForResourceIds(athleteIds).values().forEach(value ->
+                    Assert.assertTrue(value.isEmpty()));
+
+            cacheService.closeConnection(trainer1ConnectionId);
+        }
+    }
+
+    @Test
+    void testReconcile() throws SubscriptionException {
+        StatefulRedisConnection<String, String> connection = RedisClient.create(this.redisURI()).connect();
+
+        for (DenormalizedCacheFormat format : DenormalizedCacheFormat.values()) {
+            connection.sync().flushall();
+
+            RedisAsyncSubscriptionCacheService asyncCacheService = new RedisAsyncSubscriptionCacheService(
+                    RedisCacheConfiguration.builder()
+                            .redisURI(this.redisURI())
+                            .denormalizedCacheFormat(format)
+                            .sweepBatchSize(1)
+                            .build());
+            SubscriptionCacheService cacheService = new RedisSubscriptionCacheService(asyncCacheService);
+
+            // resources are found by scanning for namespaced resource keys
+            String trainer1ConnectionId = "trainer-1-connection-id";
+            String trainer2ConnectionId = "trainer-2-connection-id";
+            String trainer3ConnectionId = "trainer-3-connection-id";
+            String athlete1Id = "ts:athlete:1";
+            String athlete2Id = "ts:athlete:2";
+            String athlete3Id = "ts:athlete:3";
+            Subscription sub1 = new Subscription(trainer1ConnectionId, Set.of(athlete1Id, athlete2Id));
+            Subscription sub2 = new Subscription(trainer2ConnectionId, Set.of(athlete1Id));
+            Subscription sub3 = new Subscription(trainer3ConnectionId, Set.of(athlete3Id));
+
+            cacheService.createConnection(trainer1ConnectionId);
+            cacheService.createConnection(trainer2ConnectionId);
+            cacheService.createConnection(trainer3ConnectionId);
+            cacheService.addSubscription(sub1);
+            cacheService.addSubscription(sub2);
+            cacheService.addSubscription(sub3);
+
+            // drift: an entry of sub1 is missing, and those of sub2 and of the connection of sub3 are stale
+            connection.sync().del(athlete2Id);
+            connection.sync().hdel("$connection-id-" + trainer2ConnectionId, sub2.getId());
+            connection.sync().del("$connection-id-" + trainer3ConnectionId);
+
+            // a dry run only reports the drift
+            ReconcileReport report = asyncCacheService.reconcile(true).join();
+            Assert.assertEquals(report, new ReconcileReport(true, 2, 2, 1, 2, 0, 0));
+            Assert.assertTrue(cacheService.getDenormalizedConnectionsForResourceIds(Set.of(athlete2Id)).get(athlete2Id)
+                    .isEmpty());
+
+            // the missing entry is added before the resources are scanned
+            report = asyncCacheService.reconcile(false).join();
+            Assert.assertEquals(report, new ReconcileReport(false, 2, 3, 1, 2, 3, 0));
+
+            Map<String, DenormalizedCacheValue> values = cacheService.getDenormalizedConnectionsForResourceIds(
+                    Set.of(athlete1Id, athlete2Id, athlete3Id));
+            Assert.assertEquals(values.get(athlete1Id).getSubscriptionIdsByConnectionId(),
+                    Map.of(trainer1ConnectionId, Set.of(sub1.getId())));
+            Assert.assertEquals(values.get(athlete2Id).getSubscriptionIdsByConnectionId(),
+                    Map.of(trainer1ConnectionId, Set.of(sub1.getId())));
+            Assert.assertTrue(values.get(athlete3Id).isEmpty());
+
+            // no drift remains
+            report = asyncCacheService.reconcile(true).join();
+            Assert.assertEquals(report, new ReconcileReport(true, 2, 2, 0, 0, 0, 0));
+        }
+
+        connection.close();
+    }
+
+    @Test
+    void testLoadRoutingIndex() throws SubscriptionException {
+        for (DenormalizedCacheFormat format : DenormalizedCacheFormat.values()) {
+            RedisAsyncSubscriptionCacheService asyncCacheService = new RedisAsyncSubscriptionCacheService(
+                    RedisCacheConfiguration.builder()
+                            .redisURI(this.redisURI())
+                            .denormalizedCacheFormat(format)
+                            .build());
+            SubscriptionCacheService cacheService = new RedisSubscriptionCacheService(asyncCacheService);
+
+            // the index is loaded by scanning for namespaced resource keys
+            String trainer1ConnectionId = format.value() + "-trainer-1-connection-id";
+            String trainer2ConnectionId = format.value() + "-trainer-2-connection-id";
+            List<String> athleteIds = IntStream.range(0, 5)
+                    .mapToObj(i -> String.format("ts:athlete:%s-%d", format.value(), i))
+                    .collect(Collectors.toList());
+
+            Subscription sub1 = new Subscription(trainer1ConnectionId, Set.copyOf(athleteIds.subList(0, 3)));
+            Subscription sub2 = new Subscription(trainer1ConnectionId, Set.copyOf(athleteIds.subList(2, 4)));
+            Subscription sub3 = new Subscription(trainer2ConnectionId, Collections.singleton(athleteIds.get(0)));
+
+            cacheService.createConnection(trainer1ConnectionId);
+            cacheService.createConnection(trainer2ConnectionId);
+            cacheService.addSubscription(sub1);
+            cacheService.addSubscription(sub2);
+            cacheService.addSubscription(sub3);
+
+            RoutingIndex routingIndex = asyncCacheService.loadRoutingIndex().join();
+            Assert.assertEquals(routingIndex.getResourceCount(), 4);
+            Assert.assertEquals(routingIndex.getConnectionCount(), 2);
+            Assert.assertEquals(routingIndex.getSubscriptionCount(), 3);
+            Assert.assertEquals(routingIndex.getEdgeCount(), 6);
+
+            Assert.assertEquals(routingIndex.resolveRecipients(athleteIds),
+                    cacheService.resolveRecipients(Set.copyOf(athleteIds)));
+            Assert.assertEquals(routingIndex.resolveRecipients(List.of(athleteIds.get(3), athleteIds.get(4))),
+                    Map.of(trainer1ConnectionId, Set.of(sub2.getId())));
+            Assert.assertEquals(routingIndex.union(List.of(athleteIds.get(0), athleteIds.get(2))).length, 3);
+            Assert.assertTrue(routingIndex.resolveRecipients(Collections.singleton(athleteIds.get(4))).isEmpty());
+
+            cacheService.closeConnection(trainer1ConnectionId);
+            cacheService.closeConnection(trainer2ConnectionId);
+            Assert.assertEquals(asyncCacheService.loadRoutingIndex().join().getEdgeCount(), 0);
+        }
+    }
+
+    @Test
+    void testSubscriptionEvents() throws SubscriptionException {
+        for (DenormalizedCacheFormat format : DenormalizedCacheFormat.values()) {
+            String stream = format.value() + "-subscription-events";
+            RedisAsyncSubscriptionCacheService asyncCacheService = new RedisAsyncSubscriptionCacheService(
+                    RedisCacheConfiguration.builder()
+                            .redisURI(this.redisURI())
+                            .denormalizedCacheFormat(format)
+                            .eventStream(stream)
+                            .build());
+            SubscriptionCacheService cacheService = new RedisSubscriptionCacheService(asyncCacheService);
+            RedisClient client = RedisClient.create(this.redisURI());
+            StatefulRedisConnection<String, String> connection = client.connect();
+            RedisStreamAsyncCommands<String, String> commands = connection.async();
+
+            String trainer1ConnectionId = format.value() + "-trainer-1-connection-id";
+            String ath1Id = format.value() + "-athlete-1-id";
+            String ath2Id = format.value() + "-athlete-2-id";
+            String dev1Id = format.value() + "-device-1-id";
+            Set<String> resources = Sets.newHashSet(ath1Id, ath2Id, dev1Id);
+
+            try {
+                Subscription sub1 = new Subscription(trainer1ConnectionId, Sets.newHashSet(ath1Id, ath2Id));
+                Subscription sub2 = new Subscription(trainer1ConnectionId, Sets.newHashSet(ath2Id, dev1Id));
+                Subscription sub3 = new Subscription(trainer1ConnectionId, Collections.singleton(dev1Id));
+
+                // the consumer starts from the latest event, of which there is none yet
+                String latestId = SubscriptionEventConsumer.latestId(commands, stream).join();
+                Assert.assertEquals(latestId, SubscriptionEventConsumer.FIRST_ID);
+                SubscriptionEventConsumer consumer = new SubscriptionEventConsumer(commands, stream, new RoutingTable(),
+                        latestId);
+
+                cacheService.createConnection(trainer1ConnectionId);
+                cacheService.addSubscription(sub1);
+                cacheService.addSubscriptions(List.of(sub2, sub3));
+                cacheService.modifySubscription(trainer1ConnectionId, sub1.getId(), Sets.newHashSet(ath2Id, dev1Id));
+                cacheService.cancelSubscription(trainer1ConnectionId, sub2.getId());
+
+                // one event for each added subscription, and two for the modified subscription
+                Assert.assertEquals(consumer.poll(100, Duration.ofMillis(100)).join().intValue(), 6);
+                Assert.assertEquals(consumer.getRoutingTable().resolveRecipients(resources),
+                        cacheService.resolveRecipients(resources));
+                Assert.assertEquals(consumer.getRoutingTable().resolveRecipients(Collections.singleton(ath1Id)),
+                        Collections.emptyMap());
+
+                cacheService.closeConnection(trainer1ConnectionId);
+
+                Assert.assertEquals(consumer.poll(100, Duration.ofMillis(100)).join().intValue(), 2);
+                Assert.assertEquals(consumer.getRoutingTable().size(), 0);
+                Assert.assertEquals(consumer.getLastId(), SubscriptionEventConsumer.latestId(commands, stream).join());
+            } finally {
+                // the stream and the keys of a format are not left to the tests that follow
+                connection.sync().del(stream, "$connection-id-" + trainer1ConnectionId, ath1Id, ath2Id, dev1Id);
+                client.shutdown();
+                asyncCacheService.shutdown();
+            }
+        }
+    }
+
+    @Test
+    void testCloseConnectionWithManySubscriptions() throws SubscriptionException {
+        SubscriptionCacheService cacheService = RedisSubscriptionCacheService.instance;
+
+        String trainer1ConnectionId = "trainer-1-connection-id";
+        String trainer2ConnectionId = "trainer-2-connection-id";
+        Set<String> athleteIds = IntStream.range(0, 10)
+                .mapToObj(i -> "athlete-" + i + "-id")
+                .collect(Collectors.toSet());
+
+        cacheService.createConnection(trainer1ConnectionId);
+        cacheService.createConnection(trainer2ConnectionId);
+
+        // many overlapping subscriptions for the first connection
+        for (int i = 0; i < 40; i++) {
+            cacheService.addSubscription(new Subscription(trainer1ConnectionId, athleteIds));
+        }
+        Subscription trainer2Subscription = new Subscription(trainer2ConnectionId, athleteIds);
+        cacheService.addSubscription(trainer2Subscription);
+
+        cacheService.closeConnection(trainer1ConnectionId);
+
+        // only the second connection remains associated with the resources
+        Assert.assertFalse(cacheService.connectionExists(trainer1ConnectionId));
+        cacheService.getDenormalizedConnectionsForResourceIds(athleteIds).values().forEach(v -> {
+            Assert.assertEquals(v.getConnectionIds(), Collections.singleton(trainer2ConnectionId));
+            Assert.assertEquals(v.getSubscriptionIds(trainer2ConnectionId),
+                    Collections.singleton(trainer2Subscription.getId()));
+        });
+
+        // closing an unknown connection throws an exception
+        Assert.assertThrows(SubscriptionException.class, () -> cacheService.closeConnection(trainer1ConnectionId));
+    }
+
+    @Test
+    void testAsyncOperationsJoinOnce() {
+        AsyncSubscriptionCacheService cacheService = RedisAsyncSubscriptionCacheService.instance;
+
+        String ath1Id = "athlete-1-id";
+        List<String> connectionIds = IntStream.range(0, 20)
+                .mapToObj(i -> "connection-" + i)
+                .collect(Collectors.toList());
+
+        // create and subscribe every connection without waiting for any of the others
+        CompletableFuture<?>[] subscribed = connectionIds.stream()
+                .map(c -> cacheService.createConnection(c)
+                        .thenCompose(v -> cacheService.addSubscription(new Subscription(c,
+                                Collections.singleton(ath1Id)))))
+                .toArray(CompletableFuture[]::new);
+
+        Map<String, DenormalizedCacheValue> values = CompletableFuture.allOf(subscribed)
+                .thenCompose(v -> cacheService.getDenormalizedConnectionsForResourceIds(Collections.singleton(ath1Id)))
+                .join();
+
+        Assert.assertEquals(values.get(ath1Id).getConnectionIds(), Set.copyOf(connectionIds));
+
+        // failures are reported through the future
+        CompletionException e = Assert.expectThrows(CompletionException.class,
+                () -> cacheService.createConnection(connectionIds.get(0)).join());
+        Assert.assertTrue(e.getCause() instanceof SubscriptionException);
+    }
+
+    @Test
+    void testSetFormattedDenormalizedCache() throws SubscriptionException {
+        SubscriptionCacheService cacheService = new RedisSubscriptionCacheService(this.redisURI(),
+                DenormalizedCacheFormat.SET);
+
+        String trainer1ConnectionId = "trainer-1-connection-id";
+        String trainer2ConnectionId = "trainer-2-connection-id";
+        String ath1Id = "ts:athlete:athlete-1-id";
+        String ath2Id = "ts:athlete:athlete-2-id";
+
+        cacheService.createConnection(trainer1ConnectionId);
+        cacheService.createConnection(trainer2ConnectionId);
+
+        Subscription sub1 = new Subscription(trainer1ConnectionId, Sets.newHashSet(ath1Id, ath2Id));
+        Subscription sub2 = new Subscription(trainer1ConnectionId, Sets.newHashSet(ath1Id));
+        Subscription sub3 = new Subscription(trainer2ConnectionId, Sets.newHashSet(ath1Id));
+
+        cacheService.addSubscription(sub1);
+        cacheService.addSubscription(sub2);
+        cacheService.addSubscription(sub3);
+
+        Map<String, DenormalizedCacheValue> values =
+                cacheService.getDenormalizedConnectionsForResourceIds(Sets.newHashSet(ath1Id, ath2Id));
+        Assert.assertEquals(values.get(ath1Id).getSubscriptionIds(trainer1ConnectionId), Sets.newHashSet(sub1.getId(),
+                sub2.getId()));
+        Assert.assertEquals(values.get(ath1Id).getSubscriptionIds(trainer2ConnectionId),
+                Collections.singleton(sub3.getId()));
+        Assert.assertEquals(values.get(ath2Id).getConnectionIds(), Collections.singleton(trainer1ConnectionId));
+
+        cacheService.cancelSubscription(trainer1ConnectionId, sub1.getId());
+
+        values = cacheService.getDenormalizedConnectionsForResourceIds(Sets.newHashSet(ath1Id, ath2Id));
+        Assert.assertEquals(values.get(ath1Id).getSubscriptionIds(trainer1ConnectionId),
+                Collections.singleton(sub2.getId()));
+        Assert.assertTrue(values.get(ath2Id).isEmpty());
+
+        cacheService.closeConnection(trainer1ConnectionId);
+        cacheService.closeConnection(trainer2ConnectionId);
+
+        Assert.assertTrue(cacheService.getDenormalizedConnectionsForResourceIds(Collections.singleton(ath1Id)).get(ath1Id).isEmpty());
+    }
+
+    @Test
+    void testJsonToSetFormatMigration() throws SubscriptionException {
+        SubscriptionCacheService jsonCacheService = RedisSubscriptionCacheService.instance;
+        SubscriptionCacheService setCacheService = new RedisSubscriptionCacheService(this.redisURI(),
+                DenormalizedCacheFormat.SET);
+
+        String trainer1ConnectionId = "trainer-1-connection-id";
+        String ath1Id = "athlete-1-id";
+
+        jsonCacheService.createConnection(trainer1ConnectionId);
+        Subscription sub1 = new Subscription(trainer1ConnectionId, Collections.singleton(ath1Id));
+        Subscription sub2 = new Subscription(trainer1ConnectionId, Collections.singleton(ath1Id));
+        jsonCacheService.addSubscription(sub1);
+
+        // json formatted values can be read by a set formatted service
+        Assert.assertEquals(setCacheService.getDenormalizedConnectionsForResourceIds(Collections.singleton(ath1Id)).get(ath1Id).getSubscriptionIds(trainer1ConnectionId),
+                Collections.singleton(sub1.getId()));
+
+        // the value is converted to the set format when modified
+        setCacheService.addSubscription(sub2);
+        Assert.assertEquals(setCacheService.getDenormalizedConnectionsForResourceIds(Collections.singleton(ath1Id)).get(ath1Id).getSubscriptionIds(trainer1ConnectionId),
+                Sets.newHashSet(sub1.getId(), sub2.getId()));
+
+        // set formatted values can be read by a json formatted service
+        Assert.assertEquals(jsonCacheService.getDenormalizedConnectionsForResourceIds(Collections.singleton(ath1Id)).get(ath1Id).getSubscriptionIds(trainer1ConnectionId),
+                Sets.newHashSet(sub1.getId(), sub2.getId()));
+        Assert.assertEquals(jsonCacheService.resolveRecipients(Collections.singleton(ath1Id)).get(trainer1ConnectionId),
+                Sets.newHashSet(sub1.getId(), sub2.getId()));
+
+        // and back to the json format when modified by a json formatted service
+        jsonCacheService.cancelSubscription(trainer1ConnectionId, sub1.getId());
+        Assert.assertEquals(jsonCacheService.getDenormalizedConnectionsForResourceIds(Collections.singleton(ath1Id)).get(ath1Id).getSubscriptionIds(trainer1ConnectionId),
+                Collections.singleton(sub2.getId()));
+    }
+
+    @Test
+    void testBinaryFormattedDenormalizedCache() throws SubscriptionException {
+        SubscriptionCacheService jsonCacheService = RedisSubscriptionCacheService.instance;
+        SubscriptionCacheService binaryCacheService = new RedisSubscriptionCacheService(this.redisURI(),
+                DenormalizedCacheFormat.BINARY);
+
+        String trainer1ConnectionId = "trainer-1-connection-id";
+        String trainer2ConnectionId = "trainer-2-connection-\u00e9";
+        String ath1Id = "ts:athlete:athlete-1-id";
+
+        binaryCacheService.createConnection(trainer1ConnectionId);
+        binaryCacheService.createConnection(trainer2ConnectionId);
+
+        // a legacy json formatted value is converted when modified
+        Subscription sub1 = new Subscription(trainer1ConnectionId, Collections.singleton(ath1Id));
+        jsonCacheService.addSubscription(sub1);
+        List<Subscription> subscriptions = IntStream.range(0, 100)
+                .mapToObj(i -> new Subscription(trainer2ConnectionId, Collections.singleton(ath1Id)))
+                .collect(Collectors.toList());
+        for (Subscription subscription : subscriptions) {
+            binaryCacheService.addSubscription(subscription);
+        }
+
+        // the value written by the server-side scripts is decoded by the codec
+        String stored = RedisClient.create(this.redisURI()).connect().sync().get(ath1Id);
+        Assert.assertTrue(BinaryDenormalizedCacheCodec.isBinary(stored));
+        Map<String, Set<String>> decoded = DenormalizedCacheValue.deserialize(ath1Id, stored)
+                .getSubscriptionIdsByConnectionId();
+        Assert.assertEquals(decoded.get(trainer1ConnectionId), Collections.singleton(sub1.getId()));
+        Assert.assertEquals(decoded.get(trainer2ConnectionId),
+                subscriptions.stream().map(Subscription::getId).collect(Collectors.toSet()));
+
+        // binary formatted values are readable in every format
+        for (SubscriptionCacheService cacheService : List.of(jsonCacheService, binaryCacheService,
+                new RedisSubscriptionCacheService(this.redisURI(), DenormalizedCacheFormat.SET))) {
+            Assert.assertEquals(cacheService.getDenormalizedConnectionsForResourceIds(Collections.singleton(ath1Id)).get(ath1Id).getSubscriptionIdsByConnectionId(),
+                    decoded);
+        }
+
+        binaryCacheService.closeConnection(trainer1ConnectionId);
+        binaryCacheService.closeConnection(trainer2ConnectionId);
+        Assert.assertTrue(binaryCacheService.getDenormalizedConnectionsForResourceIds(Collections.singleton(ath1Id)).get(ath1Id).isEmpty());
+    }
+
+    @Test
+    void testBinaryDenormalizedCacheCodec() {
+        StatefulRedisConnection<String, String> connection = RedisClient.create(this.redisURI()).connect();
+        String key = "ts:athlete:athlete-1-id";
+
+        // a subscription id whose length, and a connection whose subscription count, take more than one digit
+        Map<String, Set<String>> subscriptionIdsByConnectionId = Map.of(
+                "con-1", Sets.newHashSet("sub1", "x".repeat(5000)),
+                "con-\u00e9", IntStream.range(0, 70).mapToObj(i -> "sub" + i).collect(Collectors.toSet()));
+        subscriptionIdsByConnectionId.forEach((connectionId, subscriptionIds) -> {
+            List<String> args = new ArrayList<>(List.of(DenormalizedCacheFormat.BINARY.value(), connectionId,
+                    Integer.toString(subscriptionIds.size())));
+            args.addAll(subscriptionIds);
+            RedisScript.UPDATE_DENORMALIZED.execute(connection.async(), ScriptOutputType.INTEGER, new String[]{key},
+                    args.toArray(String[]::new)).join();
+        });
+
+        // the value encoded by the server-side scripts is decoded as it was written
+        String stored = connection.sync().get(key);
+        Assert.assertTrue(BinaryDenormalizedCacheCodec.isBinary(stored));
+        Assert.assertEquals(DenormalizedCacheValue.deserialize(key, stored).getSubscriptionIdsByConnectionId(),
+                subscriptionIdsByConnectionId);
+
+        byte[] encoded = stored.getBytes(StandardCharsets.UTF_8);
+        Assert.assertThrows(IllegalArgumentException.class, () -> BinaryDenormalizedCacheCodec.decode(
+                Arrays.copyOf(encoded, encoded.length - 1), (connectionId, subscriptionIds) -> { }));
+    }
+
+    @Test
+    void testReplicaReadsFallBackToPrimary() throws SubscriptionException {
+
+        // no replica is available, so every lookup that is routed to a replica fails and is retried on the primary
+        SubscriptionCacheService cacheService = new RedisSubscriptionCacheService(new RedisAsyncSubscriptionCacheService(
+                RedisCacheConfiguration.builder()
+                        .redisURI(this.redisURI())
+                        .readFrom(ReadFrom.REPLICA)
+                        .primaryReadWindow(Duration.ZERO)
+                        .build()));
+
+        String trainer1ConnectionId = "trainer-1-connection-id";
+        String ath1Id = "athlete-1-id";
+
+        cacheService.createConnection(trainer1ConnectionId);
+        Subscription sub1 = new Subscription(trainer1ConnectionId, Collections.singleton(ath1Id));
+        cacheService.addSubscription(sub1);
+
+        Assert.assertEquals(cacheService.getSubscriptions(trainer1ConnectionId).stream().map(Subscription::getId).collect(Collectors.toSet()),
+                Collections.singleton(sub1.getId()));
+        Assert.assertEquals(cacheService.getDenormalizedConnectionsForResourceIds(Collections.singleton(ath1Id)).get(ath1Id).getSubscriptionIds(trainer1ConnectionId),
+                Collections.singleton(sub1.getId()));
+        Assert.assertThrows(SubscriptionException.class, () -> cacheService.getSubscriptions("unknown-connection-id"));
+    }
+
+    @Test
+    void testNearCache() throws SubscriptionException, InterruptedException {
+        RedisAsyncSubscriptionCacheService nearCachedService = new RedisAsyncSubscriptionCacheService(
+                RedisCacheConfiguration.builder()
+                        .redisURI(this.redisURI())
+                        .nearCacheSize(2)
+                        .build());
+        SubscriptionCacheService cacheService = new RedisSubscriptionCacheService(nearCachedService);
+        SubscriptionCacheService otherCacheService = RedisSubscriptionCacheService.instance;
+        NearCache nearCache = nearCachedService.getNearCache().orElseThrow();
+
+        String trainer1ConnectionId = "trainer-1-connection-id";
+        String trainer2ConnectionId = "trainer-2-connection-id";
+        String ath1Id = "athlete-1-id";
+        Set<String> ath1 = Collections.singleton(ath1Id);
+
+        cacheService.createConnection(trainer1ConnectionId);
+        otherCacheService.createConnection(trainer2ConnectionId);
+        Subscription sub1 = new Subscription(trainer1ConnectionId, ath1);
+        cacheService.addSubscription(sub1);
+
+        // the second lookup is served in process
+        Assert.assertEquals(cacheService.getDenormalizedConnectionsForResourceIds(ath1).get(ath1Id).getConnectionIds(),
+                Collections.singleton(trainer1ConnectionId));
+        Assert.assertEquals(cacheService.getDenormalizedConnectionsForResourceIds(ath1).get(ath1Id).getConnectionIds(),
+                Collections.singleton(trainer1ConnectionId));
+        Assert.assertEquals(nearCache.getMissCount(), 1);
+        Assert.assertEquals(nearCache.getHitCount(), 1);
+
+        // a modification by another client is reported by redis
+        otherCacheService.addSubscription(new Subscription(trainer2ConnectionId, ath1));
+        for (int i = 0; i < 100 && nearCache.getInvalidationCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(nearCache.getInvalidationCount(), 1);
+        Assert.assertEquals(cacheService.getDenormalizedConnectionsForResourceIds(ath1).get(ath1Id).getConnectionIds(),
+                Sets.newHashSet(trainer1ConnectionId, trainer2ConnectionId));
+
+        // a modification by this service is observed immediately
+        long sequence = nearCache.getSequence();
+        cacheService.cancelSubscription(trainer1ConnectionId, sub1.getId());
+        Assert.assertEquals(cacheService.getDenormalizedConnectionsForResourceIds(ath1).get(ath1Id).getConnectionIds(),
+                Collections.singleton(trainer2ConnectionId));
+
+        // redis also reports the modification, which may remove the value read since
+        for (int i = 0; i < 100 && nearCache.getSequence() < sequence + 2; i++) {
+            Thread.sleep(10);
+        }
+        cacheService.getDenormalizedConnectionsForResourceIds(ath1);
+
+        // only the least recently used values are held
+        cacheService.getDenormalizedConnectionsForResourceIds(Sets.newHashSet("athlete-2-id", "athlete-3-id"));
+        Assert.assertEquals(nearCache.size(), 2);
+        Assert.assertEquals(nearCache.getEvictionCount(), 1);
+    }
+
+    @Test
+    void testReconnectAfterRestore() throws SubscriptionException {
+        RedisAsyncSubscriptionCacheService asyncCacheService = new RedisAsyncSubscriptionCacheService(
+                RedisCacheConfiguration.builder()
+                        .redisURI(this.redisURI())
+                        .nearCacheSize(2)
+                        .build());
+        SubscriptionCacheService cacheService = new RedisSubscriptionCacheService(asyncCacheService);
+        NearCache nearCache = asyncCacheService.getNearCache().orElseThrow();
+
+        String trainer1ConnectionId = "trainer-1-connection-id";
+        String ath1Id = "athlete-1-id";
+        Set<String> ath1 = Collections.singleton(ath1Id);
+
+        cacheService.createConnection(trainer1ConnectionId);
+        cacheService.addSubscription(new Subscription(trainer1ConnectionId, ath1));
+        cacheService.getDenormalizedConnectionsForResourceIds(ath1);
+        Assert.assertEquals(nearCache.size(), 1);
+
+        // the connections are closed before a checkpoint, and re-established after restore
+        asyncCacheService.beforeCheckpoint(null);
+        Assert.assertFalse(cacheService.isConnected());
+        Assert.assertEquals(nearCache.size(), 0);
+
+        // the first operation waits for the connections that are re-established in the background
+        asyncCacheService.afterRestore(null);
+        Assert.assertEquals(cacheService.getDenormalizedConnectionsForResourceIds(ath1).get(ath1Id).getConnectionIds(),
+                Collections.singleton(trainer1ConnectionId));
+        Assert.assertTrue(cacheService.isConnected());
+        Assert.assertTrue(nearCache.isActive());
+        cacheService.closeConnection(trainer1ConnectionId);
+        Assert.assertFalse(cacheService.connectionExists(trainer1ConnectionId));
+    }
+
+    @Test
+    void testCircuitBreaker() throws InterruptedException {
+        // nothing listens on the port, so every attempt to connect is refused
+        RedisAsyncSubscriptionCacheService asyncCacheService = new RedisAsyncSubscriptionCacheService(
+                RedisCacheConfiguration.builder()
+                        .redisURI(RedisURI.create(this.redisURI().getHost(), 1))
+                        .connectAttempts(2)
+                        .circuitBreakerThreshold(2)
+                        .circuitBreakerOpenDuration(Duration.ofMillis(200))
+                        .build());
+        SubscriptionCacheService cacheService = new RedisSubscriptionCacheService(asyncCacheService);
+        CircuitBreaker circuitBreaker = asyncCacheService.getCircuitBreaker();
+
+        // the operation that waits for the connections is the trial of the breaker, which rejects others meanwhile
+        CompletableFuture<Boolean> trial = asyncCacheService.connectionExists("connection-id");
+        if (!trial.isDone()) {
+            Assert.assertEquals(circuitBreaker.getState(), CircuitBreaker.State.HALF_OPEN);
+        }
+
+        // the failure to connect fails the trial, and opens the breaker
+        Assert.assertThrows(CacheUnavailableException.class, () -> AsyncSubscriptionCacheService.join(trial,
+                Duration.ofSeconds(10)));
+        Assert.assertEquals(circuitBreaker.getState(), CircuitBreaker.State.OPEN);
+        Assert.assertFalse(cacheService.isConnected());
+
+        // an open breaker fails operations without connecting
+        Assert.assertThrows(CacheUnavailableException.class, () -> cacheService.getSubscription("connection-id",
+                "subscription-id"));
+        Assert.assertEquals(circuitBreaker.getRejectionCount(), 1);
+
+        // a failed trial opens the breaker again
+        Thread.sleep(250);
+        Assert.assertThrows(CacheUnavailableException.class, () -> cacheService.connectionExists("connection-id"));
+        Assert.assertEquals(circuitBreaker.getState(), CircuitBreaker.State.OPEN);
+        Assert.assertEquals(circuitBreaker.getOpenCount(), 2);
+
+        // a future that does not complete in time fails like an unreachable redis
+        Assert.assertThrows(CacheUnavailableException.class, () -> AsyncSubscriptionCacheService.join(
+                new CompletableFuture<>(), Duration.ofMillis(10)));
+    }
+
+    @Test
+    public void testSubscriptionFromStoredJson() {
+        Subscription subscription = new Subscription("connection-id", "subscription-id", "[\"athlete-1-id\"]");
+        Assert.assertEquals(subscription.getResources(), Collections.singleton("athlete-1-id"));
+
+        // a corrupt stored value fails like any other invalid argument, rather than with an error
+        Assert.assertThrows(IllegalArgumentException.class,
+                () -> new Subscription("connection-id", "subscription-id", "{\"athlete-1-id\""));
+    }
+
     @Test
     public void testSerializeDeserializeDenormalizedCache() throws JsonProcessingException {
 
@@ -260,4 +1236,82 @@ public class RedisSubscriptionCacheServiceTest {
         String json = denormalizedCacheValue.getSerializedConnectionList();
         this.logger.info(json);
     }
+
+    @Test
+    public void testDeserializeDenormalizedCacheFieldOrder() {
+        // the fields of a connection may be written in any order, alongside unknown fields
+        String serialized = "[" +
+                "{\"subscriptionIds\":[\"sub-1\",\"sub-2\"], \"connectionId\":\"id-1\"}," +
+                "{\"connectionId\":\"id-2\", \"unknown\":{\"a\":[1]}, \"subscriptionIds\":[\"sub-3\"]}" +
+                "]";
+
+        DenormalizedCacheValue value = DenormalizedCacheValue.deserializeFromJson("key", serialized);
+        assertEquals(value.getSubscriptionIdsByConnectionId(),
+                Map.of("id-1", Set.of("sub-1", "sub-2"), "id-2", Set.of("sub-3")));
+        assertEquals(DenormalizedCacheValue.deserializeFromJson("key", value.getSerializedConnectionList())
+                .getSubscriptionIdsByConnectionId(), value.getSubscriptionIdsByConnectionId());
+
+        Assert.assertThrows(AssertionError.class,
+                () -> DenormalizedCacheValue.deserializeFromJson("key", "[{\"connectionId\":\"id-1\"}]"));
+        Assert.assertThrows(AssertionError.class,
+                () -> DenormalizedCacheValue.deserializeFromJson("key", "[{\"connectionId\":\"id-1\","));
+    }
+
+    @Test(timeOut = 10000)
+    public void testDenormalizedCacheValueWithManyConnections() {
+        DenormalizedCacheValue denormalizedCacheValue = DenormalizedCacheValue.fromSetMembers("key",
+                Collections.emptyList());
+        int connectionCount = 100_000;
+
+        for (int i = 0; i < connectionCount; i++) {
+            denormalizedCacheValue.addSubscription("con" + i, "sub" + i);
+        }
+        denormalizedCacheValue.addSubscription("con0", "sub-extra");
+        assertEquals(connectionCount, denormalizedCacheValue.getConnectionIds().size());
+        assertEquals(Sets.newHashSet("sub0", "sub-extra"), denormalizedCacheValue.getSubscriptionIds("con0"));
+
+        // the serialized form is recomputed only after a modification
+        String serialized = denormalizedCacheValue.getSerializedConnectionList();
+        Assert.assertSame(denormalizedCacheValue.getSerializedConnectionList(), serialized);
+
+        for (int i = 1; i < connectionCount; i++) {
+            denormalizedCacheValue.removeSubscription("con" + i, "sub" + i);
+        }
+        denormalizedCacheValue.removeSubscription("con0", "sub0");
+        assertEquals("[{\"connectionId\":\"con0\",\"subscriptionIds\":[\"sub-extra\"]}]",
+                denormalizedCacheValue.getSerializedConnectionList());
+    }
+
+    @Test
+    public void testDenormalizedCacheValueFromSetMembers() {
+        DenormalizedCacheValue denormalizedCacheValue = DenormalizedCacheValue.fromSetMembers("key",
+                Sets.newHashSet(DenormalizedCacheValue.toSetMember("con|1", "sub1"),
+                        DenormalizedCacheValue.toSetMember("con|1", "sub2"),
+                        DenormalizedCacheValue.toSetMember("con2", "sub3")));
+
+        assertEquals(Sets.newHashSet("con|1", "con2"), denormalizedCacheValue.getConnectionIds());
+        assertEquals(Sets.newHashSet("sub1", "sub2"), denormalizedCacheValue.getSubscriptionIds("con|1"));
+    }
+
+    @Test
+    public void testDenormalizedCacheValueIsReadOnly() {
+        DenormalizedCacheValue denormalizedCacheValue = DenormalizedCacheValue.fromSetMembers("key",
+                Sets.newHashSet(DenormalizedCacheValue.toSetMember("con1", "sub1"),
+                        DenormalizedCacheValue.toSetMember("con1", "sub2")));
+        String serialized = denormalizedCacheValue.getSerializedConnectionList();
+
+        // neither the map nor its sets of subscription ids can be modified, which would leave the serialized form stale
+        Map<String, Set<String>> subscriptionIdsByConnectionId =
+                denormalizedCacheValue.getSubscriptionIdsByConnectionId();
+        Assert.assertThrows(UnsupportedOperationException.class, () -> subscriptionIdsByConnectionId.remove("con1"));
+        Assert.assertThrows(UnsupportedOperationException.class,
+                () -> subscriptionIdsByConnectionId.get("con1").add("sub3"));
+        subscriptionIdsByConnectionId.forEach((connectionId, subscriptionIds) ->
+                Assert.assertThrows(UnsupportedOperationException.class, subscriptionIds::clear));
+        subscriptionIdsByConnectionId.entrySet().forEach(entry ->
+                Assert.assertThrows(UnsupportedOperationException.class, () -> entry.getValue().remove("sub1")));
+
+        assertEquals(Map.of("con1", Set.of("sub1", "sub2")), subscriptionIdsByConnectionId);
+        assertEquals(serialized, denormalizedCacheValue.getSerializedConnectionList());
+    }
 }